@@ -16,12 +16,17 @@
 package com.google.gct.testing;
 
 import com.google.common.base.Optional;
+import org.jetbrains.annotations.Nullable;
 
 class BucketFileMetadata {
   private String path;
   private Optional<String> encodedConfigurationInstance;
   private String name;
   private Type type;
+  // The size of the file in bytes as listed in the bucket, or 0 if it is not known.
+  private final long size;
+  // The perceptual hash of a screenshot, once it was downloaded.
+  private volatile Long perceptualHash;
 
   public enum Type {
     UNKNOWN,
@@ -34,18 +39,28 @@ class BucketFileMetadata {
   }
 
   public BucketFileMetadata(String filePath) {
+    this(filePath, "", 0);
+  }
+
+  /**
+   * {@code pathPrefix} is the folder (e.g., "shard-1/") that holds the results of a matrix execution within the bucket. It is skipped while
+   * parsing the file path, but it is kept in the path itself such that the file can still be downloaded.
+   */
+  public BucketFileMetadata(String filePath, String pathPrefix, long size) {
     path = filePath;
+    this.size = size;
+    String relativePath = !pathPrefix.isEmpty() && filePath.startsWith(pathPrefix) ? filePath.substring(pathPrefix.length()) : filePath;
 
-    if (path.endsWith("/")) {
+    if (relativePath.endsWith("/")) {
       type = Type.FOLDER;
-      name = path.substring(0, path.length() - 1);
-    } else if (path.contains("/")) {
-      String[] fileNameParts = path.split("/");
+      name = relativePath.substring(0, relativePath.length() - 1);
+    } else if (relativePath.contains("/")) {
+      String[] fileNameParts = relativePath.split("/");
       encodedConfigurationInstance = Optional.of(fileNameParts[0]);
       name = fileNameParts[fileNameParts.length - 1];
     } else {
       encodedConfigurationInstance = Optional.absent();
-      name = path;
+      name = relativePath;
     }
 
     if (path.endsWith("/DONE")) {
@@ -83,6 +98,19 @@ class BucketFileMetadata {
     return type;
   }
 
+  public long getSize() {
+    return size;
+  }
+
+  @Nullable
+  public Long getPerceptualHash() {
+    return perceptualHash;
+  }
+
+  public void setPerceptualHash(long perceptualHash) {
+    this.perceptualHash = perceptualHash;
+  }
+
   @Override
   public String toString() {
     return "BucketFileMetadata{" +
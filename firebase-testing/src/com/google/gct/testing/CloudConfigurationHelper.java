@@ -23,11 +23,11 @@ import com.android.tools.analytics.UsageTracker;
 import com.android.tools.idea.gradle.project.model.AndroidModuleModel;
 import com.android.tools.idea.testartifacts.instrumented.AndroidTestRunConfiguration;
 import com.android.tools.idea.sdk.IdeSdks;
-import com.google.api.client.util.Maps;
 import com.google.api.client.util.Sets;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.api.services.testing.model.AndroidDevice;
+import com.google.api.services.testing.model.ConnectionInfo;
 import com.google.api.services.testing.model.Device;
 import com.google.api.services.testing.model.TestMatrix;
 import com.google.common.base.Function;
@@ -35,19 +35,28 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gct.testing.android.CloudConfiguration;
 import com.google.gct.testing.android.CloudMatrixTestRunningState;
 import com.google.gct.testing.config.GoogleCloudTestingDeveloperConfigurable;
 import com.google.gct.testing.config.GoogleCloudTestingDeveloperSettings;
 import com.google.gct.testing.dimension.*;
 import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.launcher.CloudDeviceReadinessWatcher;
+import com.google.gct.testing.launcher.CloudRequestExecutor;
 import com.google.gct.testing.launcher.CloudTestsLauncher;
+import com.google.gct.testing.launcher.TestShardPlanner;
 import com.google.gct.testing.results.GoogleCloudTestConsoleProperties;
 import com.google.gct.testing.results.GoogleCloudTestListener;
 import com.google.gct.testing.results.GoogleCloudTestResultsConnectionUtil;
 import com.google.gct.testing.results.GoogleCloudTestingResultParser;
 import com.google.gct.testing.vnc.BlankVncViewer;
 import com.google.gct.testing.vnc.BlankVncViewerCallback;
+import com.google.gct.testing.vnc.CloudDeviceKeepAliveScheduler;
 import com.google.gct.testing.vnc.VncKeepAliveThreadImpl;
 import com.google.wireless.android.sdk.stats.AndroidStudioEvent;
 import com.google.wireless.android.sdk.stats.AndroidStudioEvent.EventCategory;
@@ -58,34 +67,44 @@ import com.intellij.execution.ExecutionResult;
 import com.intellij.execution.Executor;
 import com.intellij.execution.process.ProcessOutputTypes;
 import com.intellij.execution.ui.ConsoleView;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
-import com.jcraft.jsch.JSch;
+import com.intellij.util.concurrency.PooledThreadExecutor;
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.KeyPair;
-import com.jcraft.jsch.Session;
 import icons.AndroidIcons;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.net.InetAddress;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.gct.testing.CloudTestingUtils.checkJavaVersion;
-import static com.jcraft.jsch.KeyPair.RSA;
 
 public final class CloudConfigurationHelper {
 
+  private static final Logger LOG = Logger.getInstance(CloudConfigurationHelper.class);
+
   private static final String TEST_RUN_ID_PREFIX = "GoogleCloudTest:";
-  private static final Map<String, CloudConfigurationImpl> testRunIdToCloudConfiguration = new HashMap<String, CloudConfigurationImpl>();
-  private static final Map<String, CloudResultsAdapter> testRunIdToCloudResultsAdapter = new HashMap<String, CloudResultsAdapter>();
+  private static final long DEVICE_READINESS_TIMEOUT_MILLIS = 10 * 60 * 1000; // 10 minutes
   // Do not use MultiMap to ensure proper reuse of serial numbers (IP:port).
-  private static final Map<String, String> serialNumberToConfigurationInstance = Maps.newHashMap();
+  private static final Map<String, String> serialNumberToConfigurationInstance = new ConcurrentHashMap<String, String>();
+  // The inverse index, such that the device of a configuration instance could be found without scanning all devices.
+  private static final ConcurrentMap<String, String> configurationInstanceToSerialNumber = new ConcurrentHashMap<String, String>();
+  // Configuration instance -> the future of the serial number of its firebase device that is being launched.
+  private static final ConcurrentMap<String, ListenableFuture<String>> configurationInstanceToLaunch =
+    new ConcurrentHashMap<String, ListenableFuture<String>>();
 
   public static final Icon DEFAULT_ICON = AndroidIcons.AndroidFile;
 
@@ -274,7 +293,8 @@ public final class CloudConfigurationHelper {
   @Nullable
   private static String getDefaultBucketName(@NotNull Project project, @NotNull String cloudProjectId) {
     try {
-      return CloudAuthenticator.getInstance().getToolresults().projects().initializeSettings(cloudProjectId).execute().getDefaultBucket();
+      return CloudRequestExecutor.getInstance()
+        .execute(CloudAuthenticator.getInstance().getToolresults().projects().initializeSettings(cloudProjectId)).getDefaultBucket();
     } catch (Exception e) {
       CloudTestingUtils
         .showErrorMessage(project, "Firebase test configuration is invalid",
@@ -297,175 +317,274 @@ public final class CloudConfigurationHelper {
     }
 
     lastCloudProjectId = cloudProjectId;
+    GoogleCloudTestingDeveloperConfigurable.GoogleCloudTestingDeveloperState state =
+      GoogleCloudTestingDeveloperSettings.getInstance(facet.getModule().getProject()).getState();
+    CloudDevicePool.getInstance().configure(state);
+    CloudDeviceKeepAliveScheduler.getInstance().configure(state);
     String configurationInstance = cloudConfiguration.computeConfigurationInstances(ConfigurationInstance.ENCODED_NAME_DELIMITER).get(0);
     launchCloudDevice(configurationInstance);
   }
 
-  public static void launchCloudDevice(String configurationInstance) {
+  /**
+   * Launches (or takes over a warm) firebase device of the given configuration instance and connects it to adb and a VNC viewer.
+   * Returns a future of the adb serial number of the connected device, which is {@code null} if the device could not be connected.
+   */
+  @NotNull
+  public static ListenableFuture<String> launchCloudDevice(final String configurationInstance) {
     if (!checkJavaVersion()) {
-      return;
-    }
-
-    String publicKey;
-    JSch jsch = new JSch();
-    try {
-      publicKey = generateSshKeys(jsch);
-    } catch (Exception e) {
-      CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                 "Exception while generating ssh keys\n\n" +
-                                                                                 e.getMessage());
-      return;
+      return Futures.immediateFuture(null);
     }
 
     final String cloudProjectId = lastCloudProjectId;
-    String[] dimensionValues = configurationInstance.split("-");
-    Device device = new Device().setAndroidDevice(
-      new AndroidDevice()
-        .setAndroidModelId(dimensionValues[0])
-        .setAndroidVersionId(dimensionValues[1])
-        .setLocale(dimensionValues[2])
-        .setOrientation(dimensionValues[3]));
-
-    Device createdDevice = null;
-    try {
-      createdDevice =
-        CloudAuthenticator.getInstance().getTest().projects().devices().create(cloudProjectId, device).setSshPublicKey(publicKey).execute();
-    } catch (Exception e) {
-      CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                 "Exception while launching a firebase device\n\n" +
-                                                                                 e.getMessage());
-      return;
-    }
-    if (createdDevice == null) {
-      CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                 "Could not access firebase device\n\n");
+    CloudDevicePool devicePool = CloudDevicePool.getInstance();
+    CloudDevicePool.PooledDevice pooledDevice = devicePool.acquire(cloudProjectId, configurationInstance);
+    devicePool.recordUsage(cloudProjectId, configurationInstance);
+
+    Device createdDevice;
+    if (pooledDevice != null) {
+      // Take over a warm device rather than waiting for a new one to boot.
+      createdDevice = pooledDevice.getDevice();
+    } else {
+      try {
+        createdDevice = provisionCloudDevice(cloudProjectId, configurationInstance);
+      } catch (JSchException e) {
+        CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
+                                                                                   "Exception while generating ssh keys\n\n" +
+                                                                                   e.getMessage());
+        return Futures.immediateFuture(null);
+      } catch (Exception e) {
+        CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
+                                                                                   "Exception while launching a firebase device\n\n" +
+                                                                                   e.getMessage());
+        return Futures.immediateFuture(null);
+      }
+      if (createdDevice == null) {
+        CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
+                                                                                   "Could not access firebase device\n\n");
+        return Futures.immediateFuture(null);
+      }
     }
 
-    final String deviceId = createdDevice.getId();
-    final GhostCloudDevice ghostCloudDevice = new GhostCloudDevice(createdDevice);
-    synchronized (ghostCloudDevices) {
-      ghostCloudDevices.add(ghostCloudDevice);
-    }
-    String configurationName =
-      ConfigurationInstance.parseFromEncodedString(ghostCloudDevice.getEncodedConfigurationInstance()).getResultsViewerDisplayString();
-    BlankVncViewer blankVncViewer = BlankVncViewer.showBlankVncViewer(configurationName, new BlankVncViewerCallback() {
+    String configurationName = ConfigurationInstance.parseFromEncodedString(configurationInstance).getResultsViewerDisplayString();
+    CloudDeviceLaunch launch = new CloudDeviceLaunch(cloudProjectId, configurationInstance, configurationName);
+    final SettableFuture<String> connectedSerialNumber = launch.connectedSerialNumber;
+    configurationInstanceToLaunch.put(configurationInstance, connectedSerialNumber);
+    connectedSerialNumber.addListener(new Runnable() {
+      @Override
+      public void run() {
+        // A later launch of the same configuration instance might have replaced this one.
+        configurationInstanceToLaunch.remove(configurationInstance, connectedSerialNumber);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    watchAndConnect(launch, createdDevice);
+    return connectedSerialNumber;
+  }
+
+  /**
+   * Connects to the given device of the launch once it is ready, without parking a thread while the device boots.
+   */
+  private static void watchAndConnect(final CloudDeviceLaunch launch, Device device) {
+    final String deviceId = device.getId();
+    final long bootStartTime = System.currentTimeMillis();
+    Futures.addCallback(launch.watch(device), new FutureCallback<Device>() {
       @Override
-      public void viewerClosed() {
+      public void onSuccess(Device device) {
+        logLaunchStageTiming(deviceId, "boot", bootStartTime);
+        boolean isReplaced = false;
         try {
-          CloudAuthenticator.getInstance().getTest().projects().devices().delete(cloudProjectId, deviceId).execute();
+          isReplaced = connectCloudDevice(device, launch);
         } catch (Exception e) {
-          e.printStackTrace();
+          showCloudDevicePollingError(e, deviceId);
+        } finally {
+          if (!isReplaced) {
+            launch.finish();
+          }
         }
-        synchronized (ghostCloudDevices) {
-          ghostCloudDevices.remove(ghostCloudDevice);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof CloudDeviceReadinessWatcher.DeviceErrorException) {
+          CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
+                                                                                     "The polled firebase device has ERROR state\n\n");
+        } else if (t instanceof TimeoutException) {
+          CloudTestingUtils.showErrorMessage(null, "Timed out connecting to a firebase device", "Timed out connecting to a firebase device!\n" +
+                                                                                             "Timed out connecting to a firebase device:\n\n" +
+                                                                                             deviceId);
+        } else if (!(t instanceof CancellationException)) {
+          showCloudDevicePollingError(t instanceof Exception ? (Exception)t : new Exception(t), deviceId);
         }
+        launch.finish();
       }
-    });
-    final long POLLING_INTERVAL = 10 * 1000; // 10 seconds
-    final long INITIAL_TIMEOUT = 10 * 60 * 1000; // 10 minutes
-    long stopTime = System.currentTimeMillis() + INITIAL_TIMEOUT;
+    }, PooledThreadExecutor.INSTANCE);
+  }
+
+  /**
+   * Tunnels adb and VNC of a ready firebase device through SSH, then opens the VNC viewer while adb connects to the device, and unlocks
+   * the device once both are done. Sets the serial number future of the launch as soon as adb is connected. Returns {@code true} if
+   * the device rejected the SSH key and the launch goes on with a replacement device.
+   */
+  private static boolean connectCloudDevice(Device readyDevice, CloudDeviceLaunch launch) throws IOException, InterruptedException {
     File androidSdkPath = IdeSdks.getInstance().getAndroidSdkPath();
     assert androidSdkPath != null;
     String sdkPath = androidSdkPath.getAbsolutePath() + "/platform-tools";
-    File workingDir = new File(sdkPath);
+    final File workingDir = new File(sdkPath);
+
+    if (readyDevice.getDeviceDetails() == null || readyDevice.getDeviceDetails().getConnectionInfo() == null) {
+      // E.g., the devices of the local backend, which only simulates their boot.
+      CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
+                                                                                 "The firebase device has no connection info\n\n");
+      return false;
+    }
+    long stageStartTime = System.currentTimeMillis();
+    CloudDeviceConnectionManager.DeviceConnection connection;
     try {
-      while (System.currentTimeMillis() < stopTime) {
-        synchronized (ghostCloudDevices) {
-          if (!ghostCloudDevices.contains(ghostCloudDevice)) {
-            // Blank VNC Viewer was closed, so stop waiting for the device.
-            return;
-          }
-        }
-        createdDevice = CloudAuthenticator.getInstance().getTest().projects().devices().get(cloudProjectId, deviceId).execute();
-        System.out.println("Polling for device... (time: " + System.currentTimeMillis() + ", status: " + createdDevice.getState() + ")");
-        if (createdDevice.getState().equals("DEVICE_ERROR")) {
-          CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                     "The polled firebase device has ERROR state\n\n");
-          return;
-        }
-        if (createdDevice.getState().equals("READY")) {
-          String ipAddress = createdDevice.getDeviceDetails().getConnectionInfo().getIpAddress();
-          Integer adbPort = createdDevice.getDeviceDetails().getConnectionInfo().getAdbPort();
-          Integer vncPort = createdDevice.getDeviceDetails().getConnectionInfo().getVncPort();
-          Integer sshPort = createdDevice.getDeviceDetails().getConnectionInfo().getSshPort();
-          String vncPassword = createdDevice.getDeviceDetails().getConnectionInfo().getVncPassword();
-
-          Session session;
-          try {
-            session = connectSession(jsch, ipAddress, sshPort);
-          } catch (Exception e) {
-            CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                       "Exception while connecting through SSH\n\n" +
-                                                                                       e.getMessage());
-            return;
-          }
+      try {
+        connection = connectSsh(readyDevice);
+      } catch (CloudDeviceConnectionManager.KeyRejectedException e) {
+        // The device authorized only the rejected ECDSA key, so replace it with a device that authorizes the new RSA key.
+        watchAndConnect(launch, replaceCloudDevice(launch.cloudProjectId, launch.configurationInstance, readyDevice.getId()));
+        return true;
+      }
+    } catch (Exception e) {
+      CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
+                                                                                 "Exception while connecting through SSH\n\n" +
+                                                                                 e.getMessage());
+      return false;
+    }
+    final String deviceId = readyDevice.getId();
+    String vncPassword = readyDevice.getDeviceDetails().getConnectionInfo().getVncPassword();
+    final long tunnelsEndTime = logLaunchStageTiming(deviceId, "SSH session and tunnels", stageStartTime);
+    int adbLocalPort = connection.getAdbLocalPort();
+    int vncLocalPort = connection.getVncLocalPort();
+
+    final String deviceAddress = "localhost:" + adbLocalPort;
+    LOG.info("Firebase device " + deviceId + " ready with IP address:port " + deviceAddress);
+    final File adbFile = new File(workingDir, System.getProperty("os.name").toLowerCase().indexOf("win") != -1 ? "adb.exe" : "adb");
+    // Both tunnels are up along with the SSH session, so adb connects to the device while the VNC viewer starts.
+    Future<?> adbConnect = PooledThreadExecutor.INSTANCE.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Process connect = Runtime.getRuntime().exec(new String[]{adbFile.getAbsolutePath(), "connect", deviceAddress}, null, workingDir);
+        connect.waitFor();
+        logLaunchStageTiming(deviceId, "adb connect", tunnelsEndTime);
+        return null;
+      }
+    });
+    // Close the blank window first to avoid showing both blank and real VNC windows at the same time.
+    launch.blankVncViewer.closeWindow();
+    String[] viewerArgs = new String[]{"-port=" + vncLocalPort, "-host=localhost", "-password=" + vncPassword, "-fullScreen=false"};
+    VncKeepAliveThreadImpl.startVnc(viewerArgs, launch.configurationName, launch.cloudProjectId, deviceId, deviceAddress, workingDir);
+    logLaunchStageTiming(deviceId, "VNC viewer start", tunnelsEndTime);
 
-          int adbLocalPort;
-          try {
-            adbLocalPort = session.setPortForwardingL(0, "localhost", adbPort);
-          } catch (Exception e) {
-            CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                       "Exception while tunneling through SSH\n\n" +
-                                                                                       e.getMessage());
-            return;
-          }
+    try {
+      adbConnect.get();
+    } catch (InterruptedException e) {
+      adbConnect.cancel(true);
+      throw e;
+    } catch (java.util.concurrent.ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+    }
+    registerCloudDevice(deviceAddress, launch.configurationInstance);
+    // Remove the ghost device right away to minimize the time both a ghost device and an actual firebase device are present
+    // in the devices table.
+    removeLaunchingDevice(launch.getGhostCloudDevice(), launch.blankVncViewer);
+    // The device is usable while it is being unlocked.
+    launch.connectedSerialNumber.set(deviceAddress);
+
+    // Make sure the device is unlocked.
+    stageStartTime = System.currentTimeMillis();
+    Process unlock = Runtime.getRuntime().exec(
+      new String[]{adbFile.getAbsolutePath(), "-s", deviceAddress, "wait-for-device", "shell", "input", "keyevent", "82"}, null, workingDir);
+    unlock.waitFor();
+    logLaunchStageTiming(deviceId, "unlock", stageStartTime);
+    return false;
+  }
 
-          int vncLocalPort;
-          try {
-            vncLocalPort = session.setPortForwardingL(0, "localhost", vncPort);
-          } catch (Exception e) {
-            CloudTestingUtils.showErrorMessage(null, "Error launching a firebase device", "Failed to launch a firebase device!\n" +
-                                                                                       "Exception while tunneling through SSH\n\n" +
-                                                                                       e.getMessage());
-            return;
-          }
+  /**
+   * Logs how long a stage of launching a firebase device took and returns the end time of the stage.
+   */
+  private static long logLaunchStageTiming(String deviceId, String stage, long stageStartTime) {
+    long stageEndTime = System.currentTimeMillis();
+    LOG.info("Launching firebase device " + deviceId + ": " + stage + " took " + (stageEndTime - stageStartTime) + " ms");
+    return stageEndTime;
+  }
 
-          String deviceAddress = "localhost:" + adbLocalPort;
-          System.out.println("Device ready with IP address:port " + deviceAddress);
-          File adbFile = new File(workingDir, System.getProperty("os.name").toLowerCase().indexOf("win") != -1 ? "adb.exe" : "adb");
-          Runtime runtime = Runtime.getRuntime();
-          Process connect = runtime.exec(new String[]{adbFile.getAbsolutePath(), "connect", deviceAddress}, null, workingDir);
-          connect.waitFor();
-          serialNumberToConfigurationInstance.put(deviceAddress, configurationInstance);
-          // Do not wait for "finally" to remove the ghost device
-          // to minimize the time both a ghost device and an actual firebase device are present in the devices table.
-          synchronized (ghostCloudDevices) {
-            ghostCloudDevices.remove(ghostCloudDevice);
-          }
-          // Do not wait for "finally" to close the blank window to avoid showing both blank and real VNC windows at the same time.
-          try { // Use try just in case something goes wrong.
-            blankVncViewer.closeWindow();
-            blankVncViewer = null;
-          } catch (Exception e) {
-            e.printStackTrace();
-          }
-          // Make sure the device is unlocked.
-          Process unlock = runtime.exec(
-            new String[]{adbFile.getAbsolutePath(), "-s", deviceAddress, "wait-for-device", "shell", "input", "keyevent", "82"}, null, workingDir);
-          unlock.waitFor();
-          // Open the VNC window for the firebase device.
-          String[] viewerArgs = new String[]{"-port=" + vncLocalPort, "-host=localhost", "-password=" + vncPassword, "-fullScreen=false"};
-          VncKeepAliveThreadImpl.startVnc(viewerArgs, configurationName, cloudProjectId, deviceId, deviceAddress, workingDir);
-          return;
-        }
-        Thread.sleep(POLLING_INTERVAL);
-      }
-      CloudTestingUtils.showErrorMessage(null, "Timed out connecting to a firebase device", "Timed out connecting to a firebase device!\n" +
-                                                                                         "Timed out connecting to a firebase device:\n\n" +
-                                                                                         deviceId);
+  private static void removeLaunchingDevice(GhostCloudDevice ghostCloudDevice, BlankVncViewer blankVncViewer) {
+    synchronized (ghostCloudDevices) {
+      ghostCloudDevices.remove(ghostCloudDevice);
+    }
+    try { // Use try just in case something goes wrong.
+      blankVncViewer.closeWindow();
     } catch (Exception e) {
-      showCloudDevicePollingError(e, deviceId);
-    } finally {
-      synchronized (ghostCloudDevices) {
-        ghostCloudDevices.remove(ghostCloudDevice);
-      }
-      if (blankVncViewer != null) {
-        try { // Use try just in case something goes wrong.
-          blankVncViewer.closeWindow();
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-      }
+      e.printStackTrace();
+    }
+  }
+
+  private static CloudDeviceConnectionManager.DeviceConnection connectSsh(Device readyDevice) throws JSchException {
+    ConnectionInfo connectionInfo = readyDevice.getDeviceDetails().getConnectionInfo();
+    // A single SSH session carries both tunnels. Local port forwarding only opens a local listening socket, so both tunnels
+    // are up as soon as the session is.
+    return CloudDeviceConnectionManager.getInstance().connect(readyDevice.getId(), connectionInfo.getIpAddress(),
+                                                              connectionInfo.getSshPort(), connectionInfo.getAdbPort(),
+                                                              connectionInfo.getVncPort());
+  }
+
+  /**
+   * Deletes a firebase device that rejected the SSH key of this IDE session and provisions a replacement that authorizes the current
+   * key. Returns the replacement, which still has to boot.
+   */
+  private static Device replaceCloudDevice(String cloudProjectId, String configurationInstance, String deviceId)
+    throws JSchException, IOException {
+    deleteCloudDevice(cloudProjectId, deviceId);
+    return provisionCloudDevice(cloudProjectId, configurationInstance);
+  }
+
+  private static void deleteCloudDevice(String cloudProjectId, String deviceId) {
+    try {
+      CloudRequestExecutor.getInstance().execute(CloudAuthenticator.getInstance().getTest().projects().devices().delete(cloudProjectId, deviceId));
+    } catch (Exception e) {
+      LOG.warn("Failed to delete the firebase device " + deviceId, e);
+    }
+  }
+
+  /**
+   * Requests a new firebase device for the given configuration instance, authorizing the ssh key of this IDE session on it.
+   * Returns the created device, which still has to boot before it could be connected to.
+   */
+  static Device provisionCloudDevice(@NotNull String cloudProjectId, @NotNull String configurationInstance)
+    throws JSchException, IOException {
+    String publicKey = CloudDeviceConnectionManager.getInstance().getPublicKey();
+    String[] dimensionValues = configurationInstance.split("-");
+    Device device = new Device().setAndroidDevice(
+      new AndroidDevice()
+        .setAndroidModelId(dimensionValues[0])
+        .setAndroidVersionId(dimensionValues[1])
+        .setLocale(dimensionValues[2])
+        .setOrientation(dimensionValues[3]));
+    Device createdDevice = CloudRequestExecutor.getInstance()
+      .execute(CloudAuthenticator.getInstance().getTest().projects().devices().create(cloudProjectId, device).setSshPublicKey(publicKey));
+    if (createdDevice != null) {
+      CloudDeviceConnectionManager.getInstance().recordProvisionedKey(createdDevice.getId(), publicKey);
+    }
+    return createdDevice;
+  }
+
+  private static void registerCloudDevice(String serialNumber, String configurationInstance) {
+    String previousConfigurationInstance = serialNumberToConfigurationInstance.put(serialNumber, configurationInstance);
+    if (previousConfigurationInstance != null) {
+      configurationInstanceToSerialNumber.remove(previousConfigurationInstance, serialNumber);
+    }
+    configurationInstanceToSerialNumber.put(configurationInstance, serialNumber);
+  }
+
+  /**
+   * Forgets the firebase device with the given serial number, e.g., after it is deleted.
+   */
+  public static void unregisterCloudDevice(String serialNumber) {
+    String configurationInstance = serialNumberToConfigurationInstance.remove(serialNumber);
+    if (configurationInstance != null) {
+      configurationInstanceToSerialNumber.remove(configurationInstance, serialNumber);
     }
   }
 
@@ -473,6 +592,23 @@ public final class CloudConfigurationHelper {
     return serialNumberToConfigurationInstance.get(serialNumber);
   }
 
+  /**
+   * Returns the serial number of the connected firebase device of the given (encoded) configuration instance, if any.
+   */
+  @Nullable
+  public static String getSerialNumberForConfigurationInstance(String configurationInstance) {
+    return configurationInstanceToSerialNumber.get(configurationInstance);
+  }
+
+  /**
+   * Returns the future of the serial number of the firebase device of the given (encoded) configuration instance that is being launched,
+   * or {@code null} if no such device is being launched.
+   */
+  @Nullable
+  public static ListenableFuture<String> getCloudDeviceLaunch(String configurationInstance) {
+    return configurationInstanceToLaunch.get(configurationInstance);
+  }
+
   @NotNull
   public static Collection<IDevice> getLaunchingCloudDevices() {
     synchronized (ghostCloudDevices) {
@@ -548,15 +684,15 @@ public final class CloudConfigurationHelper {
     GoogleCloudTestingDeveloperConfigurable.GoogleCloudTestingDeveloperState googleCloudTestingDeveloperState =
       GoogleCloudTestingDeveloperSettings.getInstance(project).getState();
     if (!googleCloudTestingDeveloperState.shouldUseFakeBucket) {
-      performTestsInCloud(cloudConfiguration, cloudProjectId, bucketName, runningState, cloudResultParser, matrixExecutionCancellator);
+      performTestsInCloud(cloudConfiguration, cloudProjectId, bucketName, runningState, cloudResultParser, matrixExecutionCancellator,
+                          googleCloudTestingDeveloperState.shardCount, console);
     }
     else {
       String testRunId = TEST_RUN_ID_PREFIX + googleCloudTestingDeveloperState.fakeBucketName + System.currentTimeMillis();
       CloudResultsAdapter cloudResultsAdapter =
         new CloudResultsAdapter(cloudProjectId, googleCloudTestingDeveloperState.fakeBucketName, runningState.getProcessHandler(),
                                 cloudResultParser, expectedConfigurationInstances, testRunId, null, null);
-      addCloudConfiguration(testRunId, cloudConfiguration);
-      addCloudResultsAdapter(testRunId, cloudResultsAdapter);
+      CloudRunRegistry.getInstance().register(testRunId, cloudConfiguration, cloudResultsAdapter, console);
       cloudResultsAdapter.startPolling();
     }
     return new DefaultExecutionResult(console, runningState.getProcessHandler());
@@ -567,7 +703,7 @@ public final class CloudConfigurationHelper {
     final String triggerFileName = isDebugging ? "DEBUGGING_ENABLED" : "TESTING_ENABLED";
     try {
       Storage.Objects.List objects = CloudAuthenticator.getInstance().getPublicStorage().objects().list(publicBucketName);
-      List<StorageObject> storageObjects = objects.execute().getItems();
+      List<StorageObject> storageObjects = CloudRequestExecutor.getInstance().execute(objects).getItems();
       if (storageObjects != null) {
         for (StorageObject storageObject : storageObjects) {
           if (triggerFileName.equals(storageObject.getName())) {
@@ -584,14 +720,27 @@ public final class CloudConfigurationHelper {
   private static void performTestsInCloud(final CloudConfigurationImpl cloudTestingConfiguration, final String cloudProjectId,
                                           final String bucketName, final CloudMatrixTestRunningState runningState,
                                           final GoogleCloudTestingResultParser cloudResultParser,
-                                          final CloudMatrixExecutionCancellator matrixExecutionCancellator) {
+                                          final CloudMatrixExecutionCancellator matrixExecutionCancellator, final int shardCount,
+                                          final Disposable console) {
     if (cloudTestingConfiguration != null && cloudTestingConfiguration.getDeviceConfigurationCount() > 0) {
       final List<String> expectedConfigurationInstances =
         cloudTestingConfiguration.computeConfigurationInstances(ConfigurationInstance.DISPLAY_NAME_DELIMITER);
+      // The default bucket is shared by all runs of the cloud project, so it does not identify the run on its own.
+      final String testRunId = TEST_RUN_ID_PREFIX + bucketName + System.currentTimeMillis();
       new Thread(new Runnable() {
         @Override
         public void run() {
-          AndroidTestRunConfiguration testRunConfiguration = runningState.getConfiguration();
+          CloudMetrics metrics = CloudMetrics.getInstance();
+          metrics.setCurrentRun(metrics.getRunMetrics(testRunId));
+          try {
+            launch();
+          } finally {
+            metrics.setCurrentRun(null);
+          }
+        }
+
+        private void launch() {
+          final AndroidTestRunConfiguration testRunConfiguration = runningState.getConfiguration();
 
           if (matrixExecutionCancellator.isCancelled()) {
             return;
@@ -636,40 +785,92 @@ public final class CloudConfigurationHelper {
           }
           File testApk = testOutputs.get(0).getMainOutputFile().getOutputFile();
 
+          // The test classes are needed both for sharding and for estimating the test duration. Finding them waits for the indices,
+          // so it runs while the APKs are uploaded.
+          Future<List<String>> testClassesFuture = PooledThreadExecutor.INSTANCE.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+              return TestClassCollector.collectTestClasses(testRunConfiguration, runningState.getFacet().getModule());
+            }
+          });
+
           runningState.getProcessHandler().notifyTextAvailable(prepareProgressString("Uploading app APK ...", ""),
                                                                ProcessOutputTypes.STDOUT);
-          String appApkName = CloudTestsLauncher.uploadFile(bucketName, appApk).getName();
+          long uploadStartTime = System.currentTimeMillis();
+          StorageObject appApkObject = CloudTestsLauncher.uploadFile(bucketName, appApk, matrixExecutionCancellator);
 
-          if (matrixExecutionCancellator.isCancelled()) {
+          if (appApkObject == null || matrixExecutionCancellator.isCancelled()) {
+            testClassesFuture.cancel(true);
             return;
           }
+          String appApkName = appApkObject.getName();
           runningState.getProcessHandler().notifyTextAvailable(prepareProgressString("Uploading test APK ...", ""),
                                                                ProcessOutputTypes.STDOUT);
-          String testApkName = CloudTestsLauncher.uploadFile(bucketName, testApk).getName();
+          StorageObject testApkObject = CloudTestsLauncher.uploadFile(bucketName, testApk, matrixExecutionCancellator);
 
-          if (matrixExecutionCancellator.isCancelled()) {
+          if (testApkObject == null || matrixExecutionCancellator.isCancelled()) {
+            testClassesFuture.cancel(true);
             return;
           }
+          String testApkName = testApkObject.getName();
+          CloudMetrics.getInstance().recordPhase(CloudMetrics.Phase.UPLOAD, System.currentTimeMillis() - uploadStartTime);
           runningState.getProcessHandler().notifyTextAvailable(prepareProgressString("Submitting tests to Firebase Test Lab ...", ""),
                                                                ProcessOutputTypes.STDOUT);
           String testSpecification = CloudTestingUtils.prepareTestSpecification(testRunConfiguration);
+          List<String> testClasses = getTestClasses(testClassesFuture);
+          List<String> deviceModels = getEnabledTypeIds(cloudTestingConfiguration.getDeviceDimension());
+          List<String> apiLevels = getEnabledTypeIds(cloudTestingConfiguration.getApiDimension());
+          TestShardPlanner.DurationEstimator durationEstimator =
+            TestDurationHistory.getInstance().createDurationEstimator(deviceModels, apiLevels, testClasses);
+          List<List<String>> testShards = shardCount < 2
+                                          ? ImmutableList.<List<String>>of()
+                                          : new TestShardPlanner(durationEstimator).planShards(testClasses, shardCount);
+          long estimatedTestDuration =
+            estimateTestDuration(testShards.isEmpty() ? ImmutableList.of(testClasses) : testShards, deviceModels, apiLevels);
+          matrixExecutionCancellator.setCloudProjectId(cloudProjectId);
+          List<TestMatrix> testMatrices = Lists.newArrayList();
+          long triggerStartTime = System.currentTimeMillis();
+
+          if (testShards.size() < 2) {
+            TestMatrix testMatrix = CloudTestsLauncher
+              .triggerTestApi(cloudProjectId, getBucketGcsPath(bucketName), getApkGcsPath(bucketName, appApkName),
+                              getApkGcsPath(bucketName, testApkName), testSpecification, testRunConfiguration.INSTRUMENTATION_RUNNER_CLASS,
+                              cloudTestingConfiguration);
+            if (testMatrix != null) {
+              matrixExecutionCancellator.addTestMatrixId(testMatrix.getTestMatrixId());
+              testMatrices.add(testMatrix);
+            }
+          } else {
+            runningState.getProcessHandler().notifyTextAvailable(
+              prepareProgressString("Splitting tests into " + testShards.size() + " shards ...", ""), ProcessOutputTypes.STDOUT);
+            for (int i = 0; i < testShards.size(); i++) {
+              if (matrixExecutionCancellator.isCancelled()) {
+                return;
+              }
+              TestMatrix shardMatrix = CloudTestsLauncher
+                .triggerTestApi(cloudProjectId, getBucketGcsPath(bucketName) + "/" + CloudResultsAdapter.getShardPathPrefix(i),
+                                getApkGcsPath(bucketName, appApkName), getApkGcsPath(bucketName, testApkName),
+                                toClassTestTargets(testShards.get(i)), testRunConfiguration.INSTRUMENTATION_RUNNER_CLASS,
+                                cloudTestingConfiguration);
+              if (shardMatrix == null) {
+                // Partial results would look like missing tests, so do not leave the already triggered shards running.
+                matrixExecutionCancellator.cancel();
+                return;
+              }
+              matrixExecutionCancellator.addTestMatrixId(shardMatrix.getTestMatrixId());
+              testMatrices.add(shardMatrix);
+            }
+          }
 
-          TestMatrix testMatrix = CloudTestsLauncher
-            .triggerTestApi(cloudProjectId, getBucketGcsPath(bucketName), getApkGcsPath(bucketName, appApkName),
-                            getApkGcsPath(bucketName, testApkName), testSpecification, testRunConfiguration.INSTRUMENTATION_RUNNER_CLASS,
-                            cloudTestingConfiguration);
-
-          if (testMatrix != null) {
+          if (!testMatrices.isEmpty()) {
+            CloudMetrics.getInstance().recordPhase(CloudMetrics.Phase.TRIGGER, System.currentTimeMillis() - triggerStartTime);
             runningState.getProcessHandler().notifyTextAvailable(prepareProgressString("Validating APKs ...", "\n\n"),
                                                                  ProcessOutputTypes.STDOUT);
-            matrixExecutionCancellator.setCloudProjectId(cloudProjectId);
-            matrixExecutionCancellator.setTestMatrixId(testMatrix.getTestMatrixId());
-            String testRunId = TEST_RUN_ID_PREFIX + bucketName;
             CloudResultsAdapter cloudResultsAdapter =
               new CloudResultsAdapter(cloudProjectId, bucketName, runningState.getProcessHandler(), cloudResultParser,
-                                      expectedConfigurationInstances, testRunId, testMatrix, matrixExecutionCancellator);
-            addCloudConfiguration(testRunId, cloudTestingConfiguration);
-            addCloudResultsAdapter(testRunId, cloudResultsAdapter);
+                                      expectedConfigurationInstances, testRunId, testMatrices, matrixExecutionCancellator);
+            cloudResultsAdapter.setEstimatedTestDuration(estimatedTestDuration);
+            CloudRunRegistry.getInstance().register(testRunId, cloudTestingConfiguration, cloudResultsAdapter, console);
             cloudResultsAdapter.startPolling();
           }
         }
@@ -683,34 +884,78 @@ public final class CloudConfigurationHelper {
     }
   }
 
-  private static String getBucketGcsPath(String bucketName) {
-    return "gs://" + bucketName;
+  private static List<String> getTestClasses(Future<List<String>> testClassesFuture) {
+    try {
+      return testClassesFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (java.util.concurrent.ExecutionException e) {
+      LOG.warn("Failed to find the test classes, the tests will neither be sharded nor have their duration estimated", e);
+    }
+    return ImmutableList.<String>of();
   }
 
-  private static String getApkGcsPath(String bucketName, String apkName) {
-    return "gs://" + bucketName + "/" + apkName;
+  /**
+   * Returns how long (in millis) the slowest of the parallel shards is expected to run based on the past runs of its test classes,
+   * or -1 if there is no history for some of them.
+   */
+  private static long estimateTestDuration(List<List<String>> testShards, List<String> deviceModels, List<String> apiLevels) {
+    long maxShardDuration = -1;
+    for (List<String> testShard : testShards) {
+      if (testShard.isEmpty()) {
+        return -1;
+      }
+      long shardDuration = 0;
+      for (String testClass : testShard) {
+        long classDuration = TestDurationHistory.getInstance().estimateMatrixDuration(testClass, deviceModels, apiLevels);
+        if (classDuration < 0) {
+          return -1;
+        }
+        shardDuration += classDuration;
+      }
+      maxShardDuration = Math.max(maxShardDuration, shardDuration);
+    }
+    return maxShardDuration;
   }
 
-  private static void addCloudResultsAdapter(String testRunId, CloudResultsAdapter cloudResultsAdapter) {
-    if (testRunIdToCloudResultsAdapter.get(testRunId) != null) {
-      throw new IllegalStateException("Cannot add more than one firebase results adapter for test run id: " + testRunId);
+  private static List<String> getEnabledTypeIds(CloudConfigurationDimension dimension) {
+    List<String> typeIds = Lists.newArrayList();
+    for (CloudTestingType type : dimension.getEnabledTypes()) {
+      typeIds.add(type.getId());
     }
-    testRunIdToCloudResultsAdapter.put(testRunId, cloudResultsAdapter);
+    return typeIds;
   }
 
-  private static void addCloudConfiguration(String testRunId, CloudConfigurationImpl cloudConfiguration) {
-    if (testRunIdToCloudConfiguration.get(testRunId) != null) {
-      throw new IllegalStateException("Cannot add more than one firebase configuration for test run id: " + testRunId);
+  private static List<String> toClassTestTargets(List<String> testClasses) {
+    List<String> testTargets = Lists.newArrayList();
+    for (String testClass : testClasses) {
+      testTargets.add("class " + testClass);
     }
-    testRunIdToCloudConfiguration.put(testRunId, cloudConfiguration);
+    return testTargets;
   }
 
+  private static String getBucketGcsPath(String bucketName) {
+    return "gs://" + bucketName;
+  }
+
+  private static String getApkGcsPath(String bucketName, String apkName) {
+    return "gs://" + bucketName + "/" + apkName;
+  }
+
+  /**
+   * Returns the configuration of the given test run or {@code null} if the run is not known anymore (e.g., its console was closed).
+   */
+  @Nullable
   public static CloudConfigurationImpl getSelectedCloudConfiguration(String testRunId) {
-    return testRunIdToCloudConfiguration.get(testRunId);
+    return CloudRunRegistry.getInstance().getConfiguration(testRunId);
   }
 
+  /**
+   * Returns the results adapter of the given test run or {@code null} if the run is not known anymore (e.g., its console was closed).
+   */
+  @Nullable
   public static CloudResultsAdapter getCloudResultsAdapter(String testRunId) {
-    return testRunIdToCloudResultsAdapter.get(testRunId);
+    return CloudRunRegistry.getInstance().getResultsAdapter(testRunId);
   }
 
   public static List<CloudConfigurationImpl> deserializeConfigurations(
@@ -742,49 +987,89 @@ public final class CloudConfigurationHelper {
     return AndroidIcons.Portrait;
   }
 
-  private static String generateSshKeys(JSch jsch) throws JSchException {
-    KeyPair keyPair = KeyPair.genKeyPair(jsch, RSA, 2048);
+  /**
+   * A firebase device being launched, shown as a ghost device and a blank VNC viewer until it is connected. If the device rejects the
+   * SSH key, the launch moves on to a replacement device, such that closing the blank viewer deletes the device that is actually booting.
+   */
+  private static class CloudDeviceLaunch {
+    private final String cloudProjectId;
+    private final String configurationInstance;
+    private final String configurationName;
+    private final SettableFuture<String> connectedSerialNumber = SettableFuture.create();
+    private final BlankVncViewer blankVncViewer;
+    // All fields below are guarded by this launch.
+    private String deviceId;
+    private GhostCloudDevice ghostCloudDevice;
+    private ListenableFuture<Device> readyDevice;
+    private boolean isCancelled = false;
+
+    private CloudDeviceLaunch(String cloudProjectId, String configurationInstance, String configurationName) {
+      this.cloudProjectId = cloudProjectId;
+      this.configurationInstance = configurationInstance;
+      this.configurationName = configurationName;
+      blankVncViewer = BlankVncViewer.showBlankVncViewer(configurationName, new BlankVncViewerCallback() {
+        @Override
+        public void viewerClosed() {
+          // Blank VNC Viewer was closed, so stop waiting for the device.
+          cancel();
+        }
+      });
+    }
 
-    // Setting 'comment' is by convention only. Pass an empty string if this code breaks on some OS.
-    String comment = System.getProperty("user.home");
-    if (comment == null) {
-      comment = "";
-    } else {
-      try {
-        comment = comment + InetAddress.getLocalHost().getHostName();
-      }
-      catch (Exception e) {
-        // ignore
+    /**
+     * Returns a future of the given device that completes once the device is ready. The device takes the place of the previous device
+     * of this launch, if any, unless the launch is cancelled already, in which case the device is deleted.
+     */
+    private ListenableFuture<Device> watch(Device device) {
+      GhostCloudDevice newGhostCloudDevice = new GhostCloudDevice(device);
+      synchronized (this) {
+        if (!isCancelled) {
+          synchronized (ghostCloudDevices) {
+            if (ghostCloudDevice != null) {
+              ghostCloudDevices.remove(ghostCloudDevice);
+            }
+            ghostCloudDevices.add(newGhostCloudDevice);
+          }
+          deviceId = device.getId();
+          ghostCloudDevice = newGhostCloudDevice;
+          readyDevice = CloudDeviceReadinessWatcher.getInstance().watch(cloudProjectId, device, DEVICE_READINESS_TIMEOUT_MILLIS);
+          return readyDevice;
+        }
       }
+      deleteCloudDevice(cloudProjectId, device.getId());
+      return Futures.immediateCancelledFuture();
     }
 
-    ByteArrayOutputStream privateKeyArray = new ByteArrayOutputStream();
-    keyPair.writePrivateKey(privateKeyArray);
-    ByteArrayOutputStream publicKeyArray = new ByteArrayOutputStream();
-    keyPair.writePublicKey(publicKeyArray, comment);
-
-    jsch.addIdentity("root", privateKeyArray.toByteArray(), publicKeyArray.toByteArray(), null);
-
-    keyPair.dispose();
-
-    return "root:" + new String(publicKeyArray.toByteArray());
-  }
+    private synchronized GhostCloudDevice getGhostCloudDevice() {
+      return ghostCloudDevice;
+    }
 
-  /**
-   * Returns the session after connecting.
-   */
-  private static Session connectSession(JSch jsch, String rhost, int sshPort) throws Exception {
-    Session session = jsch.getSession("root", rhost, sshPort);
-    Properties config = new Properties();
-    config.put("StrictHostKeyChecking", "no");
-    session.setConfig(config);
-    session.setTimeout(30*1000); // 30 seconds.
+    private void cancel() {
+      String cancelledDeviceId;
+      ListenableFuture<Device> cancelledReadyDevice;
+      GhostCloudDevice cancelledGhostCloudDevice;
+      synchronized (this) {
+        isCancelled = true;
+        cancelledDeviceId = deviceId;
+        cancelledReadyDevice = readyDevice;
+        cancelledGhostCloudDevice = ghostCloudDevice;
+      }
+      if (cancelledDeviceId == null) {
+        return; // Not watching a device yet, the device is deleted once it is watched.
+      }
+      cancelledReadyDevice.cancel(false);
+      deleteCloudDevice(cloudProjectId, cancelledDeviceId);
+      synchronized (ghostCloudDevices) {
+        ghostCloudDevices.remove(cancelledGhostCloudDevice);
+      }
+    }
 
-    try {
-      session.connect();
-    } catch (JSchException e) {
-      throw new RuntimeException(String.format("%s@%s:%d: Error connecting to session.", "root", rhost, sshPort), e);
+    /**
+     * Removes the ghost device and the blank VNC viewer, and completes the launch with no serial number unless adb connected already.
+     */
+    private void finish() {
+      removeLaunchingDevice(getGhostCloudDevice(), blankVncViewer);
+      connectedSerialNumber.set(null);
     }
-    return session;
   }
 }
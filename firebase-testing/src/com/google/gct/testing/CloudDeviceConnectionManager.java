@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import com.jcraft.jsch.Session;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Owns the SSH connections to firebase devices. A single key pair is generated per IDE session and authorized on every launched device.
+ * Each device gets one SSH session that carries both its adb and VNC tunnels, and the session is kept in a registry, such that
+ * reconnecting to the device (e.g., after the VNC viewer crashed) reuses the live session or restores the tunnels on the same local ports.
+ */
+public class CloudDeviceConnectionManager {
+
+  private static final Logger LOG = Logger.getInstance(CloudDeviceConnectionManager.class);
+
+  private static final String SSH_USER = "root";
+  private static final int SESSION_TIMEOUT_MILLIS = 30 * 1000; // 30 seconds
+
+  private static volatile CloudDeviceConnectionManager instance;
+
+  private final JSch myJsch = new JSch();
+  // Guarded by this manager.
+  private String myPublicKey;
+  private boolean myIsUsingRsaKey = false;
+  // The devices that were provisioned with the ECDSA key and have not been connected to yet.
+  private final Set<String> myEcdsaDeviceIds = new HashSet<String>();
+  // Firebase device id -> the connection to that device, guarded by itself.
+  private final Map<String, DeviceConnection> myConnections = new HashMap<String, DeviceConnection>();
+
+
+  @NotNull
+  public static CloudDeviceConnectionManager getInstance() {
+    CloudDeviceConnectionManager result = instance;
+    if (result == null) {
+      synchronized (CloudDeviceConnectionManager.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudDeviceConnectionManager();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the public key (in the "user:key" form expected by the device creation request) of this IDE session, generating the key
+   * pair on the first call.
+   */
+  @NotNull
+  public synchronized String getPublicKey() throws JSchException {
+    if (myPublicKey == null) {
+      myPublicKey = generateSshKeys(false);
+    }
+    return myPublicKey;
+  }
+
+  /**
+   * Remembers the public key (as returned by {@link #getPublicKey}) that the given device was provisioned with, such that a rejection of
+   * the ECDSA key could be told apart from an unrelated authentication failure.
+   */
+  public synchronized void recordProvisionedKey(@NotNull String deviceId, @NotNull String publicKey) {
+    if (!myIsUsingRsaKey && publicKey.equals(myPublicKey)) {
+      myEcdsaDeviceIds.add(deviceId);
+    }
+  }
+
+  /**
+   * Replaces the ECDSA key pair of this IDE session with an RSA one, which the devices provisioned from now on authorize. Returns
+   * {@code false} if the given device was not provisioned with the ECDSA key, so its authentication failure has another reason.
+   */
+  private synchronized boolean fallBackToRsaKey(String deviceId) throws JSchException {
+    if (!myEcdsaDeviceIds.remove(deviceId)) {
+      return false;
+    }
+    if (!myIsUsingRsaKey) {
+      myJsch.removeAllIdentity();
+      myPublicKey = generateSshKeys(true);
+    }
+    return true;
+  }
+
+  private synchronized void forgetProvisionedKey(String deviceId) {
+    myEcdsaDeviceIds.remove(deviceId);
+  }
+
+  /**
+   * Returns a live connection to the given device, opening the SSH session and the adb and VNC tunnels if there is no connection yet
+   * and reconnecting on the same local ports if the existing session dropped. Throws {@link KeyRejectedException} if the device does not
+   * accept the ECDSA key of this IDE session.
+   */
+  @NotNull
+  public DeviceConnection connect(@NotNull String deviceId, @NotNull String host, int sshPort, int adbPort, int vncPort)
+    throws JSchException {
+    DeviceConnection connection = getConnection(deviceId);
+    if (connection != null) {
+      connection.ensureConnected();
+      return connection;
+    }
+    connection = new DeviceConnection(host, sshPort, adbPort, vncPort);
+    try {
+      connection.ensureConnected();
+    } catch (JSchException e) {
+      // Also devices provisioned before an earlier fallback (e.g., warm ones) still authorize just the ECDSA key.
+      if (isAuthenticationFailure(e) && fallBackToRsaKey(deviceId)) {
+        LOG.info("Firebase device " + deviceId + " rejected the ECDSA key, falling back to RSA", e);
+        throw new KeyRejectedException(deviceId, e);
+      }
+      throw e;
+    }
+    forgetProvisionedKey(deviceId);
+    // Register the connection only once it is up, such that a failed connection is not reused.
+    DeviceConnection registeredConnection;
+    synchronized (myConnections) {
+      registeredConnection = myConnections.get(deviceId);
+      if (registeredConnection == null) {
+        myConnections.put(deviceId, connection);
+        return connection;
+      }
+    }
+    // Connected concurrently, so keep just the registered connection.
+    connection.close();
+    registeredConnection.ensureConnected();
+    return registeredConnection;
+  }
+
+  /**
+   * Restores the tunnels of a known device if its SSH session dropped. Returns {@code false} if the device was never connected
+   * or its session could not be restored.
+   */
+  public boolean reconnect(@NotNull String deviceId) {
+    DeviceConnection connection = getConnection(deviceId);
+    if (connection == null) {
+      return false;
+    }
+    try {
+      connection.ensureConnected();
+      return true;
+    } catch (JSchException e) {
+      LOG.warn("Failed to reconnect to firebase device " + deviceId, e);
+      return false;
+    }
+  }
+
+  @Nullable
+  public DeviceConnection getConnection(@NotNull String deviceId) {
+    synchronized (myConnections) {
+      return myConnections.get(deviceId);
+    }
+  }
+
+  /**
+   * Closes the SSH session of the given device (and so its tunnels) and forgets the device.
+   */
+  public void disconnect(@NotNull String deviceId) {
+    DeviceConnection connection;
+    synchronized (myConnections) {
+      connection = myConnections.remove(deviceId);
+    }
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  private static boolean isAuthenticationFailure(JSchException e) {
+    // JSch signals rejected keys only by the message, which is wrapped by DeviceConnection.
+    Throwable cause = e.getCause() instanceof JSchException ? e.getCause() : e;
+    return cause.getMessage() != null && cause.getMessage().startsWith("Auth fail");
+  }
+
+  private String generateSshKeys(boolean isRsa) throws JSchException {
+    KeyPair keyPair = null;
+    if (!isRsa) {
+      try {
+        // ECDSA keys are generated orders of magnitude faster than RSA ones.
+        keyPair = KeyPair.genKeyPair(myJsch, KeyPair.ECDSA, 256);
+      } catch (JSchException e) {
+        LOG.info("ECDSA keys are not supported, falling back to RSA", e);
+      }
+    }
+    if (keyPair == null) {
+      keyPair = KeyPair.genKeyPair(myJsch, KeyPair.RSA, 2048);
+      myIsUsingRsaKey = true;
+    }
+
+    // Setting 'comment' is by convention only. Pass an empty string if this code breaks on some OS.
+    String comment = System.getProperty("user.home");
+    if (comment == null) {
+      comment = "";
+    } else {
+      try {
+        comment = comment + InetAddress.getLocalHost().getHostName();
+      }
+      catch (Exception e) {
+        // ignore
+      }
+    }
+
+    ByteArrayOutputStream privateKeyArray = new ByteArrayOutputStream();
+    keyPair.writePrivateKey(privateKeyArray);
+    ByteArrayOutputStream publicKeyArray = new ByteArrayOutputStream();
+    keyPair.writePublicKey(publicKeyArray, comment);
+
+    myJsch.addIdentity(SSH_USER, privateKeyArray.toByteArray(), publicKeyArray.toByteArray(), null);
+
+    keyPair.dispose();
+
+    return SSH_USER + ":" + new String(publicKeyArray.toByteArray());
+  }
+
+  /**
+   * Signals that a firebase device rejected the ECDSA key of this IDE session. The key is replaced by an RSA one, so connecting to
+   * a device provisioned from now on should succeed.
+   */
+  public static class KeyRejectedException extends JSchException {
+    public KeyRejectedException(String deviceId, Throwable cause) {
+      super("The firebase device " + deviceId + " rejected the ECDSA key", cause);
+    }
+  }
+
+  /**
+   * The SSH session of a firebase device together with the local ends of its adb and VNC tunnels.
+   */
+  public class DeviceConnection {
+    private final String host;
+    private final int sshPort;
+    private final int adbPort;
+    private final int vncPort;
+    // All fields below are guarded by this connection.
+    private Session session;
+    private int adbLocalPort = 0;
+    private int vncLocalPort = 0;
+    private boolean isClosed = false;
+
+    private DeviceConnection(String host, int sshPort, int adbPort, int vncPort) {
+      this.host = host;
+      this.sshPort = sshPort;
+      this.adbPort = adbPort;
+      this.vncPort = vncPort;
+    }
+
+    private synchronized void ensureConnected() throws JSchException {
+      if (isClosed) {
+        throw new JSchException("The connection to " + host + " is closed");
+      }
+      if (session != null && session.isConnected()) {
+        return;
+      }
+      if (session != null) {
+        LOG.info("Reconnecting the dropped SSH session to " + host);
+      }
+      Session newSession = myJsch.getSession(SSH_USER, host, sshPort);
+      Properties config = new Properties();
+      config.put("StrictHostKeyChecking", "no");
+      newSession.setConfig(config);
+      newSession.setTimeout(SESSION_TIMEOUT_MILLIS);
+      try {
+        newSession.connect();
+      } catch (JSchException e) {
+        throw new JSchException(String.format("%s@%s:%d: Error connecting to session.", SSH_USER, host, sshPort), e);
+      }
+      try {
+        // Reuse the local ports of a dropped session, such that adb and VNC clients can keep using the same addresses.
+        adbLocalPort = newSession.setPortForwardingL(adbLocalPort, "localhost", adbPort);
+        vncLocalPort = newSession.setPortForwardingL(vncLocalPort, "localhost", vncPort);
+      } catch (JSchException e) {
+        newSession.disconnect();
+        throw e;
+      }
+      session = newSession;
+    }
+
+    public synchronized int getAdbLocalPort() {
+      return adbLocalPort;
+    }
+
+    public synchronized int getVncLocalPort() {
+      return vncLocalPort;
+    }
+
+    private synchronized void close() {
+      isClosed = true;
+      if (session != null) {
+        session.disconnect();
+        session = null;
+      }
+    }
+  }
+}
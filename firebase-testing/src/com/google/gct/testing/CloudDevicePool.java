@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.api.services.testing.model.Device;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gct.testing.config.GoogleCloudTestingDeveloperConfigurable.GoogleCloudTestingDeveloperState;
+import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.launcher.CloudDeviceReadinessWatcher;
+import com.google.gct.testing.launcher.CloudRequestExecutor;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ShutDownTracker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a few firebase devices of the recently debugged configuration instances provisioned and alive, such that debugging on a firebase
+ * device does not have to wait for a new device to boot. The pool is disabled unless the developer settings ask for warm devices.
+ * Devices of configuration instances that were not used for a while are deleted, and the total number of pooled devices is capped
+ * to bound the consumed device minutes.
+ */
+public class CloudDevicePool {
+
+  private static final Logger LOG = Logger.getInstance(CloudDevicePool.class);
+
+  private static final long MAINTENANCE_INTERVAL_SECONDS = 20;
+  private static final long EXIT_DELETION_TIMEOUT_SECONDS = 3;
+
+  private static volatile CloudDevicePool instance;
+
+  private final ScheduledExecutorService myMaintainer = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setNameFormat("Firebase Device Pool").setDaemon(true).build());
+  private final Runnable myMaintenanceTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        maintain();
+      } catch (Throwable t) {
+        // Do not let an unexpected failure cancel the periodic maintenance.
+        LOG.warn("Failed to maintain the pool of firebase devices", t);
+      }
+    }
+  };
+
+  // All fields below are guarded by this pool.
+  private int myDevicesPerConfiguration = 0;
+  private int myMaxDevices = 0;
+  private long myIdleTimeoutMillis = 0;
+  // Configuration key (cloud project and configuration instance) -> the last time a device was requested for it.
+  private final Map<String, Long> myLastUsageTimes = new HashMap<String, Long>();
+  private final List<PooledDevice> myPooledDevices = new ArrayList<PooledDevice>();
+  private ScheduledFuture<?> myScheduledMaintenance;
+
+
+  @NotNull
+  public static CloudDevicePool getInstance() {
+    CloudDevicePool result = instance;
+    if (result == null) {
+      synchronized (CloudDevicePool.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudDevicePool();
+        }
+      }
+    }
+    return result;
+  }
+
+  private CloudDevicePool() {
+    ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+      @Override
+      public void run() {
+        // Pooled devices are not visible to the user, so do not leave them running after the IDE exits.
+        deleteDevicesOnExit(removeAllDevices());
+      }
+    });
+  }
+
+  /**
+   * Applies the warm pool settings. Setting zero devices per configuration disables the pool and deletes all pooled devices.
+   */
+  public void configure(@Nullable GoogleCloudTestingDeveloperState state) {
+    if (state == null) {
+      return;
+    }
+    final List<PooledDevice> removedDevices;
+    synchronized (this) {
+      myDevicesPerConfiguration = Math.max(0, state.warmDevicesPerConfiguration);
+      myMaxDevices = Math.max(0, state.maxWarmDevices);
+      myIdleTimeoutMillis = TimeUnit.MINUTES.toMillis(Math.max(1, state.warmDeviceIdleMinutes));
+      if (isEnabled()) {
+        if (myScheduledMaintenance == null) {
+          myScheduledMaintenance = myMaintainer.scheduleWithFixedDelay(
+            myMaintenanceTask, MAINTENANCE_INTERVAL_SECONDS, MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        return;
+      }
+      if (myScheduledMaintenance != null) {
+        myScheduledMaintenance.cancel(false);
+        myScheduledMaintenance = null;
+      }
+      myLastUsageTimes.clear();
+      removedDevices = removeAllDevices();
+    }
+    if (!removedDevices.isEmpty()) {
+      myMaintainer.execute(new Runnable() {
+        @Override
+        public void run() {
+          deleteDevices(removedDevices);
+        }
+      });
+    }
+  }
+
+  /**
+   * Remembers that a device was requested for the given configuration instance, such that the pool keeps devices of it warm
+   * (until it is not requested for a while).
+   */
+  public synchronized void recordUsage(@NotNull String cloudProjectId, @NotNull String configurationInstance) {
+    if (!isEnabled()) {
+      return;
+    }
+    myLastUsageTimes.put(getConfigurationKey(cloudProjectId, configurationInstance), System.currentTimeMillis());
+    myMaintainer.execute(myMaintenanceTask);
+  }
+
+  /**
+   * Removes from the pool and returns a device of the given configuration instance, preferring the devices that are already ready.
+   * Returns {@code null} if the pool has no such device. The pool is replenished in the background.
+   */
+  @Nullable
+  public synchronized PooledDevice acquire(@NotNull String cloudProjectId, @NotNull String configurationInstance) {
+    String configurationKey = getConfigurationKey(cloudProjectId, configurationInstance);
+    PooledDevice acquiredDevice = null;
+    for (PooledDevice pooledDevice : myPooledDevices) {
+      if (pooledDevice.getConfigurationKey().equals(configurationKey)
+          && (acquiredDevice == null || (!acquiredDevice.isReady() && pooledDevice.isReady()))) {
+        acquiredDevice = pooledDevice;
+      }
+    }
+    if (isEnabled()) {
+      CloudMetrics.getInstance().recordCacheAccess("warmDevicePool", acquiredDevice != null);
+    }
+    if (acquiredDevice != null) {
+      myPooledDevices.remove(acquiredDevice);
+      myMaintainer.execute(myMaintenanceTask);
+    }
+    return acquiredDevice;
+  }
+
+  private boolean isEnabled() {
+    return myDevicesPerConfiguration > 0 && myMaxDevices > 0;
+  }
+
+  /**
+   * Evicts the devices of idle configuration instances, keeps the remaining devices alive, and provisions new devices for
+   * the recently used configuration instances within the cap. Runs on the maintainer thread only.
+   */
+  private void maintain() {
+    List<PooledDevice> evictedDevices = new ArrayList<PooledDevice>();
+    List<PooledDevice> keptDevices;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<String, Long>> usageIterator = myLastUsageTimes.entrySet().iterator();
+      while (usageIterator.hasNext()) {
+        if (now - usageIterator.next().getValue() > myIdleTimeoutMillis) {
+          usageIterator.remove();
+        }
+      }
+      Iterator<PooledDevice> deviceIterator = myPooledDevices.iterator();
+      while (deviceIterator.hasNext()) {
+        PooledDevice pooledDevice = deviceIterator.next();
+        if (!myLastUsageTimes.containsKey(pooledDevice.getConfigurationKey())) {
+          deviceIterator.remove();
+          evictedDevices.add(pooledDevice);
+        }
+      }
+      // The cap could have been lowered since the devices were provisioned.
+      while (myPooledDevices.size() > myMaxDevices) {
+        evictedDevices.add(myPooledDevices.remove(myPooledDevices.size() - 1));
+      }
+      keptDevices = Lists.newArrayList(myPooledDevices);
+    }
+    deleteDevices(evictedDevices);
+
+    for (PooledDevice pooledDevice : keptDevices) {
+      if (!refresh(pooledDevice)) {
+        synchronized (this) {
+          if (!myPooledDevices.remove(pooledDevice)) {
+            continue; // Acquired in the meantime, so it is not the pool's device anymore.
+          }
+        }
+        deleteDevices(Collections.singletonList(pooledDevice));
+      }
+    }
+
+    for (String configurationKey : getConfigurationsToReplenish()) {
+      PooledDevice pooledDevice = provision(configurationKey);
+      if (pooledDevice == null) {
+        continue;
+      }
+      synchronized (this) {
+        // The pool could have been disabled while the device was being provisioned, in which case nobody would use or delete it.
+        if (isEnabled()) {
+          myPooledDevices.add(pooledDevice);
+          continue;
+        }
+      }
+      deleteDevices(Collections.singletonList(pooledDevice));
+    }
+  }
+
+  /**
+   * Returns a configuration key per device to provision, starting with the most recently used configuration instances.
+   */
+  private synchronized List<String> getConfigurationsToReplenish() {
+    List<Map.Entry<String, Long>> usages = Lists.newArrayList(myLastUsageTimes.entrySet());
+    Collections.sort(usages, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> usage1, Map.Entry<String, Long> usage2) {
+        return usage2.getValue().compareTo(usage1.getValue());
+      }
+    });
+    List<String> configurationsToReplenish = new ArrayList<String>();
+    int availableDevices = myMaxDevices - myPooledDevices.size();
+    for (Map.Entry<String, Long> usage : usages) {
+      int pooledCount = 0;
+      for (PooledDevice pooledDevice : myPooledDevices) {
+        if (pooledDevice.getConfigurationKey().equals(usage.getKey())) {
+          pooledCount++;
+        }
+      }
+      for (int i = pooledCount; i < myDevicesPerConfiguration && availableDevices > 0; i++) {
+        configurationsToReplenish.add(usage.getKey());
+        availableDevices--;
+      }
+    }
+    return configurationsToReplenish;
+  }
+
+  @Nullable
+  private static PooledDevice provision(String configurationKey) {
+    int delimiterIndex = configurationKey.indexOf('/');
+    String cloudProjectId = configurationKey.substring(0, delimiterIndex);
+    String configurationInstance = configurationKey.substring(delimiterIndex + 1);
+    try {
+      Device device = CloudConfigurationHelper.provisionCloudDevice(cloudProjectId, configurationInstance);
+      LOG.info("Provisioned a warm firebase device " + device.getId() + " for " + configurationInstance);
+      return new PooledDevice(cloudProjectId, configurationInstance, device);
+    } catch (Exception e) {
+      LOG.warn("Failed to provision a warm firebase device for " + configurationInstance, e);
+      return null;
+    }
+  }
+
+  /**
+   * Sends a keep-alive to a ready device or polls the state of a booting one. Returns {@code false} if the device is not usable anymore.
+   */
+  private static boolean refresh(PooledDevice pooledDevice) {
+    try {
+      if (pooledDevice.isReady()) {
+        CloudRequestExecutor.getInstance().execute(CloudAuthenticator.getInstance().getTest().projects().devices()
+                                                     .keepalive(pooledDevice.getCloudProjectId(), pooledDevice.getDeviceId()));
+      } else {
+        pooledDevice.setDevice(CloudRequestExecutor.getInstance().execute(
+          CloudAuthenticator.getInstance().getTest().projects().devices().get(pooledDevice.getCloudProjectId(), pooledDevice.getDeviceId())));
+      }
+    } catch (Exception e) {
+      // Keep the device for intermittent connection failures, it is evicted eventually if it stops being used.
+      LOG.warn("Failed to refresh the warm firebase device " + pooledDevice.getDeviceId(), e);
+    }
+    return !CloudDeviceReadinessWatcher.ERROR_STATE.equals(pooledDevice.getDevice().getState());
+  }
+
+  private synchronized List<PooledDevice> removeAllDevices() {
+    List<PooledDevice> removedDevices = Lists.newArrayList(myPooledDevices);
+    myPooledDevices.clear();
+    return removedDevices;
+  }
+
+  private static void deleteDevices(List<PooledDevice> pooledDevices) {
+    for (PooledDevice pooledDevice : pooledDevices) {
+      try {
+        CloudRequestExecutor.getInstance().execute(
+          CloudAuthenticator.getInstance().getTest().projects().devices().delete(pooledDevice.getCloudProjectId(), pooledDevice.getDeviceId()));
+      } catch (Exception e) {
+        LOG.warn("Failed to delete the warm firebase device " + pooledDevice.getDeviceId(), e);
+      }
+    }
+  }
+
+  /**
+   * Sends the deletes of the given devices once and in parallel, and waits for them for a few seconds at most, such that a slow or
+   * unreachable backend does not delay the IDE exit. Devices that are not deleted in time are not kept alive anymore, so they expire.
+   */
+  private static void deleteDevicesOnExit(List<PooledDevice> pooledDevices) {
+    if (pooledDevices.isEmpty()) {
+      return;
+    }
+    ExecutorService deleter = Executors.newFixedThreadPool(
+      pooledDevices.size(), new ThreadFactoryBuilder().setNameFormat("Firebase Device Pool Cleanup %d").setDaemon(true).build());
+    try {
+      for (final PooledDevice pooledDevice : pooledDevices) {
+        deleter.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              // Not through the request executor, which would retry.
+              CloudAuthenticator.getInstance().getTest().projects().devices()
+                .delete(pooledDevice.getCloudProjectId(), pooledDevice.getDeviceId()).execute();
+            } catch (Exception e) {
+              LOG.warn("Failed to delete the warm firebase device " + pooledDevice.getDeviceId(), e);
+            }
+          }
+        });
+      }
+      deleter.shutdown();
+      if (!deleter.awaitTermination(EXIT_DELETION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Timed out deleting the warm firebase devices on exit");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      deleter.shutdownNow();
+    }
+  }
+
+  private static String getConfigurationKey(String cloudProjectId, String configurationInstance) {
+    // Cloud project ids cannot contain slashes.
+    return cloudProjectId + "/" + configurationInstance;
+  }
+
+  /**
+   * A pooled device together with its last polled state.
+   */
+  public static class PooledDevice {
+    private final String cloudProjectId;
+    private final String configurationInstance;
+    private volatile Device device;
+
+    private PooledDevice(String cloudProjectId, String configurationInstance, Device device) {
+      this.cloudProjectId = cloudProjectId;
+      this.configurationInstance = configurationInstance;
+      this.device = device;
+    }
+
+    public String getCloudProjectId() {
+      return cloudProjectId;
+    }
+
+    public String getConfigurationInstance() {
+      return configurationInstance;
+    }
+
+    public String getDeviceId() {
+      return device.getId();
+    }
+
+    public Device getDevice() {
+      return device;
+    }
+
+    private void setDevice(Device device) {
+      this.device = device;
+    }
+
+    public boolean isReady() {
+      return CloudDeviceReadinessWatcher.READY_STATE.equals(device.getState());
+    }
+
+    private String getConfigurationKey() {
+      return CloudDevicePool.getConfigurationKey(cloudProjectId, configurationInstance);
+    }
+  }
+}
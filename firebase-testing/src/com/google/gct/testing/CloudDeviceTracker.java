@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.intellij.concurrency.JobScheduler;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes the futures of firebase devices as soon as adb reports them online, listening to the debug bridge rather than polling it.
+ */
+public class CloudDeviceTracker implements AndroidDebugBridge.IDeviceChangeListener {
+
+  // adb reports a connected device within seconds, so something went wrong if it does not come online for this long.
+  private static final long ONLINE_TIMEOUT_SECONDS = 60;
+
+  private static volatile CloudDeviceTracker instance;
+
+  // adb serial number -> the futures waiting for that device to come online, guarded by itself.
+  private final ListMultimap<String, SettableFuture<IDevice>> myPendingDevices = ArrayListMultimap.create();
+
+
+  @NotNull
+  public static CloudDeviceTracker getInstance() {
+    CloudDeviceTracker result = instance;
+    if (result == null) {
+      synchronized (CloudDeviceTracker.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudDeviceTracker();
+          AndroidDebugBridge.addDeviceChangeListener(result);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a future of the device with the given adb serial number that completes once the device is online, or fails with
+   * {@link TimeoutException} if it does not come online in time.
+   */
+  @NotNull
+  public ListenableFuture<IDevice> whenOnline(@NotNull final String serialNumber) {
+    final SettableFuture<IDevice> device = SettableFuture.create();
+    synchronized (myPendingDevices) {
+      myPendingDevices.put(serialNumber, device);
+    }
+    // Check the current devices after registering the future, such that a device that comes online in between is not missed.
+    AndroidDebugBridge bridge = AndroidDebugBridge.getBridge();
+    if (bridge != null) {
+      for (IDevice connectedDevice : bridge.getDevices()) {
+        if (connectedDevice.isOnline() && serialNumber.equals(connectedDevice.getSerialNumber())) {
+          complete(connectedDevice);
+          return device;
+        }
+      }
+    }
+    JobScheduler.getScheduler().schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (myPendingDevices) {
+          myPendingDevices.remove(serialNumber, device);
+        }
+        device.setException(new TimeoutException("Device " + serialNumber + " did not come online"));
+      }
+    }, ONLINE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    return device;
+  }
+
+  @Override
+  public void deviceConnected(IDevice device) {
+    if (device.isOnline()) {
+      complete(device);
+    }
+  }
+
+  @Override
+  public void deviceDisconnected(IDevice device) {
+    // Nothing to do, the futures time out if their devices disconnect before coming online.
+  }
+
+  @Override
+  public void deviceChanged(IDevice device, int changeMask) {
+    if ((changeMask & IDevice.CHANGE_STATE) != 0 && device.isOnline()) {
+      complete(device);
+    }
+  }
+
+  private void complete(IDevice device) {
+    List<SettableFuture<IDevice>> pendingDevices;
+    synchronized (myPendingDevices) {
+      pendingDevices = myPendingDevices.removeAll(device.getSerialNumber());
+    }
+    for (SettableFuture<IDevice> pendingDevice : pendingDevices) {
+      pendingDevice.set(device);
+    }
+  }
+}
@@ -15,51 +15,146 @@
  */
 package com.google.gct.testing;
 
+import com.google.api.services.testing.model.TestMatrix;
+import com.google.common.collect.ImmutableSet;
 import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.launcher.CloudRequestExecutor;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-
+/**
+ * Cancels a matrix execution without blocking the caller. Cancellation listeners are notified right away such that polling threads and
+ * uploads stop consuming resources, while the backend cancellation request and its confirmation run on a background thread.
+ */
 public class CloudMatrixExecutionCancellator {
 
-  private volatile boolean isCancelled = false;
+  private static final Logger LOG = Logger.getInstance(CloudMatrixExecutionCancellator.class);
+
+  private static final Set<String> TERMINAL_MATRIX_STATES =
+    ImmutableSet.of("FINISHED", "ERROR", "CANCELLED", "INVALID", "UNSUPPORTED_ENVIRONMENT", "INCOMPATIBLE_ENVIRONMENT",
+                    "INCOMPATIBLE_ARCHITECTURE");
+  private static final long CONFIRMATION_POLLING_INTERVAL = 5 * 1000; // 5 seconds
+  private static final long CONFIRMATION_TIMEOUT = 2 * 60 * 1000; // 2 minutes
+
+  private final AtomicBoolean isCancelled = new AtomicBoolean(false);
+  private final List<Runnable> cancellationListeners = new CopyOnWriteArrayList<Runnable>();
   private volatile String cloudProjectId = null;
-  private volatile String testMatrixId = null;
+  // A sharded run consists of several matrices.
+  private final List<String> testMatrixIds = new CopyOnWriteArrayList<String>();
+  private final Set<String> cancelledTestMatrixIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 
-  public synchronized void cancel() {
-    if (isCancelled) {
+  /**
+   * Returns immediately. Calling it more than once has no effect.
+   */
+  public void cancel() {
+    if (!isCancelled.compareAndSet(false, true)) {
       return;
     }
+    for (Runnable listener : cancellationListeners) {
+      // A listener that is being added concurrently might get notified by addCancellationListener, so whoever removes it runs it.
+      if (cancellationListeners.remove(listener)) {
+        runListener(listener);
+      }
+    }
+    // If a matrix is not triggered yet, its backend cancellation starts as soon as its id is added.
+    startBackendCancellationIfPossible();
+  }
+
+  /**
+   * Registers a listener to run as soon as the execution is cancelled (or right away, if it is already cancelled).
+   * Listeners should be fast and non-blocking, e.g., interrupting a thread or closing a stream.
+   */
+  public void addCancellationListener(@NotNull Runnable listener) {
+    cancellationListeners.add(listener);
+    // The listener might have missed a concurrent cancellation, in which case it should run now.
+    if (isCancelled.get() && cancellationListeners.remove(listener)) {
+      runListener(listener);
+    }
+  }
 
-    if (cloudProjectId != null && testMatrixId != null) {
-      try {
-        doCancel();
-      } catch (Exception e1) {
-        // Retry
+  private static void runListener(Runnable listener) {
+    try {
+      listener.run();
+    } catch (Exception e) {
+      LOG.warn("Firebase cancellation listener failed", e);
+    }
+  }
+
+  public void removeCancellationListener(@NotNull Runnable listener) {
+    cancellationListeners.remove(listener);
+  }
+
+  private void startBackendCancellationIfPossible() {
+    if (!isCancelled.get() || cloudProjectId == null) {
+      return;
+    }
+    for (String testMatrixId : testMatrixIds) {
+      if (cancelledTestMatrixIds.add(testMatrixId)) {
+        startBackendCancellation(cloudProjectId, testMatrixId);
+      }
+    }
+  }
+
+  private static void startBackendCancellation(final String projectId, final String matrixId) {
+    Thread cancellationThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
         try {
-          doCancel();
-        } catch (Exception e2) {
-          // Give up
+          doCancel(projectId, matrixId);
+          waitForTerminalState(projectId, matrixId);
+        } catch (Exception e) {
+          LOG.warn("Failed to cancel firebase test matrix " + matrixId, e);
         }
       }
-    }
-    isCancelled = true;
+    }, "Firebase Matrix Cancellation");
+    cancellationThread.setDaemon(true);
+    cancellationThread.start();
+  }
+
+  private static void doCancel(final String projectId, final String matrixId) throws IOException {
+    // Cancelling an already cancelled matrix is a no-op, so the request is safe to retry.
+    CloudRequestExecutor.getInstance().execute("Testing.Projects.TestMatrices.Cancel", true, new CloudRequestExecutor.CloudCall<Object>() {
+      @Override
+      public Object call() throws IOException {
+        return CloudAuthenticator.getInstance().getTest().projects().testMatrices().cancel(projectId, matrixId).execute();
+      }
+    });
   }
 
-  private void doCancel() throws IOException {
-    CloudAuthenticator.getInstance().getTest().projects().testMatrices().cancel(cloudProjectId, testMatrixId);
+  private static void waitForTerminalState(String projectId, String matrixId) throws IOException, InterruptedException {
+    long stopTime = System.currentTimeMillis() + CONFIRMATION_TIMEOUT;
+    while (System.currentTimeMillis() < stopTime) {
+      TestMatrix testMatrix = CloudRequestExecutor.getInstance()
+        .execute(CloudAuthenticator.getInstance().getTest().projects().testMatrices().get(projectId, matrixId));
+      if (TERMINAL_MATRIX_STATES.contains(testMatrix.getState())) {
+        LOG.info("Firebase test matrix " + matrixId + " stopped in state " + testMatrix.getState());
+        return;
+      }
+      Thread.sleep(CONFIRMATION_POLLING_INTERVAL);
+    }
+    LOG.warn("Firebase test matrix " + matrixId + " did not stop within " + CONFIRMATION_TIMEOUT / 1000 + " seconds after cancellation");
   }
 
-  public synchronized boolean isCancelled() {
-    return isCancelled;
+  public boolean isCancelled() {
+    return isCancelled.get();
   }
 
-  public synchronized void setCloudProjectId(String cloudProjectId) {
+  public void setCloudProjectId(String cloudProjectId) {
     this.cloudProjectId = cloudProjectId;
+    startBackendCancellationIfPossible();
   }
 
-  public synchronized void setTestMatrixId(String testMatrixId) {
-    this.testMatrixId = testMatrixId;
+  public void addTestMatrixId(String testMatrixId) {
+    testMatrixIds.add(testMatrixId);
+    startBackendCancellationIfPossible();
   }
 }
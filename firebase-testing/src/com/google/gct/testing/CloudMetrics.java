@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records where the time goes during firebase test runs: the latency, failures and retries of every backend endpoint, the transferred
+ * bytes, cache hit rates, and the durations of the run phases, of the polls, and of the EDT dispatch of result events.
+ *
+ * <p>Everything is recorded for the whole IDE session and for the run bound to the recording thread (see {@link #setCurrentRun}), such
+ * that the calls made deep within the request executor are attributed to the right run. The metrics are shown in the Firebase Metrics
+ * tool window and can be exported as JSON.
+ */
+public class CloudMetrics {
+
+  // How many of the most recent runs keep their metrics.
+  private static final int MAX_RUNS = 20;
+
+  private static volatile CloudMetrics instance;
+
+  public enum Phase {
+    UPLOAD("upload"),
+    TRIGGER("trigger"),
+    VALIDATION("validation"),
+    POLLING("polling"),
+    RESULT_PARSING("resultParsing");
+
+    private final String name;
+
+    Phase(String name) {
+      this.name = name;
+    }
+  }
+
+  private final long sessionStartTime = System.currentTimeMillis();
+  private final Metrics sessionMetrics = new Metrics();
+  // Test run id -> the metrics of the run, oldest first, guarded by itself.
+  private final LinkedHashMap<String, Metrics> runMetrics = new LinkedHashMap<String, Metrics>();
+  private final ThreadLocal<Metrics> currentRun = new ThreadLocal<Metrics>();
+
+  @VisibleForTesting
+  CloudMetrics() {
+  }
+
+  @NotNull
+  public static CloudMetrics getInstance() {
+    CloudMetrics result = instance;
+    if (result == null) {
+      synchronized (CloudMetrics.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudMetrics();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the metrics of the given run, starting them (and forgetting the oldest runs beyond {@link #MAX_RUNS}) if needed.
+   */
+  @NotNull
+  public Metrics getRunMetrics(@NotNull String testRunId) {
+    synchronized (runMetrics) {
+      Metrics metrics = runMetrics.get(testRunId);
+      if (metrics == null) {
+        metrics = new Metrics();
+        runMetrics.put(testRunId, metrics);
+        Iterator<String> testRunIds = runMetrics.keySet().iterator();
+        while (runMetrics.size() > MAX_RUNS) {
+          testRunIds.next();
+          testRunIds.remove();
+        }
+      }
+      return metrics;
+    }
+  }
+
+  /**
+   * Attributes everything recorded from the current thread to the given run (in addition to the session), until it is reset with
+   * {@code null}.
+   */
+  public void setCurrentRun(@Nullable Metrics metrics) {
+    if (metrics == null) {
+      currentRun.remove();
+    } else {
+      currentRun.set(metrics);
+    }
+  }
+
+  @Nullable
+  public Metrics getCurrentRun() {
+    return currentRun.get();
+  }
+
+  public void recordRequest(@NotNull String endpoint, long latencyMillis, boolean isSuccessful) {
+    sessionMetrics.getEndpoint(endpoint).record(latencyMillis, isSuccessful);
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.getEndpoint(endpoint).record(latencyMillis, isSuccessful);
+    }
+  }
+
+  public void recordRetry(@NotNull String endpoint) {
+    sessionMetrics.getEndpoint(endpoint).retries.incrementAndGet();
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.getEndpoint(endpoint).retries.incrementAndGet();
+    }
+  }
+
+  public void recordBytesUploaded(long bytes) {
+    sessionMetrics.bytesUploaded.addAndGet(bytes);
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.bytesUploaded.addAndGet(bytes);
+    }
+  }
+
+  public void recordBytesDownloaded(long bytes) {
+    sessionMetrics.bytesDownloaded.addAndGet(bytes);
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.bytesDownloaded.addAndGet(bytes);
+    }
+  }
+
+  public void recordCacheAccess(@NotNull String cacheName, boolean isHit) {
+    sessionMetrics.getCache(cacheName).record(isHit);
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.getCache(cacheName).record(isHit);
+    }
+  }
+
+  public void recordPhase(@NotNull Phase phase, long durationMillis) {
+    sessionMetrics.getPhase(phase).record(durationMillis);
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.getPhase(phase).record(durationMillis);
+    }
+  }
+
+  public void recordPoll(long durationMillis) {
+    sessionMetrics.polls.record(durationMillis);
+    Metrics metrics = currentRun.get();
+    if (metrics != null) {
+      metrics.polls.record(durationMillis);
+    }
+  }
+
+  /**
+   * Records how long a result event waited to be dispatched on the EDT, and how many events were waiting when it was queued. Events
+   * are dispatched on the EDT, which is never bound to a run, so the run is passed explicitly.
+   */
+  public void recordEdtDispatch(@Nullable Metrics metrics, long queueMillis, int backlog) {
+    sessionMetrics.recordEdtDispatch(queueMillis, backlog);
+    if (metrics != null) {
+      metrics.recordEdtDispatch(queueMillis, backlog);
+    }
+  }
+
+  /**
+   * Returns all the metrics of the session and of the most recent runs as JSON.
+   */
+  @NotNull
+  public String toJson() throws IOException {
+    Map<String, Object> json = new LinkedHashMap<String, Object>();
+    json.put("sessionStartTime", sessionStartTime);
+    json.put("exportTime", System.currentTimeMillis());
+    json.put("session", sessionMetrics.toJson());
+    List<Object> runs = new ArrayList<Object>();
+    for (Map.Entry<String, Metrics> run : getRuns()) {
+      Map<String, Object> runJson = new LinkedHashMap<String, Object>();
+      runJson.put("testRunId", run.getKey());
+      runJson.put("startTime", run.getValue().startTime);
+      runJson.putAll(run.getValue().toJson());
+      runs.add(runJson);
+    }
+    json.put("runs", runs);
+    return JacksonFactory.getDefaultInstance().toPrettyString(json);
+  }
+
+  /**
+   * Returns a plain text summary of the metrics, most recent run first.
+   */
+  @NotNull
+  public String formatReport() {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
+    StringBuilder report = new StringBuilder();
+    report.append("Session (since ").append(dateFormat.format(new Date(sessionStartTime))).append(")\n");
+    sessionMetrics.format(report);
+    List<Map.Entry<String, Metrics>> runs = getRuns();
+    Collections.reverse(runs);
+    for (Map.Entry<String, Metrics> run : runs) {
+      report.append("\nRun ").append(run.getKey()).append(" (started at ")
+        .append(dateFormat.format(new Date(run.getValue().startTime))).append(")\n");
+      run.getValue().format(report);
+    }
+    return report.toString();
+  }
+
+  private List<Map.Entry<String, Metrics>> getRuns() {
+    synchronized (runMetrics) {
+      return new ArrayList<Map.Entry<String, Metrics>>(runMetrics.entrySet());
+    }
+  }
+
+  /**
+   * The metrics of either a single run or the whole session.
+   */
+  public static class Metrics {
+    private final long startTime = System.currentTimeMillis();
+    private final ConcurrentMap<String, EndpointStats> endpoints = new ConcurrentHashMap<String, EndpointStats>();
+    private final ConcurrentMap<Phase, Histogram> phases = new ConcurrentHashMap<Phase, Histogram>();
+    private final ConcurrentMap<String, CacheStats> caches = new ConcurrentHashMap<String, CacheStats>();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final Histogram polls = new Histogram();
+    private final Histogram edtDispatchDelays = new Histogram();
+    private final AtomicLong maxEdtBacklog = new AtomicLong();
+
+    @NotNull
+    private EndpointStats getEndpoint(String endpoint) {
+      EndpointStats endpointStats = endpoints.get(endpoint);
+      if (endpointStats == null) {
+        endpoints.putIfAbsent(endpoint, new EndpointStats());
+        endpointStats = endpoints.get(endpoint);
+      }
+      return endpointStats;
+    }
+
+    @NotNull
+    private Histogram getPhase(Phase phase) {
+      Histogram histogram = phases.get(phase);
+      if (histogram == null) {
+        phases.putIfAbsent(phase, new Histogram());
+        histogram = phases.get(phase);
+      }
+      return histogram;
+    }
+
+    @NotNull
+    private CacheStats getCache(String cacheName) {
+      CacheStats cacheStats = caches.get(cacheName);
+      if (cacheStats == null) {
+        caches.putIfAbsent(cacheName, new CacheStats());
+        cacheStats = caches.get(cacheName);
+      }
+      return cacheStats;
+    }
+
+    private void recordEdtDispatch(long queueMillis, int backlog) {
+      edtDispatchDelays.record(queueMillis);
+      long maxBacklog;
+      do {
+        maxBacklog = maxEdtBacklog.get();
+      } while (backlog > maxBacklog && !maxEdtBacklog.compareAndSet(maxBacklog, backlog));
+    }
+
+    private Map<String, Object> toJson() {
+      Map<String, Object> json = new LinkedHashMap<String, Object>();
+      Map<String, Object> endpointsJson = new TreeMap<String, Object>();
+      for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+        Map<String, Object> endpointJson = endpoint.getValue().latencies.toJson();
+        endpointJson.put("failures", endpoint.getValue().failures.get());
+        endpointJson.put("retries", endpoint.getValue().retries.get());
+        endpointsJson.put(endpoint.getKey(), endpointJson);
+      }
+      json.put("endpoints", endpointsJson);
+      json.put("bytesUploaded", bytesUploaded.get());
+      json.put("bytesDownloaded", bytesDownloaded.get());
+      Map<String, Object> phasesJson = new LinkedHashMap<String, Object>();
+      for (Phase phase : Phase.values()) {
+        if (phases.containsKey(phase)) {
+          phasesJson.put(phase.name, phases.get(phase).toJson());
+        }
+      }
+      json.put("phases", phasesJson);
+      json.put("polls", polls.toJson());
+      Map<String, Object> edtDispatchJson = edtDispatchDelays.toJson();
+      edtDispatchJson.put("maxBacklog", maxEdtBacklog.get());
+      json.put("edtDispatch", edtDispatchJson);
+      Map<String, Object> cachesJson = new TreeMap<String, Object>();
+      for (Map.Entry<String, CacheStats> cache : caches.entrySet()) {
+        Map<String, Object> cacheJson = new LinkedHashMap<String, Object>();
+        cacheJson.put("hits", cache.getValue().hits.get());
+        cacheJson.put("misses", cache.getValue().misses.get());
+        cacheJson.put("hitRate", cache.getValue().getHitRate());
+        cachesJson.put(cache.getKey(), cacheJson);
+      }
+      json.put("caches", cachesJson);
+      return json;
+    }
+
+    private void format(StringBuilder report) {
+      if (!endpoints.isEmpty()) {
+        report.append(String.format("  %-50s %7s %7s %7s %8s %8s %8s\n", "Endpoint", "Calls", "Failed", "Retries", "p50 ms", "p95 ms",
+                                    "Max ms"));
+        for (Map.Entry<String, EndpointStats> endpoint : new TreeMap<String, EndpointStats>(endpoints).entrySet()) {
+          Histogram latencies = endpoint.getValue().latencies;
+          report.append(String.format("  %-50s %7d %7d %7d %8d %8d %8d\n", endpoint.getKey(), latencies.getCount(),
+                                      endpoint.getValue().failures.get(), endpoint.getValue().retries.get(),
+                                      latencies.getPercentile(0.5), latencies.getPercentile(0.95), latencies.getMax()));
+        }
+      }
+      report.append("  Uploaded ").append(StringUtil.formatFileSize(bytesUploaded.get()))
+        .append(", downloaded ").append(StringUtil.formatFileSize(bytesDownloaded.get())).append("\n");
+      for (Phase phase : Phase.values()) {
+        if (phases.containsKey(phase)) {
+          formatHistogram(report, "Phase " + phase.name, phases.get(phase));
+        }
+      }
+      formatHistogram(report, "Polls", polls);
+      formatHistogram(report, "EDT dispatch delay", edtDispatchDelays);
+      if (edtDispatchDelays.getCount() > 0) {
+        report.append("  Max EDT backlog: ").append(maxEdtBacklog.get()).append(" events\n");
+      }
+      for (Map.Entry<String, CacheStats> cache : new TreeMap<String, CacheStats>(caches).entrySet()) {
+        report.append(String.format("  Cache %s: %.0f%% hits (%d of %d)\n", cache.getKey(), cache.getValue().getHitRate() * 100,
+                                    cache.getValue().hits.get(), cache.getValue().hits.get() + cache.getValue().misses.get()));
+      }
+    }
+
+    private static void formatHistogram(StringBuilder report, String title, Histogram histogram) {
+      if (histogram.getCount() == 0) {
+        return;
+      }
+      report.append(String.format("  %s: %d times, mean %d ms, p50 %d ms, p95 %d ms, max %d ms\n", title, histogram.getCount(),
+                                  histogram.getMean(), histogram.getPercentile(0.5), histogram.getPercentile(0.95), histogram.getMax()));
+    }
+  }
+
+  private static class EndpointStats {
+    private final Histogram latencies = new Histogram();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    private void record(long latencyMillis, boolean isSuccessful) {
+      latencies.record(latencyMillis);
+      if (!isSuccessful) {
+        failures.incrementAndGet();
+      }
+    }
+  }
+
+  private static class CacheStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private void record(boolean isHit) {
+      (isHit ? hits : misses).incrementAndGet();
+    }
+
+    private double getHitRate() {
+      long accesses = hits.get() + misses.get();
+      return accesses == 0 ? 0 : (double)hits.get() / accesses;
+    }
+  }
+
+  /**
+   * A histogram of durations with fixed, roughly logarithmic buckets, which keeps its memory constant however long the session is.
+   */
+  @VisibleForTesting
+  static class Histogram {
+    // The inclusive upper bounds (in millis) of all but the last bucket, which holds everything slower.
+    private static final long[] BUCKET_BOUNDS =
+      {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10 * 1000, 30 * 1000, 60 * 1000, 5 * 60 * 1000, 30 * 60 * 1000};
+
+    private final long[] bucketCounts = new long[BUCKET_BOUNDS.length + 1];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    synchronized void record(long millis) {
+      millis = Math.max(0, millis);
+      int bucket = Arrays.binarySearch(BUCKET_BOUNDS, millis);
+      bucketCounts[bucket >= 0 ? bucket : -bucket - 1]++;
+      count++;
+      sum += millis;
+      max = Math.max(max, millis);
+    }
+
+    synchronized long getCount() {
+      return count;
+    }
+
+    synchronized long getMean() {
+      return count == 0 ? 0 : sum / count;
+    }
+
+    synchronized long getMax() {
+      return max;
+    }
+
+    /**
+     * Returns the upper bound of the bucket that holds the given percentile (but never more than the maximum), or 0 if nothing was
+     * recorded.
+     */
+    synchronized long getPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long)Math.ceil(percentile * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+        seen += bucketCounts[i];
+        if (seen >= rank) {
+          return Math.min(BUCKET_BOUNDS[i], max);
+        }
+      }
+      return max;
+    }
+
+    synchronized Map<String, Object> toJson() {
+      Map<String, Object> json = new LinkedHashMap<String, Object>();
+      json.put("count", count);
+      json.put("meanMillis", getMean());
+      json.put("p50Millis", getPercentile(0.5));
+      json.put("p95Millis", getPercentile(0.95));
+      json.put("p99Millis", getPercentile(0.99));
+      json.put("maxMillis", max);
+      Map<String, Object> bucketsJson = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < bucketCounts.length; i++) {
+        if (bucketCounts[i] > 0) {
+          bucketsJson.put(i < BUCKET_BOUNDS.length ? "<=" + BUCKET_BOUNDS[i] : ">" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1],
+                          bucketCounts[i]);
+        }
+      }
+      json.put("buckets", bucketsJson);
+      return json;
+    }
+  }
+}
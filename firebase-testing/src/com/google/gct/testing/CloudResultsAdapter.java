@@ -29,26 +29,61 @@ import static com.google.gct.testing.CloudTestingUtils.ConfigurationStopReason;
 
 public class CloudResultsAdapter {
 
+  private static final String SHARD_PATH_PREFIX = "shard-";
+
   private final String cloudProjectId;
-  private final CloudResultsLoader loader;
+  private final String bucketName;
+  private final String testRunId;
+  // A loader per matrix execution, i.e., a single loader unless the tests are sharded.
+  private final List<CloudResultsLoader> loaders = new ArrayList<CloudResultsLoader>();
   private final GoogleCloudTestingResultParser resultParser;
   private final List<String> expectedConfigurationInstances;
   // Indexed by encoded configuration instance name.
   private final Map<String, ConfigurationResult> results = new HashMap<String, ConfigurationResult>();
-  // The set of configurations for which we've gotten a result and published it to the parser.
+  // The results of each shard (indexed by encoded configuration instance name), which are merged into the above results.
+  // For unsharded runs, it contains just the above results map.
+  private final List<Map<String, ConfigurationResult>> shardResults = new ArrayList<Map<String, ConfigurationResult>>();
+  // The set of (shard) configuration results that we've gotten and published to the parser.
   private final Set<ConfigurationResult> publishedConfigurations = new HashSet<ConfigurationResult>();
+  // The set of (shard) configuration results whose test durations were added to the test duration history.
+  private final Set<ConfigurationResult> recordedConfigurations = new HashSet<ConfigurationResult>();
   // The set of configurations that were marked as pending in the test results tree.
   private final Set<ConfigurationResult> markedAsPendingConfigurations = new HashSet<ConfigurationResult>();
   // The set of configurations that were marked as finished in the test results tree.
   private final Set<ConfigurationResult> markedAsFinishedConfigurations = new HashSet<ConfigurationResult>();
   private final PollingTicker pollingTicker;
+  // Both in millis, a negative value means UNKNOWN.
+  private volatile long estimatedTestDuration = -1;
+  private volatile long testStartTime = -1;
 
 
   public CloudResultsAdapter(String cloudProjectId, String bucketName, ProcessHandler processHandler,
                              GoogleCloudTestingResultParser resultParser, List<String> expectedConfigurationInstances, String testRunId,
                              @Nullable TestMatrix testMatrix, @Nullable CloudMatrixExecutionCancellator matrixExecutionCancellator) {
+    this(cloudProjectId, bucketName, processHandler, resultParser, expectedConfigurationInstances, testRunId,
+         Collections.singletonList(testMatrix), matrixExecutionCancellator);
+  }
+
+  /**
+   * If there is more than one matrix, each of them runs a shard of the tests and stores its results under
+   * {@link #getShardPathPrefix}(shard index) in the bucket.
+   */
+  public CloudResultsAdapter(String cloudProjectId, String bucketName, ProcessHandler processHandler,
+                             GoogleCloudTestingResultParser resultParser, List<String> expectedConfigurationInstances, String testRunId,
+                             List<TestMatrix> testMatrices, @Nullable CloudMatrixExecutionCancellator matrixExecutionCancellator) {
     this.cloudProjectId = cloudProjectId;
-    loader = new CloudResultsLoader(cloudProjectId, resultParser.getTestRunListener(), processHandler, bucketName, testMatrix);
+    this.bucketName = bucketName;
+    this.testRunId = testRunId;
+    if (testMatrices.size() == 1) {
+      loaders.add(new CloudResultsLoader(cloudProjectId, resultParser.getTestRunListener(), processHandler, bucketName, testMatrices.get(0)));
+      shardResults.add(results);
+    } else {
+      for (int i = 0; i < testMatrices.size(); i++) {
+        loaders.add(new CloudResultsLoader(cloudProjectId, resultParser.getTestRunListener(), processHandler, bucketName,
+                                           getShardPathPrefix(i), "Shard " + (i + 1) + "/" + testMatrices.size(), testMatrices.get(i)));
+        shardResults.add(new HashMap<String, ConfigurationResult>());
+      }
+    }
     this.resultParser = resultParser;
     this.expectedConfigurationInstances = expectedConfigurationInstances;
     pollingTicker = new PollingTicker(matrixExecutionCancellator);
@@ -56,6 +91,30 @@ public class CloudResultsAdapter {
     resultParser.getTestRunListener().setTestRunId(testRunId);
   }
 
+  /**
+   * Returns the folder within the bucket, in which the given shard stores its results.
+   */
+  public static String getShardPathPrefix(int shardIndex) {
+    return SHARD_PATH_PREFIX + shardIndex + "/";
+  }
+
+  /**
+   * Sets how long the tests are expected to run once the devices start running them (based on the test duration history).
+   */
+  public void setEstimatedTestDuration(long estimatedTestDuration) {
+    this.estimatedTestDuration = estimatedTestDuration;
+  }
+
+  /**
+   * Returns the expected remaining time (in millis) until the tests finish, or -1 if it is unknown (e.g., the tests have not started yet).
+   */
+  public long getEstimatedRemainingTime() {
+    if (estimatedTestDuration < 0 || testStartTime < 0) {
+      return -1;
+    }
+    return Math.max(0, testStartTime + estimatedTestDuration - System.currentTimeMillis());
+  }
+
   public void startPolling() {
     new Thread(pollingTicker).start();
   }
@@ -69,11 +128,22 @@ public class CloudResultsAdapter {
    * @return true if all results arrived (i.e., we should stop polling the cloud bucket).
    */
   private boolean poll() {
-    // Ask the loader to update the results map (possibly adding more).
-    boolean newDataReceived = loader.updateResults(results);
+    // Ask the loaders to update the results maps (possibly adding more).
+    boolean newDataReceived = false;
+    for (int i = 0; i < loaders.size(); i++) {
+      newDataReceived |= loaders.get(i).updateResults(shardResults.get(i));
+    }
     if (newDataReceived) {
       pollingTicker.resetTimeout();
     }
+    if (loaders.size() > 1) {
+      mergeShardResults();
+    }
+
+    if (testStartTime < 0 && !results.isEmpty()) {
+      // Configurations show up in the results once their test executions leave the pending state.
+      testStartTime = System.currentTimeMillis();
+    }
 
     for (ConfigurationResult result : results.values()) {
       if (!markedAsPendingConfigurations.contains(result)) {
@@ -90,12 +160,21 @@ public class CloudResultsAdapter {
       }
     })).size();
 
-    // Publish any results that haven't been published yet.
-    for (ConfigurationResult result : results.values()) {
-      if (result.hasResult() && !publishedConfigurations.contains(result)) {
-        byte[] inputBytes = getParserInput(result);
-        resultParser.addOutput(inputBytes, 0, inputBytes.length);
-        publishedConfigurations.add(result);
+    // Publish any results that haven't been published yet. The results of each shard are published as soon as they arrive, and the parser
+    // adds their tests to the same configuration node.
+    for (Map<String, ConfigurationResult> shardResult : shardResults) {
+      for (ConfigurationResult result : shardResult.values()) {
+        if (result.hasResult() && !publishedConfigurations.contains(result)) {
+          long parsingStartTime = System.currentTimeMillis();
+          byte[] inputBytes = getParserInput(result);
+          resultParser.addOutput(inputBytes, 0, inputBytes.length);
+          CloudMetrics.getInstance().recordPhase(CloudMetrics.Phase.RESULT_PARSING, System.currentTimeMillis() - parsingStartTime);
+          publishedConfigurations.add(result);
+        }
+        if (result.hasResult() && result.isComplete() && result.getTestDuration() > 0 && !recordedConfigurations.contains(result)) {
+          recordTestDurations(result);
+          recordedConfigurations.add(result);
+        }
       }
     }
 
@@ -120,6 +199,87 @@ public class CloudResultsAdapter {
     return completedConfigurationInstances >= expectedConfigurationInstances.size();
   }
 
+  /**
+   * Folds the per-shard results into a single result per configuration. A configuration is finished once all of its shards are.
+   */
+  private void mergeShardResults() {
+    Set<String> encodedConfigurationInstances = new HashSet<String>();
+    for (Map<String, ConfigurationResult> shardResult : shardResults) {
+      encodedConfigurationInstances.addAll(shardResult.keySet());
+    }
+    for (String encodedConfigurationInstance : encodedConfigurationInstances) {
+      ConfigurationResult mergedResult = results.get(encodedConfigurationInstance);
+      if (mergedResult == null) {
+        mergedResult = new ConfigurationResult(encodedConfigurationInstance, bucketName);
+        results.put(encodedConfigurationInstance, mergedResult);
+      }
+      boolean areAllShardsFinished = true;
+      boolean isInfrastructureFailure = false;
+      boolean isTriggeringError = false;
+      long testDuration = -1;
+      Map<String, BucketFileMetadata> newScreenshots = new LinkedHashMap<String, BucketFileMetadata>();
+      for (Map<String, ConfigurationResult> shardResult : shardResults) {
+        ConfigurationResult result = shardResult.get(encodedConfigurationInstance);
+        if (result == null) {
+          areAllShardsFinished = false;
+          continue;
+        }
+        for (Map.Entry<String, BucketFileMetadata> screenshot : result.getScreenshotMetadata().entrySet()) {
+          if (mergedResult.getScreenshotMetadata().get(screenshot.getKey()) == null) {
+            newScreenshots.put(screenshot.getKey(), screenshot.getValue());
+          }
+        }
+        areAllShardsFinished &= result.isNoProgressExpected();
+        isInfrastructureFailure |= result.isInfrastructureFailure();
+        isTriggeringError |= result.isTriggeringError();
+        // Shards run in parallel, so the configuration takes as long as its slowest shard.
+        testDuration = Math.max(testDuration, result.getTestDuration());
+      }
+      // Notify the listeners of the merged result once for the screenshots of all shards.
+      mergedResult.addScreenshotMetadata(newScreenshots);
+      if (areAllShardsFinished) {
+        mergedResult.setTriggeringError(isTriggeringError);
+        mergedResult.setInfrastructureFailure(!isTriggeringError && isInfrastructureFailure);
+        mergedResult.setComplete(!isTriggeringError && !isInfrastructureFailure);
+        mergedResult.setTestDuration(testDuration);
+      }
+    }
+  }
+
+  /**
+   * Adds the tests of a finished configuration to the test duration history. Only the total duration of the test process is known,
+   * so it is split evenly between the tests.
+   */
+  private static void recordTestDurations(ConfigurationResult result) {
+    Set<TestName> testNames = parseTestNames(result.getResult());
+    String[] encodedConfigurationParts =
+      result.getConfigurationInstance().getEncodedString().split(ConfigurationInstance.ENCODED_NAME_DELIMITER);
+    if (testNames.isEmpty() || encodedConfigurationParts.length < 2) {
+      return;
+    }
+    long testDuration = result.getTestDuration() / testNames.size();
+    Map<TestName, Long> testDurations = new HashMap<TestName, Long>();
+    for (TestName testName : testNames) {
+      testDurations.put(testName, testDuration);
+    }
+    TestDurationHistory.getInstance().recordDurations(encodedConfigurationParts[0], encodedConfigurationParts[1], testDurations);
+  }
+
+  private static Set<TestName> parseTestNames(String instrumentationOutput) {
+    final String classPrefix = "INSTRUMENTATION_STATUS: class=";
+    final String testPrefix = "INSTRUMENTATION_STATUS: test=";
+    Set<TestName> testNames = new LinkedHashSet<TestName>();
+    String className = null;
+    for (String line : instrumentationOutput.split("\r?\n")) {
+      if (line.startsWith(classPrefix)) {
+        className = line.substring(classPrefix.length()).trim();
+      } else if (line.startsWith(testPrefix) && className != null) {
+        testNames.add(new TestName(className, line.substring(testPrefix.length()).trim()));
+      }
+    }
+    return testNames;
+  }
+
   private void timeoutResultProcessing(boolean allResultsArrived) {
     if (!allResultsArrived) {
       for (String configurationInstance : expectedConfigurationInstances) {
@@ -175,22 +335,62 @@ public class CloudResultsAdapter {
     public void run() {
       boolean allResultsArrived = false;
       stopTime = System.currentTimeMillis() + INITIAL_TIMEOUT;
-      while (System.currentTimeMillis() < stopTime) {
-        if (matrixExecutionCancellator != null && matrixExecutionCancellator.isCancelled()) {
-          break;
+      // Wake up the polling thread as soon as the execution is cancelled rather than after the current polling interval.
+      final Thread pollingThread = Thread.currentThread();
+      Runnable pollingInterrupter = new Runnable() {
+        @Override
+        public void run() {
+          pollingThread.interrupt();
         }
-        allResultsArrived = poll();
-        if (allResultsArrived) {
-          break;
+      };
+      if (matrixExecutionCancellator != null) {
+        matrixExecutionCancellator.addCancellationListener(pollingInterrupter);
+      }
+      CloudMetrics metrics = CloudMetrics.getInstance();
+      metrics.setCurrentRun(metrics.getRunMetrics(testRunId));
+      long pollingStartTime = System.currentTimeMillis();
+      try {
+        while (System.currentTimeMillis() < stopTime) {
+          if (isCancelled()) {
+            break;
+          }
+          long pollStartTime = System.currentTimeMillis();
+          try {
+            allResultsArrived = poll();
+            metrics.recordPoll(System.currentTimeMillis() - pollStartTime);
+          } catch (RuntimeException e) {
+            if (isCancelled()) {
+              break; // Requests fail when the polling thread is interrupted by the cancellation.
+            }
+            throw e;
+          }
+          if (allResultsArrived) {
+            break;
+          }
+          try {
+            Thread.sleep(POLLING_INTERVAL);
+          } catch (InterruptedException e) {
+            //ignore
+          }
         }
-        try {
-          Thread.sleep(POLLING_INTERVAL);
-        } catch (InterruptedException e) {
-          //ignore
+      } finally {
+        if (matrixExecutionCancellator != null) {
+          matrixExecutionCancellator.removeCancellationListener(pollingInterrupter);
         }
+        Thread.interrupted(); // Clear a possibly pending interrupt, which is not meant for the result processing below.
       }
-      //Stop either because all results arrived or because the polling timed out.
-      timeoutResultProcessing(allResultsArrived);
+      //Stop either because all results arrived, the polling timed out, or the execution was cancelled.
+      try {
+        metrics.recordPhase(CloudMetrics.Phase.POLLING, System.currentTimeMillis() - pollingStartTime);
+        timeoutResultProcessing(allResultsArrived);
+      } finally {
+        metrics.setCurrentRun(null);
+        CloudRunRegistry.getInstance().markFinished(testRunId);
+      }
+    }
+
+    private boolean isCancelled() {
+      return matrixExecutionCancellator != null && matrixExecutionCancellator.isCancelled();
     }
   }
 }
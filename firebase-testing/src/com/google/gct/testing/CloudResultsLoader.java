@@ -16,7 +16,6 @@
 package com.google.gct.testing;
 
 import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.util.Maps;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.api.services.testing.model.*;
@@ -28,29 +27,35 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.launcher.CloudRequestExecutor;
 import com.google.gct.testing.results.IGoogleCloudTestRunListener;
 import com.intellij.execution.process.ProcessHandler;
 import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.gct.testing.BucketFileMetadata.Type.*;
 import static com.google.gct.testing.CloudTestingUtils.ANDROID_STUDIO_URL_FLAG;
 
 public class CloudResultsLoader {
+  private static final Logger LOG = Logger.getInstance(CloudResultsLoader.class);
+
   public static final String INFRASTRUCTURE_FAILURE_PREFIX = "Infrastructure Failure:";
 
   private static final long MAX_SCREENSHOT_DOWNLOAD_SIZE = 512 * 1024 * 1024; // 512 MB
 
-  private static final Function<StorageObject, BucketFileMetadata> TO_BUCKET_FILE = new Function<StorageObject, BucketFileMetadata>() {
-    @Override
-    public BucketFileMetadata apply(StorageObject input) {
-      return new BucketFileMetadata(input.getName());
-    }
-  };
+  private static final String MEDIA_DOWNLOAD_ENDPOINT = "Storage.Objects.Get.Media";
+  private static final String LIST_OBJECTS_ENDPOINT = "Storage.Objects.List";
+  private static final String GET_TEST_MATRIX_ENDPOINT = "Testing.Projects.TestMatrices.Get";
+
 
   private static final Function<BucketFileMetadata, String> TO_COMPLETED_CONFIGURATION_OR_NULL = new Function<BucketFileMetadata, String>() {
     @Override
@@ -66,6 +71,13 @@ public class CloudResultsLoader {
   // e.g., new progress status, results file, or screenshot.
   private boolean newDataReceived = false;
 
+  private final Function<StorageObject, BucketFileMetadata> TO_BUCKET_FILE = new Function<StorageObject, BucketFileMetadata>() {
+    @Override
+    public BucketFileMetadata apply(StorageObject input) {
+      return new BucketFileMetadata(input.getName(), pathPrefix, input.getSize() != null ? input.getSize().longValue() : 0);
+    }
+  };
+
   // Is used to support fake buckets only (does not handle cumulative progress).
   private final Function<BucketFileMetadata, BucketFileMetadata> UPDATE_CONFIGURATION_PROGRESS =
     new Function<BucketFileMetadata, BucketFileMetadata>() {
@@ -76,12 +88,9 @@ public class CloudResultsLoader {
         if (optionalBytes.isPresent()) {
           String progressLine = new String(optionalBytes.get());
           String encodedConfigurationInstance = file.getEncodedConfigurationInstance();
-          List<String> previousProgress = getPreviousProgress(encodedConfigurationInstance);
-          if (!previousProgress.contains(progressLine)) {
-            newDataReceived = true;
-            previousProgress.add(progressLine);
-            testRunListener.testConfigurationProgress(
-              ConfigurationInstance.parseFromEncodedString(encodedConfigurationInstance).getResultsViewerDisplayString(), progressLine);
+          // The progress file holds just the latest progress line, so it is new unless it is the last reported one.
+          if (!progressLine.equals(getProgress(encodedConfigurationInstance).getLastMessage())) {
+            reportNewProgress(encodedConfigurationInstance, progressLine);
           }
         }
       }
@@ -93,23 +102,39 @@ public class CloudResultsLoader {
   private final IGoogleCloudTestRunListener testRunListener;
   private final ProcessHandler processHandler;
   private final String bucketName;
+  // The folder within the bucket that holds the results of this loader's matrix, e.g., "shard-1/" (empty for unsharded runs).
+  private final String pathPrefix;
+  // Prepended to the reported progress messages, e.g., "Shard 2/4" (empty for unsharded runs).
+  private final String progressLabel;
   private final String testMatrixId;
   private final Set<String> allConfigurationInstances = new HashSet<String>();
   private final Set<String> finishedConfigurationInstances = new HashSet<String>();
   private long loadedScreenshotSize = 0;
   private int consecutivePollFailuresCount = 0;
   private boolean webLinkReported = false;
+  // When this loader started waiting for its matrix to be validated.
+  private final long creationTime = System.currentTimeMillis();
 
-  // Encoded configuration instance -> progress accumulated so far.
-  private final Map<String, List<String>> configurationProgress = Maps.newHashMap();
+  // Encoded configuration instance -> progress reported so far, updated by the polling thread.
+  private final Map<String, ConfigurationProgress> configurationProgress = new ConcurrentHashMap<String, ConfigurationProgress>();
 
 
   public CloudResultsLoader(String cloudProjectId, IGoogleCloudTestRunListener testRunListener, ProcessHandler processHandler,
                             String bucketName, TestMatrix testMatrix) {
+    this(cloudProjectId, testRunListener, processHandler, bucketName, "", "", testMatrix);
+  }
+
+  /**
+   * The progress label (e.g., "Shard 2/4") tells apart the progress messages of the loaders that report to the same listener.
+   */
+  public CloudResultsLoader(String cloudProjectId, IGoogleCloudTestRunListener testRunListener, ProcessHandler processHandler,
+                            String bucketName, String pathPrefix, String progressLabel, TestMatrix testMatrix) {
     this.cloudProjectId = cloudProjectId;
     this.testRunListener = testRunListener;
     this.processHandler = processHandler;
     this.bucketName = bucketName;
+    this.pathPrefix = pathPrefix;
+    this.progressLabel = progressLabel;
     // testMatrix is null for runs with a fake bucket.
     if (testMatrix != null) {
       testMatrixId = testMatrix.getTestMatrixId();
@@ -122,23 +147,40 @@ public class CloudResultsLoader {
   }
 
   //TODO: Check file size after loading it and load the missing parts, if any (i.e., keep loading until the file's size does not change).
-  public static Optional<byte[]> getFileBytes(String bucketName, BucketFileMetadata fileMetadata) {
-    int chunkSize = 2 * 1000 * 1000; //A bit less than 2MB.
+  public static Optional<byte[]> getFileBytes(final String bucketName, final BucketFileMetadata fileMetadata) {
+    final int chunkSize = 2 * 1000 * 1000; //A bit less than 2MB.
     int currentStart = 0;
     byte [] bytes = null;
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     try {
       do {
-        //Retrieve the Get object in each iteration to avoid exceptions while updating request headers with a different range.
-        Storage.Objects.Get getObject = CloudAuthenticator.getInstance().getStorage().objects().get(bucketName, fileMetadata.getPath());
-        getObject.getMediaHttpDownloader().setDirectDownloadEnabled(true);
-        getObject.setRequestHeaders(new HttpHeaders().setRange(String.format("bytes=%d-%d", currentStart, currentStart + chunkSize - 1)));
-        getObject.executeMediaAndDownloadTo(out);
+        checkInterrupted();
+        final int chunkStart = currentStart;
+        // Not hedged: the latency of a chunk depends on its size rather than on the backend, so a duplicate request of a large chunk
+        // would mostly double the downloaded bytes.
+        byte[] chunk = CloudRequestExecutor.getInstance().execute(MEDIA_DOWNLOAD_ENDPOINT, true, new CloudRequestExecutor.CloudCall<byte[]>() {
+          @Override
+          public byte[] call() throws IOException {
+            //Retrieve the Get object in each iteration to avoid exceptions while updating request headers with a different range.
+            Storage.Objects.Get getObject = CloudAuthenticator.getInstance().getStorage().objects().get(bucketName, fileMetadata.getPath());
+            getObject.getMediaHttpDownloader().setDirectDownloadEnabled(true);
+            getObject.setRequestHeaders(new HttpHeaders().setRange(String.format("bytes=%d-%d", chunkStart, chunkStart + chunkSize - 1)));
+            ByteArrayOutputStream chunkOut = new ByteArrayOutputStream();
+            getObject.executeMediaAndDownloadTo(new InterruptibleOutputStream(chunkOut));
+            return chunkOut.toByteArray();
+          }
+        });
+        out.write(chunk);
+        CloudMetrics.getInstance().recordBytesDownloaded(chunk.length);
         currentStart = currentStart + chunkSize;
       } while (out.size() == currentStart); //Repeat as long as all the requested bytes are loaded.
       bytes = out.toByteArray();
     } catch (Exception e) {
-      System.err.println("Failed to load a cloud file: " + fileMetadata.getName());
+      if (Thread.currentThread().isInterrupted()) {
+        LOG.info("Cancelled loading a cloud file: " + fileMetadata.getName());
+      } else {
+        LOG.warn("Failed to load a cloud file: " + fileMetadata.getName(), e);
+      }
     } finally {
       if (out != null) {
         try {
@@ -151,6 +193,34 @@ public class CloudResultsLoader {
     return Optional.fromNullable(bytes);
   }
 
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Interrupted while loading a cloud file");
+    }
+  }
+
+  /**
+   * Fails the download as soon as the downloading thread is interrupted, since the HTTP transport does not react to interrupts while it
+   * reads the response. Failing the download disconnects the response, which aborts the transfer.
+   */
+  private static class InterruptibleOutputStream extends FilterOutputStream {
+    private InterruptibleOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      checkInterrupted();
+      out.write(b);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      checkInterrupted();
+      out.write(b, off, len);
+    }
+  }
+
   /**
    *
    * @return true if some new data was received from the backend (except for DONE file).
@@ -159,8 +229,7 @@ public class CloudResultsLoader {
     newDataReceived = false;
     try {
       if (testMatrixId == null) { // The obsolete logic kept for handling fake buckets.
-        Storage.Objects.List objects = CloudAuthenticator.getInstance().getStorage().objects().list(bucketName);
-        List<StorageObject> storageObjects = objects.execute().getItems();
+        List<StorageObject> storageObjects = listBucketObjects();
 
         Iterable<BucketFileMetadata> files =
           Iterables.transform(storageObjects, Functions.compose(UPDATE_CONFIGURATION_PROGRESS, TO_BUCKET_FILE));
@@ -173,7 +242,7 @@ public class CloudResultsLoader {
             String encodedConfigurationInstance = file.getEncodedConfigurationInstance();
             ConfigurationResult result = getOrCreateConfigurationResult(encodedConfigurationInstance, results);
             result.setComplete(finishedConfigurations.contains(encodedConfigurationInstance));
-            result.setInfrastructureFailure(isInfrastructureFailure(getPreviousProgress(encodedConfigurationInstance)));
+            result.setInfrastructureFailure(isInfrastructureFailure(getProgress(encodedConfigurationInstance)));
           }
         }
       } else {
@@ -190,7 +259,12 @@ public class CloudResultsLoader {
   private void updateResultsFromApi(Map<String, ConfigurationResult> results) {
     TestMatrix testMatrix = null;
     try {
-       testMatrix = CloudAuthenticator.getInstance().getTest().projects().testMatrices().get(cloudProjectId, testMatrixId).execute();
+      testMatrix = CloudRequestExecutor.getInstance().executeHedged(GET_TEST_MATRIX_ENDPOINT, new CloudRequestExecutor.CloudCall<TestMatrix>() {
+        @Override
+        public TestMatrix call() throws IOException {
+          return CloudAuthenticator.getInstance().getTest().projects().testMatrices().get(cloudProjectId, testMatrixId).execute();
+        }
+      });
     } catch (Exception e) {
       if (consecutivePollFailuresCount == 2) { // Give up on the 3rd failure in a row.
         for (String configurationInstance : allConfigurationInstances) {
@@ -223,6 +297,7 @@ public class CloudResultsLoader {
     }
     if (!webLinkReported) {
       webLinkReported = true;
+      CloudMetrics.getInstance().recordPhase(CloudMetrics.Phase.VALIDATION, System.currentTimeMillis() - creationTime);
       if (!testMatrixState.equals("INVALID")) {
         processHandler.notifyTextAvailable("You can also view test results, along with other runs against this app, on the web:\n" +
                                            getWebResultsLink(testMatrix) + " \n\n\n", ProcessOutputTypes.STDOUT);
@@ -253,16 +328,17 @@ public class CloudResultsLoader {
     } else if (!testExecutionState.equals("PENDING")) {
       if (testExecutionState.equals("ERROR")) {
         String newProgress = INFRASTRUCTURE_FAILURE_PREFIX + " " + testExecution.getTestDetails().getErrorMessage();
-        List<String> previousProgress = getPreviousProgress(encodedConfigurationInstance);
-        if (previousProgress.isEmpty() || !previousProgress.get(previousProgress.size() - 1).endsWith(newProgress)) {
+        String lastProgress = getProgress(encodedConfigurationInstance).getLastMessage();
+        if (lastProgress == null || !lastProgress.endsWith(newProgress)) {
           reportNewProgress(encodedConfigurationInstance, newProgress);
         }
       } else if (testExecutionState.equals("RUNNING")) {
         List<String> progressMessages = testExecution.getTestDetails().getProgressMessages();
         if (progressMessages != null) { // Should never be null, but sometimes happens, so protect against it.
-          List<String> previousProgress = getPreviousProgress(encodedConfigurationInstance);
-          if (previousProgress.size() < progressMessages.size()) {
-            for (int i = previousProgress.size(); i < progressMessages.size(); i++) {
+          // The progress messages are cumulative, so report just the ones past the cursor.
+          ConfigurationProgress progress = getProgress(encodedConfigurationInstance);
+          if (progress.getMessageCount() < progressMessages.size()) {
+            for (int i = progress.getMessageCount(); i < progressMessages.size(); i++) {
               reportNewProgress(encodedConfigurationInstance, progressMessages.get(i));
             }
           }
@@ -273,16 +349,17 @@ public class CloudResultsLoader {
         result.setComplete(true);
         ToolResultsStep toolResultsStep = testExecution.getToolResultsStep();
         try {
-          Step step = CloudAuthenticator.getInstance().getToolresults().projects().histories().executions().steps()
-            .get(toolResultsStep.getProjectId(), toolResultsStep.getHistoryId(), toolResultsStep.getExecutionId(),
-                 toolResultsStep.getStepId()).execute();
+          Step step = CloudRequestExecutor.getInstance().execute(
+            CloudAuthenticator.getInstance().getToolresults().projects().histories().executions().steps()
+              .get(toolResultsStep.getProjectId(), toolResultsStep.getHistoryId(), toolResultsStep.getExecutionId(),
+                   toolResultsStep.getStepId()));
 
           result.setTestDuration(step.getTestExecutionStep().getTestTiming().getTestProcessDuration().getSeconds() * 1000);
         } catch (Exception e) {
           // ignore
         }
       }
-      result.setInfrastructureFailure(isInfrastructureFailure(getPreviousProgress(encodedConfigurationInstance)));
+      result.setInfrastructureFailure(isInfrastructureFailure(getProgress(encodedConfigurationInstance)));
       if (result.isNoProgressExpected()) {
         finishedConfigurationInstances.add(encodedConfigurationInstance);
       }
@@ -319,9 +396,10 @@ public class CloudResultsLoader {
 
   private void reportNewProgress(String encodedConfigurationInstance, String newProgress) {
     newDataReceived = true;
-    getPreviousProgress(encodedConfigurationInstance).add(newProgress);
+    getProgress(encodedConfigurationInstance).add(newProgress);
     testRunListener.testConfigurationProgress(
-      ConfigurationInstance.parseFromEncodedString(encodedConfigurationInstance).getResultsViewerDisplayString(), newProgress);
+      ConfigurationInstance.parseFromEncodedString(encodedConfigurationInstance).getResultsViewerDisplayString(),
+      progressLabel.isEmpty() ? newProgress : "[" + progressLabel + "] " + newProgress);
   }
 
   private ConfigurationResult getOrCreateConfigurationResult(String encodedConfigurationInstance,
@@ -335,26 +413,23 @@ public class CloudResultsLoader {
     return result;
   }
 
-  private static boolean isInfrastructureFailure(List<String> progressMessages) {
-    if (progressMessages.isEmpty()) {
-      return false;
-    }
-    return progressMessages.get(progressMessages.size() - 1).startsWith(INFRASTRUCTURE_FAILURE_PREFIX);
+  private static boolean isInfrastructureFailure(ConfigurationProgress progress) {
+    String lastProgress = progress.getLastMessage();
+    return lastProgress != null && lastProgress.startsWith(INFRASTRUCTURE_FAILURE_PREFIX);
   }
 
-  private List<String> getPreviousProgress(String encodedConfigurationInstance) {
-    List<String> progressMessages = configurationProgress.get(encodedConfigurationInstance);
-    if (progressMessages == null) {
-      progressMessages = new LinkedList<String>();
-      configurationProgress.put(encodedConfigurationInstance, progressMessages);
+  private ConfigurationProgress getProgress(String encodedConfigurationInstance) {
+    ConfigurationProgress progress = configurationProgress.get(encodedConfigurationInstance);
+    if (progress == null) {
+      progress = new ConfigurationProgress();
+      configurationProgress.put(encodedConfigurationInstance, progress);
     }
-    return progressMessages;
+    return progress;
   }
 
   private void loadResultFiles(Map<String, ConfigurationResult> results) {
     try {
-      Storage.Objects.List objects = CloudAuthenticator.getInstance().getStorage().objects().list(bucketName);
-      List<StorageObject> storageObjects = objects.execute().getItems();
+      List<StorageObject> storageObjects = listBucketObjects();
 
       Iterable<BucketFileMetadata> files = Iterables.transform(storageObjects, TO_BUCKET_FILE);
 
@@ -372,7 +447,7 @@ public class CloudResultsLoader {
         }
       }
     } catch (Exception e) {
-      System.out.println(e.getMessage());
+      LOG.warn("Failed to load the result files from bucket " + bucketName, e);
     }
   }
 
@@ -382,8 +457,7 @@ public class CloudResultsLoader {
     }
     List<StorageObject> storageObjects = null;
     try {
-      Storage.Objects.List objects = CloudAuthenticator.getInstance().getStorage().objects().list(bucketName);
-      storageObjects = objects.execute().getItems();
+      storageObjects = listBucketObjects();
     }
     catch (IOException e) {
       throw new RuntimeException("Failed to retrieve bucket objects: ", e);
@@ -395,15 +469,26 @@ public class CloudResultsLoader {
 
     Iterable<BucketFileMetadata> files = Iterables.transform(storageObjects, TO_BUCKET_FILE);
     //ArrayList<ScreenshotDownloadThread> downloadThreads = new ArrayList<ScreenshotDownloadThread>();
+    // Add the new screenshots of each configuration at once, such that its listeners get a single event per poll.
+    Map<ConfigurationResult, Map<String, BucketFileMetadata>> newScreenshots =
+      new HashMap<ConfigurationResult, Map<String, BucketFileMetadata>>();
     for (BucketFileMetadata file : files) {
       if (file.getType() == SCREENSHOT && !isIgnoredScreenshot(file)) {
         ConfigurationResult result = results.get(file.getEncodedConfigurationInstance());
         if (result != null && result.getScreenshotMetadata().get(file.getName()) == null) {
-          result.addScreenshotMetadata(file.getName(), file);
+          Map<String, BucketFileMetadata> resultScreenshots = newScreenshots.get(result);
+          if (resultScreenshots == null) {
+            resultScreenshots = new LinkedHashMap<String, BucketFileMetadata>();
+            newScreenshots.put(result, resultScreenshots);
+          }
+          resultScreenshots.put(file.getName(), file);
           newDataReceived = true;
         }
       }
     }
+    for (Map.Entry<ConfigurationResult, Map<String, BucketFileMetadata>> resultScreenshots : newScreenshots.entrySet()) {
+      resultScreenshots.getKey().addScreenshotMetadata(resultScreenshots.getValue());
+    }
 
     // TODO: Replace with a pool of worker threads.
     //final int capParallelThreads = 10;
@@ -435,6 +520,19 @@ public class CloudResultsLoader {
     //}
   }
 
+  private List<StorageObject> listBucketObjects() throws IOException {
+    return CloudRequestExecutor.getInstance().executeHedged(LIST_OBJECTS_ENDPOINT, new CloudRequestExecutor.CloudCall<List<StorageObject>>() {
+      @Override
+      public List<StorageObject> call() throws IOException {
+        Storage.Objects.List objects = CloudAuthenticator.getInstance().getStorage().objects().list(bucketName);
+        if (!pathPrefix.isEmpty()) {
+          objects.setPrefix(pathPrefix);
+        }
+        return objects.execute().getItems();
+      }
+    });
+  }
+
   private boolean isIgnoredScreenshot(BucketFileMetadata file) {
     return file.getPath().contains("/flipbook/") // Ignore video screenshots (they are stored in flipbook subfolder).
            || file.getName().startsWith("TestRunner-prepareVirtualDevice-beforeunlock-") // Ignore screenshot that we take before unlocking.
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Indexes the configuration and the results adapter of each firebase test run by its test run id. A run is forgotten as soon as
+ * its console is disposed, and only the most recently finished runs are kept, such that the results of old runs do not pile up
+ * in a long IDE session.
+ */
+public class CloudRunRegistry {
+
+  // How many finished runs keep their results available for screenshots and presentation.
+  private static final int MAX_FINISHED_RUNS = 10;
+
+  private static volatile CloudRunRegistry instance;
+
+  // Test run id -> the run, written from the launch and polling threads and read from the EDT.
+  private final ConcurrentMap<String, Run> myRuns = new ConcurrentHashMap<String, Run>();
+  // The ids of the finished runs, oldest first, guarded by itself.
+  private final Deque<String> myFinishedRunIds = new ArrayDeque<String>();
+
+
+  @NotNull
+  public static CloudRunRegistry getInstance() {
+    CloudRunRegistry result = instance;
+    if (result == null) {
+      synchronized (CloudRunRegistry.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudRunRegistry();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Registers a new test run, which is removed once the given console is disposed (or, after it finishes, once enough newer runs
+   * finish).
+   */
+  public void register(@NotNull final String testRunId, @NotNull CloudConfigurationImpl cloudConfiguration,
+                       @NotNull CloudResultsAdapter cloudResultsAdapter, @Nullable Disposable console) {
+    if (myRuns.putIfAbsent(testRunId, new Run(cloudConfiguration, cloudResultsAdapter)) != null) {
+      throw new IllegalStateException("Cannot register more than one firebase test run for test run id: " + testRunId);
+    }
+    if (console != null) {
+      if (Disposer.isDisposed(console)) {
+        // The console was closed while the run was being launched, so nobody could ever look the run up.
+        remove(testRunId);
+        return;
+      }
+      Disposer.register(console, new Disposable() {
+        @Override
+        public void dispose() {
+          remove(testRunId);
+        }
+      });
+    }
+  }
+
+  /**
+   * Records that the given run stopped polling for results, evicting the oldest finished runs beyond {@link #MAX_FINISHED_RUNS}.
+   */
+  public void markFinished(@NotNull String testRunId) {
+    if (!myRuns.containsKey(testRunId)) {
+      return; // Already removed, e.g., its console was disposed.
+    }
+    synchronized (myFinishedRunIds) {
+      myFinishedRunIds.remove(testRunId);
+      myFinishedRunIds.addLast(testRunId);
+      while (myFinishedRunIds.size() > MAX_FINISHED_RUNS) {
+        myRuns.remove(myFinishedRunIds.removeFirst());
+      }
+    }
+  }
+
+  public void remove(@NotNull String testRunId) {
+    myRuns.remove(testRunId);
+    synchronized (myFinishedRunIds) {
+      myFinishedRunIds.remove(testRunId);
+    }
+  }
+
+  @Nullable
+  public CloudConfigurationImpl getConfiguration(@NotNull String testRunId) {
+    Run run = myRuns.get(testRunId);
+    return run == null ? null : run.cloudConfiguration;
+  }
+
+  @Nullable
+  public CloudResultsAdapter getResultsAdapter(@NotNull String testRunId) {
+    Run run = myRuns.get(testRunId);
+    return run == null ? null : run.cloudResultsAdapter;
+  }
+
+  private static class Run {
+    private final CloudConfigurationImpl cloudConfiguration;
+    private final CloudResultsAdapter cloudResultsAdapter;
+
+    private Run(CloudConfigurationImpl cloudConfiguration, CloudResultsAdapter cloudResultsAdapter) {
+      this.cloudConfiguration = cloudConfiguration;
+      this.cloudResultsAdapter = cloudResultsAdapter;
+    }
+  }
+}
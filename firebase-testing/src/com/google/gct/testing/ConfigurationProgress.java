@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The progress messages of a configuration instance that were reported so far: a cursor (the number of messages) and the last message,
+ * such that it takes constant memory however many messages a long test execution reports. The messages themselves are displayed from
+ * the output of the configuration's node in the results tree. It is updated by the polling thread and may be read from other threads.
+ */
+class ConfigurationProgress {
+
+  private int messageCount = 0;
+  private String lastMessage;
+
+
+  synchronized void add(@NotNull String message) {
+    lastMessage = message;
+    messageCount++;
+  }
+
+  /**
+   * Returns how many messages were added so far, i.e., the index of the next message in the cumulative progress of the execution.
+   */
+  synchronized int getMessageCount() {
+    return messageCount;
+  }
+
+  @Nullable
+  synchronized String getLastMessage() {
+    return lastMessage;
+  }
+}
@@ -15,25 +15,22 @@
  */
 package com.google.gct.testing;
 
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Ordering;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConfigurationResult {
 
+  private static final Logger LOG = Logger.getInstance(ConfigurationResult.class);
+
   public static final String SCREENSHOT_FILENAME_DELIMITER = "-";
 
   private final ConfigurationInstance configurationInstance;
@@ -42,9 +39,9 @@ public class ConfigurationResult {
 
   private Optional<String> result = Optional.absent();
 
-  private final Map<String, BucketFileMetadata> fileNameToScreenshotMetadata = new HashMap<String, BucketFileMetadata>();
+  private final Map<String, BucketFileMetadata> fileNameToScreenshotMetadata = new ConcurrentHashMap<String, BucketFileMetadata>();
 
-  private final Map<ScreenshotKey, String> screenshotKeyToFileName = new HashMap<ScreenshotKey, String>();
+  private final ScreenshotIndex screenshotIndex = new ScreenshotIndex();
 
   private long testDuration = -1; // (millis) A number < 0 implies UNKNOWN duration.
 
@@ -55,6 +52,10 @@ public class ConfigurationResult {
 
   private final List<ConfigurationResultListener> listeners = new LinkedList<ConfigurationResultListener>();
 
+  private final Object notificationLock = new Object();
+  // The screenshots added since the listeners were last notified, or null if no notification is pending. Guarded by notificationLock.
+  private List<String> pendingAddedScreenshots = null;
+
 
   public ConfigurationResult(String encodedConfigurationString, String bucketName) {
     configurationInstance = ConfigurationInstance.parseFromEncodedString(encodedConfigurationString);
@@ -73,6 +74,10 @@ public class ConfigurationResult {
     this.result = Optional.of(result);
   }
 
+  public String getBucketName() {
+    return bucketName;
+  }
+
   public ConfigurationInstance getConfigurationInstance() {
     return configurationInstance;
   }
@@ -113,67 +118,60 @@ public class ConfigurationResult {
     return isComplete() || isInfrastructureFailure() || isTriggeringError();
   }
 
-  public void addScreenshotMetadata(String fileName, BucketFileMetadata fileMetadata) {
-    fileNameToScreenshotMetadata.put(fileName, fileMetadata);
-    screenshotKeyToFileName.put(getScreenshotKey(fileName), fileName);
+  /**
+   * Adds the given screenshots (file name -> metadata), skipping those that were already added, and notifies the listeners about them
+   * with a single event.
+   */
+  public void addScreenshotMetadata(Map<String, BucketFileMetadata> screenshots) {
+    List<String> addedScreenshots = new ArrayList<String>();
+    for (Map.Entry<String, BucketFileMetadata> screenshot : screenshots.entrySet()) {
+      if (fileNameToScreenshotMetadata.get(screenshot.getKey()) == null) {
+        fileNameToScreenshotMetadata.put(screenshot.getKey(), screenshot.getValue());
+        screenshotIndex.add(screenshot.getKey(), screenshot.getValue());
+        addedScreenshots.add(screenshot.getKey());
+      }
+    }
+    if (addedScreenshots.isEmpty()) {
+      return;
+    }
+    synchronized (notificationLock) {
+      if (pendingAddedScreenshots != null) {
+        // The listeners are about to be notified, so just add these screenshots to that event.
+        pendingAddedScreenshots.addAll(addedScreenshots);
+        return;
+      }
+      pendingAddedScreenshots = addedScreenshots;
+    }
     SwingUtilities.invokeLater(new Runnable() {
       @Override
       public void run() {
+        List<String> addedScreenshots;
+        synchronized (notificationLock) {
+          addedScreenshots = Collections.unmodifiableList(pendingAddedScreenshots);
+          pendingAddedScreenshots = null;
+        }
         for (ConfigurationResultListener listener : listeners) {
-          listener.screenshotsUpdated();
+          listener.screenshotsUpdated(addedScreenshots);
         }
       }
     });
   }
 
-  private static ScreenshotKey getScreenshotKey(String fileName) {
-    String[] fileNameParts = getFileNameParts(fileName);
-    String className = fileNameParts[0];
-    String methodName = fileNameParts[1];
-    String step = fileNameParts[3].substring(0, fileNameParts[3].indexOf("."));
-    return new ScreenshotKey(className, methodName, step);
-  }
-
-  private static String[] getFileNameParts(String fileName) {
-    String[] originalNameParts;
-    try {
-      originalNameParts = URLDecoder.decode(fileName, "UTF-8").split(SCREENSHOT_FILENAME_DELIMITER);
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException("Unsupported encoding!", e);
-    }
-    if (originalNameParts.length < 4) {
-      System.out.println("Screenshot file name is not formatted properly: " + fileName);
-      // To tolerate such scenarios, use some dummy file name parts.
-      String[] nameParts = new String[4];
-      nameParts[0] = "dummyTestClass";
-      nameParts[1] = "dummyTestMethod";
-      nameParts[2] = "dummyScreenshotName";
-      nameParts[3] = "1.jpg"; //step
-      return nameParts;
-
-    }
-    // Since a screenshot name may contain screenshot filename delimiter, concatenate the corresponding parts.
-    String[] nameParts = new String[4];
-    nameParts[0] = originalNameParts[0];
-    nameParts[1] = originalNameParts[1];
-    nameParts[2] = originalNameParts[2];
-    for (int i = 3; i < originalNameParts.length - 1; i++) {
-      nameParts[2] += "-" + originalNameParts[i];
-    }
-    nameParts[3] = originalNameParts[originalNameParts.length - 1];
-    return nameParts;
-  }
-
   public Map<String, BucketFileMetadata> getScreenshotMetadata() {
     return fileNameToScreenshotMetadata;
   }
 
-  public BufferedImage getScreenshotForTestAndStep(TestName testName, int step) {
-    String fileName = screenshotKeyToFileName.get(new ScreenshotKey(testName, step));
+  /**
+   * Returns the metadata of the screenshot of the given test and step, or {@code null} if there is no such screenshot (yet).
+   */
+  @Nullable
+  public BucketFileMetadata getScreenshotMetadataForTestAndStep(TestName testName, int step) {
+    return screenshotIndex.getMetadata(testName, step);
+  }
 
+  public BufferedImage getScreenshotForTestAndStep(TestName testName, int step) {
     BufferedImage image = null;
-    BucketFileMetadata fileMetadata = fileNameToScreenshotMetadata.get(fileName);
+    BucketFileMetadata fileMetadata = getScreenshotMetadataForTestAndStep(testName, step);
     if (fileMetadata == null) {
       return null;
     }
@@ -183,7 +181,7 @@ public class ConfigurationResult {
         image = ImageIO.read(new ByteArrayInputStream(optionalFileBytes.get()));
       }
       catch (IOException e) {
-        System.out.println("Failed to create an image for screenshot: " + e.getMessage());
+        LOG.warn("Failed to create an image for screenshot " + fileMetadata.getName(), e);
         return null;
       }
       image.flush();
@@ -192,29 +190,12 @@ public class ConfigurationResult {
   }
 
   public String getScreenshotNameForTestAndStep(TestName testName, int step) {
-    String fileName = screenshotKeyToFileName.get(new ScreenshotKey(testName, step));
-    return fileName == null ? "" : getScreenshotName(fileName);
+    String name = screenshotIndex.getName(testName, step);
+    return name == null ? "" : name;
   }
 
-  private String getScreenshotName(String fileName) {
-    String[] fileNameParts = getFileNameParts(fileName);
-    return fileNameParts[2];
-  }
-
-  public int maxScreenshotStep(final TestName testName) {
-    if (fileNameToScreenshotMetadata.isEmpty()) {
-      return 0;
-    }
-    return Ordering.natural().max(Iterables.transform(fileNameToScreenshotMetadata.keySet(), new Function<String, Integer>() {
-      @Override
-      public Integer apply(String fileName) {
-        String[] fileNameParts = getFileNameParts(fileName);
-        if (testName.getClassName().equals(fileNameParts[0]) && testName.getMethodName().equals(fileNameParts[1])) {
-          return Integer.parseInt(fileNameParts[3].substring(0, fileNameParts[3].indexOf(".")));
-        }
-        return 0;
-      }
-    }));
+  public int maxScreenshotStep(TestName testName) {
+    return screenshotIndex.getMaxStep(testName);
   }
 
   public void addConfigurationResultListener(ConfigurationResultListener listener) {
@@ -233,60 +214,4 @@ public class ConfigurationResult {
            ", isComplete=" + isComplete +
            '}';
   }
-
-  private static class ScreenshotKey {
-    private final String className;
-    private final String methodName;
-    private final int step;
-
-    private ScreenshotKey(String className, String methodName, String step) {
-      this.className = className;
-      this.methodName = methodName;
-      this.step = Integer.parseInt(step);
-    }
-
-    private ScreenshotKey(TestName testName, int step) {
-      this.className = testName.getClassName();
-      this.methodName = testName.getMethodName();
-      this.step = step;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
-
-      ScreenshotKey that = (ScreenshotKey)o;
-
-      if (step != that.step) return false;
-      if (className != null ? !className.equals(that.className) : that.className != null) return false;
-      if (methodName != null ? !methodName.equals(that.methodName) : that.methodName != null) return false;
-
-      return true;
-    }
-
-    @Override
-    public String toString() {
-      return "ScreenshotKey{" +
-             "className='" + className + '\'' +
-             ", methodName='" + methodName + '\'' +
-             ", step=" + step +
-             '}';
-    }
-
-    @Override
-    public int hashCode() {
-      int result = className != null ? className.hashCode() : 0;
-      result = 31 * result + (methodName != null ? methodName.hashCode() : 0);
-      result = 31 * result + step;
-      return result;
-    }
-  }
-
-  //TODO: Remove this and add the corresponding test.
-  public static void main(String[] args) {
-    System.out.println(getScreenshotKey("com.google.android.bootcamp.memegen.test.MemegenUITest%23testCreateMeme%23creatememe%231.bmp"));
-    System.out.println(getScreenshotKey("com.google.android.bootcamp.memegen.test.MemegenUITest%23testCreateMeme%23create+meme%231.bmp"));
-    System.out.println(getScreenshotKey("com.google.android.bootcamp.memegen.test.MemegenUITest#testCreateMeme#create meme#1.bmp"));
-  }
 }
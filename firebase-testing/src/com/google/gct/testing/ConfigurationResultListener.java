@@ -15,8 +15,16 @@
  */
 package com.google.gct.testing;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
 public interface ConfigurationResultListener {
 
-  public void screenshotsUpdated();
+  /**
+   * Called on the EDT once per batch of discovered screenshots (possibly coalescing several batches), with the file names of the
+   * screenshots added since the previous call.
+   */
+  public void screenshotsUpdated(@NotNull Collection<String> addedScreenshots);
 
 }
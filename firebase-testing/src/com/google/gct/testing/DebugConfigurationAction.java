@@ -21,10 +21,17 @@ import com.android.tools.analytics.UsageTracker;
 import com.android.tools.idea.run.TargetSelectionMode;
 import com.android.tools.idea.run.editor.DeployTargetProvider;
 import com.android.tools.idea.testartifacts.instrumented.AndroidTestRunConfiguration;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gct.testing.android.CloudDebuggingTargetProvider;
+import com.google.gct.testing.config.GoogleCloudTestingDeveloperConfigurable.GoogleCloudTestingDeveloperState;
+import com.google.gct.testing.config.GoogleCloudTestingDeveloperSettings;
 import com.google.gct.testing.results.GoogleCloudTestProxy.GoogleCloudRootTestProxy;
 import com.google.gct.testing.results.GoogleCloudTestTreeView;
 import com.google.gct.testing.results.GoogleCloudTestingResultsForm;
+import com.google.gct.testing.vnc.CloudDeviceKeepAliveScheduler;
 import com.google.wireless.android.sdk.stats.AndroidStudioEvent;
 import com.google.wireless.android.sdk.stats.AndroidStudioEvent.EventCategory;
 import com.google.wireless.android.sdk.stats.AndroidStudioEvent.EventKind;
@@ -43,6 +50,7 @@ import com.intellij.openapi.actionSystem.PlatformDataKeys;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.MessageType;
+import com.intellij.util.concurrency.PooledThreadExecutor;
 import org.jetbrains.android.sdk.AndroidSdkUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -154,61 +162,79 @@ public class DebugConfigurationAction extends AnAction {
       if (!(runProfile instanceof AndroidTestRunConfiguration)) {
         return;
       }
-      IDevice device = getMatchingDevice();
-      if (device instanceof GhostCloudDevice) {
-        // Wait a bit, giving the device sometime to become ready, and then try again.
-        try {
-          Thread.sleep(3000); // 3 seconds
-        }
-        catch (InterruptedException e) {
-          //ignore
-        }
-        run();
+      String encodedConfigurationInstance = configurationInstance.getEncodedString();
+      ListenableFuture<String> serialNumber;
+      String connectedSerialNumber = CloudConfigurationHelper.getSerialNumberForConfigurationInstance(encodedConfigurationInstance);
+      if (connectedSerialNumber != null) {
+        serialNumber = Futures.immediateFuture(connectedSerialNumber);
       } else {
-        if (device == null) {
-          // Did not find a device, so start a new one.
-          CloudConfigurationHelper.launchCloudDevice(configurationInstance.getEncodedString());
-          device = getMatchingDevice();
-          // Should not happen unless the user closes the corresponding VNC window thus killing the device before it is booted.
-          if (device == null) {
-            SwingUtilities.invokeLater(new Runnable() {
-              @Override
-              public void run() {
-                CloudTestingUtils.showBalloonMessage(project, "Could not find a launched firebase device!", MessageType.WARNING, 10);
-              }
-            });
-            return;
+        // Wait for the device of this configuration instance if it is being launched already.
+        serialNumber = CloudConfigurationHelper.getCloudDeviceLaunch(encodedConfigurationInstance);
+        if (serialNumber == null) {
+          // Did not find a device, so start a new one (or take over a warm one).
+          GoogleCloudTestingDeveloperState state = GoogleCloudTestingDeveloperSettings.getInstance(project).getState();
+          CloudDevicePool.getInstance().configure(state);
+          CloudDeviceKeepAliveScheduler.getInstance().configure(state);
+          serialNumber = CloudConfigurationHelper.launchCloudDevice(encodedConfigurationInstance);
+        }
+      }
+      ListenableFuture<IDevice> onlineDevice = Futures.transform(serialNumber, new AsyncFunction<String, IDevice>() {
+        @Override
+        public ListenableFuture<IDevice> apply(String serialNumber) {
+          // Should not happen unless the user closes the corresponding VNC window thus killing the device before it is booted
+          // (or the launch failed, which reports its own errors).
+          if (serialNumber == null) {
+            return Futures.immediateFailedFuture(new IllegalStateException("The firebase device was not launched"));
           }
+          return CloudDeviceTracker.getInstance().whenOnline(serialNumber);
+        }
+      });
+      Futures.addCallback(onlineDevice, new FutureCallback<IDevice>() {
+        @Override
+        public void onSuccess(IDevice device) {
+          startDebugging(device);
         }
 
-        final String deviceSerialNumber = device.getSerialNumber();
-        final AndroidTestRunConfiguration runConfiguration = prepareTestRunConfiguration(deviceSerialNumber);
-        if (runConfiguration == null) {
+        @Override
+        public void onFailure(Throwable t) {
           SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-              CloudTestingUtils.showBalloonMessage(project, "Could not prepare a run configuration for firebase debugging",
-                                                   MessageType.WARNING, 10);
+              CloudTestingUtils.showBalloonMessage(project, "Could not find a launched firebase device!", MessageType.WARNING, 10);
             }
           });
-          return;
         }
+      }, PooledThreadExecutor.INSTANCE);
+    }
 
+    private void startDebugging(@NotNull IDevice device) {
+      final String deviceSerialNumber = device.getSerialNumber();
+      final AndroidTestRunConfiguration runConfiguration = prepareTestRunConfiguration(deviceSerialNumber);
+      if (runConfiguration == null) {
         SwingUtilities.invokeLater(new Runnable() {
           @Override
           public void run() {
-            try {
-              runner.execute(new ExecutionEnvironmentBuilder(environment)
-                               .executor(DefaultDebugExecutor.getDebugExecutorInstance())
-                               .runProfile(runConfiguration)
-                               .build());
-            } catch (ExecutionException e) {
-              CloudTestingUtils.showBalloonMessage(project, "Failed to start debugging on a firebase device: " +
-                                                            deviceSerialNumber, MessageType.WARNING, 10);
-            }
+            CloudTestingUtils.showBalloonMessage(project, "Could not prepare a run configuration for firebase debugging",
+                                                 MessageType.WARNING, 10);
           }
         });
+        return;
       }
+
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            runner.execute(new ExecutionEnvironmentBuilder(environment)
+                             .executor(DefaultDebugExecutor.getDebugExecutorInstance())
+                             .runProfile(runConfiguration)
+                             .build());
+          } catch (ExecutionException e) {
+            CloudTestingUtils.showBalloonMessage(project, "Failed to start debugging on a firebase device: " +
+                                                          deviceSerialNumber, MessageType.WARNING, 10);
+          }
+        }
+      });
     }
 
     private @Nullable AndroidTestRunConfiguration prepareTestRunConfiguration(String deviceSerialNumber) {
@@ -232,23 +258,6 @@ public class DebugConfigurationAction extends AnAction {
       }
       return null;
     }
-
-    private IDevice getMatchingDevice() {
-      if (myAndroidDebugBridge != null) { // Should not be null at this point, but check just in case.
-        for (IDevice device : myAndroidDebugBridge.getDevices()) {
-          String deviceConfigurationInstance = CloudConfigurationHelper.getConfigurationInstanceForSerialNumber(device.getSerialNumber());
-          if (configurationInstance.getEncodedString().equals(deviceConfigurationInstance)) {
-            return device;
-          }
-        }
-      }
-      for (IDevice device : CloudConfigurationHelper.getLaunchingCloudDevices()) {
-        if (device.getSerialNumber().equals(configurationInstance.getEncodedString().toLowerCase())) {
-          return device;
-        }
-      }
-      return null;
-    }
   }
 
   private boolean isRootNode(AbstractTestProxy node) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.collect.Sets;
+import com.google.gct.testing.results.GoogleCloudTestProxy.GoogleCloudRootTestProxy;
+import com.google.gct.testing.results.GoogleCloudTestTreeView;
+import com.google.gct.testing.results.GoogleCloudTestingResultsForm;
+import com.intellij.execution.testframework.AbstractTestProxy;
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlatformDataKeys;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.MessageType;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Exports the screenshots of the selected part of the test results tree (the whole run, a configuration, a test class or a test) into a
+ * ZIP file.
+ */
+public class ExportScreenshotsAction extends AnAction {
+
+  private final static String TEXT = "Export Screenshots";
+  private final static String DESCRIPTION = "Export the screenshots of the selected configurations and tests as a ZIP file";
+  private final static Icon ICON = AllIcons.Actions.Export;
+
+
+  public ExportScreenshotsAction() {
+    super(TEXT, DESCRIPTION, ICON);
+    getTemplatePresentation().setEnabled(false);
+  }
+
+  @Override
+  public void actionPerformed(AnActionEvent e) {
+    final Project project = e.getData(PlatformDataKeys.PROJECT);
+    GoogleCloudTestTreeView sender = e.getData(GoogleCloudTestTreeView.CLOUD_TEST_RUNNER_VIEW);
+    if (sender == null) {
+      return;
+    }
+
+    GoogleCloudTestingResultsForm resultsForm = (GoogleCloudTestingResultsForm)sender.getResultsViewer();
+    GoogleCloudRootTestProxy rootNode = resultsForm.getTestsRootNode();
+    CloudResultsAdapter cloudResultsAdapter = CloudConfigurationHelper.getCloudResultsAdapter(rootNode.getTestRunId());
+    if (cloudResultsAdapter == null) {
+      // The results of old runs are dropped to bound the memory usage.
+      CloudTestingUtils.showBalloonMessage(project, "The results of this test run are no longer available", MessageType.WARNING, 3);
+      return;
+    }
+
+    Collection<ConfigurationResult> configurationResults = cloudResultsAdapter.getResults().values();
+    Set<TestName> tests = null;
+    AbstractTestProxy selectedNode = resultsForm.getTreeView().getSelectedTest();
+    if (selectedNode != null && !(selectedNode instanceof GoogleCloudRootTestProxy)) {
+      AbstractTestProxy configurationNode = selectedNode;
+      while (configurationNode.getParent() != null && !(configurationNode.getParent() instanceof GoogleCloudRootTestProxy)) {
+        configurationNode = configurationNode.getParent();
+      }
+      ConfigurationInstance configurationInstance =
+        ConfigurationInstance.parseFromResultsViewerDisplayString(configurationNode.getName());
+      ConfigurationResult configurationResult = cloudResultsAdapter.getResults().get(configurationInstance.getEncodedString());
+      configurationResults =
+        configurationResult == null ? Collections.<ConfigurationResult>emptyList() : Collections.singletonList(configurationResult);
+      if (selectedNode != configurationNode) {
+        tests = getTests(selectedNode);
+      }
+    }
+    if (!hasScreenshots(configurationResults)) {
+      CloudTestingUtils.showBalloonMessage(project, "There are no screenshots to export", MessageType.WARNING, 3);
+      return;
+    }
+
+    FileSaverDescriptor descriptor = new FileSaverDescriptor(TEXT, DESCRIPTION, "zip");
+    VirtualFileWrapper fileWrapper = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
+      .save(null, "screenshots.zip");
+    if (fileWrapper == null) {
+      return;
+    }
+
+    final Collection<ConfigurationResult> exportedResults = new ArrayList<ConfigurationResult>(configurationResults);
+    final Set<TestName> exportedTests = tests;
+    final File zipFile = fileWrapper.getFile();
+    ProgressManager.getInstance().run(new Task.Backgroundable(project, "Exporting Screenshots", true) {
+      private ScreenshotExporter.ExportSummary summary;
+      private IOException error;
+
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        try {
+          summary = ScreenshotExporter.export(exportedResults, exportedTests, zipFile, indicator);
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+
+      @Override
+      public void onSuccess() {
+        if (error != null) {
+          CloudTestingUtils.showErrorMessage(project, "Error exporting screenshots", "Failed to export the screenshots!\n" +
+                                                                                     error.getMessage());
+        } else if (summary != null) {
+          MessageType messageType = summary.getSkippedCount() == 0 ? MessageType.INFO : MessageType.WARNING;
+          CloudTestingUtils.showBalloonMessage(project, summary.toString(), messageType, 5);
+        }
+      }
+    });
+  }
+
+  private static Set<TestName> getTests(AbstractTestProxy node) {
+    Set<TestName> tests = Sets.newHashSet();
+    for (AbstractTestProxy test : node.getAllTests()) {
+      if (test.isLeaf()) {
+        tests.add(ShowScreenshotsAction.TO_TEST_NAMES.apply(test));
+      }
+    }
+    return tests;
+  }
+
+  private static boolean hasScreenshots(Collection<ConfigurationResult> configurationResults) {
+    for (ConfigurationResult configurationResult : configurationResults) {
+      if (!configurationResult.getScreenshotMetadata().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void update(AnActionEvent actionEvent) {
+    GoogleCloudTestTreeView sender = actionEvent.getData(GoogleCloudTestTreeView.CLOUD_TEST_RUNNER_VIEW);
+    actionEvent.getPresentation().setEnabled(sender != null);
+  }
+}
@@ -21,6 +21,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 import com.google.gct.testing.ui.AddCompareScreenshotPanel;
 import com.google.gct.testing.ui.AddScreenshotListener;
+import com.google.gct.testing.ui.ImageDiff;
 import com.google.gct.testing.ui.WipePanel;
 import com.google.gct.testing.ui.WipePanelCallback;
 import com.google.wireless.android.sdk.stats.AndroidStudioEvent;
@@ -33,8 +34,16 @@ import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.Presentation;
 import com.intellij.openapi.actionSystem.impl.ActionButton;
 import com.intellij.openapi.actionSystem.impl.PresentationFactory;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.DialogBuilder;
+import com.intellij.openapi.ui.MessageType;
+import com.intellij.openapi.ui.popup.JBPopupFactory;
+import com.intellij.openapi.ui.popup.PopupStep;
+import com.intellij.openapi.ui.popup.util.BaseListPopupStep;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.ThrowableComputable;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
@@ -47,6 +56,10 @@ import java.util.List;
 
 public class ScreenshotComparisonDialog {
 
+  // The diff modes offered by the diff mode combo box, in the order of their names.
+  private static final String[] DIFF_MODE_NAMES = {"Side by Side", "Pixel Differences", "Structural Differences"};
+  private static final ImageDiff.Mode[] DIFF_MODES = {null, ImageDiff.Mode.PIXEL, ImageDiff.Mode.PERCEPTUAL};
+
   private final Set<ScreenshotComparisonHeaderPanelListener> headerListeners = new HashSet<ScreenshotComparisonHeaderPanelListener>();
 
   private final Project myProject;
@@ -60,7 +73,10 @@ public class ScreenshotComparisonDialog {
   private int step = 1;
   private int maxStep = 1;
   private final List<ScreenshotComparisonPanel> screenshotPanels = new LinkedList<ScreenshotComparisonPanel>();
+  // The last shown step of the tests that were shown before, other tests start at step 1.
   private final Map<TestName, Integer> testToStep = new HashMap<TestName, Integer>();
+  private final ScreenshotPrefetcher prefetcher =
+    new ScreenshotPrefetcher(ScreenshotComparisonPanel.MAX_IMAGE_WIDTH, ScreenshotComparisonPanel.MAX_IMAGE_HEIGHT);
 
   private JPanel myPanel;
   private JPanel myHeaderPanel;
@@ -75,6 +91,13 @@ public class ScreenshotComparisonDialog {
   private AddCompareScreenshotPanel addScreenshotPanel;
   private ActionButton myDecrementStepButton;
   private ActionButton myIncrementStepButton;
+  private JComboBox myDiffModeComboBox;
+  private JButton myMostChangedButton;
+  private JButton myGroupSimilarButton;
+  // How to highlight the differences from the leftmost (reference) panel, or null to show the screenshots side by side.
+  @Nullable private ImageDiff.Mode diffMode = null;
+  // Whether the user grouped the configurations by their screenshots, so the screenshots of each shown step are hashed in the background.
+  private boolean isGroupingSimilar = false;
   private volatile int loadedScreenshotsCount = 0;
 
 
@@ -94,9 +117,6 @@ public class ScreenshotComparisonDialog {
     this.allTests = allTests;
     this.currentTest = currentTest;
     this.results = results;
-    for (TestName test : allTests) {
-      testToStep.put(test, 1);
-    }
   }
 
   public void showDialog() {
@@ -128,7 +148,8 @@ public class ScreenshotComparisonDialog {
         if (!selectedTest.equals(currentTest)) {
           testToStep.put(currentTest, step);
           currentTest = selectedTest;
-          step = testToStep.get(currentTest);
+          Integer testStep = testToStep.get(currentTest);
+          step = testStep == null ? 1 : testStep;
           notifyHeaderListenersAboutStep(false);
         }
         for (ScreenshotComparisonHeaderPanelListener headerListener : headerListeners) {
@@ -156,6 +177,13 @@ public class ScreenshotComparisonDialog {
     updateScreenshotName();
     builder.show();
 
+    // The (modal) dialog is closed, so stop loading screenshots for its panels.
+    for (ScreenshotComparisonPanel panel : screenshotPanels) {
+      panel.stopListeningToResults();
+    }
+    prefetcher.stop();
+    ScreenshotHashes.getInstance().stopIndexing(this);
+
     UsageTracker.getInstance().log(AndroidStudioEvent.newBuilder()
                                      .setCategory(EventCategory.CLOUD_TESTING)
                                      .setKind(EventKind.CLOUD_TESTING_COMPARE_SCREENSHOTS_OPENED)
@@ -185,10 +213,43 @@ public class ScreenshotComparisonDialog {
   private void populateHeaderPanel() {
     //myLeftHeaderPanel.add(new JLabel("Test:"));
     myTestComboBox = new JComboBox();
-    myTestComboBox.setModel(new DefaultComboBoxModel(new Vector(allTests)));
+    myTestComboBox.setModel(new TestListModel(allTests));
     myTestComboBox.setSelectedItem(currentTest);
     myLeftHeaderPanel.add(myTestComboBox);
 
+    myDiffModeComboBox = new JComboBox(DIFF_MODE_NAMES);
+    myDiffModeComboBox.setToolTipText("Highlight the differences from the leftmost screenshot");
+    myDiffModeComboBox.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        diffMode = DIFF_MODES[myDiffModeComboBox.getSelectedIndex()];
+        myMostChangedButton.setEnabled(diffMode != null);
+        updateDiffs();
+      }
+    });
+    myLeftHeaderPanel.add(myDiffModeComboBox);
+
+    myMostChangedButton = new JButton("Most Changed...");
+    myMostChangedButton.setToolTipText("Rank all configurations by how much their screenshot differs from the leftmost one");
+    myMostChangedButton.setEnabled(false);
+    myMostChangedButton.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        showMostChangedConfigurations();
+      }
+    });
+    myLeftHeaderPanel.add(myMostChangedButton);
+
+    myGroupSimilarButton = new JButton("Group Similar...");
+    myGroupSimilarButton.setToolTipText("Group the configurations whose screenshots look the same");
+    myGroupSimilarButton.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        showSimilarConfigurationGroups();
+      }
+    });
+    myLeftHeaderPanel.add(myGroupSimilarButton);
+
     myScreenshotNameLabel = new JLabel("");
     myScreenshotNameLabel.setFont(myScreenshotNameLabel.getFont().deriveFont(Font.BOLD).deriveFont(18.0f));
     myScreenshotNamePanel.add(myScreenshotNameLabel);
@@ -251,6 +312,29 @@ public class ScreenshotComparisonDialog {
     for (ScreenshotComparisonHeaderPanelListener headerListener : headerListeners) {
       headerListener.updateStep(step, shouldUpdateImage);
     }
+    if (shouldUpdateImage) {
+      updatePrefetching();
+    }
+  }
+
+  /**
+   * Prefetches the neighbouring steps of the shown screenshots and the current step of the closest configuration with results.
+   * Should be called after the panels have requested the screenshots they show, such that those are loaded first.
+   */
+  private void updatePrefetching() {
+    List<ConfigurationResult> shownResults = new ArrayList<ConfigurationResult>();
+    for (ScreenshotComparisonPanel panel : screenshotPanels) {
+      ConfigurationResult result = panel.getSelectedConfigurationResult();
+      if (result != null) {
+        shownResults.add(result);
+      }
+    }
+    ConfigurationResult neighborResult =
+      anotherConfigurationInstance == null ? null : results.get(anotherConfigurationInstance.getEncodedString());
+    prefetcher.update(currentTest, step, shownResults, neighborResult);
+    if (isGroupingSimilar) {
+      ScreenshotHashes.getInstance().index(this, results.values(), currentTest, step);
+    }
   }
 
   private void updateScreenshotName() {
@@ -272,18 +356,23 @@ public class ScreenshotComparisonDialog {
   }
 
   public void addScreenshotComparisonPanel(ScreenshotComparisonPanel createAfterPanel) {
+    addScreenshotComparisonPanel(createAfterPanel, createAfterPanel, createAfterPanel.computeSelectedConfigurationInstance());
+  }
+
+  private void addScreenshotComparisonPanel(ScreenshotComparisonPanel createAfterPanel, @Nullable ScreenshotComparisonPanel clonedPanel,
+                                            ConfigurationInstance configurationInstance) {
     int index = 0;
     for (Component component : myAllScreenshotsPanel.getComponents()) {
       if (component == createAfterPanel.getPanel()) {
         ScreenshotComparisonPanel screenshotComparisonPanel =
-          new ScreenshotComparisonPanel(this, createAfterPanel, testTreeRoot, configuration,
-                                        createAfterPanel.computeSelectedConfigurationInstance(), (TestName)myTestComboBox.getSelectedItem(),
-                                        step, results);
+          new ScreenshotComparisonPanel(this, clonedPanel, testTreeRoot, configuration, configurationInstance,
+                                        (TestName)myTestComboBox.getSelectedItem(), step, results);
         screenshotPanels.add(index + 1, screenshotComparisonPanel);
         updateMaxStep();
         WipePanel newPanel = screenshotComparisonPanel.getPanel();
         myAllScreenshotsPanel.add(newPanel, index + 1);
         headerListeners.add(screenshotComparisonPanel);
+        screenshotComparisonPanel.updateDiff();
         fitWindow();
         newPanel.reveal(null);
         return;
@@ -324,6 +413,8 @@ public class ScreenshotComparisonDialog {
           myWindow.dispose();
         } else {
           updateMaxStep();
+          // The reference panel might have been removed.
+          updateDiffs();
           fitWindow();
         }
       }
@@ -346,7 +437,128 @@ public class ScreenshotComparisonDialog {
     updateStepLabel();
     if (step != oldStep) {
       notifyHeaderListenersAboutStep(true);
+    } else {
+      updatePrefetching();
+    }
+  }
+
+  /**
+   * Returns the configuration result of the leftmost panel, to which the others are compared, or null if no differences are highlighted.
+   */
+  @Nullable
+  ConfigurationResult getDiffReference() {
+    return diffMode == null || screenshotPanels.isEmpty() ? null : screenshotPanels.get(0).getSelectedConfigurationResult();
+  }
+
+  @Nullable
+  ImageDiff.Mode getDiffMode() {
+    return diffMode;
+  }
+
+  void updateDiffs() {
+    for (ScreenshotComparisonPanel panel : screenshotPanels) {
+      panel.updateDiff();
+    }
+  }
+
+  /**
+   * Compares the current screenshot on all configurations with the reference one and lets the user add a panel for one of them, the most
+   * changed first.
+   */
+  private void showMostChangedConfigurations() {
+    final ConfigurationResult reference = getDiffReference();
+    final ImageDiff.Mode mode = diffMode;
+    if (reference == null || mode == null) {
+      return;
+    }
+    final List<ConfigurationResult> configurationResults = new ArrayList<ConfigurationResult>(results.values());
+    final TestName test = currentTest;
+    final int rankedStep = step;
+    List<Pair<ConfigurationResult, Double>> ranking = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+      new ThrowableComputable<List<Pair<ConfigurationResult, Double>>, RuntimeException>() {
+        @Override
+        public List<Pair<ConfigurationResult, Double>> compute() {
+          return ScreenshotDiffs.getInstance().rankByChange(reference, configurationResults, test, rankedStep, mode,
+                                                            ProgressManager.getInstance().getProgressIndicator());
+        }
+      }, "Comparing Screenshots", true, myProject);
+    if (ranking == null || ranking.isEmpty()) {
+      CloudTestingUtils.showBalloonMessage(myProject, "No other configuration has this screenshot", MessageType.INFO, 3);
+      return;
     }
+    JBPopupFactory.getInstance().createListPopup(
+      new BaseListPopupStep<Pair<ConfigurationResult, Double>>("Most Changed Configurations", ranking) {
+        @NotNull
+        @Override
+        public String getTextFor(Pair<ConfigurationResult, Double> value) {
+          return String.format("%s (%.1f%% similar)", value.getFirst().getConfigurationInstance().getResultsViewerDisplayString(),
+                               value.getSecond() * 100);
+        }
+
+        @Override
+        public PopupStep onChosen(final Pair<ConfigurationResult, Double> selectedValue, boolean finalChoice) {
+          return doFinalStep(new Runnable() {
+            @Override
+            public void run() {
+              if (!screenshotPanels.isEmpty()) {
+                addScreenshotComparisonPanel(screenshotPanels.get(screenshotPanels.size() - 1), null,
+                                             selectedValue.getFirst().getConfigurationInstance());
+              }
+            }
+          });
+        }
+      }).showUnderneathOf(myMostChangedButton);
+  }
+
+  /**
+   * Groups all configurations by how their current screenshot looks and lets the user add a panel for the representative of a group,
+   * the largest groups first and the outliers last.
+   */
+  private void showSimilarConfigurationGroups() {
+    isGroupingSimilar = true;
+    final List<ConfigurationResult> configurationResults = new ArrayList<ConfigurationResult>(results.values());
+    final TestName test = currentTest;
+    final int groupedStep = step;
+    List<List<ConfigurationResult>> groups = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+      new ThrowableComputable<List<List<ConfigurationResult>>, RuntimeException>() {
+        @Override
+        public List<List<ConfigurationResult>> compute() {
+          return ScreenshotHashes.getInstance().groupSimilar(configurationResults, test, groupedStep,
+                                                             ProgressManager.getInstance().getProgressIndicator());
+        }
+      }, "Grouping Screenshots", true, myProject);
+    // Hash the screenshots of the next steps in the background, such that grouping them does not have to wait.
+    updatePrefetching();
+    if (groups == null) {
+      // Cancelled by the user.
+      return;
+    }
+    if (groups.isEmpty()) {
+      CloudTestingUtils.showBalloonMessage(myProject, "No configuration has this screenshot", MessageType.INFO, 3);
+      return;
+    }
+    JBPopupFactory.getInstance().createListPopup(
+      new BaseListPopupStep<List<ConfigurationResult>>("Similar Configurations", groups) {
+        @NotNull
+        @Override
+        public String getTextFor(List<ConfigurationResult> value) {
+          String displayString = value.get(0).getConfigurationInstance().getResultsViewerDisplayString();
+          return value.size() == 1 ? displayString + " (outlier)" : String.format("%s (+%d similar)", displayString, value.size() - 1);
+        }
+
+        @Override
+        public PopupStep onChosen(final List<ConfigurationResult> selectedValue, boolean finalChoice) {
+          return doFinalStep(new Runnable() {
+            @Override
+            public void run() {
+              if (!screenshotPanels.isEmpty()) {
+                addScreenshotComparisonPanel(screenshotPanels.get(screenshotPanels.size() - 1), null,
+                                             selectedValue.get(0).getConfigurationInstance());
+              }
+            }
+          });
+        }
+      }).showUnderneathOf(myGroupSimilarButton);
   }
 
   public void incrementLoadedScreenshotsCount() {
@@ -354,4 +566,40 @@ public class ScreenshotComparisonDialog {
       loadedScreenshotsCount++;
     }
   }
+
+  /**
+   * Shows the tests of a (possibly lazily computed) list, without copying it, such that opening the dialog does not depend on the number
+   * of tests.
+   */
+  private static class TestListModel extends AbstractListModel implements ComboBoxModel {
+    private final List<TestName> tests;
+    private Object selectedTest;
+
+    private TestListModel(List<TestName> tests) {
+      this.tests = tests;
+    }
+
+    @Override
+    public int getSize() {
+      return tests.size();
+    }
+
+    @Override
+    public Object getElementAt(int index) {
+      return tests.get(index);
+    }
+
+    @Override
+    public void setSelectedItem(Object test) {
+      if (selectedTest == null ? test != null : !selectedTest.equals(test)) {
+        selectedTest = test;
+        fireContentsChanged(this, -1, -1);
+      }
+    }
+
+    @Override
+    public Object getSelectedItem() {
+      return selectedTest;
+    }
+  }
 }
@@ -15,6 +15,7 @@
  */
 package com.google.gct.testing;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
@@ -24,13 +25,16 @@ import com.google.gct.testing.dimension.CloudTestingType;
 import com.google.gct.testing.dimension.OrientationDimension;
 import com.google.gct.testing.results.GoogleCloudTestProxy;
 import com.google.gct.testing.ui.CopyImageToClipboard;
+import com.google.gct.testing.ui.ImageDiff;
 import com.google.gct.testing.ui.Tab;
 import com.google.gct.testing.ui.TabEventListener;
 import com.google.gct.testing.ui.WipePanel;
 import com.intellij.execution.testframework.AbstractTestProxy;
 import com.intellij.openapi.fileChooser.FileSaverDescriptor;
 import com.intellij.openapi.fileChooser.ex.FileSaverDialogImpl;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.vfs.VirtualFileWrapper;
 import com.intellij.util.ui.UIUtil;
 
@@ -40,10 +44,9 @@ import javax.swing.border.MatteBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -85,8 +88,8 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
   private final List<CloudConfigurationTypeSelection> myTypeSelections = new LinkedList<CloudConfigurationTypeSelection>();
   private JLabel myImageLabel;
 
-  private static final int MAX_IMAGE_WIDTH = 533;
-  private static final int MAX_IMAGE_HEIGHT = 533;
+  static final int MAX_IMAGE_WIDTH = 533;
+  static final int MAX_IMAGE_HEIGHT = 533;
   private static final int PORTRAIT_WIDTH = 300;
   private static final int LANDSCAPE_HEIGHT = 300;
 
@@ -97,7 +100,10 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
   private static final BufferedImage LOADING_PORTRAIT;
   private static final BufferedImage LOADING_LANDSCAPE;
 
-  private UpdateImageThread updateImageThread;
+  // The request for the thumbnail that is going to be shown, if it is still loading.
+  private ScreenshotThumbnails.ThumbnailRequest thumbnailRequest;
+  // The request for the comparison of the shown screenshot with the reference one, if it is still being computed.
+  private ScreenshotDiffs.DiffRequest diffRequest;
   private final Object lock;
   private boolean isLoaded;
 
@@ -117,7 +123,11 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
     }
   }
 
+  // The full resolution image of the shown screenshot, loaded only when it is saved or copied.
   private BufferedImage currentImage;
+  // The shown screenshot and its thumbnail (without any highlighted differences), or null if a static image is shown.
+  private Screenshot shownScreenshot;
+  private BufferedImage shownThumbnail;
 
   private Icon referenceIcon = null;
 
@@ -214,6 +224,8 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
             }
             updateImage();
             parent.updateMaxStep();
+            // This might be the reference panel.
+            parent.updateDiffs();
           }
         });
 
@@ -239,12 +251,18 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
     }
 
     myImageLabel = new JLabel();
+    // The similarity to the reference screenshot is shown below the screenshot.
+    myImageLabel.setHorizontalTextPosition(SwingConstants.CENTER);
+    myImageLabel.setVerticalTextPosition(SwingConstants.BOTTOM);
     myImagePanel.add(myImageLabel, BorderLayout.CENTER);
 
     updateHeaderBar();
 
     if (clonedPanel != null && clonedPanel.isLoaded) {
       myImageLabel.setIcon(clonedPanel.myImageLabel.getIcon());
+      shownScreenshot = clonedPanel.shownScreenshot;
+      shownThumbnail = clonedPanel.shownThumbnail;
+      currentImage = clonedPanel.currentImage;
       isLoaded = true;
     } else {
       updateImage();
@@ -259,17 +277,35 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
   private void updateImage() {
     synchronized (lock) {
       isLoaded = false;
-      if (updateImageThread != null) {
-        updateImageThread.makeObsolete();
-      }
+      // The last request wins, so stop loading the screenshot that is not going to be shown anyway.
+      cancelThumbnailRequest();
       ConfigurationResult selectedConfigurationResult = getSelectedConfigurationResult();
       if (selectedConfigurationResult == null) {
         setStaticImage(StaticImageKind.NO_IMAGE);
         return;
       }
       setStaticImage(StaticImageKind.LOADING);
-      updateImageThread = new UpdateImageThread(currentTest, currentStep, selectedConfigurationResult);
-      updateImageThread.start();
+      final Screenshot screenshot = new Screenshot(currentTest, currentStep, selectedConfigurationResult);
+      thumbnailRequest = ScreenshotThumbnails.getInstance().requestThumbnail(
+        selectedConfigurationResult, currentTest, currentStep, MAX_IMAGE_WIDTH, MAX_IMAGE_HEIGHT,
+        new ScreenshotThumbnails.ThumbnailCallback() {
+          @Override
+          public void thumbnailLoaded(@Nullable BufferedImage thumbnail) {
+            synchronized (lock) {
+              thumbnailRequest = null;
+              if (thumbnail == null) {
+                setStaticImage(StaticImageKind.NO_IMAGE);
+                return;
+              }
+              parent.incrementLoadedScreenshotsCount();
+              shownScreenshot = screenshot;
+              shownThumbnail = thumbnail;
+              currentImage = null; // The full resolution image is loaded on demand.
+              isLoaded = true;
+              updateDiff();
+            }
+          }
+        });
     }
   }
 
@@ -278,11 +314,68 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
       ? (isPortrait() ? LOADING_PORTRAIT : LOADING_LANDSCAPE)
       : (isPortrait() ? NO_IMAGE_PORTRAIT : NO_IMAGE_LANSCAPE);
     Pair<Integer, Integer> imageSize = getStaticImageSize();
-    myImageLabel.setIcon(new ImageIcon(staticImage.getScaledInstance(imageSize.getFirst(), imageSize.getSecond(), Image.SCALE_SMOOTH)));
+    cancelDiffRequest();
+    myImageLabel.setIcon(
+      new ImageIcon(ScreenshotThumbnails.getInstance().getScaledImage(staticImage, imageSize.getFirst(), imageSize.getSecond())));
+    myImageLabel.setText(null);
+    shownScreenshot = null;
+    shownThumbnail = null;
+    currentImage = null;
     isLoaded = imageKind != StaticImageKind.LOADING;
     parent.fitWindow();
   }
 
+  /**
+   * Shows the thumbnail of the shown screenshot, highlighting its differences from the reference screenshot if the dialog asks for it.
+   */
+  void updateDiff() {
+    synchronized (lock) {
+      cancelDiffRequest();
+      if (shownScreenshot == null) {
+        return;
+      }
+      // The thumbnail is already scaled and compatible with the screen, so it is cheap to paint.
+      myImageLabel.setIcon(new ImageIcon(shownThumbnail));
+      myImageLabel.setText(null);
+      ConfigurationResult reference = parent.getDiffReference();
+      ImageDiff.Mode diffMode = parent.getDiffMode();
+      if (reference == shownScreenshot.configurationResult && diffMode != null) {
+        myImageLabel.setText("Reference");
+      }
+      parent.fitWindow();
+      if (reference == null || diffMode == null || reference == shownScreenshot.configurationResult) {
+        return;
+      }
+      final BufferedImage thumbnail = shownThumbnail;
+      diffRequest = ScreenshotDiffs.getInstance().requestDiff(
+        reference, shownScreenshot.configurationResult, shownScreenshot.test, shownScreenshot.step, diffMode,
+        new ScreenshotDiffs.DiffCallback() {
+          @Override
+          public void diffComputed(@Nullable ImageDiff.Result result) {
+            synchronized (lock) {
+              diffRequest = null;
+              if (result == null) {
+                myImageLabel.setText("No reference screenshot");
+              } else {
+                myImageLabel.setIcon(new ImageIcon(ImageDiff.overlay(thumbnail, result.getHeatmap())));
+                myImageLabel.setText(String.format("%.1f%% similar", result.getSimilarity() * 100));
+              }
+              parent.fitWindow();
+            }
+          }
+        });
+    }
+  }
+
+  private void cancelDiffRequest() {
+    synchronized (lock) {
+      if (diffRequest != null) {
+        diffRequest.cancel();
+        diffRequest = null;
+      }
+    }
+  }
+
   /**
    * Returns a pair of (width, height).
    */
@@ -296,83 +389,16 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
     return new Pair(MAX_IMAGE_WIDTH, LANDSCAPE_HEIGHT);
   }
 
-  private class UpdateImageThread extends Thread {
-
+  private static class Screenshot {
     private final TestName test;
     private final int step;
     private final ConfigurationResult configurationResult;
 
-    private BufferedImage loadedImage;
-
-    private volatile boolean isObsolete = false;
-
-    public UpdateImageThread(TestName test, int step, ConfigurationResult configurationResult) {
+    private Screenshot(TestName test, int step, ConfigurationResult configurationResult) {
       this.test = test;
       this.step = step;
       this.configurationResult = configurationResult;
     }
-
-    public synchronized void makeObsolete() {
-      isObsolete = true;
-    }
-
-    public synchronized boolean isObsolete() {
-      return isObsolete;
-    }
-
-    @Override
-    public void run() {
-      loadedImage = configurationResult.getScreenshotForTestAndStep(test, step); // A long-running operation.
-      if (loadedImage != null) {
-        parent.incrementLoadedScreenshotsCount();
-      }
-      if (isObsolete()) {
-        return;
-      }
-      SwingUtilities.invokeLater(new Runnable() {
-        @Override
-        public void run() {
-          synchronized (lock) {
-            if (isObsolete()) {
-              return;
-            }
-            currentImage = loadedImage;
-            if (currentImage == null) {
-              setStaticImage(StaticImageKind.NO_IMAGE);
-              return;
-            }
-
-            //TODO: This is a temporary rotation hack that should be removed after the backend produces correct landscape screenshots.
-            // Rotate landscape screenshots that are indeed mis-rotated.
-            if (selectedConfigurationInstance.getEncodedString().endsWith("landscape") && currentImage.getHeight() > currentImage.getWidth()) {
-
-              AffineTransform transform = new AffineTransform();
-              transform.translate(currentImage.getHeight() / 2, currentImage.getWidth() / 2);
-              transform.rotate(-Math.PI / 2);
-              //transform.scale(0.5, 0.5);
-              transform.translate(-currentImage.getWidth() / 2, -currentImage.getHeight() / 2);
-              //transform.rotate(-Math.PI / 2, currentImage.getWidth() / 2, currentImage.getHeight() / 2);
-              AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-              currentImage = op.filter(currentImage, null);
-            }
-
-            int imageWidth = currentImage.getWidth();
-            int imageHeight = currentImage.getHeight();
-            if (imageWidth > MAX_IMAGE_WIDTH) {
-              imageHeight = imageHeight * MAX_IMAGE_WIDTH / imageWidth;
-              imageWidth = MAX_IMAGE_WIDTH;
-            }
-            if (imageHeight > MAX_IMAGE_HEIGHT) {
-              imageWidth = imageWidth * MAX_IMAGE_HEIGHT / imageHeight;
-              imageHeight = MAX_IMAGE_HEIGHT;
-            }
-            myImageLabel.setIcon(new ImageIcon(currentImage.getScaledInstance(imageWidth, imageHeight, Image.SCALE_SMOOTH)));
-            isLoaded = true;
-            parent.fitWindow();
-          }
-        }
-      });
-    }
   }
 
   private void updateHeaderBar() {
@@ -462,7 +488,24 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
     });
   }
 
+  /**
+   * Returns the full resolution image of the shown screenshot, loading it (with a progress dialog) if needed.
+   */
+  @Nullable
   private BufferedImage getImage() {
+    if (currentImage == null && shownScreenshot != null) {
+      final Screenshot screenshot = shownScreenshot;
+      BufferedImage image = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+        new ThrowableComputable<BufferedImage, RuntimeException>() {
+          @Override
+          public BufferedImage compute() {
+            return screenshot.configurationResult.getScreenshotForTestAndStep(screenshot.test, screenshot.step);
+          }
+        }, "Loading Screenshot", true, null);
+      if (image != null && shownScreenshot == screenshot) {
+        currentImage = ScreenshotThumbnails.fixRotation(image, screenshot.configurationResult.getConfigurationInstance());
+      }
+    }
     return currentImage;
   }
 
@@ -475,7 +518,7 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
     throw new NoSuchElementException("Could not find child: " + childName);
   }
 
-  private ConfigurationResult getSelectedConfigurationResult() {
+  ConfigurationResult getSelectedConfigurationResult() {
     return results.get(selectedConfigurationInstance.getEncodedString());
   }
 
@@ -488,6 +531,17 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
     if (selectedConfigurationResult != null ) {
       selectedConfigurationResult.removeConfigurationResultListener(this);
     }
+    cancelThumbnailRequest();
+    cancelDiffRequest();
+  }
+
+  private void cancelThumbnailRequest() {
+    synchronized (lock) {
+      if (thumbnailRequest != null) {
+        thumbnailRequest.cancel();
+        thumbnailRequest = null;
+      }
+    }
   }
 
   public ConfigurationInstance computeSelectedConfigurationInstance() {
@@ -522,9 +576,28 @@ public class ScreenshotComparisonPanel implements ScreenshotComparisonHeaderPane
   }
 
   @Override
-  public void screenshotsUpdated() {
-    updateImage();
+  public void screenshotsUpdated(@NonNull Collection<String> addedScreenshots) {
+    synchronized (lock) {
+      // Added screenshots never replace existing ones, so a shown screenshot stays up to date.
+      if (!isShowingCurrentScreenshot()) {
+        updateImage();
+      }
+    }
     parent.updateMaxStep();
+    ConfigurationResult selectedConfigurationResult = getSelectedConfigurationResult();
+    if (selectedConfigurationResult != null && selectedConfigurationResult == parent.getDiffReference()) {
+      // The added screenshots are the file names in the bucket, not the display names of the screenshots.
+      BucketFileMetadata referenceMetadata = selectedConfigurationResult.getScreenshotMetadataForTestAndStep(currentTest, currentStep);
+      if (referenceMetadata != null && addedScreenshots.contains(referenceMetadata.getName())) {
+        // The other panels were compared to a missing reference screenshot, which has arrived now.
+        parent.updateDiffs();
+      }
+    }
+  }
+
+  private boolean isShowingCurrentScreenshot() {
+    return isLoaded && shownScreenshot != null && shownScreenshot.test.equals(currentTest) && shownScreenshot.step == currentStep
+           && shownScreenshot.configurationResult == getSelectedConfigurationResult();
   }
 }
 
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gct.testing.ui.ImageDiff;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compares the screenshots of a test step on different configurations with the screenshot on a reference configuration. The screenshots
+ * are compared at the size of their thumbnails in the screenshot comparison dialog. Similarity scores are cached separately from (and
+ * much longer than) the heatmaps, such that ranking many configurations by how much their screenshots changed is cheap once the scores
+ * are known.
+ */
+public class ScreenshotDiffs {
+
+  private static final Logger LOG = Logger.getInstance(ScreenshotDiffs.class);
+
+  private static final int MAX_CACHED_SIMILARITIES = 10000;
+  private static final long MAX_CACHED_HEATMAPS_SIZE = 32 * 1024 * 1024; // 32 MB
+  private static final int MAX_RANKING_THREADS = 4;
+  private static final long RANKING_THREAD_KEEP_ALIVE_SECONDS = 30;
+  private static final long CANCELLATION_CHECK_MILLIS = 100;
+
+  private static volatile ScreenshotDiffs instance;
+
+  private final Cache<DiffKey, Double> similarities = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SIMILARITIES).build();
+  private final Cache<DiffKey, ImageDiff.Result> results = CacheBuilder.newBuilder()
+    .maximumWeight(MAX_CACHED_HEATMAPS_SIZE)
+    .weigher(new Weigher<DiffKey, ImageDiff.Result>() {
+      @Override
+      public int weigh(DiffKey key, ImageDiff.Result result) {
+        return result.getHeatmap().getWidth() * result.getHeatmap().getHeight() * 4;
+      }
+    })
+    .build();
+
+  // The comparisons themselves run in parallel on the pool of ImageDiff, so a single thread is enough to feed it.
+  private final ExecutorService differ =
+    Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Firebase Screenshot Differ").setDaemon(true).build());
+  // Ranking mostly waits for screenshot downloads, so it fetches a few of them at once.
+  private final ThreadPoolExecutor ranker = new ThreadPoolExecutor(
+    MAX_RANKING_THREADS, MAX_RANKING_THREADS, RANKING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+    new ThreadFactoryBuilder().setNameFormat("Firebase Screenshot Ranker %d").setDaemon(true).build());
+
+  /**
+   * Receives a requested comparison on the EDT.
+   */
+  public interface DiffCallback {
+    /**
+     * Called unless the request was cancelled, with {@code null} if either screenshot is missing or could not be loaded.
+     */
+    void diffComputed(@Nullable ImageDiff.Result result);
+  }
+
+
+  private ScreenshotDiffs() {
+    ranker.allowCoreThreadTimeOut(true);
+  }
+
+  @NotNull
+  public static ScreenshotDiffs getInstance() {
+    ScreenshotDiffs result = instance;
+    if (result == null) {
+      synchronized (ScreenshotDiffs.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new ScreenshotDiffs();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compares the screenshot of the given test and step on the given configuration with the one on the reference configuration, passing
+   * the result to the callback on the EDT, unless the returned request is cancelled first.
+   */
+  @NotNull
+  public DiffRequest requestDiff(@NotNull final ConfigurationResult reference, @NotNull final ConfigurationResult configurationResult,
+                                 @NotNull final TestName test, final int step, @NotNull final ImageDiff.Mode mode,
+                                 @NotNull DiffCallback callback) {
+    final DiffRequest request = new DiffRequest(callback);
+    ImageDiff.Result result = results.getIfPresent(new DiffKey(reference, configurationResult, test, step, mode));
+    CloudMetrics.getInstance().recordCacheAccess("screenshotDiffs", result != null);
+    if (result != null) {
+      request.deliver(result);
+      return request;
+    }
+    request.future = differ.submit(new Runnable() {
+      @Override
+      public void run() {
+        request.deliver(getDiff(reference, configurationResult, test, step, mode));
+      }
+    });
+    return request;
+  }
+
+  /**
+   * Returns the given configuration results that have the screenshot of the given test and step, paired with its similarity to the one
+   * on the reference configuration, the most changed first. Might download and compare many screenshots, so should not be called on
+   * the EDT. The screenshots are downloaded in parallel and each comparison is ranked as soon as it completes. Stops early (returning
+   * the results ranked so far) if the indicator is cancelled.
+   */
+  @NotNull
+  public List<Pair<ConfigurationResult, Double>> rankByChange(@NotNull ConfigurationResult reference,
+                                                             @NotNull Collection<ConfigurationResult> configurationResults,
+                                                             @NotNull final TestName test, final int step,
+                                                             @NotNull final ImageDiff.Mode mode, @Nullable ProgressIndicator indicator) {
+    List<Pair<ConfigurationResult, Double>> ranking = new ArrayList<Pair<ConfigurationResult, Double>>();
+    List<ConfigurationResult> uncompared = new ArrayList<ConfigurationResult>();
+    for (ConfigurationResult configurationResult : configurationResults) {
+      if (configurationResult == reference) {
+        continue;
+      }
+      Double similarity = similarities.getIfPresent(new DiffKey(reference, configurationResult, test, step, mode));
+      if (similarity != null) {
+        ranking.add(Pair.create(configurationResult, similarity));
+      } else {
+        uncompared.add(configurationResult);
+      }
+    }
+    if (!uncompared.isEmpty()) {
+      final ScreenshotThumbnails thumbnails = ScreenshotThumbnails.getInstance();
+      final int maxWidth = ScreenshotComparisonPanel.MAX_IMAGE_WIDTH;
+      final int maxHeight = ScreenshotComparisonPanel.MAX_IMAGE_HEIGHT;
+      final BufferedImage referenceThumbnail = thumbnails.getThumbnail(reference, test, step, maxWidth, maxHeight);
+      if (referenceThumbnail != null) {
+        CompletionService<ImageDiff.Result> completionService = new ExecutorCompletionService<ImageDiff.Result>(ranker);
+        Map<Future<ImageDiff.Result>, ConfigurationResult> comparisons = new HashMap<Future<ImageDiff.Result>, ConfigurationResult>();
+        for (final ConfigurationResult configurationResult : uncompared) {
+          comparisons.put(completionService.submit(new Callable<ImageDiff.Result>() {
+            @Override
+            public ImageDiff.Result call() {
+              BufferedImage thumbnail = thumbnails.getThumbnail(configurationResult, test, step, maxWidth, maxHeight);
+              // The pixels themselves are compared in parallel on the pool of ImageDiff.
+              return thumbnail != null ? ImageDiff.compare(referenceThumbnail, thumbnail, mode) : null;
+            }
+          }), configurationResult);
+        }
+        int total = ranking.size() + uncompared.size();
+        int compared = ranking.size();
+        try {
+          while (compared < total && (indicator == null || !indicator.isCanceled())) {
+            if (indicator != null) {
+              indicator.setFraction((double)compared / total);
+            }
+            Future<ImageDiff.Result> future = completionService.poll(CANCELLATION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            if (future == null) {
+              continue;
+            }
+            compared++;
+            ImageDiff.Result result;
+            try {
+              result = future.get();
+            } catch (ExecutionException e) {
+              LOG.warn("Failed to compare screenshots", e.getCause());
+              continue;
+            }
+            if (result != null) {
+              // Keep just the score, such that ranking many configurations does not evict the heatmaps of the shown ones.
+              ConfigurationResult configurationResult = comparisons.get(future);
+              similarities.put(new DiffKey(reference, configurationResult, test, step, mode), result.getSimilarity());
+              ranking.add(Pair.create(configurationResult, result.getSimilarity()));
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          for (Future<ImageDiff.Result> future : comparisons.keySet()) {
+            future.cancel(true);
+          }
+        }
+      }
+    }
+    Collections.sort(ranking, new Comparator<Pair<ConfigurationResult, Double>>() {
+      @Override
+      public int compare(Pair<ConfigurationResult, Double> first, Pair<ConfigurationResult, Double> second) {
+        return Double.compare(first.getSecond(), second.getSecond());
+      }
+    });
+    return ranking;
+  }
+
+  @Nullable
+  private ImageDiff.Result getDiff(ConfigurationResult reference, ConfigurationResult configurationResult, TestName test, int step,
+                                   ImageDiff.Mode mode) {
+    DiffKey key = new DiffKey(reference, configurationResult, test, step, mode);
+    ImageDiff.Result result = results.getIfPresent(key);
+    if (result == null) {
+      result = compare(reference, configurationResult, test, step, mode);
+      if (result != null) {
+        results.put(key, result);
+        similarities.put(key, result.getSimilarity());
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static ImageDiff.Result compare(ConfigurationResult reference, ConfigurationResult configurationResult, TestName test, int step,
+                                          ImageDiff.Mode mode) {
+    ScreenshotThumbnails thumbnails = ScreenshotThumbnails.getInstance();
+    int maxWidth = ScreenshotComparisonPanel.MAX_IMAGE_WIDTH;
+    int maxHeight = ScreenshotComparisonPanel.MAX_IMAGE_HEIGHT;
+    BufferedImage referenceThumbnail = thumbnails.getThumbnail(reference, test, step, maxWidth, maxHeight);
+    if (referenceThumbnail == null) {
+      return null;
+    }
+    BufferedImage thumbnail = thumbnails.getThumbnail(configurationResult, test, step, maxWidth, maxHeight);
+    if (thumbnail == null) {
+      return null;
+    }
+    return ImageDiff.compare(referenceThumbnail, thumbnail, mode);
+  }
+
+  /**
+   * A caller's request for a comparison. Cancelling it on the EDT guarantees that the callback is not called.
+   */
+  public static class DiffRequest {
+    private final DiffCallback callback;
+    private volatile boolean isCancelled = false;
+    private Future<?> future;
+
+    private DiffRequest(DiffCallback callback) {
+      this.callback = callback;
+    }
+
+    public void cancel() {
+      isCancelled = true;
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+
+    private void deliver(@Nullable final ImageDiff.Result result) {
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          if (!isCancelled) {
+            callback.diffComputed(result);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Identifies a comparison. Configuration results are compared by identity, like their screenshots are.
+   */
+  private static class DiffKey {
+    private final ConfigurationResult reference;
+    private final ConfigurationResult configurationResult;
+    private final TestName test;
+    private final int step;
+    private final ImageDiff.Mode mode;
+
+    private DiffKey(ConfigurationResult reference, ConfigurationResult configurationResult, TestName test, int step, ImageDiff.Mode mode) {
+      this.reference = reference;
+      this.configurationResult = configurationResult;
+      this.test = test;
+      this.step = step;
+      this.mode = mode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      DiffKey that = (DiffKey)o;
+      return reference == that.reference && configurationResult == that.configurationResult && step == that.step
+             && mode == that.mode && test.equals(that.test);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = System.identityHashCode(reference);
+      result = 31 * result + System.identityHashCode(configurationResult);
+      result = 31 * result + test.hashCode();
+      result = 31 * result + step;
+      return 31 * result + mode.hashCode();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the screenshots of a test run into a ZIP file, with a folder per configuration. The screenshots are written as they were
+ * uploaded (i.e., not decoded and re-encoded) and are stored rather than deflated, since PNG and JPEG files are already compressed.
+ * Screenshots are downloaded a few at a time, such that at most that many are kept in memory while the ZIP file is written.
+ */
+public class ScreenshotExporter {
+
+  private static final Logger LOG = Logger.getInstance(ScreenshotExporter.class);
+
+  private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+  private ScreenshotExporter() {
+  }
+
+  /**
+   * Exports the screenshots of the given configuration results into the given ZIP file, only those of the given tests, unless they are
+   * {@code null}. Screenshots that fail to download are skipped. Should not be called on the EDT. If the indicator is cancelled, deletes
+   * the partially written file and throws {@link ProcessCanceledException}.
+   */
+  @NotNull
+  public static ExportSummary export(@NotNull Collection<ConfigurationResult> configurationResults, @Nullable Set<TestName> tests,
+                                     @NotNull File zipFile, @NotNull ProgressIndicator indicator) throws IOException {
+    List<Pair<ConfigurationResult, BucketFileMetadata>> screenshots = getScreenshots(configurationResults, tests);
+    indicator.setIndeterminate(false);
+
+    ExecutorService downloader = Executors.newFixedThreadPool(
+      MAX_PARALLEL_DOWNLOADS, new ThreadFactoryBuilder().setNameFormat("Firebase Screenshot Exporter %d").setDaemon(true).build());
+    CompletionService<Pair<String, byte[]>> downloads = new ExecutorCompletionService<Pair<String, byte[]>>(downloader);
+    long startTime = System.currentTimeMillis();
+    int submitted = 0;
+    int exported = 0;
+    int skipped = 0;
+    long exportedBytes = 0;
+    boolean isComplete = false;
+    ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
+    try {
+      while (submitted < Math.min(MAX_PARALLEL_DOWNLOADS, screenshots.size())) {
+        downloads.submit(new ScreenshotDownload(screenshots.get(submitted++)));
+      }
+      for (int i = 0; i < screenshots.size(); i++) {
+        Pair<String, byte[]> download = takeDownload(downloads, indicator);
+        // Download the next screenshot while this one is written.
+        if (submitted < screenshots.size()) {
+          downloads.submit(new ScreenshotDownload(screenshots.get(submitted++)));
+        }
+        if (download.getSecond() == null) {
+          skipped++;
+        } else {
+          writeStoredEntry(out, download.getFirst(), download.getSecond());
+          exported++;
+          exportedBytes += download.getSecond().length;
+        }
+        indicator.setFraction((double)(i + 1) / screenshots.size());
+        indicator.setText2(String.format("%d of %d screenshots, %s", i + 1, screenshots.size(),
+                                         formatThroughput(exportedBytes, System.currentTimeMillis() - startTime)));
+      }
+      isComplete = true;
+    } finally {
+      downloader.shutdownNow();
+      try {
+        out.close();
+      } catch (IOException e) {
+        if (isComplete) {
+          throw e;
+        }
+      }
+      if (!isComplete && !zipFile.delete()) {
+        LOG.warn("Failed to delete the partially exported screenshots: " + zipFile);
+      }
+    }
+    return new ExportSummary(exported, skipped, exportedBytes, System.currentTimeMillis() - startTime);
+  }
+
+  private static List<Pair<ConfigurationResult, BucketFileMetadata>> getScreenshots(Collection<ConfigurationResult> configurationResults,
+                                                                                  @Nullable Set<TestName> tests) {
+    List<Pair<ConfigurationResult, BucketFileMetadata>> screenshots = new ArrayList<Pair<ConfigurationResult, BucketFileMetadata>>();
+    for (ConfigurationResult configurationResult : configurationResults) {
+      for (Map.Entry<String, BucketFileMetadata> entry : configurationResult.getScreenshotMetadata().entrySet()) {
+        if (tests != null) {
+          String[] fileNameParts = ScreenshotIndex.getFileNameParts(entry.getKey());
+          if (!tests.contains(new TestName(fileNameParts[0], fileNameParts[1]))) {
+            continue;
+          }
+        }
+        screenshots.add(Pair.create(configurationResult, entry.getValue()));
+      }
+    }
+    return screenshots;
+  }
+
+  /**
+   * Waits for the next finished download. A download that failed with an exception is logged and returned with {@code null} bytes,
+   * such that it is skipped.
+   */
+  private static Pair<String, byte[]> takeDownload(CompletionService<Pair<String, byte[]>> downloads, ProgressIndicator indicator) {
+    while (true) {
+      indicator.checkCanceled();
+      Future<Pair<String, byte[]>> download;
+      try {
+        download = downloads.poll(100, TimeUnit.MILLISECONDS);
+        if (download != null) {
+          return download.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ProcessCanceledException();
+      } catch (ExecutionException e) {
+        LOG.warn("Failed to download a screenshot", e.getCause());
+        return Pair.<String, byte[]>create(null, null);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static void writeStoredEntry(ZipOutputStream out, String name, byte[] bytes) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(bytes.length);
+    entry.setCompressedSize(bytes.length);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(bytes);
+    out.closeEntry();
+  }
+
+  private static String formatThroughput(long bytes, long millis) {
+    return String.format("%.1f MB/s", millis == 0 ? 0 : bytes * 1000.0 / millis / (1024 * 1024));
+  }
+
+  /**
+   * Downloads a screenshot, returning the name of its ZIP entry and its bytes ({@code null} if the download failed).
+   */
+  private static class ScreenshotDownload implements Callable<Pair<String, byte[]>> {
+    private final ConfigurationResult configurationResult;
+    private final BucketFileMetadata fileMetadata;
+
+    private ScreenshotDownload(Pair<ConfigurationResult, BucketFileMetadata> screenshot) {
+      configurationResult = screenshot.getFirst();
+      fileMetadata = screenshot.getSecond();
+    }
+
+    @Override
+    public Pair<String, byte[]> call() {
+      Optional<byte[]> optionalFileBytes = CloudResultsLoader.getFileBytes(configurationResult.getBucketName(), fileMetadata);
+      String entryName = configurationResult.getConfigurationInstance().getEncodedString() + "/" + fileMetadata.getName();
+      return Pair.create(entryName, optionalFileBytes.orNull());
+    }
+  }
+
+  public static class ExportSummary {
+    private final int exportedCount;
+    private final int skippedCount;
+    private final long exportedBytes;
+    private final long durationMillis;
+
+    private ExportSummary(int exportedCount, int skippedCount, long exportedBytes, long durationMillis) {
+      this.exportedCount = exportedCount;
+      this.skippedCount = skippedCount;
+      this.exportedBytes = exportedBytes;
+      this.durationMillis = durationMillis;
+    }
+
+    public int getExportedCount() {
+      return exportedCount;
+    }
+
+    public int getSkippedCount() {
+      return skippedCount;
+    }
+
+    @Override
+    public String toString() {
+      String summary = String.format("Exported %d screenshots (%.1f MB, %s)", exportedCount, exportedBytes / (1024.0 * 1024),
+                                     formatThroughput(exportedBytes, durationMillis));
+      return skippedCount == 0 ? summary : summary + String.format(", %d failed to download", skippedCount);
+    }
+  }
+}
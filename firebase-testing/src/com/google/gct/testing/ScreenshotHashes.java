@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gct.testing.ui.ImageScaling;
+import com.google.gct.testing.ui.PerceptualHash;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Groups the configurations on which a test step produced screenshots that look the same, such that the user can review one screenshot
+ * per group instead of paging through all of them. Screenshots are compared by their perceptual hashes, which are kept in their
+ * {@link BucketFileMetadata}. The hash of a screenshot is computed when its thumbnail is loaded, or else by downloading it in the
+ * background.
+ */
+public class ScreenshotHashes {
+
+  private static final Logger LOG = Logger.getInstance(ScreenshotHashes.class);
+
+  // Screenshots whose hashes differ in at most this many bits are considered the same.
+  private static final int MAX_SIMILAR_DISTANCE = 4;
+  // The hash needs just 9x8 pixels, so decode the screenshot at a small size.
+  private static final int HASHED_IMAGE_SIZE = 64;
+  private static final int MAX_INDEXING_THREADS = 2;
+  private static final long INDEXING_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+  private static volatile ScreenshotHashes instance;
+
+  private final ThreadPoolExecutor indexer = new ThreadPoolExecutor(
+    MAX_INDEXING_THREADS, MAX_INDEXING_THREADS, INDEXING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+    new ThreadFactoryBuilder().setNameFormat("Firebase Screenshot Indexer %d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+  // Owner (e.g., a screenshot comparison dialog) -> its indexing tasks, guarded by this.
+  private final Map<Object, List<Future<?>>> indexingTasks = new HashMap<Object, List<Future<?>>>();
+
+
+  private ScreenshotHashes() {
+    indexer.allowCoreThreadTimeOut(true);
+  }
+
+  @NotNull
+  public static ScreenshotHashes getInstance() {
+    ScreenshotHashes result = instance;
+    if (result == null) {
+      synchronized (ScreenshotHashes.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new ScreenshotHashes();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Hashes the screenshots of the given test and step that are not hashed yet in the background, cancelling the previous indexing of
+   * the given owner (if it is still running), such that grouping them later does not have to wait. The indexing of other owners
+   * continues.
+   */
+  public synchronized void index(@NotNull Object owner, @NotNull Collection<ConfigurationResult> configurationResults,
+                                 @NotNull TestName test, int step) {
+    stopIndexing(owner);
+    List<Future<?>> ownerTasks = new ArrayList<Future<?>>();
+    for (final ConfigurationResult configurationResult : configurationResults) {
+      final BucketFileMetadata fileMetadata = configurationResult.getScreenshotMetadataForTestAndStep(test, step);
+      if (fileMetadata != null && fileMetadata.getPerceptualHash() == null) {
+        ownerTasks.add(indexer.submit(new Runnable() {
+          @Override
+          public void run() {
+            getHash(configurationResult, fileMetadata);
+          }
+        }));
+      }
+    }
+    if (!ownerTasks.isEmpty()) {
+      indexingTasks.put(owner, ownerTasks);
+    }
+  }
+
+  /**
+   * Cancels the indexing started by the given owner.
+   */
+  public synchronized void stopIndexing(@NotNull Object owner) {
+    List<Future<?>> ownerTasks = indexingTasks.remove(owner);
+    if (ownerTasks != null) {
+      cancel(ownerTasks);
+    }
+  }
+
+  /**
+   * Groups the given configuration results that have a screenshot of the given test and step by how their screenshots look. The first
+   * configuration result of each group represents it, and the largest groups come first, so the outliers (groups of one) come last.
+   * The screenshots that are not hashed yet are downloaded and hashed in parallel, and this waits for them, so should not be called
+   * on the EDT. Returns {@code null} if the indicator is cancelled, such that callers can tell this from no screenshots at all.
+   */
+  @Nullable
+  public List<List<ConfigurationResult>> groupSimilar(@NotNull Collection<ConfigurationResult> configurationResults, @NotNull TestName test,
+                                                      int step, @Nullable ProgressIndicator indicator) {
+    Map<ConfigurationResult, Future<Long>> hashFutures = new LinkedHashMap<ConfigurationResult, Future<Long>>();
+    for (final ConfigurationResult configurationResult : configurationResults) {
+      final BucketFileMetadata fileMetadata = configurationResult.getScreenshotMetadataForTestAndStep(test, step);
+      if (fileMetadata == null) {
+        continue;
+      }
+      Long hash = fileMetadata.getPerceptualHash();
+      hashFutures.put(configurationResult, hash != null ? Futures.immediateFuture(hash) : indexer.submit(new Callable<Long>() {
+        @Override
+        public Long call() {
+          return getHash(configurationResult, fileMetadata);
+        }
+      }));
+    }
+    Map<ConfigurationResult, Long> hashes = new LinkedHashMap<ConfigurationResult, Long>();
+    int hashed = 0;
+    for (Map.Entry<ConfigurationResult, Future<Long>> hashFuture : hashFutures.entrySet()) {
+      Long hash;
+      try {
+        hash = waitForHash(hashFuture.getValue(), indicator);
+      } catch (CancellationException e) {
+        cancel(hashFutures.values());
+        return null;
+      }
+      if (hash != null) {
+        hashes.put(hashFuture.getKey(), hash);
+      }
+      if (indicator != null) {
+        indicator.setFraction((double)++hashed / hashFutures.size());
+      }
+    }
+    return PerceptualHash.cluster(hashes, MAX_SIMILAR_DISTANCE);
+  }
+
+  /**
+   * Waits for the given hash, throwing {@link CancellationException} if the indicator is cancelled (or the thread is interrupted)
+   * in the meantime. Returns {@code null} if the screenshot could not be hashed.
+   */
+  @Nullable
+  private static Long waitForHash(Future<Long> hashFuture, @Nullable ProgressIndicator indicator) {
+    while (true) {
+      if (indicator != null && indicator.isCanceled()) {
+        throw new CancellationException();
+      }
+      try {
+        return hashFuture.get(100, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        // Check the indicator again.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException();
+      } catch (ExecutionException e) {
+        LOG.warn("Failed to hash a screenshot", e.getCause());
+        return null;
+      }
+    }
+  }
+
+  private static void cancel(Collection<? extends Future<?>> tasks) {
+    for (Future<?> task : tasks) {
+      task.cancel(true);
+    }
+  }
+
+  @Nullable
+  private static Long getHash(@NotNull ConfigurationResult configurationResult, @NotNull BucketFileMetadata fileMetadata) {
+    Long hash = fileMetadata.getPerceptualHash();
+    if (hash != null) {
+      return hash;
+    }
+    Optional<byte[]> optionalFileBytes = CloudResultsLoader.getFileBytes(configurationResult.getBucketName(), fileMetadata);
+    if (!optionalFileBytes.isPresent()) {
+      return null;
+    }
+    BufferedImage image;
+    try {
+      image = ImageScaling.decodeForSize(optionalFileBytes.get(), HASHED_IMAGE_SIZE, HASHED_IMAGE_SIZE);
+    } catch (IOException e) {
+      LOG.warn("Failed to decode screenshot " + fileMetadata.getName(), e);
+      return null;
+    }
+    if (image == null) {
+      return null;
+    }
+    hash = PerceptualHash.getDifferenceHash(ScreenshotThumbnails.fixRotation(image, configurationResult.getConfigurationInstance()));
+    fileMetadata.setPerceptualHash(hash);
+    return hash;
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The screenshots of a configuration result, indexed by test and step. A screenshot file name (e.g.,
+ * "com.example.MyTest-testLogin-login+screen-3.png") is parsed once, when the screenshot is added, such that looking up the screenshots
+ * while navigating through them does not decode any names. Screenshots are added by the polling threads and looked up on the EDT.
+ */
+class ScreenshotIndex {
+
+  private static final Logger LOG = Logger.getInstance(ScreenshotIndex.class);
+
+  // Test -> the screenshots of that test, sorted by step.
+  private final Map<TestName, TestScreenshots> tests = new HashMap<TestName, TestScreenshots>();
+
+
+  synchronized void add(@NotNull String fileName, @NotNull BucketFileMetadata fileMetadata) {
+    String[] fileNameParts = getFileNameParts(fileName);
+    TestName test = new TestName(fileNameParts[0], fileNameParts[1]);
+    int step = Integer.parseInt(fileNameParts[3].substring(0, fileNameParts[3].indexOf(".")));
+    TestScreenshots testScreenshots = tests.get(test);
+    if (testScreenshots == null) {
+      testScreenshots = new TestScreenshots();
+      tests.put(test, testScreenshots);
+    }
+    testScreenshots.put(step, new Screenshot(fileNameParts[2], fileMetadata));
+  }
+
+  @Nullable
+  synchronized BucketFileMetadata getMetadata(@NotNull TestName test, int step) {
+    Screenshot screenshot = get(test, step);
+    return screenshot == null ? null : screenshot.fileMetadata;
+  }
+
+  /**
+   * Returns the (decoded) name the test gave to the screenshot of the given step, or {@code null} if there is no such screenshot.
+   */
+  @Nullable
+  synchronized String getName(@NotNull TestName test, int step) {
+    Screenshot screenshot = get(test, step);
+    return screenshot == null ? null : screenshot.name;
+  }
+
+  /**
+   * Returns the largest step for which the given test has a screenshot, or 0 if it has none.
+   */
+  synchronized int getMaxStep(@NotNull TestName test) {
+    TestScreenshots testScreenshots = tests.get(test);
+    return testScreenshots == null ? 0 : testScreenshots.getMaxStep();
+  }
+
+  @Nullable
+  private Screenshot get(TestName test, int step) {
+    TestScreenshots testScreenshots = tests.get(test);
+    return testScreenshots == null ? null : testScreenshots.get(step);
+  }
+
+  /**
+   * Splits a screenshot file name into its test class, test method, screenshot name and step (with the file extension) parts.
+   */
+  @VisibleForTesting
+  static String[] getFileNameParts(String fileName) {
+    String[] originalNameParts;
+    try {
+      originalNameParts = URLDecoder.decode(fileName, "UTF-8").split(ConfigurationResult.SCREENSHOT_FILENAME_DELIMITER);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Unsupported encoding!", e);
+    }
+    if (originalNameParts.length < 4) {
+      LOG.warn("Screenshot file name is not formatted properly: " + fileName);
+      // To tolerate such scenarios, use some dummy file name parts.
+      String[] nameParts = new String[4];
+      nameParts[0] = "dummyTestClass";
+      nameParts[1] = "dummyTestMethod";
+      nameParts[2] = "dummyScreenshotName";
+      nameParts[3] = "1.jpg"; //step
+      return nameParts;
+
+    }
+    // Since a screenshot name may contain screenshot filename delimiter, concatenate the corresponding parts.
+    String[] nameParts = new String[4];
+    nameParts[0] = originalNameParts[0];
+    nameParts[1] = originalNameParts[1];
+    nameParts[2] = originalNameParts[2];
+    for (int i = 3; i < originalNameParts.length - 1; i++) {
+      nameParts[2] += "-" + originalNameParts[i];
+    }
+    nameParts[3] = originalNameParts[originalNameParts.length - 1];
+    return nameParts;
+  }
+
+  private static class Screenshot {
+    private final String name;
+    private final BucketFileMetadata fileMetadata;
+
+    private Screenshot(String name, BucketFileMetadata fileMetadata) {
+      this.name = name;
+      this.fileMetadata = fileMetadata;
+    }
+  }
+
+  /**
+   * The screenshots of a single test in parallel arrays sorted by step, which are looked up by binary search. Screenshots mostly arrive
+   * in the order of their steps, so adding one rarely shifts the arrays.
+   */
+  private static class TestScreenshots {
+    private int[] steps = new int[4];
+    private Screenshot[] screenshots = new Screenshot[4];
+    private int size = 0;
+
+    void put(int step, Screenshot screenshot) {
+      int index = Arrays.binarySearch(steps, 0, size, step);
+      if (index >= 0) {
+        screenshots[index] = screenshot;
+        return;
+      }
+      index = -index - 1;
+      if (size == steps.length) {
+        steps = Arrays.copyOf(steps, size * 2);
+        screenshots = Arrays.copyOf(screenshots, size * 2);
+      }
+      System.arraycopy(steps, index, steps, index + 1, size - index);
+      System.arraycopy(screenshots, index, screenshots, index + 1, size - index);
+      steps[index] = step;
+      screenshots[index] = screenshot;
+      size++;
+    }
+
+    @Nullable
+    Screenshot get(int step) {
+      int index = Arrays.binarySearch(steps, 0, size, step);
+      return index >= 0 ? screenshots[index] : null;
+    }
+
+    int getMaxStep() {
+      return size == 0 ? 0 : steps[size - 1];
+    }
+  }
+}
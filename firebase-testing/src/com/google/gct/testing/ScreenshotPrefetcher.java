@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Prefetches the thumbnails that the user of a screenshot comparison dialog is likely to look at next: the neighbouring steps of the
+ * shown configurations and the current step of the closest configuration that is not shown. Prefetching stops once the screenshots that
+ * were prefetched but not shown yet take more than a fixed budget of downloaded bytes, such that wrong guesses neither waste much
+ * bandwidth nor evict the thumbnails the user did look at from the cache. A prefetch stops counting against the budget once it is shown,
+ * falls out of the prefetched steps or is evicted from the cache. Should be used on the EDT only.
+ */
+class ScreenshotPrefetcher {
+
+  private static final int PREFETCHED_STEPS = 2;
+  private static final long MAX_UNUSED_PREFETCHED_BYTES = 16 * 1024 * 1024; // 16 MB
+
+  private final int maxWidth;
+  private final int maxHeight;
+
+  private final Map<Screenshot, ScreenshotThumbnails.ThumbnailRequest> pendingPrefetches =
+    new HashMap<Screenshot, ScreenshotThumbnails.ThumbnailRequest>();
+  // Prefetched screenshot -> its size in the bucket, for the prefetches that are pending or whose thumbnails were not shown yet.
+  private final Map<Screenshot, Long> unusedPrefetches = new HashMap<Screenshot, Long>();
+  private long unusedPrefetchedBytes = 0;
+  private Set<Screenshot> shownScreenshots = Collections.emptySet();
+
+
+  ScreenshotPrefetcher(int maxWidth, int maxHeight) {
+    this.maxWidth = maxWidth;
+    this.maxHeight = maxHeight;
+  }
+
+  /**
+   * Prefetches around the given test and step, which is shown for the given configuration results, cancelling the prefetches that are
+   * not needed anymore.
+   */
+  void update(@NotNull TestName test, int step, @NotNull List<ConfigurationResult> shownResults,
+              @Nullable ConfigurationResult neighborResult) {
+    shownScreenshots = new HashSet<Screenshot>();
+    for (ConfigurationResult result : shownResults) {
+      Screenshot screenshot = new Screenshot(result, test, step);
+      shownScreenshots.add(screenshot);
+      release(screenshot);
+    }
+
+    Set<Screenshot> targets = new LinkedHashSet<Screenshot>();
+    // Prefer the steps closest to the current one, and the next step over the previous one.
+    for (int distance = 1; distance <= PREFETCHED_STEPS; distance++) {
+      for (ConfigurationResult result : shownResults) {
+        targets.add(new Screenshot(result, test, step + distance));
+      }
+      for (ConfigurationResult result : shownResults) {
+        if (step - distance >= 1) {
+          targets.add(new Screenshot(result, test, step - distance));
+        }
+      }
+    }
+    if (neighborResult != null) {
+      targets.add(new Screenshot(neighborResult, test, step));
+    }
+    targets.removeAll(shownScreenshots);
+
+    ScreenshotThumbnails thumbnails = ScreenshotThumbnails.getInstance();
+    for (Screenshot screenshot : new ArrayList<Screenshot>(unusedPrefetches.keySet())) {
+      // Give back the budget of the prefetches that the user moved away from, and of the prefetched thumbnails that were evicted.
+      if (!targets.contains(screenshot) || (!pendingPrefetches.containsKey(screenshot) &&
+          !thumbnails.isThumbnailCached(screenshot.configurationResult, screenshot.test, screenshot.step, maxWidth, maxHeight))) {
+        release(screenshot);
+      }
+    }
+    Iterator<Map.Entry<Screenshot, ScreenshotThumbnails.ThumbnailRequest>> pendingIterator = pendingPrefetches.entrySet().iterator();
+    while (pendingIterator.hasNext()) {
+      Map.Entry<Screenshot, ScreenshotThumbnails.ThumbnailRequest> entry = pendingIterator.next();
+      if (!targets.contains(entry.getKey())) {
+        entry.getValue().cancel();
+        pendingIterator.remove();
+      }
+    }
+
+    for (final Screenshot target : targets) {
+      if (unusedPrefetchedBytes >= MAX_UNUSED_PREFETCHED_BYTES) {
+        return;
+      }
+      if (unusedPrefetches.containsKey(target)) {
+        continue;
+      }
+      BucketFileMetadata fileMetadata = target.configurationResult.getScreenshotMetadataForTestAndStep(target.test, target.step);
+      if (fileMetadata == null) {
+        continue;
+      }
+      ScreenshotThumbnails.ThumbnailRequest request = thumbnails.prefetchThumbnail(
+        target.configurationResult, target.test, target.step, maxWidth, maxHeight, new ScreenshotThumbnails.ThumbnailCallback() {
+          @Override
+          public void thumbnailLoaded(@Nullable BufferedImage thumbnail) {
+            pendingPrefetches.remove(target);
+            // A panel might have requested (and so shown) the thumbnail while it was being prefetched.
+            if (thumbnail == null || shownScreenshots.contains(target)) {
+              release(target);
+            }
+          }
+        });
+      if (request != null) {
+        // Count the download against the budget right away, such that the queued prefetches cannot overshoot it.
+        pendingPrefetches.put(target, request);
+        unusedPrefetches.put(target, fileMetadata.getSize());
+        unusedPrefetchedBytes += fileMetadata.getSize();
+      }
+    }
+  }
+
+  /**
+   * Cancels all pending prefetches, e.g., when the dialog is closed.
+   */
+  void stop() {
+    for (Map.Entry<Screenshot, ScreenshotThumbnails.ThumbnailRequest> entry : pendingPrefetches.entrySet()) {
+      entry.getValue().cancel();
+      release(entry.getKey());
+    }
+    pendingPrefetches.clear();
+  }
+
+  /**
+   * Stops counting the given screenshot against the budget, e.g., because it was shown.
+   */
+  private void release(Screenshot screenshot) {
+    Long size = unusedPrefetches.remove(screenshot);
+    if (size != null) {
+      unusedPrefetchedBytes -= size;
+    }
+  }
+
+  private static class Screenshot {
+    private final ConfigurationResult configurationResult;
+    private final TestName test;
+    private final int step;
+
+    private Screenshot(ConfigurationResult configurationResult, TestName test, int step) {
+      this.configurationResult = configurationResult;
+      this.test = test;
+      this.step = step;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Screenshot that = (Screenshot)o;
+      return configurationResult.equals(that.configurationResult) && step == that.step && test.equals(that.test);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * configurationResult.hashCode() + test.hashCode()) + step;
+    }
+  }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gct.testing.ui.ImageScaling;
+import com.google.gct.testing.ui.PerceptualHash;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces the screenshot thumbnails shown in the screenshot comparison dialog. Screenshots are decoded at a reduced resolution and
+ * downscaled off the EDT, and the thumbnails are cached per screenshot and size, such that stepping back and forth through the
+ * screenshots of large (e.g., 4K) devices does not download and decode them again.
+ *
+ * <p>Thumbnails are loaded by a small shared pool of threads. Panels that request the same thumbnail at the same time share a single
+ * load, and a load is cancelled (aborting its download) once all the panels that requested it cancelled their requests. Prefetched
+ * thumbnails are loaded by a separate low priority thread, and their loads are moved to the shared pool once a panel requests them.
+ */
+public class ScreenshotThumbnails {
+
+  private static final Logger LOG = Logger.getInstance(ScreenshotThumbnails.class);
+
+  private static final long MAX_CACHE_SIZE = 64 * 1024 * 1024; // 64 MB
+  private static final int MAX_LOADING_THREADS = 3;
+  private static final long LOADING_THREAD_KEEP_ALIVE_SECONDS = 30;
+  private static final int MAX_PREFETCHING_THREADS = 1;
+
+  private static volatile ScreenshotThumbnails instance;
+
+  private final Cache<ThumbnailKey, BufferedImage> thumbnails = CacheBuilder.newBuilder()
+    .maximumWeight(MAX_CACHE_SIZE)
+    .weigher(new Weigher<ThumbnailKey, BufferedImage>() {
+      @Override
+      public int weigh(ThumbnailKey key, BufferedImage thumbnail) {
+        return thumbnail.getWidth() * thumbnail.getHeight() * 4;
+      }
+    })
+    .build();
+
+  private final ThreadPoolExecutor loader = new ThreadPoolExecutor(
+    MAX_LOADING_THREADS, MAX_LOADING_THREADS, LOADING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+    new ThreadFactoryBuilder().setNameFormat("Firebase Screenshot Loader %d").setDaemon(true).build());
+  private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(
+    MAX_PREFETCHING_THREADS, MAX_PREFETCHING_THREADS, LOADING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(),
+    new ThreadFactoryBuilder().setNameFormat("Firebase Screenshot Prefetcher %d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+  // Thumbnail key -> the load of that thumbnail that is queued or running, guarded by itself.
+  private final Map<ThumbnailKey, ThumbnailLoad> loadsInProgress = new HashMap<ThumbnailKey, ThumbnailLoad>();
+
+  /**
+   * Receives a requested thumbnail on the EDT.
+   */
+  public interface ThumbnailCallback {
+    /**
+     * Called unless the request was cancelled, with {@code null} if there is no such screenshot or it could not be loaded.
+     */
+    void thumbnailLoaded(@Nullable BufferedImage thumbnail);
+  }
+
+
+  private ScreenshotThumbnails() {
+    loader.allowCoreThreadTimeOut(true);
+    prefetcher.allowCoreThreadTimeOut(true);
+  }
+
+  @NotNull
+  public static ScreenshotThumbnails getInstance() {
+    ScreenshotThumbnails result = instance;
+    if (result == null) {
+      synchronized (ScreenshotThumbnails.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new ScreenshotThumbnails();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Requests the thumbnail of the screenshot of the given test and step that fits into the given bounds. The thumbnail is passed to
+   * the callback on the EDT, unless the returned request is cancelled first. A cached thumbnail is passed right away (but still
+   * through the EDT queue, so it never overtakes earlier updates of the caller).
+   */
+  @NotNull
+  public ThumbnailRequest requestThumbnail(@NotNull ConfigurationResult configurationResult, @NotNull TestName test, int step,
+                                           int maxWidth, int maxHeight, @NotNull ThumbnailCallback callback) {
+    ThumbnailRequest request = new ThumbnailRequest(callback);
+    BucketFileMetadata fileMetadata = configurationResult.getScreenshotMetadataForTestAndStep(test, step);
+    if (fileMetadata == null) {
+      request.deliver(null);
+      return request;
+    }
+    ThumbnailKey key = new ThumbnailKey(fileMetadata, maxWidth, maxHeight);
+    BufferedImage thumbnail = thumbnails.getIfPresent(key);
+    CloudMetrics.getInstance().recordCacheAccess("screenshotThumbnails", thumbnail != null);
+    if (thumbnail != null) {
+      request.deliver(thumbnail);
+      return request;
+    }
+    synchronized (loadsInProgress) {
+      ThumbnailLoad load = loadsInProgress.get(key);
+      if (load == null) {
+        load = new ThumbnailLoad(configurationResult, fileMetadata, key, false);
+        loadsInProgress.put(key, load);
+        // Submit while holding the lock, such that the load cannot complete before its future is set.
+        load.future = loader.submit(load);
+      } else if (load.isPrefetch && !load.isStarted) {
+        // Do not let the panel wait behind the other prefetches.
+        load.future.cancel(false);
+        load.isPrefetch = false;
+        load.future = loader.submit(load);
+      }
+      load.requests.add(request);
+      request.load = load;
+    }
+    return request;
+  }
+
+  /**
+   * Loads the thumbnail into the cache at a low priority, such that a later {@link #requestThumbnail} is served right away. Returns
+   * {@code null} if there is nothing to load, i.e., there is no such screenshot or its thumbnail is already cached or being loaded.
+   * Otherwise, the callback is called like for {@link #requestThumbnail}, unless the returned request is cancelled first.
+   */
+  @Nullable
+  public ThumbnailRequest prefetchThumbnail(@NotNull ConfigurationResult configurationResult, @NotNull TestName test, int step,
+                                            int maxWidth, int maxHeight, @NotNull ThumbnailCallback callback) {
+    BucketFileMetadata fileMetadata = configurationResult.getScreenshotMetadataForTestAndStep(test, step);
+    if (fileMetadata == null) {
+      return null;
+    }
+    ThumbnailKey key = new ThumbnailKey(fileMetadata, maxWidth, maxHeight);
+    if (thumbnails.getIfPresent(key) != null) {
+      return null;
+    }
+    synchronized (loadsInProgress) {
+      if (loadsInProgress.containsKey(key)) {
+        return null;
+      }
+      ThumbnailLoad load = new ThumbnailLoad(configurationResult, fileMetadata, key, true);
+      loadsInProgress.put(key, load);
+      load.future = prefetcher.submit(load);
+      ThumbnailRequest request = new ThumbnailRequest(callback);
+      load.requests.add(request);
+      request.load = load;
+      return request;
+    }
+  }
+
+  /**
+   * Returns whether the thumbnail of the screenshot of the given test and step that fits into the given bounds is cached, e.g., whether
+   * a prefetched thumbnail was evicted already. Does not count as an access of the thumbnail, so it does not keep it in the cache.
+   */
+  public boolean isThumbnailCached(@NotNull ConfigurationResult configurationResult, @NotNull TestName test, int step, int maxWidth,
+                                   int maxHeight) {
+    BucketFileMetadata fileMetadata = configurationResult.getScreenshotMetadataForTestAndStep(test, step);
+    return fileMetadata != null && thumbnails.asMap().containsKey(new ThumbnailKey(fileMetadata, maxWidth, maxHeight));
+  }
+
+  /**
+   * Returns the thumbnail of the screenshot of the given test and step that fits into the given bounds, loading it on the calling
+   * thread if it is not cached. Returns {@code null} if there is no such screenshot or it could not be loaded. Should not be called on
+   * the EDT.
+   */
+  @Nullable
+  public BufferedImage getThumbnail(@NotNull ConfigurationResult configurationResult, @NotNull TestName test, int step, int maxWidth,
+                                    int maxHeight) {
+    BucketFileMetadata fileMetadata = configurationResult.getScreenshotMetadataForTestAndStep(test, step);
+    if (fileMetadata == null) {
+      return null;
+    }
+    return loadThumbnail(configurationResult, fileMetadata, new ThumbnailKey(fileMetadata, maxWidth, maxHeight));
+  }
+
+  /**
+   * Downloads, decodes and scales the screenshot, returning {@code null} if it could not be loaded or the loading thread was interrupted.
+   */
+  @Nullable
+  private BufferedImage loadThumbnail(@NotNull ConfigurationResult configurationResult, @NotNull BucketFileMetadata fileMetadata,
+                                      @NotNull ThumbnailKey key) {
+    BufferedImage thumbnail = thumbnails.getIfPresent(key);
+    if (thumbnail != null) {
+      return thumbnail;
+    }
+    int maxWidth = key.width;
+    int maxHeight = key.height;
+    Optional<byte[]> optionalFileBytes = CloudResultsLoader.getFileBytes(configurationResult.getBucketName(), fileMetadata);
+    if (!optionalFileBytes.isPresent() || Thread.currentThread().isInterrupted()) {
+      return null;
+    }
+    BufferedImage image;
+    try {
+      image = ImageScaling.decodeForSize(optionalFileBytes.get(), maxWidth, maxHeight);
+    } catch (IOException e) {
+      LOG.warn("Failed to decode screenshot " + fileMetadata.getName(), e);
+      return null;
+    }
+    if (image == null) {
+      LOG.warn("Screenshot " + fileMetadata.getName() + " is not an image");
+      return null;
+    }
+    image = fixRotation(image, configurationResult.getConfigurationInstance());
+    if (fileMetadata.getPerceptualHash() == null) {
+      // Cheap compared to the download, and saves downloading the screenshot again for grouping similar screenshots.
+      fileMetadata.setPerceptualHash(PerceptualHash.getDifferenceHash(image));
+    }
+    Dimension size = ImageScaling.fitInto(image.getWidth(), image.getHeight(), maxWidth, maxHeight);
+    thumbnail = ImageScaling.scale(image, size.width, size.height);
+    thumbnails.put(key, thumbnail);
+    return thumbnail;
+  }
+
+  /**
+   * Returns the given (static) image scaled to the given size. The scaled images are cached, so this is cheap enough for the EDT
+   * as long as the image is small.
+   */
+  @NotNull
+  public BufferedImage getScaledImage(@NotNull BufferedImage image, int width, int height) {
+    ThumbnailKey key = new ThumbnailKey(image, width, height);
+    BufferedImage scaledImage = thumbnails.getIfPresent(key);
+    if (scaledImage == null) {
+      scaledImage = ImageScaling.scale(image, width, height);
+      thumbnails.put(key, scaledImage);
+    }
+    return scaledImage;
+  }
+
+  //TODO: This is a temporary rotation hack that should be removed after the backend produces correct landscape screenshots.
+  /**
+   * Rotates landscape screenshots that are indeed mis-rotated.
+   */
+  @NotNull
+  public static BufferedImage fixRotation(@NotNull BufferedImage image, @NotNull ConfigurationInstance configurationInstance) {
+    if (!configurationInstance.getEncodedString().endsWith("landscape") || image.getHeight() <= image.getWidth()) {
+      return image;
+    }
+    AffineTransform transform = new AffineTransform();
+    transform.translate(image.getHeight() / 2, image.getWidth() / 2);
+    transform.rotate(-Math.PI / 2);
+    transform.translate(-image.getWidth() / 2, -image.getHeight() / 2);
+    AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+    return op.filter(image, null);
+  }
+
+  /**
+   * A caller's request for a thumbnail. Cancelling it guarantees that the callback is not called, provided that it is cancelled on the
+   * EDT (otherwise, a thumbnail that is already on its way might still be delivered).
+   */
+  public class ThumbnailRequest {
+    private final ThumbnailCallback callback;
+    private volatile boolean isCancelled = false;
+    // The load this request waits for, or null if the thumbnail was available right away. Guarded by loadsInProgress.
+    private ThumbnailLoad load;
+
+    private ThumbnailRequest(ThumbnailCallback callback) {
+      this.callback = callback;
+    }
+
+    public void cancel() {
+      synchronized (loadsInProgress) {
+        isCancelled = true;
+        if (load == null) {
+          return;
+        }
+        load.requests.remove(this);
+        if (load.requests.isEmpty()) {
+          // Nobody waits for this thumbnail anymore, so stop loading it. A later request will start a new load.
+          if (loadsInProgress.get(load.key) == load) {
+            loadsInProgress.remove(load.key);
+          }
+          load.future.cancel(true);
+        }
+        load = null;
+      }
+    }
+
+    public boolean isCancelled() {
+      return isCancelled;
+    }
+
+    private void deliver(@Nullable final BufferedImage thumbnail) {
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          if (!isCancelled) {
+            callback.thumbnailLoaded(thumbnail);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * A queued or running load of a thumbnail, shared by all the requests for that thumbnail.
+   */
+  private class ThumbnailLoad implements Runnable {
+    private final ConfigurationResult configurationResult;
+    private final BucketFileMetadata fileMetadata;
+    private final ThumbnailKey key;
+    // Guarded by loadsInProgress.
+    private final List<ThumbnailRequest> requests = new ArrayList<ThumbnailRequest>();
+    private Future<?> future;
+    private boolean isPrefetch;
+    private boolean isStarted = false;
+
+    private ThumbnailLoad(ConfigurationResult configurationResult, BucketFileMetadata fileMetadata, ThumbnailKey key, boolean isPrefetch) {
+      this.configurationResult = configurationResult;
+      this.fileMetadata = fileMetadata;
+      this.key = key;
+      this.isPrefetch = isPrefetch;
+    }
+
+    @Override
+    public void run() {
+      synchronized (loadsInProgress) {
+        // A prefetch that was moved to the shared pool might still get started by the prefetching thread, so run only the first one.
+        if (isStarted) {
+          return;
+        }
+        isStarted = true;
+      }
+      BufferedImage thumbnail = null;
+      try {
+        thumbnail = loadThumbnail(configurationResult, fileMetadata, key);
+      } finally {
+        List<ThumbnailRequest> waitingRequests;
+        synchronized (loadsInProgress) {
+          if (loadsInProgress.get(key) == this) {
+            loadsInProgress.remove(key);
+          }
+          waitingRequests = new ArrayList<ThumbnailRequest>(requests);
+          requests.clear();
+          for (ThumbnailRequest request : waitingRequests) {
+            request.load = null;
+          }
+        }
+        for (ThumbnailRequest request : waitingRequests) {
+          request.deliver(thumbnail);
+        }
+      }
+    }
+  }
+
+  /**
+   * Identifies a thumbnail by its source and the size it was scaled for. The source is either a static image or the metadata of
+   * a screenshot, which is compared by identity, since the same path holds different screenshots in different runs.
+   */
+  private static class ThumbnailKey {
+    private final Object source;
+    private final int width;
+    private final int height;
+
+    private ThumbnailKey(Object source, int width, int height) {
+      this.source = source;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      ThumbnailKey that = (ThumbnailKey)o;
+      return width == that.width && height == that.height && source.equals(that.source);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * source.hashCode() + width) + height;
+    }
+  }
+}
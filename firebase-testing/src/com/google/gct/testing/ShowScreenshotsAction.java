@@ -17,7 +17,6 @@ package com.google.gct.testing;
 
 import com.android.tools.analytics.UsageTracker;
 import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.gct.testing.results.GoogleCloudTestProxy.GoogleCloudRootTestProxy;
 import com.google.gct.testing.results.GoogleCloudTestResultsViewer;
@@ -83,8 +82,15 @@ public class ShowScreenshotsAction extends AnAction {
     AbstractTestProxy selectedConfigurationNode = selectedLeaf.getParent().getParent();
     ConfigurationInstance configurationInstance =
       ConfigurationInstance.parseFromResultsViewerDisplayString(selectedConfigurationNode.getName());
-    Map<String,ConfigurationResult> results =
-      CloudConfigurationHelper.getCloudResultsAdapter(rootNode.getTestRunId()).getResults();
+    CloudResultsAdapter cloudResultsAdapter = CloudConfigurationHelper.getCloudResultsAdapter(rootNode.getTestRunId());
+    CloudConfigurationImpl cloudConfiguration = CloudConfigurationHelper.getSelectedCloudConfiguration(rootNode.getTestRunId());
+    if (cloudResultsAdapter == null || cloudConfiguration == null) {
+      // The results of old runs are dropped to bound the memory usage.
+      CloudTestingUtils.showBalloonMessage(e.getData(PlatformDataKeys.PROJECT), "The results of this test run are no longer available",
+                                           MessageType.WARNING, 3);
+      return;
+    }
+    Map<String,ConfigurationResult> results = cloudResultsAdapter.getResults();
 
     if (results.get(configurationInstance.getEncodedString()).getScreenshotMetadata().isEmpty()) {
       showNoScreenshotsWarning(e);
@@ -97,12 +103,15 @@ public class ShowScreenshotsAction extends AnAction {
       ? null
       : ConfigurationInstance.parseFromResultsViewerDisplayString(anotherConfigurationNode.getName());
 
-    ArrayList<TestName> allTests = Lists.newArrayList(Iterables.transform(selectedLeaf.getParent().getChildren(), TO_TEST_NAMES));
+    // The children can change while the tests run, so snapshot them. The names are still computed lazily, such that the dialog names
+    // just the tests it shows.
+    List<AbstractTestProxy> testNodes = new ArrayList<AbstractTestProxy>(selectedLeaf.getParent().getChildren());
+    List<TestName> allTests = Lists.transform(testNodes, TO_TEST_NAMES);
 
     ScreenshotComparisonDialog dialog =
       new ScreenshotComparisonDialog(
         e.getData(PlatformDataKeys.PROJECT), rootNode,
-        CloudConfigurationHelper.getSelectedCloudConfiguration(rootNode.getTestRunId()),
+        cloudConfiguration,
         configurationInstance, anotherConfigurationInstance, allTests, getTestNameForNode(selectedLeaf), results);
 
     dialog.showDialog();
@@ -146,8 +155,16 @@ public class ShowScreenshotsAction extends AnAction {
     return null;
   }
 
+  /**
+   * Returns whether any test class of the configuration has a test, without collecting all tests of the configuration.
+   */
   private boolean hasTestResults(AbstractTestProxy configuration) {
-    return configuration.getAllTests().size() > configuration.getChildren().size() + 1;
+    for (AbstractTestProxy testClass : configuration.getChildren()) {
+      if (!testClass.getChildren().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
   }
 
   private static TestName getTestNameForNode(AbstractTestProxy testNode) {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.android.tools.idea.testartifacts.instrumented.AndroidTestRunConfiguration;
+import com.intellij.execution.junit.JUnitUtil;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiPackage;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiUtilCore;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the instrumentation test classes that a run configuration would run, such that they could be split into shards.
+ */
+class TestClassCollector {
+
+  // The default Gradle source set of instrumentation tests. Classes from other test source sets (e.g., local unit tests) are skipped.
+  private static final String ANDROID_TEST_SOURCE_SET_PATH = "/androidTest/";
+
+  private TestClassCollector() { } // Not instantiable.
+
+  /**
+   * Returns the fully qualified names of the test classes in the scope of the given run configuration, or an empty list if the
+   * configuration targets a single method. Waits for the indexing to finish, so should not be called on the EDT.
+   */
+  @NotNull
+  static List<String> collectTestClasses(@NotNull final AndroidTestRunConfiguration testRunConfiguration, @NotNull final Module module) {
+    final String packageName;
+    switch (testRunConfiguration.TESTING_TYPE) {
+      case AndroidTestRunConfiguration.TEST_ALL_IN_MODULE:
+        packageName = "";
+        break;
+      case AndroidTestRunConfiguration.TEST_ALL_IN_PACKAGE:
+        packageName = testRunConfiguration.PACKAGE_NAME;
+        break;
+      case AndroidTestRunConfiguration.TEST_CLASS:
+        List<String> testClasses = new ArrayList<String>();
+        testClasses.add(testRunConfiguration.CLASS_NAME);
+        return testClasses;
+      default:
+        return new ArrayList<String>();
+    }
+    return DumbService.getInstance(module.getProject()).runReadActionInSmartMode(new Computable<List<String>>() {
+      @Override
+      public List<String> compute() {
+        List<String> testClasses = new ArrayList<String>();
+        PsiPackage psiPackage = JavaPsiFacade.getInstance(module.getProject()).findPackage(packageName);
+        if (psiPackage != null) {
+          collectTestClasses(psiPackage, GlobalSearchScope.moduleScope(module), testClasses);
+        }
+        return testClasses;
+      }
+    });
+  }
+
+  private static void collectTestClasses(PsiPackage psiPackage, GlobalSearchScope scope, List<String> testClasses) {
+    for (PsiClass psiClass : psiPackage.getClasses(scope)) {
+      if (isInstrumentationTestClass(psiClass)) {
+        testClasses.add(psiClass.getQualifiedName());
+      }
+    }
+    for (PsiPackage subPackage : psiPackage.getSubPackages(scope)) {
+      collectTestClasses(subPackage, scope, testClasses);
+    }
+  }
+
+  private static boolean isInstrumentationTestClass(PsiClass psiClass) {
+    if (psiClass.getQualifiedName() == null || !JUnitUtil.isTestClass(psiClass)) {
+      return false;
+    }
+    VirtualFile file = PsiUtilCore.getVirtualFile(psiClass);
+    return file != null && file.getPath().contains(ANDROID_TEST_SOURCE_SET_PATH);
+  }
+}
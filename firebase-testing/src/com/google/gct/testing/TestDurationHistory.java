@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.gct.testing.launcher.TestShardPlanner;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Remembers how long each test took on each device (model and API level) in the past runs. The history is kept in an append-only file,
+ * which is replayed into an in-memory index on first use and compacted when it grows much larger than the index.
+ */
+public class TestDurationHistory {
+
+  private static final Logger LOG = Logger.getInstance(TestDurationHistory.class);
+
+  private static final String HISTORY_FILE_NAME = "test-durations.tsv";
+  private static final String FIELD_DELIMITER = "\t";
+  // The weight of the latest sample in the exponentially weighted moving average of a test's duration.
+  private static final double SAMPLE_WEIGHT = 0.3;
+  private static final int MIN_LINES_TO_COMPACT = 10000;
+
+  private static volatile TestDurationHistory instance;
+
+  private final File historyFile;
+  // Test class -> device (model and API level) -> test method -> average duration in millis.
+  private final Map<String, Map<String, Map<String, Long>>> durations = new HashMap<String, Map<String, Map<String, Long>>>();
+  private int indexSize = 0;
+  private int fileLineCount = 0;
+  private boolean isLoaded = false;
+
+
+  @VisibleForTesting
+  TestDurationHistory(@NotNull File historyFile) {
+    this.historyFile = historyFile;
+  }
+
+  @NotNull
+  public static TestDurationHistory getInstance() {
+    TestDurationHistory result = instance;
+    if (result == null) {
+      synchronized (TestDurationHistory.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new TestDurationHistory(new File(new File(PathManager.getSystemPath(), "firebase-testing"), HISTORY_FILE_NAME));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records the durations of tests that ran on the given device. Each duration is in millis.
+   */
+  public synchronized void recordDurations(@NotNull String deviceModel, @NotNull String apiLevel, @NotNull Map<TestName, Long> testDurations) {
+    ensureLoaded();
+    if (testDurations.isEmpty()) {
+      return;
+    }
+    String device = getDeviceKey(deviceModel, apiLevel);
+    StringBuilder lines = new StringBuilder();
+    for (Map.Entry<TestName, Long> testDuration : testDurations.entrySet()) {
+      TestName testName = testDuration.getKey();
+      if (!isValidField(testName.getClassName()) || !isValidField(testName.getMethodName())) {
+        continue;
+      }
+      addSample(testName.getClassName(), device, testName.getMethodName(), testDuration.getValue());
+      lines.append(testName.getClassName()).append(FIELD_DELIMITER).append(testName.getMethodName()).append(FIELD_DELIMITER)
+        .append(device).append(FIELD_DELIMITER).append(testDuration.getValue()).append('\n');
+      fileLineCount++;
+    }
+    boolean shouldCompact = fileLineCount > MIN_LINES_TO_COMPACT && fileLineCount > 2 * indexSize;
+    // The compacted file contains the new samples as well.
+    if (!shouldCompact || !compact()) {
+      append(lines.toString());
+    }
+  }
+
+  /**
+   * Returns the expected duration (in millis) of all known tests of the class on the given device, or -1 if the class never ran on it.
+   */
+  public synchronized long getClassDuration(@NotNull String testClass, @NotNull String deviceModel, @NotNull String apiLevel) {
+    ensureLoaded();
+    Map<String, Map<String, Long>> deviceDurations = durations.get(testClass);
+    if (deviceDurations == null) {
+      return -1;
+    }
+    Map<String, Long> methodDurations = deviceDurations.get(getDeviceKey(deviceModel, apiLevel));
+    return methodDurations == null ? -1 : sum(methodDurations.values());
+  }
+
+  /**
+   * Returns the average duration (in millis) of the class across all devices it ran on, or -1 if it never ran.
+   */
+  public synchronized long getClassDurationOnAnyDevice(@NotNull String testClass) {
+    ensureLoaded();
+    Map<String, Map<String, Long>> deviceDurations = durations.get(testClass);
+    if (deviceDurations == null || deviceDurations.isEmpty()) {
+      return -1;
+    }
+    long total = 0;
+    for (Map<String, Long> methodDurations : deviceDurations.values()) {
+      total += sum(methodDurations.values());
+    }
+    return total / deviceDurations.size();
+  }
+
+  /**
+   * Returns an estimator of how long a class takes in a matrix of the given devices, i.e., on its slowest device. Classes without any
+   * history are expected to take as long as a typical class that has some (or get a unit duration if there is no history at all).
+   */
+  @NotNull
+  public TestShardPlanner.DurationEstimator createDurationEstimator(@NotNull final List<String> deviceModels,
+                                                                    @NotNull final List<String> apiLevels,
+                                                                    @NotNull Collection<String> testClasses) {
+    List<Long> knownDurations = Lists.newArrayList();
+    for (String testClass : testClasses) {
+      long duration = estimateMatrixDuration(testClass, deviceModels, apiLevels);
+      if (duration >= 0) {
+        knownDurations.add(duration);
+      }
+    }
+    Collections.sort(knownDurations);
+    final long defaultDuration = knownDurations.isEmpty() ? 1 : knownDurations.get(knownDurations.size() / 2);
+    return new TestShardPlanner.DurationEstimator() {
+      @Override
+      public long estimateDuration(@NotNull String testClass) {
+        long duration = estimateMatrixDuration(testClass, deviceModels, apiLevels);
+        return duration >= 0 ? duration : defaultDuration;
+      }
+    };
+  }
+
+  /**
+   * Returns the expected duration (in millis) of the class on the slowest of the given devices, or -1 if the class never ran.
+   */
+  public synchronized long estimateMatrixDuration(@NotNull String testClass, @NotNull List<String> deviceModels,
+                                                  @NotNull List<String> apiLevels) {
+    long maxDuration = -1;
+    boolean isMissingDevice = false;
+    for (String deviceModel : deviceModels) {
+      for (String apiLevel : apiLevels) {
+        long duration = getClassDuration(testClass, deviceModel, apiLevel);
+        if (duration < 0) {
+          isMissingDevice = true;
+        }
+        maxDuration = Math.max(maxDuration, duration);
+      }
+    }
+    if (isMissingDevice) {
+      // Fall back to other devices rather than underestimating the matrix.
+      maxDuration = Math.max(maxDuration, getClassDurationOnAnyDevice(testClass));
+    }
+    return maxDuration;
+  }
+
+  private void addSample(String testClass, String device, String testMethod, long duration) {
+    Map<String, Map<String, Long>> deviceDurations = durations.get(testClass);
+    if (deviceDurations == null) {
+      deviceDurations = new HashMap<String, Map<String, Long>>();
+      durations.put(testClass, deviceDurations);
+    }
+    Map<String, Long> methodDurations = deviceDurations.get(device);
+    if (methodDurations == null) {
+      methodDurations = new HashMap<String, Long>();
+      deviceDurations.put(device, methodDurations);
+    }
+    Long previousDuration = methodDurations.get(testMethod);
+    if (previousDuration == null) {
+      indexSize++;
+      methodDurations.put(testMethod, duration);
+    } else {
+      methodDurations.put(testMethod, Math.round(SAMPLE_WEIGHT * duration + (1 - SAMPLE_WEIGHT) * previousDuration));
+    }
+  }
+
+  private void ensureLoaded() {
+    if (isLoaded) {
+      return;
+    }
+    isLoaded = true;
+    if (!historyFile.exists()) {
+      return;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(historyFile), Charsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        fileLineCount++;
+        String[] fields = line.split(FIELD_DELIMITER);
+        if (fields.length != 5) {
+          continue; // Tolerate a partially written last line.
+        }
+        try {
+          addSample(fields[0], fields[2] + FIELD_DELIMITER + fields[3], fields[1], Long.parseLong(fields[4]));
+        } catch (NumberFormatException e) {
+          // Skip the corrupted line.
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read firebase test duration history", e);
+    } finally {
+      closeQuietly(reader);
+    }
+  }
+
+  private void append(String lines) {
+    Writer writer = null;
+    try {
+      historyFile.getParentFile().mkdirs();
+      writer = new OutputStreamWriter(new FileOutputStream(historyFile, true), Charsets.UTF_8);
+      writer.write(lines);
+    } catch (IOException e) {
+      LOG.warn("Failed to update firebase test duration history", e);
+    } finally {
+      closeQuietly(writer);
+    }
+  }
+
+  /**
+   * Rewrites the history file such that it contains a single line (the current average) per test and device.
+   * Returns {@code false} if the original file is left in place.
+   */
+  private boolean compact() {
+    File compactedFile = new File(historyFile.getPath() + ".tmp");
+    Writer writer = null;
+    try {
+      historyFile.getParentFile().mkdirs();
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compactedFile), Charsets.UTF_8));
+      for (Map.Entry<String, Map<String, Map<String, Long>>> classEntry : durations.entrySet()) {
+        for (Map.Entry<String, Map<String, Long>> deviceEntry : classEntry.getValue().entrySet()) {
+          for (Map.Entry<String, Long> methodEntry : deviceEntry.getValue().entrySet()) {
+            writer.write(classEntry.getKey() + FIELD_DELIMITER + methodEntry.getKey() + FIELD_DELIMITER + deviceEntry.getKey()
+                         + FIELD_DELIMITER + methodEntry.getValue() + "\n");
+          }
+        }
+      }
+      writer.close();
+      writer = null;
+      if (historyFile.delete() || !historyFile.exists()) {
+        if (compactedFile.renameTo(historyFile)) {
+          fileLineCount = indexSize;
+          return true;
+        }
+      }
+      LOG.warn("Failed to replace firebase test duration history with its compacted version");
+    } catch (IOException e) {
+      LOG.warn("Failed to compact firebase test duration history", e);
+    } finally {
+      closeQuietly(writer);
+    }
+    return false;
+  }
+
+  private static String getDeviceKey(String deviceModel, String apiLevel) {
+    return deviceModel + FIELD_DELIMITER + apiLevel;
+  }
+
+  private static boolean isValidField(String field) {
+    return field != null && !field.isEmpty() && !field.contains(FIELD_DELIMITER) && !field.contains("\n");
+  }
+
+  private static long sum(Collection<Long> values) {
+    long sum = 0;
+    for (Long value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        //ignore
+      }
+    }
+  }
+}
@@ -15,7 +15,11 @@
  */
 package com.google.gct.testing.config;
 
+import com.google.gct.testing.CloudDevicePool;
 import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.local.LocalTestLabServer;
+import com.google.gct.testing.vnc.CloudDeviceKeepAliveScheduler;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.options.Configurable;
 import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.options.OptionalConfigurable;
@@ -27,14 +31,25 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 
 import static com.google.gct.testing.config.GoogleCloudTestingDeveloperConfigurable.BackendOption.*;
 
 public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigurable, SearchableConfigurable, Configurable.NoScroll {
 
+  private static final Logger LOG = Logger.getInstance(GoogleCloudTestingDeveloperConfigurable.class);
+
   public final static String SHOW_GOOGLE_CLOUD_TESTING_SETTINGS = "show.google.cloud.testing.settings";
 
-  enum BackendOption {PROD, STAGING, TEST, CUSTOM};
+  enum BackendOption {PROD, STAGING, TEST, CUSTOM, LOCAL};
+
+  private static final int MAX_SHARD_COUNT = 50;
+  private static final int MAX_WARM_DEVICES_PER_CONFIGURATION = 5;
+  private static final int MAX_WARM_DEVICES = 20;
+  private static final int MAX_WARM_DEVICE_IDLE_MINUTES = 240;
+  private static final int MIN_DEVICE_IDLE_TIMEOUT_SECONDS = 30;
+  private static final int MAX_DEVICE_IDLE_TIMEOUT_SECONDS = 60 * 60;
+  private static final int DEFAULT_DEVICE_IDLE_TIMEOUT_SECONDS = 3 * 60;
 
   private final Project project;
 
@@ -52,6 +67,14 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
   private JTextField testUrlField = new JTextField("https://test-testing.sandbox.googleapis.com");
   private JRadioButton useCustom = new JRadioButton("Custom");
   private JTextField customUrlField = new JTextField("");
+  private JRadioButton useLocal = new JRadioButton("Local");
+  private JTextField localUrlField = new JTextField("Simulated backend, started on demand");
+  private JSpinner shardCountSpinner = new JSpinner(new SpinnerNumberModel(1, 1, MAX_SHARD_COUNT, 1));
+  private JSpinner warmDevicesPerConfigurationSpinner = new JSpinner(new SpinnerNumberModel(0, 0, MAX_WARM_DEVICES_PER_CONFIGURATION, 1));
+  private JSpinner maxWarmDevicesSpinner = new JSpinner(new SpinnerNumberModel(2, 1, MAX_WARM_DEVICES, 1));
+  private JSpinner warmDeviceIdleMinutesSpinner = new JSpinner(new SpinnerNumberModel(15, 1, MAX_WARM_DEVICE_IDLE_MINUTES, 1));
+  private JSpinner deviceIdleTimeoutSecondsSpinner = new JSpinner(new SpinnerNumberModel(
+    DEFAULT_DEVICE_IDLE_TIMEOUT_SECONDS, MIN_DEVICE_IDLE_TIMEOUT_SECONDS, MAX_DEVICE_IDLE_TIMEOUT_SECONDS, 10));
 
   public GoogleCloudTestingDeveloperConfigurable(Project project) {
     this.project = project;
@@ -83,10 +106,12 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     urlGroup.add(useStaging);
     urlGroup.add(useTest);
     urlGroup.add(useCustom);
+    urlGroup.add(useLocal);
 
     prodUrlField.setEditable(false);
     stagingUrlField.setEditable(false);
     testUrlField.setEditable(false);
+    localUrlField.setEditable(false);
 
     content.add(new JLabel("Backend URL to use for test requests:"), createSettingsGbc(0, 2));
     content.add(useProd, createSettingsGbc(0, 3));
@@ -97,6 +122,26 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     content.add(testUrlField, createSettingsGbc(1, 5));
     content.add(useCustom, createSettingsGbc(0, 6));
     content.add(customUrlField, createSettingsGbc(1, 6));
+    useLocal.setToolTipText("Run against an embedded simulation of the backend (see the firebase.testing.local.* system properties)");
+    content.add(useLocal, createSettingsGbc(0, 7));
+    content.add(localUrlField, createSettingsGbc(1, 7));
+
+    shardCountSpinner.setToolTipText("Split the tests of a matrix run into this many parallel executions per configuration");
+    content.add(new JLabel("Test shards per matrix:"), createSettingsGbc(0, 8));
+    content.add(shardCountSpinner, createSettingsGbc(1, 8));
+
+    warmDevicesPerConfigurationSpinner.setToolTipText("Keep this many firebase devices booted for each recently debugged configuration");
+    content.add(new JLabel("Warm devices per configuration:"), createSettingsGbc(0, 9));
+    content.add(warmDevicesPerConfigurationSpinner, createSettingsGbc(1, 9));
+    maxWarmDevicesSpinner.setToolTipText("Never keep more than this many warm firebase devices in total");
+    content.add(new JLabel("Max warm devices:"), createSettingsGbc(0, 10));
+    content.add(maxWarmDevicesSpinner, createSettingsGbc(1, 10));
+    warmDeviceIdleMinutesSpinner.setToolTipText("Delete the warm devices of configurations that were not debugged for this long");
+    content.add(new JLabel("Warm device idle timeout (minutes):"), createSettingsGbc(0, 11));
+    content.add(warmDeviceIdleMinutesSpinner, createSettingsGbc(1, 11));
+    deviceIdleTimeoutSecondsSpinner.setToolTipText("How long the backend keeps a firebase device that receives no keep-alives");
+    content.add(new JLabel("Device idle timeout (seconds):"), createSettingsGbc(0, 12));
+    content.add(deviceIdleTimeoutSecondsSpinner, createSettingsGbc(1, 12));
 
     return panel;
   }
@@ -129,10 +174,20 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     boolean stateShouldUseFakeBucket = state == null ? false : state.shouldUseFakeBucket;
     int backendOption = state == null ? 0 : state.backendOption;
     String customUrl = state == null ? "" : state.customUrl;
+    int shardCount = state == null ? 1 : state.shardCount;
+    int warmDevicesPerConfiguration = state == null ? 0 : state.warmDevicesPerConfiguration;
+    int maxWarmDevices = state == null ? 2 : state.maxWarmDevices;
+    int warmDeviceIdleMinutes = state == null ? 15 : state.warmDeviceIdleMinutes;
+    int deviceIdleTimeoutSeconds = state == null ? DEFAULT_DEVICE_IDLE_TIMEOUT_SECONDS : state.deviceIdleTimeoutSeconds;
     return !stateFakeBucketName.equals(fakeBucketNameField.getText())
            || stateShouldUseFakeBucket != useFakeBucketCheckbox.isSelected()
            || backendOption != getBackendOption().ordinal()
-           || !customUrl.equals(customUrlField.getText());
+           || !customUrl.equals(customUrlField.getText())
+           || shardCount != (Integer)shardCountSpinner.getValue()
+           || warmDevicesPerConfiguration != (Integer)warmDevicesPerConfigurationSpinner.getValue()
+           || maxWarmDevices != (Integer)maxWarmDevicesSpinner.getValue()
+           || warmDeviceIdleMinutes != (Integer)warmDeviceIdleMinutesSpinner.getValue()
+           || deviceIdleTimeoutSeconds != (Integer)deviceIdleTimeoutSecondsSpinner.getValue();
   }
 
   @Override
@@ -143,8 +198,19 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     state.backendOption = getBackendOption().ordinal();
     state.backendUrl = getTestBackendUrl();
     state.customUrl = customUrlField.getText();
+    state.shardCount = (Integer)shardCountSpinner.getValue();
+    state.warmDevicesPerConfiguration = (Integer)warmDevicesPerConfigurationSpinner.getValue();
+    state.maxWarmDevices = (Integer)maxWarmDevicesSpinner.getValue();
+    state.warmDeviceIdleMinutes = (Integer)warmDeviceIdleMinutesSpinner.getValue();
+    state.deviceIdleTimeoutSeconds = (Integer)deviceIdleTimeoutSecondsSpinner.getValue();
     getSavedSettings().loadState(state);
-    CloudAuthenticator.getInstance().recreateTestAndToolResults(getTestBackendUrl(), getToolResultsBackendUrl());
+    CloudDevicePool.getInstance().configure(state);
+    CloudDeviceKeepAliveScheduler.getInstance().configure(state);
+    try {
+      applyBackend();
+    } catch (IOException e) {
+      throw new ConfigurationException("Failed to start the local backend: " + e.getMessage());
+    }
   }
 
   @Override
@@ -154,7 +220,35 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     useFakeBucketCheckbox.setSelected(state == null ? false : state.shouldUseFakeBucket);
     setBackendOption(BackendOption.values()[state == null ? 0 : state.backendOption]);
     customUrlField.setText(state == null ? "" : state.customUrl);
-    CloudAuthenticator.getInstance().recreateTestAndToolResults(getTestBackendUrl(), getToolResultsBackendUrl());
+    shardCountSpinner.setValue(state == null ? 1 : Math.max(1, Math.min(MAX_SHARD_COUNT, state.shardCount)));
+    warmDevicesPerConfigurationSpinner.setValue(
+      state == null ? 0 : Math.max(0, Math.min(MAX_WARM_DEVICES_PER_CONFIGURATION, state.warmDevicesPerConfiguration)));
+    maxWarmDevicesSpinner.setValue(state == null ? 2 : Math.max(1, Math.min(MAX_WARM_DEVICES, state.maxWarmDevices)));
+    warmDeviceIdleMinutesSpinner.setValue(
+      state == null ? 15 : Math.max(1, Math.min(MAX_WARM_DEVICE_IDLE_MINUTES, state.warmDeviceIdleMinutes)));
+    deviceIdleTimeoutSecondsSpinner.setValue(state == null ? DEFAULT_DEVICE_IDLE_TIMEOUT_SECONDS : Math.max(
+      MIN_DEVICE_IDLE_TIMEOUT_SECONDS, Math.min(MAX_DEVICE_IDLE_TIMEOUT_SECONDS, state.deviceIdleTimeoutSeconds)));
+    try {
+      applyBackend();
+    } catch (IOException e) {
+      LOG.warn("Failed to start the local backend, using prod instead", e);
+      setBackendOption(PROD);
+      CloudAuthenticator.getInstance().recreateTestAndToolResults(getTestBackendUrl(), getToolResultsBackendUrl());
+    }
+  }
+
+  /**
+   * Points the clients at the selected backend, starting the local one if it is selected (and stopping it otherwise).
+   */
+  private void applyBackend() throws IOException {
+    if (getBackendOption() != LOCAL) {
+      LocalTestLabServer.getInstance().stop();
+      CloudAuthenticator.getInstance().recreateTestAndToolResults(getTestBackendUrl(), getToolResultsBackendUrl());
+      return;
+    }
+    String localBackendUrl = LocalTestLabServer.getInstance().start();
+    localUrlField.setText(localBackendUrl);
+    CloudAuthenticator.getInstance().useLocalBackend(localBackendUrl);
   }
 
   private BackendOption getBackendOption() {
@@ -170,6 +264,9 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     if (useCustom.isSelected()) {
       return CUSTOM;
     }
+    if (useLocal.isSelected()) {
+      return LOCAL;
+    }
     throw new RuntimeException("No URL option is selected!");
   }
 
@@ -183,6 +280,8 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
         return testUrlField.getText();
       case CUSTOM:
         return customUrlField.getText();
+      case LOCAL:
+        return localUrlField.getText();
       default:
         throw new RuntimeException("No URL option is selected!");
     }
@@ -213,6 +312,9 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
       case CUSTOM:
         useCustom.setSelected(true);
         break;
+      case LOCAL:
+        useLocal.setSelected(true);
+        break;
       default:
         throw new RuntimeException("Unsupported backend option: " + backendOption);
     }
@@ -235,6 +337,13 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     testUrlField = null;
     useCustom = null;
     customUrlField = null;
+    useLocal = null;
+    localUrlField = null;
+    shardCountSpinner = null;
+    warmDevicesPerConfigurationSpinner = null;
+    maxWarmDevicesSpinner = null;
+    warmDeviceIdleMinutesSpinner = null;
+    deviceIdleTimeoutSecondsSpinner = null;
   }
 
   @NotNull
@@ -260,5 +369,15 @@ public class GoogleCloudTestingDeveloperConfigurable implements OptionalConfigur
     public int backendOption = 0;
     public String backendUrl = "";
     public String customUrl = "";
+    // The number of shards (i.e., parallel matrix executions) to split the tests into, 1 means no sharding.
+    public int shardCount = 1;
+    // The number of booted firebase devices to keep for each recently debugged configuration instance, 0 disables the warm pool.
+    public int warmDevicesPerConfiguration = 0;
+    // The cap on the total number of warm devices across all configuration instances.
+    public int maxWarmDevices = 2;
+    // The warm devices of a configuration instance are deleted once it was not debugged for this long.
+    public int warmDeviceIdleMinutes = 15;
+    // How long the backend keeps a firebase device that receives no keep-alives, which sets how often the devices are kept alive.
+    public int deviceIdleTimeoutSeconds = DEFAULT_DEVICE_IDLE_TIMEOUT_SECONDS;
   }
 }
@@ -24,31 +24,63 @@ import com.google.api.services.storage.Storage;
 import com.google.api.services.testing.Testing;
 import com.google.api.services.testing.model.AndroidDeviceCatalog;
 import com.google.api.services.toolresults.Toolresults;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gct.login.GoogleLogin;
 import com.google.gct.testing.CloudTestingUtils;
+import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class CloudAuthenticator {
 
+  private static final Logger LOG = Logger.getInstance(CloudAuthenticator.class);
+
   private static final String APPLICATION_NAME = "GCTL";
 
-  private static CloudAuthenticator instance;
+  // Refresh the access token well before it expires, such that API calls never have to refresh it synchronously.
+  private static final long TOKEN_REFRESH_MARGIN_SECONDS = 5 * 60; // 5 minutes
+  private static final long MIN_TOKEN_REFRESH_DELAY_SECONDS = 30;
+
+  private static volatile CloudAuthenticator instance;
+
+  // Guards the creation of the transport, the credential, and all clients below. Never held while the user is asked to log in.
+  private final Object myLock = new Object();
+  // Serializes the authorizations, such that concurrent first accesses ask the user to log in just once.
+  private final Object myAuthorizationLock = new Object();
 
   /** Global instance of the HTTP transport. */
-  private HttpTransport myHttpTransport;
-  private Credential myCredential;
-  private Storage myStorage;
-  private Testing myTest;
-  private Toolresults myToolresults;
-  private long myLastDiscoveryServiceInvocationTimestamp = -1;
+  private volatile HttpTransport myHttpTransport;
+  private volatile Credential myCredential;
+  private volatile Storage myStorage;
+  private volatile Storage myPublicStorage;
+  private volatile Testing myTest;
+  private volatile Toolresults myToolresults;
+  private volatile long myLastDiscoveryServiceInvocationTimestamp = -1;
+  // Whether the clients talk to a local stand-in backend rather than to the real one.
+  private volatile boolean myIsUsingLocalBackend = false;
+
+  private final ScheduledExecutorService myTokenRefresher = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setNameFormat("Firebase Credential Refresher").setDaemon(true).build());
+  private ScheduledFuture<?> myScheduledTokenRefresh;
 
 
   @NotNull
   public static CloudAuthenticator getInstance() {
-    if (instance == null) {
-      instance = new CloudAuthenticator();
+    CloudAuthenticator result = instance;
+    if (result == null) {
+      synchronized (CloudAuthenticator.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudAuthenticator();
+        }
+      }
     }
-    return instance;
+    return result;
   }
 
   /**
@@ -56,49 +88,99 @@ public class CloudAuthenticator {
    */
   @VisibleForTesting
   public static void setInstance(CloudAuthenticator testInstance) {
-    instance = testInstance;
+    synchronized (CloudAuthenticator.class) {
+      instance = testInstance;
+    }
   }
 
   public Storage getPublicStorage() {
-    if (myHttpTransport == null) {
-      myHttpTransport = createHttpTransport();
+    Storage storage = myPublicStorage;
+    if (storage != null) {
+      return storage;
+    }
+    synchronized (myLock) {
+      if (myPublicStorage == null) {
+        // A storage accessible to anyone without authentication and authorization (null credential).
+        myPublicStorage =
+          new Storage.Builder(getHttpTransport(), JacksonFactory.getDefaultInstance(), null).setApplicationName(APPLICATION_NAME).build();
+      }
+      return myPublicStorage;
     }
-    // A storage accessible to anyone without authentication and authorization (null credential).
-    return new Storage.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), null).setApplicationName(APPLICATION_NAME).build();
   }
 
   public Storage getStorage() {
+    Storage storage = myStorage;
+    if (storage != null) {
+      return storage;
+    }
     prepareCredential();
-    if (myStorage == null) {
-      myStorage =
-        new Storage.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME).build();
+    synchronized (myLock) {
+      if (myStorage == null) {
+        myStorage =
+          new Storage.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME).build();
+      }
+      return myStorage;
+    }
+  }
+
+  /**
+   * Points all clients at a local stand-in backend (see {@link com.google.gct.testing.local.LocalTestLabServer}), which serves
+   * the Testing, Toolresults and Storage APIs from the given root URL and needs no credential.
+   */
+  public void useLocalBackend(String localBackendUrl) {
+    synchronized (myLock) {
+      myIsUsingLocalBackend = true;
+      HttpTransport httpTransport = getHttpTransport();
+      myTest = new Testing.Builder(httpTransport, JacksonFactory.getDefaultInstance(), null).setApplicationName(APPLICATION_NAME)
+        .setRootUrl(localBackendUrl).build();
+      myToolresults = new Toolresults.Builder(httpTransport, JacksonFactory.getDefaultInstance(), null)
+        .setApplicationName(APPLICATION_NAME).setRootUrl(localBackendUrl).build();
+      myStorage = new Storage.Builder(httpTransport, JacksonFactory.getDefaultInstance(), null).setApplicationName(APPLICATION_NAME)
+        .setRootUrl(localBackendUrl).build();
+      myPublicStorage = myStorage;
     }
-    return myStorage;
   }
 
   public void recreateTestAndToolResults(String testBackendUrl, String toolResultsBackendUrl) {
+    synchronized (myLock) {
+      if (myIsUsingLocalBackend) {
+        // Switching back from the local backend, so let the storage clients be recreated for the real one.
+        myIsUsingLocalBackend = false;
+        myStorage = null;
+        myPublicStorage = null;
+      }
+    }
     prepareCredential();
-    myTest =
-      new Testing.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME)
-        .setRootUrl(testBackendUrl).build();
-    myToolresults =
-      new Toolresults.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME)
-        .setRootUrl(toolResultsBackendUrl).build();
+    synchronized (myLock) {
+      myTest =
+        new Testing.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME)
+          .setRootUrl(testBackendUrl).build();
+      myToolresults =
+        new Toolresults.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME)
+          .setRootUrl(toolResultsBackendUrl).build();
+    }
   }
 
   public Testing getTest() {
+    Testing test = myTest;
+    if (test != null) {
+      return test;
+    }
     prepareCredential();
-    if (myTest == null) {
-      myTest =
-        new Testing.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME).build();
+    synchronized (myLock) {
+      if (myTest == null) {
+        myTest =
+          new Testing.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME).build();
+      }
+      return myTest;
     }
-    return myTest;
   }
 
   public AndroidDeviceCatalog getAndroidDeviceCatalog() {
     long currentTimestamp = System.currentTimeMillis();
     try {
-      AndroidDeviceCatalog catalog = getTest().testEnvironmentCatalog().get("ANDROID").execute().getAndroidDeviceCatalog();
+      AndroidDeviceCatalog catalog =
+        CloudRequestExecutor.getInstance().execute(getTest().testEnvironmentCatalog().get("ANDROID")).getAndroidDeviceCatalog();
       if (catalog.getVersions().isEmpty() || catalog.getModels().isEmpty() || catalog.getRuntimeConfiguration().getLocales().isEmpty()
         || catalog.getRuntimeConfiguration().getOrientations().isEmpty()) {
         showDeviceCatalogError("Android device catalog is empty for some dimensions", currentTimestamp);
@@ -122,24 +204,74 @@ public class CloudAuthenticator {
   }
 
   public Toolresults getToolresults() {
+    Toolresults toolresults = myToolresults;
+    if (toolresults != null) {
+      return toolresults;
+    }
     prepareCredential();
-    if (myToolresults == null) {
-      myToolresults =
-        new Toolresults.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME)
-          .build();
+    synchronized (myLock) {
+      if (myToolresults == null) {
+        myToolresults =
+          new Toolresults.Builder(myHttpTransport, JacksonFactory.getDefaultInstance(), myCredential).setApplicationName(APPLICATION_NAME)
+            .build();
+      }
+      return myToolresults;
     }
-    return myToolresults;
   }
 
   public void prepareCredential() {
-    if (myHttpTransport == null) {
-      myHttpTransport = createHttpTransport();
+    if (myIsUsingLocalBackend || myHttpTransport != null && myCredential != null) {
+      return;
     }
-    if (myCredential == null) {
-      if (!authorize()) {
+    getHttpTransport();
+    // Logging in might show the login dialog, so do not hold myLock meanwhile, which would block every getter (even on the EDT).
+    synchronized (myAuthorizationLock) {
+      if (myCredential != null) {
+        return;
+      }
+      Credential credential = loadCredential();
+      if (credential == null) {
         throw new RuntimeException("Failed to authorize to Google Cloud!");
       }
-      myCredential = GoogleLogin.getInstance().getCredential();
+      synchronized (myLock) {
+        myCredential = credential;
+      }
+      scheduleTokenRefresh(credential);
+    }
+  }
+
+  /**
+   * Returns the credential of the logged in user, asking the user to log in if needed, or null if the user did not log in.
+   */
+  @VisibleForTesting
+  @Nullable
+  Credential loadCredential() {
+    return authorize() ? GoogleLogin.getInstance().getCredential() : null;
+  }
+
+  @VisibleForTesting
+  @Nullable
+  Credential getCredential() {
+    return myCredential;
+  }
+
+  @VisibleForTesting
+  boolean isTokenRefreshScheduled() {
+    synchronized (myLock) {
+      return myScheduledTokenRefresh != null && !myScheduledTokenRefresh.isDone();
+    }
+  }
+
+  private HttpTransport getHttpTransport() {
+    HttpTransport httpTransport = myHttpTransport;
+    if (httpTransport != null) {
+      return httpTransport;
+    }
+    synchronized (myLock) {
+      if (myHttpTransport == null) {
+        myHttpTransport = createHttpTransport();
+      }
+      return myHttpTransport;
     }
   }
 
@@ -152,6 +284,57 @@ public class CloudAuthenticator {
     }
   }
 
+  /**
+   * Schedules a background refresh of the access token shortly before it expires. Otherwise, the first request after the expiration
+   * would block on a synchronous OAuth round trip (e.g., on the polling or the VNC keep alive thread). If the expiration is unknown,
+   * nothing is scheduled, and the credential refreshes the token when a request is rejected with 401.
+   */
+  private void scheduleTokenRefresh(@Nullable final Credential credential) {
+    if (credential == null) {
+      return;
+    }
+    long delay = getTokenRefreshDelaySeconds(credential.getExpiresInSeconds());
+    synchronized (myLock) {
+      if (myScheduledTokenRefresh != null) {
+        myScheduledTokenRefresh.cancel(false);
+      }
+      myScheduledTokenRefresh = null;
+      if (delay < 0) {
+        return;
+      }
+      myScheduledTokenRefresh = myTokenRefresher.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (credential != myCredential) {
+            return; // The credential was replaced in the meantime.
+          }
+          Long expiresIn = credential.getExpiresInSeconds();
+          if (expiresIn != null && expiresIn <= TOKEN_REFRESH_MARGIN_SECONDS) {
+            try {
+              credential.refreshToken();
+            }
+            catch (Exception e) {
+              // Not fatal, the credential will still refresh itself on the next request if needed.
+              LOG.warn("Failed to refresh firebase credential in background", e);
+            }
+          }
+          scheduleTokenRefresh(credential);
+        }
+      }, delay, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Returns in how many seconds to refresh a token that expires in the given number of seconds, or -1 if the expiration is unknown.
+   */
+  @VisibleForTesting
+  static long getTokenRefreshDelaySeconds(@Nullable Long expiresInSeconds) {
+    if (expiresInSeconds == null) {
+      return -1;
+    }
+    return Math.max(expiresInSeconds - TOKEN_REFRESH_MARGIN_SECONDS, MIN_TOKEN_REFRESH_DELAY_SECONDS);
+  }
+
   /**
    * Authorizes the installed application to access user's protected data.
    */
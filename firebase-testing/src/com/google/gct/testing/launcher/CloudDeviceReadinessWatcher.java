@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.launcher;
+
+import com.google.api.services.testing.model.Device;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Polls the state of booting firebase devices, such that no thread is parked while a device boots. A shared scheduler only times
+ * the polls, which are sent from a pool of threads, so a slow or retried poll of one device does not hold back the others.
+ * The polling is slow during the early boot and speeds up once the device is about to become ready.
+ */
+public class CloudDeviceReadinessWatcher {
+
+  private static final Logger LOG = Logger.getInstance(CloudDeviceReadinessWatcher.class);
+
+  public static final String READY_STATE = "READY";
+  public static final String ERROR_STATE = "DEVICE_ERROR";
+
+  // The states after which the device typically becomes ready within seconds.
+  private static final Set<String> LATE_BOOT_STATES = ImmutableSet.of("DEVICE_STARTING", "CONNECTING");
+  private static final long EARLY_BOOT_POLLING_INTERVAL_MILLIS = 5 * 1000; // 5 seconds
+  private static final long LATE_BOOT_POLLING_INTERVAL_MILLIS = 1000; // 1 second
+  // A poll that fails after the retries of the request executor is retried in the next polling interval up to this many times in a row.
+  private static final int MAX_CONSECUTIVE_POLL_FAILURES = 3;
+
+  private static volatile CloudDeviceReadinessWatcher instance;
+
+  private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setNameFormat("Firebase Device Readiness Watcher").setDaemon(true).build());
+  private final ExecutorService myPoller =
+    Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("Firebase Device Readiness Poller %d").setDaemon(true).build());
+
+
+  @NotNull
+  public static CloudDeviceReadinessWatcher getInstance() {
+    CloudDeviceReadinessWatcher result = instance;
+    if (result == null) {
+      synchronized (CloudDeviceReadinessWatcher.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudDeviceReadinessWatcher();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a future of the given device that completes once the device is ready. The future fails with {@link DeviceErrorException}
+   * if the device fails to boot, with {@link TimeoutException} if it does not become ready within the timeout, and with the error of
+   * the last poll if several polls in a row fail. Cancelling the future stops the polling.
+   */
+  @NotNull
+  public ListenableFuture<Device> watch(@NotNull String cloudProjectId, @NotNull Device device, long timeoutMillis) {
+    if (READY_STATE.equals(device.getState())) {
+      return Futures.immediateFuture(device);
+    }
+    DeviceWatch deviceWatch = new DeviceWatch(cloudProjectId, device.getId(), System.currentTimeMillis() + timeoutMillis);
+    myPoller.execute(deviceWatch);
+    return deviceWatch.future;
+  }
+
+  static long getPollingInterval(String state) {
+    return LATE_BOOT_STATES.contains(state) ? LATE_BOOT_POLLING_INTERVAL_MILLIS : EARLY_BOOT_POLLING_INTERVAL_MILLIS;
+  }
+
+  private class DeviceWatch implements Runnable {
+    private final String cloudProjectId;
+    private final String deviceId;
+    private final long deadline;
+    private final SettableFuture<Device> future = SettableFuture.create();
+    // Only accessed by the poll in progress.
+    private int consecutiveFailures = 0;
+
+    private DeviceWatch(String cloudProjectId, String deviceId, long deadline) {
+      this.cloudProjectId = cloudProjectId;
+      this.deviceId = deviceId;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      if (future.isDone()) {
+        return; // Cancelled by the caller.
+      }
+      Device device;
+      try {
+        device = CloudRequestExecutor.getInstance()
+          .execute(CloudAuthenticator.getInstance().getTest().projects().devices().get(cloudProjectId, deviceId));
+      } catch (Exception e) {
+        if (++consecutiveFailures >= MAX_CONSECUTIVE_POLL_FAILURES) {
+          future.setException(e);
+        } else {
+          LOG.warn("Failed to poll firebase device " + deviceId + ", will retry", e);
+          scheduleNextPoll(EARLY_BOOT_POLLING_INTERVAL_MILLIS);
+        }
+        return;
+      }
+      consecutiveFailures = 0;
+      String state = device.getState();
+      LOG.debug("Polled firebase device " + deviceId + ", state: " + state);
+      if (READY_STATE.equals(state)) {
+        future.set(device);
+      } else if (ERROR_STATE.equals(state)) {
+        future.setException(new DeviceErrorException(deviceId));
+      } else {
+        scheduleNextPoll(getPollingInterval(state));
+      }
+    }
+
+    private void scheduleNextPoll(long pollingInterval) {
+      if (System.currentTimeMillis() >= deadline) {
+        future.setException(new TimeoutException("Timed out waiting for firebase device " + deviceId));
+        return;
+      }
+      long delay = Math.min(pollingInterval, Math.max(0, deadline - System.currentTimeMillis()));
+      myScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          myPoller.execute(DeviceWatch.this);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Signals that a firebase device went to the error state rather than becoming ready.
+   */
+  public static class DeviceErrorException extends Exception {
+    public DeviceErrorException(String deviceId) {
+      super("The firebase device " + deviceId + " has ERROR state");
+    }
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.launcher;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gct.testing.CloudMetrics;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * The single place through which the plugin executes its Testing, Storage and Toolresults requests.
+ *
+ * <p>Every call gets classified retries with exponential backoff and jitter (honoring {@code Retry-After}) and goes through a per-endpoint
+ * circuit breaker. Idempotent reads executed through {@link #executeHedged} additionally send a duplicate request once the first one
+ * takes longer than the endpoint's recent latency percentile.
+ */
+public class CloudRequestExecutor {
+
+  private static final Logger LOG = Logger.getInstance(CloudRequestExecutor.class);
+
+  public static final String DISABLE_REQUEST_HEDGING = "firebase.testing.disable.request.hedging";
+
+  private static final int DEFAULT_MAX_ATTEMPTS = 4;
+  private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 20 * 1000; // 20 seconds
+  private static final long MAX_RETRY_AFTER_MILLIS = 60 * 1000; // 1 minute
+
+  private static final double HEDGING_PERCENTILE = 0.95;
+  private static final long MIN_HEDGING_DELAY_MILLIS = 100;
+
+  private static volatile CloudRequestExecutor instance;
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final Random random = new Random();
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+  private final ConcurrentMap<String, LatencyTracker> latencyTrackers = new ConcurrentHashMap<String, LatencyTracker>();
+  private final ExecutorService hedgingExecutor =
+    Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("Firebase Hedged Request %d").setDaemon(true).build());
+
+  /**
+   * A single remote call. Implementations that are passed to {@link #executeHedged} must build a fresh request on every invocation,
+   * since the call might be running twice at the same time.
+   */
+  public interface CloudCall<T> {
+    T call() throws IOException;
+  }
+
+  enum FailureKind {
+    /** The request was rejected before being processed, so it is safe to retry even a non-idempotent call. */
+    THROTTLED,
+    /** A transient server or network failure. */
+    TRANSIENT,
+    /** Retrying will not help (e.g., 4xx responses). */
+    FATAL
+  }
+
+  /**
+   * Thrown without contacting the backend while the circuit breaker of the endpoint is open.
+   */
+  public static class CircuitOpenException extends IOException {
+    public CircuitOpenException(String endpoint) {
+      super("Too many consecutive failures for " + endpoint + ", not sending more requests for a while");
+    }
+  }
+
+  @VisibleForTesting
+  CloudRequestExecutor(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  @NotNull
+  public static CloudRequestExecutor getInstance() {
+    if (instance == null) {
+      synchronized (CloudRequestExecutor.class) {
+        if (instance == null) {
+          instance = new CloudRequestExecutor(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Should be used in tests only!
+   */
+  @VisibleForTesting
+  public static void setInstance(CloudRequestExecutor testInstance) {
+    instance = testInstance;
+  }
+
+  /**
+   * Executes the given request with retries. Requests that are not idempotent (i.e., POST requests) are retried only if the backend
+   * is known not to have processed them.
+   */
+  public <T> T execute(@NotNull final AbstractGoogleClientRequest<T> request) throws IOException {
+    return execute(getEndpoint(request), isIdempotent(request.getRequestMethod()), new CloudCall<T>() {
+      @Override
+      public T call() throws IOException {
+        return request.execute();
+      }
+    });
+  }
+
+  public <T> T execute(@NotNull String endpoint, boolean isIdempotent, @NotNull CloudCall<T> call) throws IOException {
+    return executeWithRetries(endpoint, isIdempotent, false, call);
+  }
+
+  /**
+   * Executes an idempotent read with retries, sending a duplicate request if the first one is slower than usual for this endpoint.
+   */
+  public <T> T executeHedged(@NotNull String endpoint, @NotNull CloudCall<T> call) throws IOException {
+    return executeWithRetries(endpoint, true, !Boolean.getBoolean(DISABLE_REQUEST_HEDGING), call);
+  }
+
+  private <T> T executeWithRetries(String endpoint, boolean isIdempotent, boolean shouldHedge, CloudCall<T> call) throws IOException {
+    CircuitBreaker circuitBreaker = getCircuitBreaker(endpoint);
+    LatencyTracker latencyTracker = getLatencyTracker(endpoint);
+    for (int attempt = 1; ; attempt++) {
+      if (!circuitBreaker.allowRequest()) {
+        throw new CircuitOpenException(endpoint);
+      }
+      long startTime = System.currentTimeMillis();
+      boolean isOutcomeRecorded = false;
+      try {
+        T result = shouldHedge ? callHedged(call, latencyTracker.getPercentile(HEDGING_PERCENTILE)) : call.call();
+        long latency = System.currentTimeMillis() - startTime;
+        latencyTracker.record(latency);
+        CloudMetrics.getInstance().recordRequest(endpoint, latency, true);
+        circuitBreaker.recordSuccess();
+        isOutcomeRecorded = true;
+        return result;
+      } catch (IOException e) {
+        CloudMetrics.getInstance().recordRequest(endpoint, System.currentTimeMillis() - startTime, false);
+        FailureKind failureKind = classify(e);
+        if (e instanceof HttpResponseException && failureKind == FailureKind.FATAL) {
+          // The backend did respond (with a 4xx), so the endpoint itself is healthy.
+          circuitBreaker.recordSuccess();
+        } else if (failureKind == FailureKind.FATAL) {
+          // Interrupted or cancelled, which says nothing about the endpoint.
+          circuitBreaker.recordAbandoned();
+        } else {
+          circuitBreaker.recordFailure();
+        }
+        isOutcomeRecorded = true;
+        if (attempt >= maxAttempts || !shouldRetry(failureKind, isIdempotent, e)) {
+          throw e;
+        }
+        long delay = getRetryDelay(attempt, e);
+        CloudMetrics.getInstance().recordRetry(endpoint);
+        LOG.info("Retrying " + endpoint + " in " + delay + " ms (attempt " + attempt + " failed: " + e.getMessage() + ")");
+        sleep(delay);
+      } finally {
+        if (!isOutcomeRecorded) {
+          // The call threw an unchecked exception, which must not leave a trial request of the circuit breaker running forever.
+          CloudMetrics.getInstance().recordRequest(endpoint, System.currentTimeMillis() - startTime, false);
+          circuitBreaker.recordFailure();
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the call and, if it has not completed after {@code hedgingDelay} millis, runs it once more, returning whichever result comes
+   * first. A negative delay means there is not enough latency data yet, so the call runs just once.
+   */
+  private <T> T callHedged(final CloudCall<T> call, long hedgingDelay) throws IOException {
+    if (hedgingDelay < 0) {
+      return call.call();
+    }
+    CompletionService<T> completionService = new ExecutorCompletionService<T>(hedgingExecutor);
+    Callable<T> callable = new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return call.call();
+      }
+    };
+    Future<T> primary = completionService.submit(callable);
+    Future<T> hedge = null;
+    try {
+      Future<T> completed = completionService.poll(Math.max(hedgingDelay, MIN_HEDGING_DELAY_MILLIS), TimeUnit.MILLISECONDS);
+      if (completed == null) {
+        hedge = completionService.submit(callable);
+        completed = completionService.take();
+      }
+      try {
+        return completed.get();
+      } catch (ExecutionException e) {
+        if (hedge == null) {
+          throw e;
+        }
+        // One of the two requests failed, so wait for the other one.
+        return completionService.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a firebase request");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      primary.cancel(true);
+      if (hedge != null) {
+        hedge.cancel(true);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static FailureKind classify(IOException e) {
+    if (e instanceof CircuitOpenException) {
+      return FailureKind.FATAL;
+    }
+    if (e instanceof HttpResponseException) {
+      int statusCode = ((HttpResponseException)e).getStatusCode();
+      if (statusCode == 429) {
+        return FailureKind.THROTTLED;
+      }
+      if (statusCode == 408 || statusCode >= 500) {
+        return FailureKind.TRANSIENT;
+      }
+      return FailureKind.FATAL;
+    }
+    if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+      return FailureKind.FATAL;
+    }
+    return FailureKind.TRANSIENT;
+  }
+
+  private static boolean shouldRetry(FailureKind failureKind, boolean isIdempotent, IOException e) {
+    switch (failureKind) {
+      case THROTTLED:
+        return true;
+      case TRANSIENT:
+        // A refused connection means that the request never reached the backend.
+        return isIdempotent || e instanceof ConnectException;
+      default:
+        return false;
+    }
+  }
+
+  @VisibleForTesting
+  long getRetryDelay(int attempt, IOException e) {
+    long retryAfter = getRetryAfterMillis(e);
+    if (retryAfter >= 0) {
+      return Math.min(retryAfter, MAX_RETRY_AFTER_MILLIS);
+    }
+    long exponentialDelay = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+    // Use "equal jitter" to avoid synchronized retries from several polling threads.
+    synchronized (random) {
+      return exponentialDelay / 2 + (long)(random.nextDouble() * exponentialDelay / 2);
+    }
+  }
+
+  /**
+   * Returns the delay requested through the {@code Retry-After} header, or -1 if there is none.
+   */
+  private static long getRetryAfterMillis(IOException e) {
+    if (!(e instanceof HttpResponseException) || ((HttpResponseException)e).getHeaders() == null) {
+      return -1;
+    }
+    String retryAfter = ((HttpResponseException)e).getHeaders().getRetryAfter();
+    if (retryAfter == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(retryAfter.trim()) * 1000;
+    } catch (NumberFormatException exception) {
+      // HTTP-date values are not used by Google APIs.
+      return -1;
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry a firebase request");
+    }
+  }
+
+  @NotNull
+  private CircuitBreaker getCircuitBreaker(String endpoint) {
+    CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+    if (circuitBreaker == null) {
+      circuitBreakers.putIfAbsent(endpoint, new CircuitBreaker());
+      circuitBreaker = circuitBreakers.get(endpoint);
+    }
+    return circuitBreaker;
+  }
+
+  @NotNull
+  private LatencyTracker getLatencyTracker(String endpoint) {
+    LatencyTracker latencyTracker = latencyTrackers.get(endpoint);
+    if (latencyTracker == null) {
+      latencyTrackers.putIfAbsent(endpoint, new LatencyTracker());
+      latencyTracker = latencyTrackers.get(endpoint);
+    }
+    return latencyTracker;
+  }
+
+  /**
+   * Returns a readable endpoint name for the request, e.g., "Testing.Projects.TestMatrices.Get".
+   */
+  @NotNull
+  public static String getEndpoint(@NotNull AbstractGoogleClientRequest<?> request) {
+    String className = request.getClass().getName();
+    return className.substring(className.lastIndexOf('.') + 1).replace('$', '.');
+  }
+
+  private static boolean isIdempotent(@Nullable String requestMethod) {
+    return !"POST".equals(requestMethod) && !"PATCH".equals(requestMethod);
+  }
+
+  /**
+   * Stops sending requests to an endpoint for a while after several consecutive transient failures. After the cool down period, a single
+   * trial request is let through, and its outcome decides whether the circuit closes again.
+   */
+  @VisibleForTesting
+  static class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 8;
+    private static final long OPEN_INTERVAL_MILLIS = 30 * 1000; // 30 seconds
+
+    private int consecutiveFailures = 0;
+    private long openUntil = -1;
+    private boolean isTrialRequestRunning = false;
+
+    synchronized boolean allowRequest() {
+      if (openUntil < 0) {
+        return true;
+      }
+      if (System.currentTimeMillis() < openUntil || isTrialRequestRunning) {
+        return false;
+      }
+      isTrialRequestRunning = true;
+      return true;
+    }
+
+    synchronized void recordSuccess() {
+      consecutiveFailures = 0;
+      openUntil = -1;
+      isTrialRequestRunning = false;
+    }
+
+    /**
+     * Records a request that ended without telling whether the endpoint is healthy (e.g., it was interrupted), leaving the state of the
+     * circuit unchanged, except that another trial request may be let through.
+     */
+    synchronized void recordAbandoned() {
+      isTrialRequestRunning = false;
+    }
+
+    synchronized void recordFailure() {
+      consecutiveFailures++;
+      if (isTrialRequestRunning || consecutiveFailures >= FAILURE_THRESHOLD) {
+        openUntil = System.currentTimeMillis() + OPEN_INTERVAL_MILLIS;
+        isTrialRequestRunning = false;
+      }
+    }
+  }
+
+  /**
+   * Keeps the latencies of the most recent successful requests to an endpoint.
+   */
+  @VisibleForTesting
+  static class LatencyTracker {
+    private static final int CAPACITY = 64;
+    private static final int MIN_SAMPLES = 16;
+
+    private final long[] latencies = new long[CAPACITY];
+    private int count = 0;
+    private int next = 0;
+
+    synchronized void record(long latency) {
+      latencies[next] = latency;
+      next = (next + 1) % CAPACITY;
+      count = Math.min(count + 1, CAPACITY);
+    }
+
+    /**
+     * Returns the given percentile of the recorded latencies, or -1 if there are too few samples to tell.
+     */
+    synchronized long getPercentile(double percentile) {
+      if (count < MIN_SAMPLES) {
+        return -1;
+      }
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return sorted[Math.min(count - 1, (int)Math.ceil(percentile * count) - 1)];
+    }
+  }
+}
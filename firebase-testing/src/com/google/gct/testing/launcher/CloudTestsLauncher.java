@@ -23,6 +23,8 @@ import com.google.api.services.testing.model.*;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.gct.testing.CloudConfigurationImpl;
+import com.google.gct.testing.CloudMatrixExecutionCancellator;
+import com.google.gct.testing.CloudMetrics;
 import com.google.gct.testing.CloudTestingUtils;
 import com.google.gct.testing.dimension.CloudTestingType;
 import com.intellij.openapi.application.ApplicationInfo;
@@ -39,8 +41,9 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -66,42 +69,86 @@ public class CloudTestsLauncher {
     try {
       Bucket bucket = new Bucket().setName(bucketName).setLocation("US");
       Storage.Buckets.Insert insertBucket = CloudAuthenticator.getInstance().getStorage().buckets().insert(projectId, bucket);
-      return insertBucket.execute();
+      return CloudRequestExecutor.getInstance().execute(insertBucket);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   /**
-   * Returns {@code StorageObject} for the uploaded file (i.e., the file in the bucket).
+   * Returns {@code StorageObject} for the uploaded file (i.e., the file in the bucket) or {@code null} if the upload was aborted
+   * because the matrix execution got cancelled.
    */
-  public static StorageObject uploadFile(String bucketName, File file) {
-    InputStreamContent mediaContent = null;
+  @Nullable
+  public static StorageObject uploadFile(final String bucketName, final File file,
+                                         @Nullable final CloudMatrixExecutionCancellator matrixExecutionCancellator) {
     try {
-      mediaContent = new InputStreamContent("application/octet-stream", new FileInputStream(file));
-    }
-    catch (FileNotFoundException e) {
-      throw new RuntimeException(e);
-    }
-
-    // Setting the size of the uploaded file is extremely important! It reduces upload times by two orders of magnitude!
-    mediaContent.setLength(file.length());
-
-    try {
-      Storage.Objects.Insert insertObject = CloudAuthenticator.getInstance().getStorage().objects().insert(bucketName, null, mediaContent);
-
-      // If you don't provide metadata, you will have specify the object
-      // name by parameter. You will probably also want to ensure that your
-      // default object ACLs (a bucket property) are set appropriately:
-      // https://developers.google.com/storage/docs/json_api/v1/buckets#defaultObjectAcl
-      insertObject.setName(file.getName());
-
-      return insertObject.execute();
+      // Uploading the same object again just overwrites it, so the upload is safe to retry. Every attempt needs a fresh input stream though.
+      return CloudRequestExecutor.getInstance().execute("Storage.Objects.Insert", true, new CloudRequestExecutor.CloudCall<StorageObject>() {
+        @Override
+        public StorageObject call() throws IOException {
+          if (isCancelled(matrixExecutionCancellator)) {
+            throw new InterruptedIOException("Upload of " + file.getName() + " was cancelled");
+          }
+          final InputStream inputStream = new FileInputStream(file);
+          // Closing the stream aborts the upload right away instead of sending the rest of the (possibly large) APK.
+          Runnable uploadAborter = new Runnable() {
+            @Override
+            public void run() {
+              try {
+                inputStream.close();
+              } catch (IOException e) {
+                //ignore
+              }
+            }
+          };
+          if (matrixExecutionCancellator != null) {
+            matrixExecutionCancellator.addCancellationListener(uploadAborter);
+          }
+          try {
+            InputStreamContent mediaContent = new InputStreamContent("application/octet-stream", inputStream);
+
+            // Setting the size of the uploaded file is extremely important! It reduces upload times by two orders of magnitude!
+            mediaContent.setLength(file.length());
+
+            Storage.Objects.Insert insertObject =
+              CloudAuthenticator.getInstance().getStorage().objects().insert(bucketName, null, mediaContent);
+
+            // If you don't provide metadata, you will have specify the object
+            // name by parameter. You will probably also want to ensure that your
+            // default object ACLs (a bucket property) are set appropriately:
+            // https://developers.google.com/storage/docs/json_api/v1/buckets#defaultObjectAcl
+            insertObject.setName(file.getName());
+
+            StorageObject storageObject = insertObject.execute();
+            CloudMetrics.getInstance().recordBytesUploaded(file.length());
+            return storageObject;
+          } catch (IOException e) {
+            if (isCancelled(matrixExecutionCancellator)) {
+              // Do not let the request executor retry an upload that failed because its stream got closed.
+              throw new InterruptedIOException("Upload of " + file.getName() + " was cancelled");
+            }
+            throw e;
+          } finally {
+            if (matrixExecutionCancellator != null) {
+              matrixExecutionCancellator.removeCancellationListener(uploadAborter);
+            }
+            inputStream.close();
+          }
+        }
+      });
     } catch (IOException e) {
+      if (isCancelled(matrixExecutionCancellator)) {
+        return null;
+      }
       throw new RuntimeException(e);
     }
   }
 
+  private static boolean isCancelled(@Nullable CloudMatrixExecutionCancellator matrixExecutionCancellator) {
+    return matrixExecutionCancellator != null && matrixExecutionCancellator.isCancelled();
+  }
+
   private static String removeTrailingSlash(String s) {
     return s.endsWith("/")
            ? s.substring(0, s.length() - 1)
@@ -115,6 +162,18 @@ public class CloudTestsLauncher {
     String cloudProjectId, String bucketGcsPath, String appApkGcsPath, String testApkGcsPath, String testSpecification,
     String instrumentationTestRunner, CloudConfigurationImpl cloudTestConfiguration) {
 
+    return triggerTestApi(cloudProjectId, bucketGcsPath, appApkGcsPath, testApkGcsPath, Lists.newArrayList(testSpecification),
+                          instrumentationTestRunner, cloudTestConfiguration);
+  }
+
+  /**
+   * Triggers a matrix that runs just the given test targets (e.g., a single shard of the test suite) and stores its results under
+   * {@code resultsGcsPath}. Returns the triggered test matrix or {@code null} if the attempt was unsuccessful.
+   */
+  public static @Nullable TestMatrix triggerTestApi(
+    String cloudProjectId, String resultsGcsPath, String appApkGcsPath, String testApkGcsPath, List<String> testTargets,
+    String instrumentationTestRunner, CloudConfigurationImpl cloudTestConfiguration) {
+
     TestMatrix testMatrix = new TestMatrix();
 
     testMatrix.setClientInfo(new ClientInfo().setName("Android Studio " + ApplicationInfo.getInstance().getFullVersion()));
@@ -125,9 +184,9 @@ public class CloudTestsLauncher {
       new TestSpecification().setTestTimeout(testTimeout).setAndroidInstrumentationTest(
         new AndroidInstrumentationTest().setAppApk(new FileReference().setGcsPath(appApkGcsPath))
           .setTestApk(new FileReference().setGcsPath(testApkGcsPath)).setTestRunnerClass(instrumentationTestRunner)
-          .setTestTargets(Lists.newArrayList(testSpecification))));
+          .setTestTargets(testTargets)));
 
-    testMatrix.setResultStorage(new ResultStorage().setGoogleCloudStorage(new GoogleCloudStorage().setGcsPath(bucketGcsPath)));
+    testMatrix.setResultStorage(new ResultStorage().setGoogleCloudStorage(new GoogleCloudStorage().setGcsPath(resultsGcsPath)));
 
     AndroidMatrix androidMatrix = new AndroidMatrix();
 
@@ -148,7 +207,8 @@ public class CloudTestsLauncher {
     TestMatrix triggeredTestMatrix = null;
     try {
       triggeredTestMatrix =
-        CloudAuthenticator.getInstance().getTest().projects().testMatrices().create(cloudProjectId, testMatrix).execute();
+        CloudRequestExecutor.getInstance()
+          .execute(CloudAuthenticator.getInstance().getTest().projects().testMatrices().create(cloudProjectId, testMatrix));
     } catch (Exception e) {
       String exceptionMessage = e.getMessage();
       String backendMessageHeader = "\"message\" : \"";
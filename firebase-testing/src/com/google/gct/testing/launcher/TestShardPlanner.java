@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.launcher;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Splits test classes into shards of roughly equal expected duration, such that each shard can run as a separate matrix execution.
+ */
+public class TestShardPlanner {
+
+  public interface DurationEstimator {
+    /**
+     * Returns the expected duration (in millis) of all tests in the given class.
+     */
+    long estimateDuration(@NotNull String testClass);
+  }
+
+  /**
+   * Used when nothing is known about the tests, which balances the shards by the number of test classes.
+   */
+  public static final DurationEstimator UNIFORM_DURATION_ESTIMATOR = new DurationEstimator() {
+    @Override
+    public long estimateDuration(@NotNull String testClass) {
+      return 1;
+    }
+  };
+
+  private final DurationEstimator durationEstimator;
+
+
+  public TestShardPlanner(@NotNull DurationEstimator durationEstimator) {
+    this.durationEstimator = durationEstimator;
+  }
+
+  /**
+   * Returns at most {@code maxShardCount} non-empty shards of test classes. Uses the "longest processing time first" heuristic:
+   * the classes are assigned in the order of decreasing duration, each to the currently shortest shard.
+   */
+  @NotNull
+  public List<List<String>> planShards(@NotNull Collection<String> testClasses, int maxShardCount) {
+    int shardCount = Math.max(1, Math.min(maxShardCount, testClasses.size()));
+    List<String> sortedClasses = Lists.newArrayList(testClasses);
+    final Map<String, Long> durations = new HashMap<String, Long>();
+    for (String testClass : sortedClasses) {
+      durations.put(testClass, Math.max(0, durationEstimator.estimateDuration(testClass)));
+    }
+    Collections.sort(sortedClasses, new Comparator<String>() {
+      @Override
+      public int compare(String class1, String class2) {
+        int durationComparison = durations.get(class2).compareTo(durations.get(class1));
+        // Break ties by name to keep the plan stable across runs.
+        return durationComparison != 0 ? durationComparison : class1.compareTo(class2);
+      }
+    });
+
+    PriorityQueue<Shard> shards = new PriorityQueue<Shard>();
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new Shard(i));
+    }
+    for (String testClass : sortedClasses) {
+      Shard shortestShard = shards.poll();
+      shortestShard.add(testClass, durations.get(testClass));
+      shards.add(shortestShard);
+    }
+
+    List<Shard> orderedShards = Lists.newArrayList(shards);
+    Collections.sort(orderedShards, new Comparator<Shard>() {
+      @Override
+      public int compare(Shard shard1, Shard shard2) {
+        return shard1.index - shard2.index;
+      }
+    });
+    List<List<String>> plan = new ArrayList<List<String>>();
+    for (Shard shard : orderedShards) {
+      if (!shard.testClasses.isEmpty()) {
+        plan.add(shard.testClasses);
+      }
+    }
+    return plan;
+  }
+
+  private static class Shard implements Comparable<Shard> {
+    private final int index;
+    private final List<String> testClasses = new ArrayList<String>();
+    private long duration = 0;
+
+    private Shard(int index) {
+      this.index = index;
+    }
+
+    private void add(String testClass, long testClassDuration) {
+      testClasses.add(testClass);
+      duration += testClassDuration;
+    }
+
+    @Override
+    public int compareTo(Shard other) {
+      if (duration != other.duration) {
+        return duration < other.duration ? -1 : 1;
+      }
+      return index - other.index;
+    }
+  }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.api.services.testing.model.*;
+import com.google.api.services.toolresults.model.Duration;
+import com.google.api.services.toolresults.model.ProjectSettings;
+import com.google.api.services.toolresults.model.Step;
+import com.google.api.services.toolresults.model.TestExecutionStep;
+import com.google.api.services.toolresults.model.TestTiming;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An embedded stand-in for the Testing, Toolresults and Storage endpoints that the plugin uses, such that matrix runs, polling and
+ * downloads can be load tested and benchmarked offline and reproducibly. Test matrices progress and produce results on their own
+ * (see {@link SimulatedTestMatrix}), and every request is subject to the simulated latency, throttling and failures of
+ * {@link SimulationSettings}. Devices go through their boot states, but have no connection info once ready, since there is no SSH
+ * endpoint to connect to.
+ */
+public class LocalTestLabServer {
+
+  private static final Logger LOG = Logger.getInstance(LocalTestLabServer.class);
+
+  static final String HISTORY_ID = "local-history";
+
+  // The public bucket that enables the plugin's features remotely.
+  private static final String ENABLEMENT_BUCKET = "cloud-testing-plugin-enablement";
+  // Devices are deleted if they get no keep-alive for this long, like on the real backend.
+  private static final long DEVICE_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000; // 5 minutes
+
+  private static final Pattern CATALOG = Pattern.compile("/v1/testEnvironmentCatalog/([^/]+)");
+  private static final Pattern TEST_MATRICES = Pattern.compile("/v1/projects/([^/]+)/testMatrices");
+  private static final Pattern TEST_MATRIX = Pattern.compile("/v1/projects/([^/]+)/testMatrices/([^/:]+)(:cancel)?");
+  private static final Pattern DEVICES = Pattern.compile("/v1/projects/([^/]+)/devices");
+  private static final Pattern DEVICE = Pattern.compile("/v1/projects/([^/]+)/devices/([^/]+?)(/keepalive)?");
+  private static final Pattern INITIALIZE_SETTINGS = Pattern.compile("/toolresults/v1beta3/projects/([^/]+):initializeSettings");
+  private static final Pattern STEP =
+    Pattern.compile("/toolresults/v1beta3/projects/([^/]+)/histories/([^/]+)/executions/([^/]+)/steps/([^/]+)");
+  private static final Pattern BUCKETS = Pattern.compile("/storage/v1/b");
+  private static final Pattern OBJECTS = Pattern.compile("/storage/v1/b/([^/]+)/o");
+  private static final Pattern OBJECT = Pattern.compile("/storage/v1/b/([^/]+)/o/(.+)");
+  private static final Pattern UPLOAD = Pattern.compile("/upload/storage/v1/b/([^/]+)/o");
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  private static volatile LocalTestLabServer instance;
+
+  private final JsonFactory myJsonFactory = JacksonFactory.getDefaultInstance();
+  private final SimulationSettings mySettings;
+  // Decides the latency and failures of requests, guarded by itself.
+  private final Random myRandom;
+  private final AtomicInteger myNextId = new AtomicInteger();
+  // Numbers the test matrices separately from the other ids, such that the Nth matrix gets the same random seed in every run.
+  private final AtomicInteger myNextMatrixNumber = new AtomicInteger();
+  private final SimulatedStorage myStorage = new SimulatedStorage();
+  private final ConcurrentMap<String, SimulatedTestMatrix> myTestMatrices = new ConcurrentHashMap<String, SimulatedTestMatrix>();
+  private final ConcurrentMap<String, SimulatedDevice> myDevices = new ConcurrentHashMap<String, SimulatedDevice>();
+  // Upload id -> the resumable upload.
+  private final ConcurrentMap<String, Upload> myUploads = new ConcurrentHashMap<String, Upload>();
+  // The times of the requests within the last second, guarded by itself.
+  private final Deque<Long> myRecentRequestTimes = new ArrayDeque<Long>();
+  // Both fields below are guarded by this server.
+  private HttpServer myServer;
+  private ExecutorService myExecutor;
+
+
+  @NotNull
+  public static LocalTestLabServer getInstance() {
+    LocalTestLabServer result = instance;
+    if (result == null) {
+      synchronized (LocalTestLabServer.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new LocalTestLabServer();
+        }
+      }
+    }
+    return result;
+  }
+
+  private LocalTestLabServer() {
+    this(SimulationSettings.fromSystemProperties());
+  }
+
+  @VisibleForTesting
+  LocalTestLabServer(@NotNull SimulationSettings settings) {
+    mySettings = settings;
+    myRandom = new Random(settings.seed);
+    myStorage.put(ENABLEMENT_BUCKET, "TESTING_ENABLED", new byte[0]);
+    myStorage.put(ENABLEMENT_BUCKET, "DEBUGGING_ENABLED", new byte[0]);
+  }
+
+  /**
+   * Starts the server (unless it is already running) and returns its root URL, which serves all three APIs.
+   */
+  @NotNull
+  public synchronized String start() throws IOException {
+    if (myServer == null) {
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          LocalTestLabServer.this.handle(exchange);
+        }
+      });
+      myExecutor =
+        Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("Firebase Local Backend %d").setDaemon(true).build());
+      server.setExecutor(myExecutor);
+      server.start();
+      myServer = server;
+      LOG.info("Started the local firebase backend at " + getRootUrl() + " with " + mySettings);
+    }
+    return getRootUrl();
+  }
+
+  public synchronized void stop() {
+    if (myServer != null) {
+      myServer.stop(0);
+      myExecutor.shutdownNow();
+      myServer = null;
+      myExecutor = null;
+      LOG.info("Stopped the local firebase backend");
+    }
+  }
+
+  public synchronized boolean isRunning() {
+    return myServer != null;
+  }
+
+  private synchronized String getRootUrl() {
+    return "http://127.0.0.1:" + myServer.getAddress().getPort() + "/";
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      simulateLatency();
+      if (isThrottled()) {
+        sendError(exchange, 429, "rateLimitExceeded", "Simulated quota exhaustion");
+      } else if (nextInt(100) < mySettings.failurePercent) {
+        sendError(exchange, 503, "backendError", "Simulated backend failure");
+      } else {
+        route(exchange);
+      }
+    } catch (Exception e) {
+      LOG.warn("The local firebase backend failed to handle " + exchange.getRequestURI(), e);
+      sendError(exchange, 500, "internalError", String.valueOf(e.getMessage()));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * The API clients gzip the content of their requests by default.
+   */
+  private static InputStream getRequestBody(HttpExchange exchange) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    return "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")) ? new GZIPInputStream(body) : body;
+  }
+
+  private void route(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getRawPath();
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    Matcher matcher;
+    if ((matcher = CATALOG.matcher(path)).matches()) {
+      sendJson(exchange, 200, createCatalog());
+    } else if ((matcher = TEST_MATRICES.matcher(path)).matches() && method.equals("POST")) {
+      int matrixNumber = myNextMatrixNumber.incrementAndGet();
+      String matrixId = "matrix-" + matrixNumber;
+      TestMatrix requestedTestMatrix = myJsonFactory.fromInputStream(getRequestBody(exchange), TestMatrix.class);
+      SimulatedTestMatrix testMatrix = new SimulatedTestMatrix(decode(matcher.group(1)), matrixId, requestedTestMatrix, mySettings,
+                                                               new Random(mySettings.seed + matrixNumber));
+      myTestMatrices.put(matrixId, testMatrix);
+      sendTestMatrix(exchange, testMatrix);
+    } else if ((matcher = TEST_MATRIX.matcher(path)).matches()) {
+      SimulatedTestMatrix testMatrix = myTestMatrices.get(decode(matcher.group(2)));
+      if (testMatrix == null) {
+        sendError(exchange, 404, "notFound", "No test matrix " + matcher.group(2));
+      } else if (matcher.group(3) != null) {
+        testMatrix.cancel();
+        sendJson(exchange, 200, new CancelTestMatrixResponse().setTestState("CANCELLED"));
+      } else {
+        sendTestMatrix(exchange, testMatrix);
+      }
+    } else if ((matcher = DEVICES.matcher(path)).matches()) {
+      String projectId = decode(matcher.group(1));
+      if (method.equals("POST")) {
+        Device requestedDevice = myJsonFactory.fromInputStream(getRequestBody(exchange), Device.class);
+        SimulatedDevice device = new SimulatedDevice(projectId, "device-" + myNextId.incrementAndGet(), requestedDevice.getAndroidDevice());
+        myDevices.put(device.id, device);
+        sendJson(exchange, 200, device.toDevice());
+      } else {
+        List<Device> devices = new ArrayList<Device>();
+        for (SimulatedDevice device : getLiveDevices()) {
+          if (device.projectId.equals(projectId)) {
+            devices.add(device.toDevice());
+          }
+        }
+        sendJson(exchange, 200, new ListDevicesResponse().setDevices(devices));
+      }
+    } else if ((matcher = DEVICE.matcher(path)).matches()) {
+      String deviceId = decode(matcher.group(2));
+      getLiveDevices(); // Drop the idle devices.
+      SimulatedDevice device = myDevices.get(deviceId);
+      if (device == null) {
+        sendError(exchange, 404, "notFound", "No device " + deviceId);
+      } else if (method.equals("DELETE")) {
+        myDevices.remove(deviceId);
+        sendJson(exchange, 200, new Empty());
+      } else {
+        if (matcher.group(3) != null) {
+          device.lastKeepAliveTime = System.currentTimeMillis();
+        }
+        sendJson(exchange, 200, device.toDevice());
+      }
+    } else if ((matcher = INITIALIZE_SETTINGS.matcher(path)).matches()) {
+      String projectId = decode(matcher.group(1));
+      sendJson(exchange, 200, new ProjectSettings().setName(projectId).setDefaultBucket("local-" + projectId));
+    } else if ((matcher = STEP.matcher(path)).matches()) {
+      SimulatedTestMatrix testMatrix = myTestMatrices.get(decode(matcher.group(3)));
+      Long testDurationSeconds = testMatrix == null ? null : testMatrix.getTestDurationSeconds(decode(matcher.group(4)));
+      if (testDurationSeconds == null) {
+        sendError(exchange, 404, "notFound", "No step " + matcher.group(4));
+      } else {
+        sendJson(exchange, 200, new Step().setStepId(decode(matcher.group(4))).setState("complete").setTestExecutionStep(
+          new TestExecutionStep().setTestTiming(new TestTiming().setTestProcessDuration(new Duration().setSeconds(testDurationSeconds)))));
+      }
+    } else if (BUCKETS.matcher(path).matches()) {
+      sendJson(exchange, 200, myJsonFactory.fromInputStream(getRequestBody(exchange), Bucket.class));
+    } else if ((matcher = OBJECTS.matcher(path)).matches()) {
+      refreshTestMatrices(); // Make the results of the finished executions visible.
+      sendJson(exchange, 200,
+               new Objects().setKind("storage#objects").setItems(myStorage.list(decode(matcher.group(1)), query.get("prefix"))));
+    } else if ((matcher = OBJECT.matcher(path)).matches()) {
+      handleDownload(exchange, decode(matcher.group(1)), decode(matcher.group(2)), "media".equals(query.get("alt")));
+    } else if ((matcher = UPLOAD.matcher(path)).matches()) {
+      handleUpload(exchange, decode(matcher.group(1)), query);
+    } else {
+      sendError(exchange, 404, "notFound", "The local backend does not support " + method + " " + path);
+    }
+  }
+
+  private void sendTestMatrix(HttpExchange exchange, SimulatedTestMatrix testMatrix) throws IOException {
+    String json;
+    synchronized (testMatrix) {
+      json = myJsonFactory.toString(testMatrix.refresh(myStorage));
+    }
+    sendBytes(exchange, 200, "application/json", json.getBytes("UTF-8"));
+  }
+
+  private void refreshTestMatrices() {
+    for (SimulatedTestMatrix testMatrix : myTestMatrices.values()) {
+      testMatrix.refresh(myStorage);
+    }
+  }
+
+  private void handleDownload(HttpExchange exchange, String bucketName, String objectName, boolean isMedia) throws IOException {
+    if (!isMedia) {
+      StorageObject storageObject = myStorage.getMetadata(bucketName, objectName);
+      if (storageObject == null) {
+        sendError(exchange, 404, "notFound", "No such object: " + bucketName + "/" + objectName);
+      } else {
+        sendJson(exchange, 200, storageObject);
+      }
+      return;
+    }
+    byte[] content = myStorage.getContent(bucketName, objectName);
+    if (content == null) {
+      sendError(exchange, 404, "notFound", "No such object: " + bucketName + "/" + objectName);
+      return;
+    }
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    Matcher rangeMatcher = range == null ? null : RANGE.matcher(range);
+    if (rangeMatcher == null || !rangeMatcher.matches()) {
+      sendBytes(exchange, 200, "application/octet-stream", content);
+      return;
+    }
+    int start = Integer.parseInt(rangeMatcher.group(1));
+    if (start >= content.length) {
+      // Like the real storage, fail requests that start beyond the end of the object.
+      sendError(exchange, 416, "requestedRangeNotSatisfiable", "The requested range cannot be satisfied");
+      return;
+    }
+    int end = rangeMatcher.group(2).isEmpty()
+              ? content.length - 1
+              : (int)Math.min(Long.parseLong(rangeMatcher.group(2)), content.length - 1);
+    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+    sendBytes(exchange, 206, "application/octet-stream", Arrays.copyOfRange(content, start, end + 1));
+  }
+
+  /**
+   * Handles the media uploads of the storage client, both the simple ones and the (default) resumable ones, which are initiated
+   * with a POST and then sent in one or more PUT chunks. The content of uploaded objects is counted, but not stored.
+   */
+  private void handleUpload(HttpExchange exchange, String bucketName, Map<String, String> query) throws IOException {
+    String uploadId = query.get("upload_id");
+    if (uploadId == null && "resumable".equals(query.get("uploadType"))) {
+      StorageObject metadata = parseStorageObject(getRequestBody(exchange));
+      String objectName = metadata != null && metadata.getName() != null ? metadata.getName() : query.get("name");
+      uploadId = "upload-" + myNextId.incrementAndGet();
+      myUploads.put(uploadId, new Upload(bucketName, objectName));
+      exchange.getResponseHeaders()
+        .set("Location", getRootUrl() + "upload/storage/v1/b/" + bucketName + "/o?uploadType=resumable&upload_id=" + uploadId);
+      sendBytes(exchange, 200, "application/json", new byte[0]);
+      return;
+    }
+    if (uploadId == null) {
+      long size = ByteStreams.copy(getRequestBody(exchange), ByteStreams.nullOutputStream());
+      myStorage.putDiscarded(bucketName, query.get("name"), size);
+      sendJson(exchange, 200, myStorage.getMetadata(bucketName, query.get("name")));
+      return;
+    }
+    Upload upload = myUploads.get(uploadId);
+    if (upload == null) {
+      sendError(exchange, 404, "notFound", "No upload " + uploadId);
+      return;
+    }
+    long chunkSize = ByteStreams.copy(getRequestBody(exchange), ByteStreams.nullOutputStream());
+    String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+    Matcher contentRangeMatcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+    long receivedSize;
+    long totalSize;
+    synchronized (upload) {
+      upload.receivedSize += chunkSize;
+      receivedSize = upload.receivedSize;
+      totalSize = contentRangeMatcher != null && contentRangeMatcher.matches() && !contentRangeMatcher.group(3).equals("*")
+                  ? Long.parseLong(contentRangeMatcher.group(3))
+                  : -1;
+    }
+    if (totalSize < 0 || receivedSize < totalSize) {
+      // Ask the client for the next chunk.
+      exchange.getResponseHeaders().set("Range", "bytes=0-" + (receivedSize - 1));
+      sendBytes(exchange, 308, "text/plain", new byte[0]);
+      return;
+    }
+    myUploads.remove(uploadId);
+    myStorage.putDiscarded(upload.bucketName, upload.objectName, receivedSize);
+    sendJson(exchange, 200, myStorage.getMetadata(upload.bucketName, upload.objectName));
+  }
+
+  @Nullable
+  private StorageObject parseStorageObject(InputStream in) throws IOException {
+    byte[] bytes = ByteStreams.toByteArray(in);
+    return bytes.length == 0 ? null : myJsonFactory.fromString(new String(bytes, "UTF-8"), StorageObject.class);
+  }
+
+  private List<SimulatedDevice> getLiveDevices() {
+    long now = System.currentTimeMillis();
+    List<SimulatedDevice> liveDevices = new ArrayList<SimulatedDevice>();
+    for (SimulatedDevice device : myDevices.values()) {
+      if (now - device.lastKeepAliveTime > DEVICE_IDLE_TIMEOUT_MILLIS) {
+        myDevices.remove(device.id, device);
+      } else {
+        liveDevices.add(device);
+      }
+    }
+    return liveDevices;
+  }
+
+  private TestEnvironmentCatalog createCatalog() {
+    List<String> versionIds = ImmutableList.of("21", "22", "23");
+    List<AndroidModel> models = ImmutableList.of(
+      new AndroidModel().setId("LocalPhone").setName("Local Phone").setManufacturer("Local").setForm("VIRTUAL").setScreenX(1080)
+        .setScreenY(1920).setSupportedVersionIds(versionIds).setTags(ImmutableList.of("default")),
+      new AndroidModel().setId("LocalTablet").setName("Local Tablet").setManufacturer("Local").setForm("VIRTUAL").setScreenX(1600)
+        .setScreenY(2560).setSupportedVersionIds(versionIds));
+    List<AndroidVersion> versions = new ArrayList<AndroidVersion>();
+    for (String versionId : versionIds) {
+      int apiLevel = Integer.parseInt(versionId);
+      versions.add(new AndroidVersion().setId(versionId).setApiLevel(apiLevel).setVersionString("API " + apiLevel)
+                     .setCodeName(apiLevel == 23 ? "Marshmallow" : "Lollipop")
+                     .setTags(apiLevel == 23 ? ImmutableList.of("default") : null));
+    }
+    List<com.google.api.services.testing.model.Locale> locales = ImmutableList.of(
+      new com.google.api.services.testing.model.Locale().setId("en").setName("English").setTags(ImmutableList.of("default")),
+      new com.google.api.services.testing.model.Locale().setId("de").setName("German"));
+    List<Orientation> orientations = ImmutableList.of(
+      new Orientation().setId("portrait").setName("Portrait").setTags(ImmutableList.of("default")),
+      new Orientation().setId("landscape").setName("Landscape"));
+    return new TestEnvironmentCatalog().setAndroidDeviceCatalog(new AndroidDeviceCatalog().setModels(models).setVersions(versions)
+      .setRuntimeConfiguration(new AndroidRuntimeConfiguration().setLocales(locales).setOrientations(orientations)));
+  }
+
+  private void simulateLatency() {
+    long latency = mySettings.latencyMillis + (mySettings.latencyJitterMillis == 0 ? 0 : nextInt(mySettings.latencyJitterMillis + 1));
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean isThrottled() {
+    if (mySettings.maxRequestsPerSecond == 0) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (myRecentRequestTimes) {
+      while (!myRecentRequestTimes.isEmpty() && now - myRecentRequestTimes.peekFirst() >= 1000) {
+        myRecentRequestTimes.removeFirst();
+      }
+      if (myRecentRequestTimes.size() >= mySettings.maxRequestsPerSecond) {
+        return true;
+      }
+      myRecentRequestTimes.addLast(now);
+      return false;
+    }
+  }
+
+  private int nextInt(int bound) {
+    synchronized (myRandom) {
+      return myRandom.nextInt(bound);
+    }
+  }
+
+  private void sendJson(HttpExchange exchange, int status, Object content) throws IOException {
+    sendBytes(exchange, status, "application/json", myJsonFactory.toString(content).getBytes("UTF-8"));
+  }
+
+  private void sendError(HttpExchange exchange, int status, String reason, String message) throws IOException {
+    // The error format of Google APIs, such that the client reports the message like a real backend error.
+    Map<String, Object> error = new LinkedHashMap<String, Object>();
+    error.put("code", status);
+    error.put("message", message);
+    Map<String, Object> errorDetails = new LinkedHashMap<String, Object>();
+    errorDetails.put("reason", reason);
+    errorDetails.put("message", message);
+    error.put("errors", Collections.singletonList(errorDetails));
+    sendJson(exchange, status, Collections.singletonMap("error", error));
+  }
+
+  private static void sendBytes(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if (bytes.length == 0) {
+      exchange.sendResponseHeaders(status, -1); // No response body.
+      return;
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Map<String, String> parseQuery(@Nullable String rawQuery) {
+    Map<String, String> query = new HashMap<String, String>();
+    if (rawQuery != null) {
+      for (String parameter : rawQuery.split("&")) {
+        int equalsIndex = parameter.indexOf('=');
+        if (equalsIndex != -1) {
+          query.put(decode(parameter.substring(0, equalsIndex)), decode(parameter.substring(equalsIndex + 1)));
+        }
+      }
+    }
+    return query;
+  }
+
+  private static String decode(String urlPart) {
+    try {
+      return URLDecoder.decode(urlPart.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Unsupported encoding!", e);
+    }
+  }
+
+  private class SimulatedDevice {
+    private final String projectId;
+    private final String id;
+    private final AndroidDevice androidDevice;
+    private final long creationTime = System.currentTimeMillis();
+    private volatile long lastKeepAliveTime = creationTime;
+
+    private SimulatedDevice(String projectId, String id, AndroidDevice androidDevice) {
+      this.projectId = projectId;
+      this.id = id;
+      this.androidDevice = androidDevice;
+    }
+
+    private Device toDevice() {
+      long bootTime = mySettings.deviceBootSeconds * 1000L;
+      long elapsedTime = System.currentTimeMillis() - creationTime;
+      Device device = new Device().setId(id).setAndroidDevice(androidDevice);
+      if (elapsedTime < bootTime / 2) {
+        return device.setState("PENDING");
+      }
+      if (elapsedTime < bootTime * 3 / 4) {
+        return device.setState("DEVICE_STARTING");
+      }
+      if (elapsedTime < bootTime) {
+        return device.setState("CONNECTING");
+      }
+      // No connection info, such that the plugin does not connect to whatever listens on the local SSH, adb or VNC ports.
+      return device.setState("READY");
+    }
+  }
+
+  private static class Upload {
+    private final String bucketName;
+    private final String objectName;
+    private long receivedSize = 0;
+
+    private Upload(String bucketName, String objectName) {
+      this.bucketName = bucketName;
+      this.objectName = objectName;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.model.StorageObject;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The in-memory buckets of the local backend. The content of uploaded APKs is not kept, just their size.
+ */
+class SimulatedStorage {
+
+  // Bucket name -> object name -> object, with the objects sorted by name like in a real bucket listing.
+  private final ConcurrentMap<String, ConcurrentSkipListMap<String, StoredObject>> myBuckets =
+    new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>>();
+
+  void put(String bucketName, String objectName, byte[] content) {
+    getBucket(bucketName).put(objectName, new StoredObject(content, content.length));
+  }
+
+  /**
+   * Records an object whose content is never downloaded (e.g., an uploaded APK).
+   */
+  void putDiscarded(String bucketName, String objectName, long size) {
+    getBucket(bucketName).put(objectName, new StoredObject(null, size));
+  }
+
+  /**
+   * Returns the content of the given object, or {@code null} if there is no such object. Discarded objects have empty content.
+   */
+  @Nullable
+  byte[] getContent(String bucketName, String objectName) {
+    StoredObject storedObject = getBucket(bucketName).get(objectName);
+    if (storedObject == null) {
+      return null;
+    }
+    return storedObject.content == null ? new byte[0] : storedObject.content;
+  }
+
+  @Nullable
+  StorageObject getMetadata(String bucketName, String objectName) {
+    StoredObject storedObject = getBucket(bucketName).get(objectName);
+    return storedObject == null ? null : toStorageObject(bucketName, objectName, storedObject);
+  }
+
+  List<StorageObject> list(String bucketName, @Nullable String prefix) {
+    List<StorageObject> storageObjects = new ArrayList<StorageObject>();
+    for (Map.Entry<String, StoredObject> entry : getBucket(bucketName).entrySet()) {
+      if (prefix == null || entry.getKey().startsWith(prefix)) {
+        storageObjects.add(toStorageObject(bucketName, entry.getKey(), entry.getValue()));
+      }
+    }
+    return storageObjects;
+  }
+
+  private ConcurrentSkipListMap<String, StoredObject> getBucket(String bucketName) {
+    ConcurrentSkipListMap<String, StoredObject> bucket = myBuckets.get(bucketName);
+    if (bucket == null) {
+      // Buckets are created on first use, like the default buckets of cloud projects.
+      myBuckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<String, StoredObject>());
+      bucket = myBuckets.get(bucketName);
+    }
+    return bucket;
+  }
+
+  private static StorageObject toStorageObject(String bucketName, String objectName, StoredObject storedObject) {
+    return new StorageObject()
+      .setKind("storage#object")
+      .setBucket(bucketName)
+      .setName(objectName)
+      .setId(bucketName + "/" + objectName)
+      .setSize(BigInteger.valueOf(storedObject.size))
+      .setUpdated(new DateTime(storedObject.creationTime));
+  }
+
+  private static class StoredObject {
+    @Nullable private final byte[] content;
+    private final long size;
+    private final long creationTime = System.currentTimeMillis();
+
+    private StoredObject(@Nullable byte[] content, long size) {
+      this.content = content;
+      this.size = size;
+    }
+  }
+}
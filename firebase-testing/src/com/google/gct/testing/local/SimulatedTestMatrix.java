@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import com.google.api.services.testing.model.*;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A test matrix of the local backend. Its progress is derived from the time elapsed since its creation: it validates for a while,
+ * then each of its executions runs for a (randomized) duration and reports progress messages at a steady cadence. Once an execution
+ * finishes, its instrumentation results and screenshots are written to the results bucket.
+ */
+class SimulatedTestMatrix {
+
+  private static final String RESULTS_FILE_NAME = "instrumentation.results";
+  private static final String DEFAULT_TEST_CLASS = "com.example.SimulatedTest";
+  private static final int SCREENSHOT_WIDTH = 180;
+  private static final int SCREENSHOT_HEIGHT = 320;
+  private static final List<String> PROGRESS_MESSAGES = ImmutableList.of(
+    "Starting attempt 1", "Preparing the device", "Installing APKs", "Running instrumentation tests", "Collecting results");
+
+  private final String myProjectId;
+  private final String myMatrixId;
+  private final String myBucketName;
+  // The folder within the bucket that holds the results of this matrix, e.g., "shard-1/" (empty if the results go to the bucket root).
+  private final String myPathPrefix;
+  private final long myValidationEndTime;
+  private final List<String> myTestClasses;
+  private final List<SimulatedExecution> myExecutions = new ArrayList<SimulatedExecution>();
+  private final SimulationSettings mySettings;
+  // All fields below are guarded by this matrix.
+  private final TestMatrix myTestMatrix;
+  private boolean myIsCancelled = false;
+
+
+  SimulatedTestMatrix(String projectId, String matrixId, TestMatrix requestedTestMatrix, SimulationSettings settings, Random random) {
+    myProjectId = projectId;
+    myMatrixId = matrixId;
+    mySettings = settings;
+    myTestMatrix = requestedTestMatrix;
+    String gcsPath = requestedTestMatrix.getResultStorage().getGoogleCloudStorage().getGcsPath();
+    String bucketPath = gcsPath.substring("gs://".length());
+    int slashIndex = bucketPath.indexOf('/');
+    myBucketName = slashIndex == -1 ? bucketPath : bucketPath.substring(0, slashIndex);
+    String pathPrefix = slashIndex == -1 ? "" : bucketPath.substring(slashIndex + 1);
+    myPathPrefix = pathPrefix.isEmpty() || pathPrefix.endsWith("/") ? pathPrefix : pathPrefix + "/";
+    myTestClasses = getTestClasses(requestedTestMatrix.getTestSpecification());
+
+    long now = System.currentTimeMillis();
+    myValidationEndTime = now + settings.validationSeconds * 1000L;
+    long averageDuration = settings.executionSeconds * 1000L;
+    List<TestExecution> testExecutions = new ArrayList<TestExecution>();
+    AndroidMatrix androidMatrix = requestedTestMatrix.getEnvironmentMatrix().getAndroidMatrix();
+    for (String modelId : nullToEmpty(androidMatrix.getAndroidModelIds())) {
+      for (String versionId : nullToEmpty(androidMatrix.getAndroidVersionIds())) {
+        for (String locale : nullToEmpty(androidMatrix.getLocales())) {
+          for (String orientation : nullToEmpty(androidMatrix.getOrientations())) {
+            TestExecution testExecution = new TestExecution()
+              .setId(matrixId + "_" + testExecutions.size())
+              .setMatrixId(matrixId)
+              .setProjectId(projectId)
+              .setState("VALIDATING")
+              .setTestSpecification(requestedTestMatrix.getTestSpecification())
+              .setEnvironment(new Environment().setAndroidDevice(
+                new AndroidDevice().setAndroidModelId(modelId).setAndroidVersionId(versionId).setLocale(locale)
+                  .setOrientation(orientation)));
+            // Devices do not all start at once, and the executions take different times, like on real devices.
+            long startTime = myValidationEndTime + (long)(random.nextDouble() * averageDuration / 4);
+            long duration = (long)(averageDuration * (0.75 + random.nextDouble() / 2));
+            boolean isFailing = random.nextInt(100) < settings.executionErrorPercent;
+            myExecutions.add(new SimulatedExecution(testExecution, modelId + "-" + versionId + "-" + locale + "-" + orientation,
+                                                    startTime, startTime + duration, isFailing));
+            testExecutions.add(testExecution);
+          }
+        }
+      }
+    }
+    myTestMatrix.setTestMatrixId(matrixId).setProjectId(projectId).setState("VALIDATING").setTestExecutions(testExecutions);
+  }
+
+  /**
+   * Brings the matrix and its executions up to date with the current time, writing the results of newly finished executions.
+   * Returns the updated matrix.
+   */
+  TestMatrix refresh(SimulatedStorage storage) {
+    return refresh(storage, System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  synchronized TestMatrix refresh(SimulatedStorage storage, long now) {
+    if (now < myValidationEndTime && !myIsCancelled) {
+      return myTestMatrix;
+    }
+    if (myTestMatrix.getResultStorage().getToolResultsExecution() == null) {
+      myTestMatrix.getResultStorage().setToolResultsExecution(
+        new ToolResultsExecution().setProjectId(myProjectId).setHistoryId(LocalTestLabServer.HISTORY_ID).setExecutionId(myMatrixId));
+    }
+    boolean isFinished = true;
+    boolean isRunning = false;
+    for (SimulatedExecution execution : myExecutions) {
+      execution.refresh(now, storage);
+      isFinished &= execution.isDone();
+      isRunning |= "RUNNING".equals(execution.testExecution.getState());
+    }
+    if (isFinished) {
+      myTestMatrix.setState(myIsCancelled ? "CANCELLED" : "FINISHED");
+    } else {
+      myTestMatrix.setState(isRunning ? "RUNNING" : "PENDING");
+    }
+    return myTestMatrix;
+  }
+
+  synchronized void cancel() {
+    myIsCancelled = true;
+  }
+
+  /**
+   * Returns how long the given execution ran its tests (in seconds), or {@code null} if there is no such finished execution.
+   */
+  @Nullable
+  synchronized Long getTestDurationSeconds(String executionId) {
+    for (SimulatedExecution execution : myExecutions) {
+      if (execution.testExecution.getId().equals(executionId) && execution.isDone()) {
+        return (execution.endTime - execution.startTime) / 1000;
+      }
+    }
+    return null;
+  }
+
+  private static List<String> getTestClasses(TestSpecification testSpecification) {
+    List<String> testClasses = new ArrayList<String>();
+    AndroidInstrumentationTest instrumentationTest = testSpecification == null ? null : testSpecification.getAndroidInstrumentationTest();
+    if (instrumentationTest != null) {
+      for (String testTarget : nullToEmpty(instrumentationTest.getTestTargets())) {
+        if (testTarget.startsWith("class ")) {
+          for (String testClass : testTarget.substring("class ".length()).split(",")) {
+            // Strip the method of a single test target, e.g., "class com.example.FooTest#testBar".
+            testClasses.add(testClass.contains("#") ? testClass.substring(0, testClass.indexOf('#')) : testClass);
+          }
+        }
+      }
+    }
+    return testClasses.isEmpty() ? Collections.singletonList(DEFAULT_TEST_CLASS) : testClasses;
+  }
+
+  private static <T> List<T> nullToEmpty(@Nullable List<T> list) {
+    return list == null ? Collections.<T>emptyList() : list;
+  }
+
+  private class SimulatedExecution {
+    private final TestExecution testExecution;
+    private final String encodedConfigurationInstance;
+    private final long startTime;
+    private final long endTime;
+    private final boolean isFailing;
+
+    private SimulatedExecution(TestExecution testExecution, String encodedConfigurationInstance, long startTime, long endTime,
+                               boolean isFailing) {
+      this.testExecution = testExecution;
+      this.encodedConfigurationInstance = encodedConfigurationInstance;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.isFailing = isFailing;
+    }
+
+    private boolean isDone() {
+      String state = testExecution.getState();
+      return "FINISHED".equals(state) || "ERROR".equals(state) || "CANCELLED".equals(state);
+    }
+
+    private void refresh(long now, SimulatedStorage storage) {
+      if (isDone()) {
+        return;
+      }
+      if (myIsCancelled) {
+        testExecution.setState("CANCELLED");
+      } else if (now < startTime) {
+        testExecution.setState("PENDING");
+      } else if (now < endTime) {
+        int progressMessageCount =
+          (int)Math.min(mySettings.progressMessageCount, 1 + (now - startTime) * mySettings.progressMessageCount / (endTime - startTime));
+        testExecution.setState("RUNNING").setTestDetails(new TestDetails().setProgressMessages(getProgressMessages(progressMessageCount)));
+      } else if (isFailing) {
+        testExecution.setState("ERROR").setTestDetails(
+          new TestDetails().setProgressMessages(getProgressMessages(mySettings.progressMessageCount))
+            .setErrorMessage("Simulated infrastructure failure"));
+      } else {
+        // Write the results before the execution is reported as finished, like the real backend does.
+        writeResults(storage);
+        testExecution.setState("FINISHED")
+          .setTestDetails(new TestDetails().setProgressMessages(getProgressMessages(mySettings.progressMessageCount)))
+          .setToolResultsStep(new ToolResultsStep().setProjectId(myProjectId).setHistoryId(LocalTestLabServer.HISTORY_ID)
+                                .setExecutionId(myMatrixId).setStepId(testExecution.getId()));
+      }
+    }
+
+    private List<String> getProgressMessages(int count) {
+      List<String> progressMessages = new ArrayList<String>();
+      for (int i = 0; i < count; i++) {
+        progressMessages.add(i < PROGRESS_MESSAGES.size() ? PROGRESS_MESSAGES.get(i) : "Test run progress " + (i + 1));
+      }
+      return progressMessages;
+    }
+
+    private void writeResults(SimulatedStorage storage) {
+      String folder = myPathPrefix + encodedConfigurationInstance + "/";
+      int testCount = mySettings.testsPerExecution;
+      StringBuilder results = new StringBuilder();
+      for (int i = 0; i < testCount; i++) {
+        String testClass = myTestClasses.get(i % myTestClasses.size());
+        String testMethod = "test" + (i / myTestClasses.size() + 1);
+        appendTestStatus(results, testClass, testMethod, testCount, i + 1, 1);
+        appendTestStatus(results, testClass, testMethod, testCount, i + 1, 0);
+        for (int step = 1; step <= mySettings.screenshotsPerTest; step++) {
+          storage.put(myBucketName, folder + "artifacts/" + testClass + "-" + testMethod + "-screen-" + step + ".png",
+                      createScreenshot(testClass + "#" + testMethod, step));
+        }
+      }
+      results.append("INSTRUMENTATION_RESULT: stream=\n\nTime: ").append((endTime - startTime) / 1000)
+        .append("\n\nOK (").append(testCount).append(" tests)\n\n\nINSTRUMENTATION_CODE: -1\n");
+      storage.put(myBucketName, folder + RESULTS_FILE_NAME, results.toString().getBytes());
+    }
+
+    private void appendTestStatus(StringBuilder results, String testClass, String testMethod, int testCount, int current, int code) {
+      results.append("INSTRUMENTATION_STATUS: numtests=").append(testCount).append('\n')
+        .append("INSTRUMENTATION_STATUS: stream=").append(code == 1 ? "\n" + testClass + ":" : ".").append('\n')
+        .append("INSTRUMENTATION_STATUS: id=AndroidJUnitRunner\n")
+        .append("INSTRUMENTATION_STATUS: test=").append(testMethod).append('\n')
+        .append("INSTRUMENTATION_STATUS: class=").append(testClass).append('\n')
+        .append("INSTRUMENTATION_STATUS: current=").append(current).append('\n')
+        .append("INSTRUMENTATION_STATUS_CODE: ").append(code).append('\n');
+    }
+
+    /**
+     * Draws a screenshot that differs between tests, steps and configurations, such that screenshot comparisons have something to show.
+     */
+    private byte[] createScreenshot(String testName, int step) {
+      BufferedImage image = new BufferedImage(SCREENSHOT_WIDTH, SCREENSHOT_HEIGHT, BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = image.createGraphics();
+      try {
+        graphics.setColor(new Color((testName + step).hashCode() & 0xFFFFFF));
+        graphics.fillRect(0, 0, SCREENSHOT_WIDTH, SCREENSHOT_HEIGHT);
+        graphics.setColor(new Color(encodedConfigurationInstance.hashCode() & 0xFFFFFF));
+        graphics.fillRect(0, 0, SCREENSHOT_WIDTH, SCREENSHOT_HEIGHT / 8);
+        graphics.setColor(Color.WHITE);
+        graphics.drawString(encodedConfigurationInstance, 4, 16);
+        graphics.drawString(testName.substring(testName.lastIndexOf('.') + 1), 4, SCREENSHOT_HEIGHT / 2);
+        graphics.drawString("Step " + step, 4, SCREENSHOT_HEIGHT / 2 + 16);
+      } finally {
+        graphics.dispose();
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+        ImageIO.write(image, "png", out);
+      } catch (IOException e) {
+        // Cannot happen while writing to memory.
+        throw new RuntimeException(e);
+      }
+      return out.toByteArray();
+    }
+  }
+}
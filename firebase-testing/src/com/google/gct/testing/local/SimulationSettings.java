@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import java.util.Properties;
+
+/**
+ * How the local backend behaves. The settings are read from system properties (e.g., -Dfirebase.testing.local.failurePercent=5),
+ * such that load tests and benchmarks can be reproduced by rerunning the IDE with the same flags.
+ */
+class SimulationSettings {
+
+  private static final String PROPERTY_PREFIX = "firebase.testing.local.";
+
+  // The delay of every response is latencyMillis plus a random jitter of up to latencyJitterMillis.
+  final int latencyMillis;
+  final int latencyJitterMillis;
+  // The share of requests that fail with 503, in percent.
+  final int failurePercent;
+  // Requests beyond this rate fail with 429, 0 means no throttling.
+  final int maxRequestsPerSecond;
+  // How long a matrix stays in VALIDATING.
+  final int validationSeconds;
+  // The average duration of a test execution, the actual durations vary by +/- 25%.
+  final int executionSeconds;
+  // How many progress messages a test execution reports while it runs (evenly spread over its duration).
+  final int progressMessageCount;
+  // The share of test executions that end with an infrastructure failure, in percent.
+  final int executionErrorPercent;
+  final int testsPerExecution;
+  final int screenshotsPerTest;
+  // How long a device takes to become ready.
+  final int deviceBootSeconds;
+  // Seeds the random decisions of each test matrix (e.g., which executions fail), such that the Nth matrix of runs with the same
+  // settings progresses and fails the same way. Which requests fail depends on how concurrent requests interleave, so only their
+  // rate is reproducible.
+  final long seed;
+
+  private SimulationSettings(Properties properties) {
+    latencyMillis = getInt(properties, "latencyMillis", 50);
+    latencyJitterMillis = getInt(properties, "latencyJitterMillis", 50);
+    failurePercent = getInt(properties, "failurePercent", 0);
+    maxRequestsPerSecond = getInt(properties, "maxRequestsPerSecond", 0);
+    validationSeconds = getInt(properties, "validationSeconds", 5);
+    executionSeconds = getInt(properties, "executionSeconds", 60);
+    progressMessageCount = Math.max(1, getInt(properties, "progressMessageCount", 5));
+    executionErrorPercent = getInt(properties, "executionErrorPercent", 0);
+    testsPerExecution = Math.max(1, getInt(properties, "testsPerExecution", 20));
+    screenshotsPerTest = getInt(properties, "screenshotsPerTest", 2);
+    deviceBootSeconds = getInt(properties, "deviceBootSeconds", 30);
+    seed = getLong(properties, "seed", 0L);
+  }
+
+  static SimulationSettings fromSystemProperties() {
+    return fromProperties(System.getProperties());
+  }
+
+  /**
+   * Reads the settings from the given properties, which have the same (prefixed) names as the system properties.
+   */
+  static SimulationSettings fromProperties(Properties properties) {
+    return new SimulationSettings(properties);
+  }
+
+  private static int getInt(Properties properties, String name, int defaultValue) {
+    return (int)Math.max(0, Math.min(Integer.MAX_VALUE, getLong(properties, name, defaultValue)));
+  }
+
+  private static long getLong(Properties properties, String name, long defaultValue) {
+    String value = properties.getProperty(PROPERTY_PREFIX + name);
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        // Like Long.getLong, ignore malformed values.
+      }
+    }
+    return defaultValue;
+  }
+
+  @Override
+  public String toString() {
+    return "SimulationSettings{" +
+           "latencyMillis=" + latencyMillis +
+           ", latencyJitterMillis=" + latencyJitterMillis +
+           ", failurePercent=" + failurePercent +
+           ", maxRequestsPerSecond=" + maxRequestsPerSecond +
+           ", validationSeconds=" + validationSeconds +
+           ", executionSeconds=" + executionSeconds +
+           ", progressMessageCount=" + progressMessageCount +
+           ", executionErrorPercent=" + executionErrorPercent +
+           ", testsPerExecution=" + testsPerExecution +
+           ", screenshotsPerTest=" + screenshotsPerTest +
+           ", deviceBootSeconds=" + deviceBootSeconds +
+           ", seed=" + seed +
+           '}';
+  }
+}
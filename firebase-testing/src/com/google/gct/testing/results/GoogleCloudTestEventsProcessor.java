@@ -15,6 +15,7 @@
  */
 package com.google.gct.testing.results;
 
+import com.google.gct.testing.CloudMetrics;
 import com.google.gct.testing.results.events.*;
 import com.intellij.execution.testframework.sm.runner.SMTestLocator;
 import com.intellij.execution.testframework.sm.runner.TestProxyPrinterProvider;
@@ -33,6 +34,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class GoogleCloudTestEventsProcessor implements Disposable {
   private TransferToEDTQueue<Runnable> myTransferToEDTQueue =
@@ -43,6 +45,7 @@ public abstract class GoogleCloudTestEventsProcessor implements Disposable {
         return true;
       }
     }, getDisposedCondition(), 300);
+  private final AtomicInteger myPendingEventCount = new AtomicInteger();
 
   public abstract void onStartTesting();
 
@@ -138,7 +141,18 @@ public abstract class GoogleCloudTestEventsProcessor implements Disposable {
       runnable.run();
     }
     else {
-      myTransferToEDTQueue.offer(runnable);
+      // Measure how far the EDT lags behind the result events of the run that produces them.
+      final CloudMetrics.Metrics runMetrics = CloudMetrics.getInstance().getCurrentRun();
+      final long offerTime = System.currentTimeMillis();
+      final int backlog = myPendingEventCount.incrementAndGet();
+      myTransferToEDTQueue.offer(new Runnable() {
+        @Override
+        public void run() {
+          myPendingEventCount.decrementAndGet();
+          CloudMetrics.getInstance().recordEdtDispatch(runMetrics, System.currentTimeMillis() - offerTime, backlog);
+          runnable.run();
+        }
+      });
     }
   }
 }
@@ -17,6 +17,7 @@ package com.google.gct.testing.results;
 
 
 import com.google.gct.testing.DebugConfigurationAction;
+import com.google.gct.testing.ExportScreenshotsAction;
 import com.google.gct.testing.ShowScreenshotsAction;
 import com.intellij.execution.testframework.TestConsoleProperties;
 import com.intellij.execution.testframework.TestFrameworkRunningModel;
@@ -61,6 +62,7 @@ public class GoogleCloudTestRunnerToolbarPanel extends SMTRunnerToolbarPanel {
 
   private void addCloudActions(DefaultActionGroup actionGroup) {
     actionGroup.addAction(new ShowScreenshotsAction());
+    actionGroup.addAction(new ExportScreenshotsAction());
     if (Boolean.getBoolean("enable.google.cloud.debugging")) {
       actionGroup.addAction(new DebugConfigurationAction());
     }
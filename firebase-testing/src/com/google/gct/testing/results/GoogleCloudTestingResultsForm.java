@@ -41,6 +41,8 @@ import javax.swing.*;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.util.LinkedHashSet;
@@ -53,10 +55,20 @@ public class GoogleCloudTestingResultsForm extends TestResultsPanel
 
   public static final Color DARK_YELLOW = JBColor.YELLOW.darker();
 
+  private static final int ROOT_REPAINT_INTERVAL_MILLIS = 10 * 1000; // 10 seconds
+
   private GoogleCloudTestTreeView myTreeView;
 
   private TestsProgressAnimator myTestAnimator;
 
+  // Repaints the root node while the tests run, such that its estimated remaining time does not go stale between status updates.
+  private final Timer myRootRepaintTimer = new Timer(ROOT_REPAINT_INTERVAL_MILLIS, new ActionListener() {
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      myTreeBuilder.repaintWithParents(myTestsRootNode);
+    }
+  });
+
   /**
    * Fake parent suite for all tests and suites
    */
@@ -180,6 +192,7 @@ public class GoogleCloudTestingResultsForm extends TestResultsPanel
   @Override
   public void onTestingStarted(@NotNull GoogleCloudTestProxy.GoogleCloudRootTestProxy testsRoot, boolean printTestingStartedTime) {
     myTestAnimator.setCurrentTestCase(myTestsRootNode);
+    myRootRepaintTimer.start();
 
     // Status line
     myStatusLine.setStatusColor(ColorProgressBar.GREEN);
@@ -213,6 +226,7 @@ public class GoogleCloudTestingResultsForm extends TestResultsPanel
     updateIconProgress();
 
     myTestAnimator.stopMovie();
+    myRootRepaintTimer.stop();
     myTreeBuilder.updateFromRoot();
 
     LvcsHelper.addLabel(this);
@@ -387,6 +401,7 @@ public class GoogleCloudTestingResultsForm extends TestResultsPanel
   @Override
   public void dispose() {
     super.dispose();
+    myRootRepaintTimer.stop();
     myShowStatisticForProxyHandler = null;
     myEventListeners.clear();
   }
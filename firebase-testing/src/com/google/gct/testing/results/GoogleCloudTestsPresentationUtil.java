@@ -15,6 +15,8 @@
  */
 package com.google.gct.testing.results;
 
+import com.google.gct.testing.CloudConfigurationHelper;
+import com.google.gct.testing.CloudResultsAdapter;
 import com.intellij.execution.testframework.PoolOfTestIcons;
 import com.intellij.execution.testframework.TestConsoleProperties;
 import com.intellij.execution.testframework.TestsUIUtil;
@@ -138,7 +140,8 @@ public class GoogleCloudTestsPresentationUtil {
 
     final String text;
     if (magnitude == TestStateInfo.Magnitude.RUNNING_INDEX) {
-      text = SMTestsRunnerBundle.message("sm.test.runner.ui.tests.tree.presentation.labels.running.tests");
+      text = SMTestsRunnerBundle.message("sm.test.runner.ui.tests.tree.presentation.labels.running.tests")
+             + getEstimatedRemainingTimeText(testProxy);
     } else if (magnitude == TestStateInfo.Magnitude.TERMINATED_INDEX) {
       text = SMTestsRunnerBundle.message("sm.test.runner.ui.tests.tree.presentation.labels.was.terminated");
     } else if (magnitude == TestStateInfo.Magnitude.TIMEOUT_INDEX) {
@@ -153,6 +156,18 @@ public class GoogleCloudTestsPresentationUtil {
     renderer.append(text, SimpleTextAttributes.REGULAR_ATTRIBUTES);
   }
 
+  @NotNull
+  private static String getEstimatedRemainingTimeText(GoogleCloudTestProxy.GoogleCloudRootTestProxy testProxy) {
+    String testRunId = testProxy.getTestRunId();
+    CloudResultsAdapter cloudResultsAdapter = testRunId == null ? null : CloudConfigurationHelper.getCloudResultsAdapter(testRunId);
+    long remainingTime = cloudResultsAdapter == null ? -1 : cloudResultsAdapter.getEstimatedRemainingTime();
+    if (remainingTime < 0) {
+      return "";
+    }
+    long remainingMinutes = (remainingTime + 59999) / 60000;
+    return remainingMinutes <= 1 ? " (about a minute left)" : " (about " + remainingMinutes + " minutes left)";
+  }
+
   public static void formatRootNodeWithoutChildren(final GoogleCloudTestProxy.GoogleCloudRootTestProxy testProxy,
                                                    final GoogleCloudTestTreeRenderer renderer) {
     final TestStateInfo.Magnitude magnitude = testProxy.getMagnitudeInfo();
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gct.testing.CloudMetrics;
+import com.google.gct.testing.CloudTestingUtils;
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.actionSystem.ActionManager;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.DefaultActionGroup;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.SimpleToolWindowPanel;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import com.intellij.ui.components.JBScrollPane;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+
+/**
+ * Shows the {@link CloudMetrics} report, refreshing it while it is visible, and exports the metrics as JSON.
+ */
+public class CloudMetricsPanel extends SimpleToolWindowPanel implements Disposable {
+
+  private static final int REFRESH_INTERVAL = 2 * 1000; // 2 seconds
+
+  private final Project project;
+  private final JTextArea reportArea = new JTextArea();
+  private final Timer refreshTimer;
+
+  public CloudMetricsPanel(Project project) {
+    super(true, true);
+    this.project = project;
+
+    reportArea.setEditable(false);
+    reportArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, reportArea.getFont().getSize()));
+    setContent(new JBScrollPane(reportArea));
+
+    DefaultActionGroup actionGroup = new DefaultActionGroup();
+    actionGroup.add(new AnAction("Refresh", "Refresh the firebase metrics", AllIcons.Actions.Refresh) {
+      @Override
+      public void actionPerformed(AnActionEvent e) {
+        refresh();
+      }
+    });
+    actionGroup.add(new AnAction("Export as JSON", "Export the firebase metrics as JSON", AllIcons.Actions.Export) {
+      @Override
+      public void actionPerformed(AnActionEvent e) {
+        exportJson();
+      }
+    });
+    setToolbar(ActionManager.getInstance().createActionToolbar("FirebaseMetrics", actionGroup, true).getComponent());
+
+    refreshTimer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        if (isShowing()) {
+          refresh();
+        }
+      }
+    });
+    refreshTimer.start();
+    refresh();
+  }
+
+  private void refresh() {
+    String report = CloudMetrics.getInstance().formatReport();
+    if (!report.equals(reportArea.getText())) {
+      int caretPosition = reportArea.getCaretPosition();
+      reportArea.setText(report);
+      reportArea.setCaretPosition(Math.min(caretPosition, report.length()));
+    }
+  }
+
+  private void exportJson() {
+    FileSaverDescriptor descriptor = new FileSaverDescriptor("Export Firebase Metrics", "Export the firebase metrics as JSON", "json");
+    VirtualFileWrapper fileWrapper = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
+      .save(null, "firebase-metrics.json");
+    if (fileWrapper == null) {
+      return;
+    }
+    try {
+      Files.write(CloudMetrics.getInstance().toJson(), fileWrapper.getFile(), Charsets.UTF_8);
+    } catch (IOException e) {
+      CloudTestingUtils.showErrorMessage(project, "Error exporting firebase metrics", "Failed to export the firebase metrics!\n" +
+                                                                                     e.getMessage());
+    }
+  }
+
+  @Override
+  public void dispose() {
+    refreshTimer.stop();
+  }
+}
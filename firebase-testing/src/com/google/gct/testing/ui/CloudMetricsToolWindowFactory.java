@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import org.jetbrains.annotations.NotNull;
+
+import static com.google.gct.testing.config.GoogleCloudTestingDeveloperConfigurable.SHOW_GOOGLE_CLOUD_TESTING_SETTINGS;
+
+/**
+ * Creates the Firebase Metrics tool window, which is available along with the developer settings only.
+ */
+public class CloudMetricsToolWindowFactory implements ToolWindowFactory, Condition<Project> {
+
+  @Override
+  public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+    CloudMetricsPanel metricsPanel = new CloudMetricsPanel(project);
+    Content content = ContentFactory.SERVICE.getInstance().createContent(metricsPanel, "", false);
+    content.setDisposer(metricsPanel);
+    toolWindow.getContentManager().addContent(content);
+  }
+
+  @Override
+  public boolean value(Project project) {
+    return Boolean.getBoolean(SHOW_GOOGLE_CLOUD_TESTING_SETTINGS);
+  }
+}
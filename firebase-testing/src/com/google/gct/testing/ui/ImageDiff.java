@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares two images, e.g., the screenshots of the same test step on two device configurations. The images are split into square
+ * tiles that are compared in parallel on a shared fork-join pool. The comparison produces a similarity score between 0 (completely
+ * different) and 1 (identical), and a heatmap that highlights the differences when painted over the compared image.
+ */
+public class ImageDiff {
+
+  public enum Mode {
+    /** Compares the colors of individual pixels. Precise, but flags anti-aliasing and font rendering differences, too. */
+    PIXEL,
+    /** Compares the luminance structure of small windows (as SSIM does), which is closer to what a human notices. */
+    PERCEPTUAL
+  }
+
+  public static class Result {
+    private final double similarity;
+    private final BufferedImage heatmap;
+
+    private Result(double similarity, BufferedImage heatmap) {
+      this.similarity = similarity;
+      this.heatmap = heatmap;
+    }
+
+    public double getSimilarity() {
+      return similarity;
+    }
+
+    /**
+     * A transparent image of the size of the reference image, which is red where the images differ (the more, the more opaque).
+     */
+    @NotNull
+    public BufferedImage getHeatmap() {
+      return heatmap;
+    }
+  }
+
+  // A multiple of the window size, such that windows never cross tiles.
+  private static final int TILE_SIZE = 64;
+  private static final int WINDOW_SIZE = 8;
+  // The SSIM constants for 8-bit luminance.
+  private static final double C1 = (0.01 * 255) * (0.01 * 255);
+  private static final double C2 = (0.03 * 255) * (0.03 * 255);
+  // Differences below this are not highlighted (e.g., JPEG artifacts).
+  private static final double MIN_HIGHLIGHTED_DIFFERENCE = 0.05;
+
+  private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+  private ImageDiff() {
+  }
+
+  /**
+   * Compares the image with the reference image, scaling it to the size of the reference image first if needed.
+   */
+  @NotNull
+  public static Result compare(@NotNull BufferedImage reference, @NotNull BufferedImage image, @NotNull Mode mode) {
+    int width = reference.getWidth();
+    int height = reference.getHeight();
+    if (image.getWidth() != width || image.getHeight() != height) {
+      image = ImageScaling.scale(image, width, height);
+    }
+    int[] referencePixels = reference.getRGB(0, 0, width, height, null, 0, width);
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    int[] heatmapPixels = new int[width * height];
+    int tileCount = ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+    double difference = POOL.invoke(new DiffTask(referencePixels, pixels, heatmapPixels, width, height, mode, 0, tileCount));
+
+    BufferedImage heatmap = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    heatmap.setRGB(0, 0, width, height, heatmapPixels, 0, width);
+    return new Result(1 - difference / (width * height), heatmap);
+  }
+
+  /**
+   * Returns a copy of the image with the heatmap painted over it (scaled to the size of the image).
+   */
+  @NotNull
+  public static BufferedImage overlay(@NotNull BufferedImage image, @NotNull BufferedImage heatmap) {
+    BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = result.createGraphics();
+    try {
+      g.drawImage(image, 0, 0, null);
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(heatmap, 0, 0, image.getWidth(), image.getHeight(), null);
+    } finally {
+      g.dispose();
+    }
+    return result;
+  }
+
+  /**
+   * Compares a range of tiles, splitting it in halves down to single tiles. Returns the sum of the differences (between 0 and 1) of
+   * all the pixels of the range and fills in their heatmap pixels.
+   */
+  private static class DiffTask extends RecursiveTask<Double> {
+    private final int[] referencePixels;
+    private final int[] pixels;
+    private final int[] heatmapPixels;
+    private final int width;
+    private final int height;
+    private final Mode mode;
+    private final int firstTile;
+    private final int endTile;
+
+    private DiffTask(int[] referencePixels, int[] pixels, int[] heatmapPixels, int width, int height, Mode mode, int firstTile,
+                     int endTile) {
+      this.referencePixels = referencePixels;
+      this.pixels = pixels;
+      this.heatmapPixels = heatmapPixels;
+      this.width = width;
+      this.height = height;
+      this.mode = mode;
+      this.firstTile = firstTile;
+      this.endTile = endTile;
+    }
+
+    @Override
+    protected Double compute() {
+      if (endTile - firstTile > 1) {
+        int middleTile = (firstTile + endTile) / 2;
+        DiffTask first = new DiffTask(referencePixels, pixels, heatmapPixels, width, height, mode, firstTile, middleTile);
+        DiffTask second = new DiffTask(referencePixels, pixels, heatmapPixels, width, height, mode, middleTile, endTile);
+        first.fork();
+        double secondDifference = second.compute();
+        return first.join() + secondDifference;
+      }
+      int tilesPerRow = (width + TILE_SIZE - 1) / TILE_SIZE;
+      int x = (firstTile % tilesPerRow) * TILE_SIZE;
+      int y = (firstTile / tilesPerRow) * TILE_SIZE;
+      int tileWidth = Math.min(TILE_SIZE, width - x);
+      int tileHeight = Math.min(TILE_SIZE, height - y);
+      return mode == Mode.PIXEL
+             ? comparePixels(referencePixels, pixels, heatmapPixels, width, x, y, tileWidth, tileHeight)
+             : compareWindows(referencePixels, pixels, heatmapPixels, width, x, y, tileWidth, tileHeight);
+    }
+  }
+
+  private static double comparePixels(int[] referencePixels, int[] pixels, int[] heatmapPixels, int width, int x, int y, int tileWidth,
+                                      int tileHeight) {
+    double difference = 0;
+    for (int row = y; row < y + tileHeight; row++) {
+      for (int index = row * width + x; index < row * width + x + tileWidth; index++) {
+        double pixelDifference = getPixelDifference(referencePixels[index], pixels[index]);
+        heatmapPixels[index] = getHeatColor(pixelDifference);
+        difference += pixelDifference;
+      }
+    }
+    return difference;
+  }
+
+  /**
+   * Returns the largest difference of the color channels, between 0 and 1.
+   */
+  @VisibleForTesting
+  static double getPixelDifference(int referencePixel, int pixel) {
+    int red = Math.abs(((referencePixel >> 16) & 0xFF) - ((pixel >> 16) & 0xFF));
+    int green = Math.abs(((referencePixel >> 8) & 0xFF) - ((pixel >> 8) & 0xFF));
+    int blue = Math.abs((referencePixel & 0xFF) - (pixel & 0xFF));
+    return Math.max(red, Math.max(green, blue)) / 255.0;
+  }
+
+  private static double compareWindows(int[] referencePixels, int[] pixels, int[] heatmapPixels, int width, int x, int y, int tileWidth,
+                                       int tileHeight) {
+    double difference = 0;
+    for (int windowY = y; windowY < y + tileHeight; windowY += WINDOW_SIZE) {
+      for (int windowX = x; windowX < x + tileWidth; windowX += WINDOW_SIZE) {
+        int windowWidth = Math.min(WINDOW_SIZE, x + tileWidth - windowX);
+        int windowHeight = Math.min(WINDOW_SIZE, y + tileHeight - windowY);
+        double windowDifference =
+          Math.max(0, Math.min(1, 1 - getStructuralSimilarity(referencePixels, pixels, width, windowX, windowY, windowWidth, windowHeight)));
+        int heatColor = getHeatColor(windowDifference);
+        for (int row = windowY; row < windowY + windowHeight; row++) {
+          for (int index = row * width + windowX; index < row * width + windowX + windowWidth; index++) {
+            heatmapPixels[index] = heatColor;
+          }
+        }
+        difference += windowDifference * windowWidth * windowHeight;
+      }
+    }
+    return difference;
+  }
+
+  /**
+   * Returns the SSIM index of the luminance of the given window of both images, between -1 and 1 (identical).
+   */
+  @VisibleForTesting
+  static double getStructuralSimilarity(int[] referencePixels, int[] pixels, int width, int x, int y, int windowWidth, int windowHeight) {
+    double referenceSum = 0;
+    double sum = 0;
+    double referenceSquaresSum = 0;
+    double squaresSum = 0;
+    double productsSum = 0;
+    for (int row = y; row < y + windowHeight; row++) {
+      for (int index = row * width + x; index < row * width + x + windowWidth; index++) {
+        int referenceLuminance = getLuminance(referencePixels[index]);
+        int luminance = getLuminance(pixels[index]);
+        referenceSum += referenceLuminance;
+        sum += luminance;
+        referenceSquaresSum += referenceLuminance * referenceLuminance;
+        squaresSum += luminance * luminance;
+        productsSum += referenceLuminance * luminance;
+      }
+    }
+    int count = windowWidth * windowHeight;
+    double referenceMean = referenceSum / count;
+    double mean = sum / count;
+    double referenceVariance = referenceSquaresSum / count - referenceMean * referenceMean;
+    double variance = squaresSum / count - mean * mean;
+    double covariance = productsSum / count - referenceMean * mean;
+    return ((2 * referenceMean * mean + C1) * (2 * covariance + C2))
+           / ((referenceMean * referenceMean + mean * mean + C1) * (referenceVariance + variance + C2));
+  }
+
+  /**
+   * Returns the luma (0-255) of the given RGB pixel. Also used by {@link PerceptualHash}, such that both agree on what looks alike.
+   */
+  static int getLuminance(int pixel) {
+    // Integer approximation of the Rec. 601 luma weights.
+    return (((pixel >> 16) & 0xFF) * 77 + ((pixel >> 8) & 0xFF) * 150 + (pixel & 0xFF) * 29) >> 8;
+  }
+
+  private static int getHeatColor(double difference) {
+    if (difference < MIN_HIGHLIGHTED_DIFFERENCE) {
+      return 0; // Fully transparent.
+    }
+    int alpha = 64 + (int)(difference * 160);
+    return (alpha << 24) | 0xFF0000;
+  }
+}
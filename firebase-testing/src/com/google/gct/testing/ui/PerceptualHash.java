@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Computes 64-bit difference hashes (dHash) of images, which differ in only a few bits for images that look alike (e.g., the same
+ * screen rendered at different resolutions, or with slightly different fonts), and groups the images by the distance of their hashes.
+ */
+public class PerceptualHash {
+
+  private static final int HASH_WIDTH = 8;
+  private static final int HASH_HEIGHT = 8;
+
+  private PerceptualHash() {
+  }
+
+  /**
+   * Returns the difference hash of the image: the image is shrunk to 9x8 pixels, and each bit tells whether a pixel is brighter than its
+   * right neighbour.
+   */
+  public static long getDifferenceHash(@NotNull BufferedImage image) {
+    BufferedImage smallImage = ImageScaling.scale(image, HASH_WIDTH + 1, HASH_HEIGHT);
+    int[] pixels = smallImage.getRGB(0, 0, HASH_WIDTH + 1, HASH_HEIGHT, null, 0, HASH_WIDTH + 1);
+    long hash = 0;
+    for (int y = 0; y < HASH_HEIGHT; y++) {
+      for (int x = 0; x < HASH_WIDTH; x++) {
+        int index = y * (HASH_WIDTH + 1) + x;
+        hash <<= 1;
+        if (ImageDiff.getLuminance(pixels[index]) > ImageDiff.getLuminance(pixels[index + 1])) {
+          hash |= 1;
+        }
+      }
+    }
+    return hash;
+  }
+
+  public static int getDistance(long hash, long otherHash) {
+    return Long.bitCount(hash ^ otherHash);
+  }
+
+  /**
+   * Groups the items whose hashes are at most {@code maxDistance} apart from the first item of the group, which represents it. Items are
+   * considered in the iteration order of the map. Returns the largest groups first, so items that look like no other item (the
+   * outliers) come last.
+   */
+  @NotNull
+  public static <T> List<List<T>> cluster(@NotNull Map<T, Long> hashes, int maxDistance) {
+    List<List<T>> clusters = new ArrayList<List<T>>();
+    List<Long> representativeHashes = new ArrayList<Long>();
+    for (Map.Entry<T, Long> entry : hashes.entrySet()) {
+      int closestCluster = -1;
+      int closestDistance = maxDistance + 1;
+      for (int i = 0; i < clusters.size(); i++) {
+        int distance = getDistance(entry.getValue(), representativeHashes.get(i));
+        if (distance < closestDistance) {
+          closestCluster = i;
+          closestDistance = distance;
+        }
+      }
+      if (closestCluster >= 0) {
+        clusters.get(closestCluster).add(entry.getKey());
+      } else {
+        List<T> cluster = new ArrayList<T>();
+        cluster.add(entry.getKey());
+        clusters.add(cluster);
+        representativeHashes.add(entry.getValue());
+      }
+    }
+    // The sort is stable, so clusters of the same size keep the order of their representatives.
+    Collections.sort(clusters, new Comparator<List<T>>() {
+      @Override
+      public int compare(List<T> first, List<T> second) {
+        return second.size() - first.size();
+      }
+    });
+    return clusters;
+  }
+}
@@ -23,20 +23,34 @@ import javax.swing.border.MatteBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import static com.google.gct.testing.ui.WipePanel.State.*;
 
 
 public class WipePanel extends JPanel {
+  private static final int FRAME_MILLIS = 15;
+  private static final int MAX_POOLED_BUFFERS = 2;
+
+  // The back buffers of finished animations, reused by the next ones. Only accessed on the EDT.
+  private static final List<VolatileImage> bufferPool = new ArrayList<VolatileImage>();
+
   private long start;
   private float percentRevealed;
 
   private int fullHeight;
   private int fullWidth;
-  private BufferedImage buffer;
+  // Has device pixels (e.g., twice as many as the panel on Retina displays), and might be larger than that, if it was pooled.
+  private VolatileImage buffer;
+  // The device pixels per user space pixel of the buffer.
+  private double bufferScale = 1;
+  private Timer animationTimer;
+  private com.google.gct.testing.ui.WipePanelCallback animationCallBack;
 
   private State state = hidden;
 
@@ -62,12 +76,25 @@ public class WipePanel extends JPanel {
     } else if (state == revealing || state == hiding) {
       this.setVisible(true);
 
-      int width = (int)(fullWidth * percentRevealed);
-      this.setSize(width, fullHeight);
-
-      g.clearRect(0, 0, fullWidth, fullHeight);
-      //((Graphics2D) g).setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, percentRevealed));
-      g.drawImage(buffer, 0, 0, this);
+      // Usually clipped to the strip that was revealed since the previous frame.
+      Rectangle clip = g.getClipBounds();
+      if (clip == null) {
+        clip = new Rectangle(0, 0, getWidth(), fullHeight);
+      }
+      g.clearRect(clip.x, clip.y, clip.width, clip.height);
+      if (buffer != null && buffer.validate(getGraphicsConfiguration()) != VolatileImage.IMAGE_OK) {
+        renderContents();
+      }
+      if (buffer != null) {
+        // Draw the buffer back at the device resolution it was rendered at.
+        Graphics2D bufferGraphics = (Graphics2D)g.create();
+        try {
+          bufferGraphics.scale(1 / bufferScale, 1 / bufferScale);
+          bufferGraphics.drawImage(buffer, 0, 0, this);
+        } finally {
+          bufferGraphics.dispose();
+        }
+      }
     } else {
       this.setVisible(true);
       super.paint(g);
@@ -78,7 +105,7 @@ public class WipePanel extends JPanel {
     SwingUtilities.invokeLater(new Runnable() {
       @Override
       public void run() {
-        reveal(-1, callBack);
+        animate(revealing, -1, callBack);
       }
     });
   }
@@ -87,7 +114,7 @@ public class WipePanel extends JPanel {
     SwingUtilities.invokeLater(new Runnable() {
       @Override
       public void run() {
-        reveal(300, callBack);
+        animate(revealing, 300, callBack);
       }
     });
   }
@@ -96,81 +123,177 @@ public class WipePanel extends JPanel {
     SwingUtilities.invokeLater(new Runnable() {
       @Override
       public void run() {
-        unReveal(300, callBack);
+        animate(hiding, 300, callBack);
       }
     });
   }
 
-  private void reveal(final int totalTimeMillis, @Nullable final com.google.gct.testing.ui.WipePanelCallback callBack) {
+  private void animate(final State animationState, final int totalTimeMillis,
+                       @Nullable com.google.gct.testing.ui.WipePanelCallback callBack) {
+    if (animationTimer != null) {
+      // Finish the running animation first, such that the panel has its full size again.
+      endAnimation();
+    }
     start = System.currentTimeMillis();
+    state = animationState;
+    animationCallBack = callBack;
+    fullWidth = getWidth();
+    fullHeight = getHeight();
+
+    if (isOffScreen() || fullWidth <= 0 || fullHeight <= 0) {
+      // Nobody would see the animation.
+      endAnimation();
+      return;
+    }
+    buffer = acquireBuffer(fullWidth, fullHeight);
+    if (buffer == null) {
+      endAnimation();
+      return;
+    }
+    renderContents();
 
-    state = revealed;
-
-    buffer = UIUtil.createImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-    this.print(buffer.getGraphics()); // Draw the current components on the buffer.
-    state = revealing;
-
-    fullWidth = buffer.getWidth();
-    fullHeight = buffer.getHeight();
-
-    percentRevealed = 0.01f;
+    percentRevealed = animationState == revealing ? 0.01f : 0.99f;
+    setVisible(true);
+    setSize(getRevealedWidth(), fullHeight);
+    repaint();
 
-    final Timer t = new Timer(10, null);
-    t.addActionListener(new ActionListener() {
+    animationTimer = new Timer(FRAME_MILLIS, new ActionListener() {
       @Override
       public void actionPerformed(ActionEvent e) {
         long elapsed = System.currentTimeMillis() - start;
-        if (elapsed > totalTimeMillis) {
-          setSize(fullWidth, fullHeight);
-          t.stop();
-          state = revealed;
-          if (callBack != null) {
-            callBack.panelRevealed();
-          }
+        if (elapsed > totalTimeMillis || isOffScreen()) {
+          endAnimation();
+          return;
+        }
+        float percentElapsed = (float)elapsed / totalTimeMillis;
+        percentRevealed = animationState == revealing ? percentElapsed : 1f - percentElapsed;
+        int oldWidth = getWidth();
+        int width = getRevealedWidth();
+        if (width == oldWidth) {
+          return;
+        }
+        setSize(width, fullHeight);
+        // Repaint just the strip that was revealed or hidden since the previous frame.
+        if (width > oldWidth) {
+          repaint(oldWidth, 0, width - oldWidth, fullHeight);
         } else {
-          percentRevealed = ((float) elapsed / totalTimeMillis);
+          getParent().repaint(getX() + width, getY(), oldWidth - width, fullHeight);
         }
-        repaint();
       }
     });
-    t.start();
+    animationTimer.start();
   }
 
-  private void unReveal(final int millis, @Nullable final com.google.gct.testing.ui.WipePanelCallback callBack) {
-    start = System.currentTimeMillis();
-
-    state = revealed;
-    buffer = UIUtil.createImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-    this.print(buffer.getGraphics()); // Draw the current components on the buffer.
-    state = hiding;
-
-    fullWidth = buffer.getWidth();
-    fullHeight = buffer.getHeight();
+  private void endAnimation() {
+    if (animationTimer != null) {
+      animationTimer.stop();
+      animationTimer = null;
+    }
+    if (buffer != null) {
+      releaseBuffer(buffer);
+      buffer = null;
+    }
+    setSize(fullWidth, fullHeight);
+    com.google.gct.testing.ui.WipePanelCallback callBack = animationCallBack;
+    animationCallBack = null;
+    if (state == hiding) {
+      setVisible(false);
+      state = hidden;
+      if (callBack != null) {
+        callBack.panelHidden(this);
+      }
+    } else {
+      setVisible(true);
+      state = revealed;
+      repaint();
+      if (callBack != null) {
+        callBack.panelRevealed();
+      }
+    }
+  }
 
-    percentRevealed = 0.99f;
+  private int getRevealedWidth() {
+    return Math.max(1, (int)(fullWidth * percentRevealed));
+  }
 
-    final WipePanel thisPanel = this;
-    final Timer t = new Timer(10, null);
-    t.addActionListener(new ActionListener() {
+  private boolean isOffScreen() {
+    // The panel itself is invisible while hidden, so ask its parent.
+    Container parent = getParent();
+    return parent == null || !parent.isShowing();
+  }
 
-      @Override
-      public void actionPerformed(ActionEvent e) {
-        long elapsed = System.currentTimeMillis() - start;
-        if (elapsed > millis) {
-          t.stop();
-          setSize(fullWidth, fullHeight);
-          setVisible(false);
-          state = hidden;
-          if (callBack != null) {
-            callBack.panelHidden(thisPanel);
+  /**
+   * Draws the contents at their full size on the back buffer, which might have lost them since.
+   */
+  private void renderContents() {
+    do {
+      if (buffer.validate(getGraphicsConfiguration()) == VolatileImage.IMAGE_INCOMPATIBLE) {
+        buffer.flush();
+        buffer = acquireBuffer(fullWidth, fullHeight);
+        if (buffer == null) {
+          return;
+        }
+      }
+      Graphics2D g = buffer.createGraphics();
+      try {
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, buffer.getWidth(), buffer.getHeight());
+        g.setComposite(AlphaComposite.SrcOver);
+        g.scale(bufferScale, bufferScale);
+        if (isOpaque()) {
+          g.setColor(getBackground());
+          g.fillRect(0, 0, fullWidth, fullHeight);
+        }
+        // Print the children rather than this panel, which might already be narrower than its contents.
+        for (Component component : getComponents()) {
+          Graphics componentGraphics = g.create(component.getX(), component.getY(), component.getWidth(), component.getHeight());
+          try {
+            component.print(componentGraphics);
+          } finally {
+            componentGraphics.dispose();
           }
-        } else {
-          percentRevealed = 1f - ((float) elapsed / millis);
         }
-        repaint();
+      } finally {
+        g.dispose();
       }
-    });
-    t.start();
+    } while (buffer.contentsLost());
+  }
+
+  /**
+   * Returns a back buffer with the device pixels of the given user space size, and sets the scale to render it at.
+   */
+  @Nullable
+  private VolatileImage acquireBuffer(int userWidth, int userHeight) {
+    GraphicsConfiguration graphicsConfiguration = getGraphicsConfiguration();
+    if (graphicsConfiguration == null) {
+      return null;
+    }
+    bufferScale = getDeviceScale(graphicsConfiguration);
+    int width = (int)Math.ceil(userWidth * bufferScale);
+    int height = (int)Math.ceil(userHeight * bufferScale);
+    // A pooled buffer is reused at any scale, since only its size matters.
+    for (Iterator<VolatileImage> iterator = bufferPool.iterator(); iterator.hasNext(); ) {
+      VolatileImage pooledBuffer = iterator.next();
+      if (pooledBuffer.getWidth() >= width && pooledBuffer.getHeight() >= height
+          && pooledBuffer.validate(graphicsConfiguration) != VolatileImage.IMAGE_INCOMPATIBLE) {
+        iterator.remove();
+        return pooledBuffer;
+      }
+    }
+    return graphicsConfiguration.createCompatibleVolatileImage(width, height, Transparency.TRANSLUCENT);
+  }
+
+  private static double getDeviceScale(GraphicsConfiguration graphicsConfiguration) {
+    double scale = Math.max(1, graphicsConfiguration.getDefaultTransform().getScaleX());
+    // The JDK on macOS does not report the scale of Retina displays in the default transform.
+    return UIUtil.isRetina() ? Math.max(2, scale) : scale;
+  }
+
+  private static void releaseBuffer(VolatileImage buffer) {
+    if (bufferPool.size() >= MAX_POOLED_BUFFERS) {
+      bufferPool.remove(0).flush();
+    }
+    bufferPool.add(buffer);
   }
 
   public static void main(String[] args) {
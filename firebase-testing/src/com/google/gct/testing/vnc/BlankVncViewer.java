@@ -24,8 +24,10 @@ import java.awt.event.WindowListener;
 public class BlankVncViewer extends JApplet implements Runnable {
   private final String myConfigurationName;
   private final BlankVncViewerCallback myBlankVncViewerCallback;
+  // Only accessed on the EDT.
   private JFrame blankFrame;
   private WindowListener exitListener;
+  private boolean isClosed = false;
 
   public BlankVncViewer(String configurationName, BlankVncViewerCallback blankVncViewerCallback) {
     myConfigurationName = configurationName;
@@ -49,6 +51,11 @@ public class BlankVncViewer extends JApplet implements Runnable {
 
   @Override
   public void run() {
+    synchronized (this) {
+      if (isClosed) {
+        return; // E.g., a warm device that was ready right away.
+      }
+    }
     blankFrame = new JFrame("Launching Firebase Device");
     blankFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
     blankFrame.addWindowListener(exitListener);
@@ -61,10 +68,25 @@ public class BlankVncViewer extends JApplet implements Runnable {
     blankFrame.setVisible(true);
   }
 
-  public void closeWindow() {
-    blankFrame.removeWindowListener(exitListener);
-    blankFrame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
-    blankFrame.dispatchEvent(new WindowEvent(blankFrame, WindowEvent.WINDOW_CLOSING));
+  /**
+   * Can be called from any thread, also before the window is shown. The window is closed on the EDT, after it is created.
+   */
+  public synchronized void closeWindow() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        if (blankFrame == null) {
+          return; // Never shown.
+        }
+        blankFrame.removeWindowListener(exitListener);
+        blankFrame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        blankFrame.dispatchEvent(new WindowEvent(blankFrame, WindowEvent.WINDOW_CLOSING));
+      }
+    });
   }
 
   public static BlankVncViewer showBlankVncViewer(String configurationName, BlankVncViewerCallback blankVncViewerCallback) {
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.vnc;
+
+import com.google.api.services.testing.model.Device;
+import com.google.api.services.testing.model.ListDevicesResponse;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gct.testing.config.GoogleCloudTestingDeveloperConfigurable.GoogleCloudTestingDeveloperState;
+import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.launcher.CloudDeviceReadinessWatcher;
+import com.google.gct.testing.launcher.CloudRequestExecutor;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps all firebase devices with an open VNC viewer alive from a single scheduler thread. On every tick, the states of all devices
+ * of a cloud project are checked with a single list request, and each ready device gets a keep-alive. Devices that stopped being
+ * ready are reported to their listeners, which tear down the corresponding viewers.
+ */
+public class CloudDeviceKeepAliveScheduler {
+
+  private static final Logger LOG = Logger.getInstance(CloudDeviceKeepAliveScheduler.class);
+
+  // Send several keep-alives per idle timeout, such that a few failed requests do not get the device deleted.
+  private static final int KEEP_ALIVES_PER_IDLE_TIMEOUT = 6;
+  private static final long MIN_KEEP_ALIVE_INTERVAL_SECONDS = 5;
+
+  private static volatile CloudDeviceKeepAliveScheduler instance;
+
+  public interface DeviceListener {
+    /**
+     * Called (on the scheduler thread) once the device is not ready anymore, e.g., because it was deleted or crashed.
+     */
+    void deviceStopped();
+  }
+
+  private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setNameFormat("Firebase Device Keep-Alive").setDaemon(true).build());
+  private final Runnable myKeepAliveTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        keepAlive();
+      } catch (Throwable t) {
+        // Do not let an unexpected failure cancel the periodic keep-alives.
+        LOG.warn("Failed to keep firebase devices alive", t);
+      }
+    }
+  };
+
+  // All fields below are guarded by this scheduler.
+  // Firebase device id -> the kept alive device.
+  private final Map<String, KeptDevice> myDevices = new HashMap<String, KeptDevice>();
+  private ScheduledFuture<?> myScheduledKeepAlive;
+  private long myKeepAliveIntervalSeconds =
+    getKeepAliveIntervalSeconds(new GoogleCloudTestingDeveloperState().deviceIdleTimeoutSeconds);
+
+
+  @NotNull
+  public static CloudDeviceKeepAliveScheduler getInstance() {
+    CloudDeviceKeepAliveScheduler result = instance;
+    if (result == null) {
+      synchronized (CloudDeviceKeepAliveScheduler.class) {
+        result = instance;
+        if (result == null) {
+          result = instance = new CloudDeviceKeepAliveScheduler();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Applies the device idle timeout of the developer settings, i.e., how long the backend keeps a device that receives no keep-alives.
+   * The devices are kept alive and checked several times per timeout.
+   */
+  public synchronized void configure(@Nullable GoogleCloudTestingDeveloperState state) {
+    if (state == null) {
+      return;
+    }
+    long keepAliveIntervalSeconds = getKeepAliveIntervalSeconds(state.deviceIdleTimeoutSeconds);
+    if (keepAliveIntervalSeconds == myKeepAliveIntervalSeconds) {
+      return;
+    }
+    myKeepAliveIntervalSeconds = keepAliveIntervalSeconds;
+    if (myScheduledKeepAlive != null) {
+      myScheduledKeepAlive.cancel(false);
+      myScheduledKeepAlive = myScheduler.scheduleWithFixedDelay(myKeepAliveTask, 0, myKeepAliveIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @VisibleForTesting
+  static long getKeepAliveIntervalSeconds(int deviceIdleTimeoutSeconds) {
+    return Math.max(MIN_KEEP_ALIVE_INTERVAL_SECONDS, deviceIdleTimeoutSeconds / KEEP_ALIVES_PER_IDLE_TIMEOUT);
+  }
+
+  public synchronized void register(@NotNull String cloudProjectId, @NotNull String deviceId, @NotNull DeviceListener listener) {
+    myDevices.put(deviceId, new KeptDevice(cloudProjectId, deviceId, listener));
+    if (myScheduledKeepAlive == null) {
+      // Send the first keep-alive right away, the device might have been idle for a while (e.g., in the warm pool).
+      myScheduledKeepAlive = myScheduler.scheduleWithFixedDelay(myKeepAliveTask, 0, myKeepAliveIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  public synchronized void unregister(@NotNull String deviceId) {
+    myDevices.remove(deviceId);
+    if (myDevices.isEmpty() && myScheduledKeepAlive != null) {
+      myScheduledKeepAlive.cancel(false);
+      myScheduledKeepAlive = null;
+    }
+  }
+
+  private void keepAlive() {
+    ListMultimap<String, KeptDevice> projectDevices = ArrayListMultimap.create();
+    synchronized (this) {
+      for (KeptDevice keptDevice : myDevices.values()) {
+        projectDevices.put(keptDevice.cloudProjectId, keptDevice);
+      }
+    }
+    for (String cloudProjectId : projectDevices.keySet()) {
+      Set<String> readyDeviceIds = getReadyDeviceIds(cloudProjectId);
+      for (KeptDevice keptDevice : projectDevices.get(cloudProjectId)) {
+        if (readyDeviceIds != null && !readyDeviceIds.contains(keptDevice.deviceId)) {
+          synchronized (this) {
+            if (myDevices.get(keptDevice.deviceId) != keptDevice) {
+              continue; // Unregistered in the meantime.
+            }
+            unregister(keptDevice.deviceId);
+          }
+          keptDevice.listener.deviceStopped();
+          continue;
+        }
+        try {
+          CloudRequestExecutor.getInstance().execute(
+            CloudAuthenticator.getInstance().getTest().projects().devices().keepalive(cloudProjectId, keptDevice.deviceId));
+        } catch (Exception e) {
+          LOG.warn("Failed to keep firebase device " + keptDevice.deviceId + " alive", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the ids of the ready devices of the given cloud project or {@code null} if they could not be listed.
+   */
+  @Nullable
+  private static Set<String> getReadyDeviceIds(String cloudProjectId) {
+    Set<String> readyDeviceIds = new HashSet<String>();
+    String pageToken = null;
+    try {
+      do {
+        ListDevicesResponse response = CloudRequestExecutor.getInstance().execute(
+          CloudAuthenticator.getInstance().getTest().projects().devices().list(cloudProjectId).setPageToken(pageToken));
+        if (response.getDevices() != null) {
+          for (Device device : response.getDevices()) {
+            if (CloudDeviceReadinessWatcher.READY_STATE.equals(device.getState())) {
+              readyDeviceIds.add(device.getId());
+            }
+          }
+        }
+        pageToken = response.getNextPageToken();
+      } while (pageToken != null);
+    } catch (IOException e) {
+      // Do not stop the devices for intermittent connection failures.
+      LOG.warn("Failed to list the firebase devices of " + cloudProjectId, e);
+      return null;
+    }
+    return readyDeviceIds;
+  }
+
+  private static class KeptDevice {
+    private final String cloudProjectId;
+    private final String deviceId;
+    private final DeviceListener listener;
+
+    private KeptDevice(String cloudProjectId, String deviceId, DeviceListener listener) {
+      this.cloudProjectId = cloudProjectId;
+      this.deviceId = deviceId;
+      this.listener = listener;
+    }
+  }
+}
@@ -18,21 +18,35 @@ package com.google.gct.testing.vnc;
 import com.glavsoft.viewer.Viewer;
 import com.glavsoft.viewer.VncKeepAliveThread;
 import com.glavsoft.viewer.cli.Parser;
+import com.google.gct.testing.CloudConfigurationHelper;
+import com.google.gct.testing.CloudDeviceConnectionManager;
 import com.google.gct.testing.launcher.CloudAuthenticator;
+import com.google.gct.testing.launcher.CloudRequestExecutor;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.PooledThreadExecutor;
 
 import javax.swing.*;
 import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
+/**
+ * The handle through which the TightVNC viewer of a firebase device reports crashes and its closing (by interrupting this "thread").
+ * It is not started as a thread: the device is kept alive by the shared {@link CloudDeviceKeepAliveScheduler}, and the viewer
+ * restarts and the tear down run on pooled threads.
+ */
 public class VncKeepAliveThreadImpl extends VncKeepAliveThread {
+  private static final Logger LOG = Logger.getInstance(VncKeepAliveThreadImpl.class);
+
   private final Parser parser;
   private final String configurationName;
   private final String cloudProjectId;
   private final String cloudDeviceId;
   private final String deviceAddress;
   private final File workingDir;
-  private volatile boolean hasCrashed = false;
-  private Viewer currentViewer;
+  private final AtomicBoolean isRestarting = new AtomicBoolean(false);
+  private final AtomicBoolean isTornDown = new AtomicBoolean(false);
+  private volatile Viewer currentViewer;
 
 
   public static void startVnc(String[] args, String configurationName, String cloudProjectId, String cloudDeviceId, String deviceAddress,
@@ -41,7 +55,7 @@ public class VncKeepAliveThreadImpl extends VncKeepAliveThread {
     if (parser == null) {
       return;
     }
-    new VncKeepAliveThreadImpl(parser, configurationName, cloudProjectId, cloudDeviceId, deviceAddress, workingDir).start();
+    new VncKeepAliveThreadImpl(parser, configurationName, cloudProjectId, cloudDeviceId, deviceAddress, workingDir).startViewer();
   }
 
   public VncKeepAliveThreadImpl(Parser parser, String configurationName, String cloudProjectId, String cloudDeviceId, String deviceAddress,
@@ -54,35 +68,40 @@ public class VncKeepAliveThreadImpl extends VncKeepAliveThread {
     this.workingDir = workingDir;
   }
 
+  private void startViewer() {
+    currentViewer = new Viewer(this, parser, configurationName);
+    SwingUtilities.invokeLater(currentViewer);
+    CloudDeviceKeepAliveScheduler.getInstance().register(cloudProjectId, cloudDeviceId, new CloudDeviceKeepAliveScheduler.DeviceListener() {
+      @Override
+      public void deviceStopped() {
+        scheduleTearDown();
+      }
+    });
+  }
+
   @Override
   public void run() {
-    try {
-      currentViewer = new Viewer(this, parser, configurationName);
-      SwingUtilities.invokeLater(currentViewer);
+    // Not started as a thread, see the class comment.
+  }
 
-      while (!Thread.currentThread().isInterrupted() && deviceIsReady()) {
-        try {
-          CloudAuthenticator.getInstance().getTest().projects().devices().keepalive(cloudProjectId, cloudDeviceId).execute();
-        }
-        catch (Exception e) {
-          e.printStackTrace();
-        }
-        // Restart the viewer if it accidentally crashed.
-        if (hasCrashed) {
-          hasCrashed = false;
-          System.out.println("Restarting TightVNC Viewer");
-          currentViewer = new Viewer(this, parser, configurationName);
-          SwingUtilities.invokeLater(currentViewer);
-        }
-        try {
-          Thread.sleep(1 * 1000); // 1 second
-        }
-        catch (InterruptedException e) {
-          break;
+  /**
+   * Called by the viewer when it is closed.
+   */
+  @Override
+  public void interrupt() {
+    super.interrupt();
+    scheduleTearDown();
+  }
+
+  private void scheduleTearDown() {
+    if (isTornDown.compareAndSet(false, true)) {
+      CloudDeviceKeepAliveScheduler.getInstance().unregister(cloudDeviceId);
+      PooledThreadExecutor.INSTANCE.execute(new Runnable() {
+        @Override
+        public void run() {
+          tearDown();
         }
-      }
-    } finally {
-      tearDown();
+      });
     }
   }
 
@@ -93,14 +112,19 @@ public class VncKeepAliveThreadImpl extends VncKeepAliveThread {
       File adbFile = new File(workingDir, System.getProperty("os.name").toLowerCase().indexOf("win") != -1 ? "adb.exe" : "adb");
       Runtime.getRuntime().exec(new String[]{adbFile.getAbsolutePath(), "disconnect", deviceAddress}, null, workingDir);
     } catch (Exception exception) {
-      exception.printStackTrace();
+      LOG.warn("Failed to disconnect adb from " + deviceAddress, exception);
     }
 
+    // Close the SSH session of the device, it is not reusable after the device is deleted.
+    CloudDeviceConnectionManager.getInstance().disconnect(cloudDeviceId);
+    CloudConfigurationHelper.unregisterCloudDevice(deviceAddress);
+
     try {
       // Delete the firebase device after the viewer is closed.
-      CloudAuthenticator.getInstance().getTest().projects().devices().delete(cloudProjectId, cloudDeviceId).execute();
+      CloudRequestExecutor.getInstance().execute(
+        CloudAuthenticator.getInstance().getTest().projects().devices().delete(cloudProjectId, cloudDeviceId));
     } catch (Exception exception) {
-      exception.printStackTrace();
+      LOG.warn("Failed to delete the firebase device " + cloudDeviceId, exception);
     }
 
     try {
@@ -108,21 +132,32 @@ public class VncKeepAliveThreadImpl extends VncKeepAliveThread {
       //other steps from being executed if the viewer was closed manually.
       currentViewer.stopViewer();
     } catch (Exception exception) {
-      exception.printStackTrace();
-    }
-  }
-
-  private boolean deviceIsReady() {
-    try {
-      return CloudAuthenticator.getInstance().getTest().projects().devices().get(cloudProjectId, cloudDeviceId).execute().getState().equals("READY");
-    } catch (Exception e) {
-      return true; // Do not stop the keep alive thread for intermittent connection failures.
+      LOG.warn("Failed to stop the VNC viewer of " + configurationName, exception);
     }
   }
 
   @Override
   public void setCrashed() {
-    hasCrashed = true;
+    if (isTornDown.get() || !isRestarting.compareAndSet(false, true)) {
+      return;
+    }
+    // Restart the viewer if it accidentally crashed.
+    PooledThreadExecutor.INSTANCE.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // The viewer could have crashed because the SSH session dropped, so restore the tunnels (on the same local ports) if needed.
+          CloudDeviceConnectionManager.getInstance().reconnect(cloudDeviceId);
+          if (!isTornDown.get()) {
+            LOG.info("Restarting TightVNC Viewer for " + configurationName);
+            currentViewer = new Viewer(VncKeepAliveThreadImpl.this, parser, configurationName);
+            SwingUtilities.invokeLater(currentViewer);
+          }
+        } finally {
+          isRestarting.set(false);
+        }
+      }
+    });
   }
 
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class CloudMetricsTest extends TestCase {
+
+  public void testHistogramPercentiles() {
+    CloudMetrics.Histogram histogram = new CloudMetrics.Histogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    for (int i = 0; i < 90; i++) {
+      histogram.record(40);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(3000);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(336, histogram.getMean());
+    assertEquals(50, histogram.getPercentile(0.5));
+    assertEquals(50, histogram.getPercentile(0.9));
+    assertEquals(3000, histogram.getPercentile(0.95)); // Capped by the maximum rather than the bucket bound of 5000.
+    assertEquals(3000, histogram.getMax());
+  }
+
+  public void testHistogramKeepsOutliers() {
+    CloudMetrics.Histogram histogram = new CloudMetrics.Histogram();
+    histogram.record(-5);
+    histogram.record(2 * 60 * 60 * 1000);
+    assertEquals(10, histogram.getPercentile(0.5));
+    assertEquals(2 * 60 * 60 * 1000, histogram.getPercentile(1));
+  }
+
+  public void testRecordsIntoCurrentRun() throws IOException {
+    CloudMetrics metrics = new CloudMetrics();
+    metrics.recordRequest("Testing.Projects.TestMatrices.Get", 120, true);
+    metrics.setCurrentRun(metrics.getRunMetrics("run-1"));
+    try {
+      metrics.recordRequest("Testing.Projects.TestMatrices.Get", 80, false);
+      metrics.recordRetry("Testing.Projects.TestMatrices.Get");
+      metrics.recordCacheAccess("warmDevicePool", true);
+    } finally {
+      metrics.setCurrentRun(null);
+    }
+    metrics.recordBytesDownloaded(1024);
+
+    String json = metrics.toJson().replaceAll("\\s", "");
+    assertTrue(json, json.contains("\"testRunId\":\"run-1\""));
+    assertTrue(json, json.contains("\"retries\":1"));
+    assertTrue(json, json.contains("\"hitRate\":1.0"));
+    String report = metrics.formatReport();
+    assertTrue(report, report.contains("Run run-1"));
+    assertTrue(report, report.contains("Testing.Projects.TestMatrices.Get"));
+  }
+}
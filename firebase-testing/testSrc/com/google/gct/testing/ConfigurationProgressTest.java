@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import junit.framework.TestCase;
+
+public class ConfigurationProgressTest extends TestCase {
+
+  public void testEmpty() {
+    ConfigurationProgress progress = new ConfigurationProgress();
+    assertEquals(0, progress.getMessageCount());
+    assertNull(progress.getLastMessage());
+  }
+
+  public void testTracksCursorAndLastMessage() {
+    ConfigurationProgress progress = new ConfigurationProgress();
+    progress.add("a");
+    progress.add("b");
+    assertEquals(2, progress.getMessageCount());
+    assertEquals("b", progress.getLastMessage());
+    progress.add("c");
+    assertEquals(3, progress.getMessageCount());
+    assertEquals("c", progress.getLastMessage());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ScreenshotExporterTest extends TestCase {
+
+  public void testStoredEntriesReadBackUnchanged() throws Exception {
+    byte[] screenshot = new byte[10000];
+    new Random(0).nextBytes(screenshot);
+    byte[] emptyScreenshot = new byte[0];
+
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    ZipOutputStream out = new ZipOutputStream(zipBytes);
+    ScreenshotExporter.writeStoredEntry(out, "Nexus5-21-en-portrait/screen-1.png", screenshot);
+    ScreenshotExporter.writeStoredEntry(out, "Nexus5-21-en-portrait/screen-2.png", emptyScreenshot);
+    out.close();
+
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zipBytes.toByteArray()));
+    try {
+      assertStoredEntry(in, "Nexus5-21-en-portrait/screen-1.png", screenshot);
+      assertStoredEntry(in, "Nexus5-21-en-portrait/screen-2.png", emptyScreenshot);
+      assertNull(in.getNextEntry());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void assertStoredEntry(ZipInputStream in, String name, byte[] bytes) throws Exception {
+    ZipEntry entry = in.getNextEntry();
+    assertNotNull(entry);
+    assertEquals(name, entry.getName());
+    // Stored entries have their sizes and CRC in the local header, so they are known before reading the content.
+    assertEquals(ZipEntry.STORED, entry.getMethod());
+    assertEquals(bytes.length, entry.getSize());
+    assertEquals(bytes.length, entry.getCompressedSize());
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    assertEquals(crc.getValue(), entry.getCrc());
+    // Reading the entry verifies its CRC.
+    assertTrue(Arrays.equals(bytes, ByteStreams.toByteArray(in)));
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import junit.framework.TestCase;
+
+public class ScreenshotIndexTest extends TestCase {
+
+  private static final TestName CREATE_MEME = new TestName("com.example.MemegenUITest", "testCreateMeme");
+
+  public void testFileNameParts() {
+    String[] parts = ScreenshotIndex.getFileNameParts("com.example.MemegenUITest-testCreateMeme-create+meme-screen-12.png");
+    assertEquals("com.example.MemegenUITest", parts[0]);
+    assertEquals("testCreateMeme", parts[1]);
+    assertEquals("create meme-screen", parts[2]);
+    assertEquals("12.png", parts[3]);
+  }
+
+  public void testLookupByTestAndStep() {
+    ScreenshotIndex index = new ScreenshotIndex();
+    assertEquals(0, index.getMaxStep(CREATE_MEME));
+    BucketFileMetadata third = addScreenshot(index, "com.example.MemegenUITest-testCreateMeme-done-3.png");
+    BucketFileMetadata first = addScreenshot(index, "com.example.MemegenUITest-testCreateMeme-start-1.png");
+    addScreenshot(index, "com.example.MemegenUITest-testOtherMeme-start-7.png");
+
+    assertEquals(3, index.getMaxStep(CREATE_MEME));
+    assertSame(first, index.getMetadata(CREATE_MEME, 1));
+    assertSame(third, index.getMetadata(CREATE_MEME, 3));
+    assertNull(index.getMetadata(CREATE_MEME, 2));
+    assertEquals("done", index.getName(CREATE_MEME, 3));
+    assertNull(index.getName(new TestName("com.example.MemegenUITest", "testMissing"), 1));
+  }
+
+  public void testManySteps() {
+    ScreenshotIndex index = new ScreenshotIndex();
+    for (int step = 20; step >= 1; step--) {
+      addScreenshot(index, "com.example.MemegenUITest-testCreateMeme-step-" + step + ".png");
+    }
+    assertEquals(20, index.getMaxStep(CREATE_MEME));
+    for (int step = 1; step <= 20; step++) {
+      assertEquals("config/com.example.MemegenUITest-testCreateMeme-step-" + step + ".png",
+                   index.getMetadata(CREATE_MEME, step).getPath());
+    }
+  }
+
+  private static BucketFileMetadata addScreenshot(ScreenshotIndex index, String fileName) {
+    BucketFileMetadata fileMetadata = new BucketFileMetadata("config/" + fileName);
+    index.add(fileName, fileMetadata);
+    return fileMetadata;
+  }
+}
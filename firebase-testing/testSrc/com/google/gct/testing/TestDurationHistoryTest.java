@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gct.testing.launcher.TestShardPlanner;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestDurationHistoryTest extends TestCase {
+
+  private File historyFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    historyFile = File.createTempFile("test-durations", ".tsv");
+    historyFile.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    historyFile.delete();
+    super.tearDown();
+  }
+
+  public void testRecordAndReload() throws IOException {
+    TestDurationHistory history = new TestDurationHistory(historyFile);
+    history.recordDurations("Nexus5", "21", ImmutableMap.of(new TestName("a.A", "test1"), 100L, new TestName("a.A", "test2"), 50L));
+    assertEquals(150, history.getClassDuration("a.A", "Nexus5", "21"));
+    assertEquals(-1, history.getClassDuration("a.A", "Nexus5", "23"));
+    assertEquals(-1, history.getClassDuration("a.B", "Nexus5", "21"));
+
+    TestDurationHistory reloadedHistory = new TestDurationHistory(historyFile);
+    assertEquals(150, reloadedHistory.getClassDuration("a.A", "Nexus5", "21"));
+  }
+
+  public void testAveragesSamples() {
+    TestDurationHistory history = new TestDurationHistory(historyFile);
+    history.recordDurations("Nexus5", "21", ImmutableMap.of(new TestName("a.A", "test1"), 100L));
+    history.recordDurations("Nexus5", "21", ImmutableMap.of(new TestName("a.A", "test1"), 200L));
+    assertEquals(130, history.getClassDuration("a.A", "Nexus5", "21"));
+  }
+
+  public void testMatrixDurationFallsBackToOtherDevices() {
+    TestDurationHistory history = new TestDurationHistory(historyFile);
+    history.recordDurations("Nexus5", "21", ImmutableMap.of(new TestName("a.A", "test1"), 100L));
+    history.recordDurations("Nexus6", "23", ImmutableMap.of(new TestName("a.A", "test1"), 300L));
+    assertEquals(100, history.estimateMatrixDuration("a.A", ImmutableList.of("Nexus5"), ImmutableList.of("21")));
+    assertEquals(200, history.estimateMatrixDuration("a.A", ImmutableList.of("Nexus5"), ImmutableList.of("19")));
+
+    TestShardPlanner.DurationEstimator estimator =
+      history.createDurationEstimator(ImmutableList.of("Nexus5"), ImmutableList.of("21"), ImmutableList.of("a.A", "a.B"));
+    assertEquals(100, estimator.estimateDuration("a.B"));
+  }
+}
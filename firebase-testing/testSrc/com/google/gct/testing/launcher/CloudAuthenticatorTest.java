@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.launcher;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CloudAuthenticatorTest extends TestCase {
+
+  public void testTokenRefreshDelay() {
+    assertEquals(-1, CloudAuthenticator.getTokenRefreshDelaySeconds(null));
+    assertEquals(3300, CloudAuthenticator.getTokenRefreshDelaySeconds(3600L));
+    // Tokens that are about to expire are refreshed soon, but not in a busy loop.
+    assertEquals(30, CloudAuthenticator.getTokenRefreshDelaySeconds(60L));
+  }
+
+  public void testRefreshIsScheduledOnlyForKnownExpiration() {
+    FakeCloudAuthenticator authenticator = new FakeCloudAuthenticator(createCredential(3600L));
+    authenticator.prepareCredential();
+    assertTrue(authenticator.isTokenRefreshScheduled());
+
+    authenticator = new FakeCloudAuthenticator(createCredential(null));
+    authenticator.prepareCredential();
+    assertFalse(authenticator.isTokenRefreshScheduled());
+  }
+
+  public void testConcurrentFirstAccessLoadsCredentialOnce() throws Exception {
+    final FakeCloudAuthenticator authenticator = new FakeCloudAuthenticator(createCredential(3600L));
+    authenticator.loginStarted = new CountDownLatch(1);
+    authenticator.finishLogin = new CountDownLatch(1);
+    final List<Credential> credentials = new ArrayList<Credential>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          authenticator.prepareCredential();
+          synchronized (credentials) {
+            credentials.add(authenticator.getCredential());
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    assertTrue(authenticator.loginStarted.await(10, TimeUnit.SECONDS));
+    // Logging in must not block the other getters, e.g., the public storage that needs no credential.
+    assertNotNull(authenticator.getPublicStorage());
+    authenticator.finishLogin.countDown();
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+    assertEquals(1, authenticator.loadCount.get());
+    assertEquals(4, credentials.size());
+    for (Credential credential : credentials) {
+      assertSame(authenticator.credential, credential);
+    }
+  }
+
+  private static Credential createCredential(Long expiresInSeconds) {
+    Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod());
+    if (expiresInSeconds != null) {
+      credential.setExpiresInSeconds(expiresInSeconds);
+    }
+    return credential;
+  }
+
+  private static class FakeCloudAuthenticator extends CloudAuthenticator {
+    private final Credential credential;
+    private final AtomicInteger loadCount = new AtomicInteger();
+    private CountDownLatch loginStarted;
+    private CountDownLatch finishLogin;
+
+    private FakeCloudAuthenticator(Credential credential) {
+      this.credential = credential;
+    }
+
+    @Override
+    Credential loadCredential() {
+      loadCount.incrementAndGet();
+      if (loginStarted != null) {
+        loginStarted.countDown();
+        try {
+          finishLogin.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return credential;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.launcher;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+public class CloudRequestExecutorTest extends TestCase {
+
+  public void testClassify() {
+    assertEquals(CloudRequestExecutor.FailureKind.THROTTLED, CloudRequestExecutor.classify(createHttpException(429)));
+    assertEquals(CloudRequestExecutor.FailureKind.TRANSIENT, CloudRequestExecutor.classify(createHttpException(503)));
+    assertEquals(CloudRequestExecutor.FailureKind.TRANSIENT, CloudRequestExecutor.classify(createHttpException(408)));
+    assertEquals(CloudRequestExecutor.FailureKind.FATAL, CloudRequestExecutor.classify(createHttpException(404)));
+    assertEquals(CloudRequestExecutor.FailureKind.TRANSIENT, CloudRequestExecutor.classify(new SocketTimeoutException()));
+    assertEquals(CloudRequestExecutor.FailureKind.TRANSIENT, CloudRequestExecutor.classify(new ConnectException()));
+    assertEquals(CloudRequestExecutor.FailureKind.FATAL, CloudRequestExecutor.classify(new InterruptedIOException()));
+  }
+
+  public void testRetriesTransientFailuresOfIdempotentCalls() throws IOException {
+    CloudRequestExecutor executor = new CloudRequestExecutor(3, 1, 1);
+    FailingCall call = new FailingCall(2, createHttpException(503));
+    assertEquals("done", executor.execute("test", true, call));
+    assertEquals(3, call.invocations);
+  }
+
+  public void testDoesNotRetryServerErrorsOfNonIdempotentCalls() {
+    CloudRequestExecutor executor = new CloudRequestExecutor(3, 1, 1);
+    FailingCall call = new FailingCall(1, createHttpException(500));
+    try {
+      executor.execute("test", false, call);
+      fail("Expected the server error to be rethrown");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    assertEquals(1, call.invocations);
+  }
+
+  public void testRetriesThrottledNonIdempotentCalls() throws IOException {
+    CloudRequestExecutor executor = new CloudRequestExecutor(3, 1, 1);
+    FailingCall call = new FailingCall(1, createHttpException(429));
+    assertEquals("done", executor.execute("test", false, call));
+    assertEquals(2, call.invocations);
+  }
+
+  public void testRetryDelayIsBounded() {
+    CloudRequestExecutor executor = new CloudRequestExecutor(10, 100, 1000);
+    for (int attempt = 1; attempt < 10; attempt++) {
+      long delay = executor.getRetryDelay(attempt, new SocketTimeoutException());
+      assertTrue("Unexpected delay " + delay, delay >= 0 && delay <= 1000);
+    }
+  }
+
+  public void testCircuitBreakerOpensAfterConsecutiveFailures() {
+    CloudRequestExecutor.CircuitBreaker circuitBreaker = new CloudRequestExecutor.CircuitBreaker();
+    for (int i = 0; i < 7; i++) {
+      circuitBreaker.recordFailure();
+    }
+    assertTrue(circuitBreaker.allowRequest());
+    circuitBreaker.recordFailure();
+    assertFalse(circuitBreaker.allowRequest());
+    circuitBreaker.recordSuccess();
+    assertTrue(circuitBreaker.allowRequest());
+  }
+
+  public void testUncheckedFailuresOpenTheCircuit() throws IOException {
+    CloudRequestExecutor executor = new CloudRequestExecutor(1, 1, 1);
+    CloudRequestExecutor.CloudCall<String> call = new CloudRequestExecutor.CloudCall<String>() {
+      @Override
+      public String call() {
+        throw new IllegalStateException();
+      }
+    };
+    for (int i = 0; i < 8; i++) {
+      try {
+        executor.execute("unchecked", true, call);
+        fail("Expected the unchecked exception to be rethrown");
+      } catch (IllegalStateException expected) {
+        // Expected.
+      }
+    }
+    try {
+      executor.execute("unchecked", true, new FailingCall(0, null));
+      fail("Expected the circuit to be open");
+    } catch (CloudRequestExecutor.CircuitOpenException expected) {
+      // Expected.
+    }
+  }
+
+  public void testInterruptsDoNotAffectTheCircuit() throws IOException {
+    CloudRequestExecutor executor = new CloudRequestExecutor(1, 1, 1);
+    for (int i = 0; i < 10; i++) {
+      try {
+        executor.execute("interrupted", true, new FailingCall(1, new InterruptedIOException()));
+        fail("Expected the interrupt to be rethrown");
+      } catch (InterruptedIOException expected) {
+        // Expected.
+      }
+    }
+    assertEquals("done", executor.execute("interrupted", true, new FailingCall(0, null)));
+  }
+
+  public void testLatencyPercentile() {
+    CloudRequestExecutor.LatencyTracker latencyTracker = new CloudRequestExecutor.LatencyTracker();
+    assertEquals(-1, latencyTracker.getPercentile(0.95));
+    for (int i = 1; i <= 20; i++) {
+      latencyTracker.record(i * 10);
+    }
+    assertEquals(190, latencyTracker.getPercentile(0.95));
+  }
+
+  private static HttpResponseException createHttpException(int statusCode) {
+    return new HttpResponseException.Builder(statusCode, null, new HttpHeaders()).build();
+  }
+
+  private static class FailingCall implements CloudRequestExecutor.CloudCall<String> {
+    private final int failureCount;
+    private final IOException failure;
+    private int invocations = 0;
+
+    private FailingCall(int failureCount, IOException failure) {
+      this.failureCount = failureCount;
+      this.failure = failure;
+    }
+
+    @Override
+    public String call() throws IOException {
+      invocations++;
+      if (invocations <= failureCount) {
+        throw failure;
+      }
+      return "done";
+    }
+  }
+}
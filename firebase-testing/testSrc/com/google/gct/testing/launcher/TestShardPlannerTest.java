@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.launcher;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+
+public class TestShardPlannerTest extends TestCase {
+
+  public void testUniformShards() {
+    List<List<String>> shards = new TestShardPlanner(TestShardPlanner.UNIFORM_DURATION_ESTIMATOR)
+      .planShards(ImmutableList.of("a.A", "a.B", "a.C", "a.D", "a.E"), 2);
+    assertEquals(2, shards.size());
+    assertEquals(3, shards.get(0).size());
+    assertEquals(2, shards.get(1).size());
+  }
+
+  public void testBalancesByDuration() {
+    final Map<String, Long> durations = ImmutableMap.of("a.Slow", 100L, "a.Medium", 60L, "a.Fast1", 30L, "a.Fast2", 30L);
+    List<List<String>> shards = new TestShardPlanner(new TestShardPlanner.DurationEstimator() {
+      @Override
+      public long estimateDuration(@NotNull String testClass) {
+        return durations.get(testClass);
+      }
+    }).planShards(durations.keySet(), 2);
+    assertEquals(ImmutableList.of("a.Slow"), shards.get(0));
+    assertEquals(ImmutableList.of("a.Medium", "a.Fast1", "a.Fast2"), shards.get(1));
+  }
+
+  public void testNoEmptyShards() {
+    List<List<String>> shards = new TestShardPlanner(TestShardPlanner.UNIFORM_DURATION_ESTIMATOR)
+      .planShards(ImmutableList.of("a.A", "a.B"), 5);
+    assertEquals(2, shards.size());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.api.services.testing.model.Device;
+import com.google.api.services.testing.model.TestMatrix;
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Properties;
+
+public class LocalTestLabServerTest extends TestCase {
+
+  private static final String TEST_MATRIX_JSON =
+    "{\"resultStorage\": {\"googleCloudStorage\": {\"gcsPath\": \"gs://bucket/shard-0\"}}," +
+    " \"environmentMatrix\": {\"androidMatrix\": {\"androidModelIds\": [\"LocalPhone\"], \"androidVersionIds\": [\"21\"]," +
+    " \"locales\": [\"en\"], \"orientations\": [\"portrait\"]}}}";
+
+  private final JsonFactory myJsonFactory = JacksonFactory.getDefaultInstance();
+  private LocalTestLabServer myServer;
+  private String myRootUrl;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (myServer != null) {
+      myServer.stop();
+    }
+    super.tearDown();
+  }
+
+  public void testRunsMatrixAndServesItsResults() throws Exception {
+    startServer(0);
+    Response created = send("POST", "v1/projects/project/testMatrices", TEST_MATRIX_JSON, null);
+    assertEquals(200, created.status);
+    String matrixId = myJsonFactory.fromString(created.getText(), TestMatrix.class).getTestMatrixId();
+
+    // The matrix does not take any time with these settings.
+    TestMatrix testMatrix =
+      myJsonFactory.fromString(send("GET", "v1/projects/project/testMatrices/" + matrixId, null, null).getText(), TestMatrix.class);
+    assertEquals("FINISHED", testMatrix.getState());
+    assertEquals("FINISHED", testMatrix.getTestExecutions().get(0).getState());
+
+    Response listing = send("GET", "storage/v1/b/bucket/o?prefix=shard-0/", null, null);
+    assertEquals(200, listing.status);
+    StorageObject screenshot = null;
+    for (StorageObject storageObject : myJsonFactory.fromString(listing.getText(), Objects.class).getItems()) {
+      if (storageObject.getName().endsWith(".png")) {
+        screenshot = storageObject;
+      }
+    }
+    assertNotNull(screenshot);
+
+    String objectPath = "storage/v1/b/bucket/o/" + URLEncoder.encode(screenshot.getName(), "UTF-8") + "?alt=media";
+    Response download = send("GET", objectPath, null, null);
+    assertEquals(200, download.status);
+    assertEquals(screenshot.getSize().intValue(), download.body.length);
+    assertNotNull(ImageIO.read(new ByteArrayInputStream(download.body)));
+
+    Response rangeDownload = send("GET", objectPath, null, "bytes=4-");
+    assertEquals(206, rangeDownload.status);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(download.body, 4, download.body.length), rangeDownload.body));
+    assertEquals(416, send("GET", objectPath, null, "bytes=" + download.body.length + "-").status);
+  }
+
+  public void testReadyDevicesCannotBeConnectedTo() throws Exception {
+    startServer(0);
+    Response created = send("POST", "v1/projects/project/devices", "{\"androidDevice\": {\"androidModelId\": \"LocalPhone\"}}", null);
+    assertEquals(200, created.status);
+    Device device = myJsonFactory.fromString(created.getText(), Device.class);
+    // The devices boot instantly with these settings.
+    assertEquals("READY", device.getState());
+    assertNull(device.getDeviceDetails());
+    assertEquals(200, send("DELETE", "v1/projects/project/devices/" + device.getId(), null, null).status);
+    assertEquals(404, send("GET", "v1/projects/project/devices/" + device.getId(), null, null).status);
+  }
+
+  public void testInjectedRequestFailures() throws Exception {
+    startServer(100);
+    Response response = send("GET", "v1/testEnvironmentCatalog/ANDROID", null, null);
+    assertEquals(503, response.status);
+    assertTrue(response.getText().contains("backendError"));
+  }
+
+  private void startServer(int failurePercent) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("firebase.testing.local.latencyMillis", "0");
+    properties.setProperty("firebase.testing.local.latencyJitterMillis", "0");
+    properties.setProperty("firebase.testing.local.failurePercent", String.valueOf(failurePercent));
+    properties.setProperty("firebase.testing.local.validationSeconds", "0");
+    properties.setProperty("firebase.testing.local.executionSeconds", "0");
+    properties.setProperty("firebase.testing.local.deviceBootSeconds", "0");
+    properties.setProperty("firebase.testing.local.testsPerExecution", "1");
+    properties.setProperty("firebase.testing.local.screenshotsPerTest", "1");
+    myServer = new LocalTestLabServer(SimulationSettings.fromProperties(properties));
+    myRootUrl = myServer.start();
+  }
+
+  private Response send(String method, String path, String body, String range) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection)new URL(myRootUrl + path).openConnection();
+    try {
+      connection.setRequestMethod(method);
+      if (range != null) {
+        connection.setRequestProperty("Range", range);
+      }
+      if (body != null) {
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = connection.getOutputStream();
+        try {
+          out.write(body.getBytes("UTF-8"));
+        } finally {
+          out.close();
+        }
+      }
+      int status = connection.getResponseCode();
+      InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      byte[] responseBody = new byte[0];
+      if (in != null) {
+        try {
+          responseBody = ByteStreams.toByteArray(in);
+        } finally {
+          in.close();
+        }
+      }
+      return new Response(status, responseBody);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static class Response {
+    private final int status;
+    private final byte[] body;
+
+    private Response(int status, byte[] body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    private String getText() throws IOException {
+      return new String(body, "UTF-8");
+    }
+  }
+}
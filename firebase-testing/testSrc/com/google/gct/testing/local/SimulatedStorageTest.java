@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import com.google.api.services.storage.model.StorageObject;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SimulatedStorageTest extends TestCase {
+
+  public void testListsObjectsByPrefixInNameOrder() {
+    SimulatedStorage storage = new SimulatedStorage();
+    storage.put("bucket", "shard-1/b.png", new byte[]{1});
+    storage.put("bucket", "shard-0/b.png", new byte[]{2});
+    storage.put("bucket", "shard-0/a.png", new byte[]{3, 4});
+    storage.put("other-bucket", "shard-0/c.png", new byte[]{5});
+
+    assertEquals(Arrays.asList("shard-0/a.png", "shard-0/b.png"), getNames(storage.list("bucket", "shard-0/")));
+    assertEquals(Arrays.asList("shard-0/a.png", "shard-0/b.png", "shard-1/b.png"), getNames(storage.list("bucket", null)));
+    assertTrue(storage.list("empty-bucket", null).isEmpty());
+
+    StorageObject storageObject = storage.list("bucket", "shard-0/a").get(0);
+    assertEquals("bucket", storageObject.getBucket());
+    assertEquals(2, storageObject.getSize().intValue());
+  }
+
+  public void testContent() {
+    SimulatedStorage storage = new SimulatedStorage();
+    storage.put("bucket", "results", new byte[]{1, 2, 3});
+    storage.putDiscarded("bucket", "app.apk", 1000);
+
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, storage.getContent("bucket", "results")));
+    // The content of uploads is not kept, just their size.
+    assertEquals(0, storage.getContent("bucket", "app.apk").length);
+    assertEquals(1000, storage.getMetadata("bucket", "app.apk").getSize().intValue());
+    assertNull(storage.getContent("bucket", "missing"));
+    assertNull(storage.getMetadata("bucket", "missing"));
+  }
+
+  private static List<String> getNames(List<StorageObject> storageObjects) {
+    List<String> names = new ArrayList<String>();
+    for (StorageObject storageObject : storageObjects) {
+      names.add(storageObject.getName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import com.google.api.services.storage.model.StorageObject;
+import com.google.api.services.testing.model.*;
+import com.google.common.collect.ImmutableList;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+public class SimulatedTestMatrixTest extends TestCase {
+
+  private static final String BUCKET = "bucket";
+  // The default settings: 5 seconds of validation, executions start within 15 seconds and run for 45 to 90 seconds.
+  private static final long ALL_RUNNING_MILLIS = 21 * 1000;
+  private static final long ALL_DONE_MILLIS = 200 * 1000;
+
+  public void testStateProgression() {
+    SimulatedStorage storage = new SimulatedStorage();
+    long startTime = System.currentTimeMillis();
+    SimulatedTestMatrix testMatrix = createTestMatrix(createSettings(0), new Random(0));
+
+    TestMatrix matrix = testMatrix.refresh(storage, startTime);
+    assertEquals("VALIDATING", matrix.getState());
+    assertNull(matrix.getResultStorage().getToolResultsExecution());
+
+    matrix = testMatrix.refresh(storage, startTime + ALL_RUNNING_MILLIS);
+    assertEquals("RUNNING", matrix.getState());
+    assertEquals("matrix-1", matrix.getResultStorage().getToolResultsExecution().getExecutionId());
+    for (TestExecution testExecution : matrix.getTestExecutions()) {
+      assertEquals("RUNNING", testExecution.getState());
+      assertFalse(testExecution.getTestDetails().getProgressMessages().isEmpty());
+    }
+    assertTrue(storage.list(BUCKET, null).isEmpty());
+    assertNull(testMatrix.getTestDurationSeconds("matrix-1_0"));
+
+    matrix = testMatrix.refresh(storage, startTime + ALL_DONE_MILLIS);
+    assertEquals("FINISHED", matrix.getState());
+    for (TestExecution testExecution : matrix.getTestExecutions()) {
+      assertEquals("FINISHED", testExecution.getState());
+      assertEquals(testExecution.getId(), testExecution.getToolResultsStep().getStepId());
+    }
+    long testDurationSeconds = testMatrix.getTestDurationSeconds("matrix-1_0");
+    assertTrue(testDurationSeconds >= 45 && testDurationSeconds <= 90);
+  }
+
+  public void testWritesResultsOfFinishedExecutions() {
+    SimulatedStorage storage = new SimulatedStorage();
+    long startTime = System.currentTimeMillis();
+    createTestMatrix(createSettings(0), new Random(0)).refresh(storage, startTime + ALL_DONE_MILLIS);
+
+    List<String> names = new ArrayList<String>();
+    for (StorageObject storageObject : storage.list(BUCKET, "shard-0/LocalPhone-21-en-portrait/")) {
+      names.add(storageObject.getName());
+    }
+    // 2 tests with a screenshot each, and the instrumentation results.
+    assertEquals(ImmutableList.of("shard-0/LocalPhone-21-en-portrait/artifacts/com.example.FooTest-test1-screen-1.png",
+                                  "shard-0/LocalPhone-21-en-portrait/artifacts/com.example.FooTest-test2-screen-1.png",
+                                  "shard-0/LocalPhone-21-en-portrait/instrumentation.results"), names);
+    String results = new String(storage.getContent(BUCKET, "shard-0/LocalPhone-21-en-portrait/instrumentation.results"));
+    assertTrue(results.contains("INSTRUMENTATION_STATUS: class=com.example.FooTest"));
+    assertTrue(results.contains("OK (2 tests)"));
+    assertEquals(3, storage.list(BUCKET, "shard-0/LocalTablet-21-en-portrait/").size());
+  }
+
+  public void testInjectedExecutionFailures() {
+    SimulatedStorage storage = new SimulatedStorage();
+    long startTime = System.currentTimeMillis();
+    TestMatrix matrix = createTestMatrix(createSettings(100), new Random(0)).refresh(storage, startTime + ALL_DONE_MILLIS);
+
+    assertEquals("FINISHED", matrix.getState());
+    for (TestExecution testExecution : matrix.getTestExecutions()) {
+      assertEquals("ERROR", testExecution.getState());
+      assertNotNull(testExecution.getTestDetails().getErrorMessage());
+      assertNull(testExecution.getToolResultsStep());
+    }
+    assertTrue(storage.list(BUCKET, null).isEmpty());
+  }
+
+  public void testCancel() {
+    SimulatedStorage storage = new SimulatedStorage();
+    SimulatedTestMatrix testMatrix = createTestMatrix(createSettings(0), new Random(0));
+    testMatrix.cancel();
+
+    TestMatrix matrix = testMatrix.refresh(storage, System.currentTimeMillis());
+    assertEquals("CANCELLED", matrix.getState());
+    for (TestExecution testExecution : matrix.getTestExecutions()) {
+      assertEquals("CANCELLED", testExecution.getState());
+    }
+  }
+
+  public void testSameSeedSameDurations() {
+    SimulatedStorage storage = new SimulatedStorage();
+    SimulatedTestMatrix testMatrix1 = createTestMatrix(createSettings(0), new Random(7));
+    SimulatedTestMatrix testMatrix2 = createTestMatrix(createSettings(0), new Random(7));
+    long doneTime = System.currentTimeMillis() + ALL_DONE_MILLIS;
+    testMatrix1.refresh(storage, doneTime);
+    testMatrix2.refresh(storage, doneTime);
+    for (int i = 0; i < 2; i++) {
+      assertEquals(testMatrix1.getTestDurationSeconds("matrix-1_" + i), testMatrix2.getTestDurationSeconds("matrix-1_" + i));
+    }
+  }
+
+  private static SimulationSettings createSettings(int executionErrorPercent) {
+    Properties properties = new Properties();
+    properties.setProperty("firebase.testing.local.executionErrorPercent", String.valueOf(executionErrorPercent));
+    properties.setProperty("firebase.testing.local.testsPerExecution", "2");
+    properties.setProperty("firebase.testing.local.screenshotsPerTest", "1");
+    return SimulationSettings.fromProperties(properties);
+  }
+
+  private static SimulatedTestMatrix createTestMatrix(SimulationSettings settings, Random random) {
+    TestMatrix requestedTestMatrix = new TestMatrix()
+      .setResultStorage(new ResultStorage().setGoogleCloudStorage(new GoogleCloudStorage().setGcsPath("gs://" + BUCKET + "/shard-0")))
+      .setTestSpecification(new TestSpecification().setAndroidInstrumentationTest(
+        new AndroidInstrumentationTest().setTestTargets(ImmutableList.of("class com.example.FooTest"))))
+      .setEnvironmentMatrix(new EnvironmentMatrix().setAndroidMatrix(
+        new AndroidMatrix().setAndroidModelIds(ImmutableList.of("LocalPhone", "LocalTablet")).setAndroidVersionIds(ImmutableList.of("21"))
+          .setLocales(ImmutableList.of("en")).setOrientations(ImmutableList.of("portrait"))));
+    return new SimulatedTestMatrix("project", "matrix-1", requestedTestMatrix, settings, random);
+  }
+}
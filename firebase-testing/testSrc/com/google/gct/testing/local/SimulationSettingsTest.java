@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.local;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class SimulationSettingsTest extends TestCase {
+
+  public void testDefaults() {
+    SimulationSettings settings = SimulationSettings.fromProperties(new Properties());
+    assertEquals(0, settings.failurePercent);
+    assertEquals(0, settings.maxRequestsPerSecond);
+    assertEquals(5, settings.validationSeconds);
+    assertEquals(60, settings.executionSeconds);
+    assertEquals(0L, settings.seed);
+  }
+
+  public void testParsesPrefixedProperties() {
+    Properties properties = new Properties();
+    properties.setProperty("firebase.testing.local.failurePercent", "5");
+    properties.setProperty("firebase.testing.local.executionSeconds", " 10 ");
+    properties.setProperty("firebase.testing.local.seed", "-42");
+    properties.setProperty("failurePercent", "50"); // Not prefixed, so ignored.
+    SimulationSettings settings = SimulationSettings.fromProperties(properties);
+    assertEquals(5, settings.failurePercent);
+    assertEquals(10, settings.executionSeconds);
+    assertEquals(-42L, settings.seed);
+  }
+
+  public void testIgnoresInvalidValues() {
+    Properties properties = new Properties();
+    properties.setProperty("firebase.testing.local.latencyMillis", "-10");
+    properties.setProperty("firebase.testing.local.validationSeconds", "soon");
+    properties.setProperty("firebase.testing.local.progressMessageCount", "0");
+    SimulationSettings settings = SimulationSettings.fromProperties(properties);
+    assertEquals(0, settings.latencyMillis);
+    assertEquals(5, settings.validationSeconds);
+    assertEquals(1, settings.progressMessageCount);
+  }
+}
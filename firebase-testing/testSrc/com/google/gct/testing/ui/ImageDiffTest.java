@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import junit.framework.TestCase;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+public class ImageDiffTest extends TestCase {
+
+  public void testIdenticalImages() {
+    BufferedImage image = createImage(150, 100, Color.WHITE);
+    for (ImageDiff.Mode mode : ImageDiff.Mode.values()) {
+      ImageDiff.Result result = ImageDiff.compare(image, createImage(150, 100, Color.WHITE), mode);
+      assertEquals(mode.name(), 1.0, result.getSimilarity(), 1e-9);
+      assertEquals(0, result.getHeatmap().getRGB(75, 50));
+    }
+  }
+
+  public void testChangedRegionIsHighlighted() {
+    BufferedImage reference = createImage(150, 100, Color.WHITE);
+    BufferedImage image = createImage(150, 100, Color.WHITE);
+    Graphics2D g = image.createGraphics();
+    g.setColor(Color.BLACK);
+    g.fillRect(70, 40, 20, 20); // Crosses tile and window boundaries.
+    g.dispose();
+
+    ImageDiff.Result pixelResult = ImageDiff.compare(reference, image, ImageDiff.Mode.PIXEL);
+    assertEquals(1 - 400.0 / (150 * 100), pixelResult.getSimilarity(), 1e-9);
+    assertTrue(pixelResult.getHeatmap().getRGB(75, 50) != 0);
+    assertEquals(0, pixelResult.getHeatmap().getRGB(10, 10));
+
+    ImageDiff.Result perceptualResult = ImageDiff.compare(reference, image, ImageDiff.Mode.PERCEPTUAL);
+    assertTrue(perceptualResult.getSimilarity() < 1);
+    assertTrue(perceptualResult.getSimilarity() > 0.9);
+    assertTrue(perceptualResult.getHeatmap().getRGB(75, 50) != 0);
+    assertEquals(0, perceptualResult.getHeatmap().getRGB(10, 10));
+  }
+
+  public void testImageIsScaledToReference() {
+    ImageDiff.Result result = ImageDiff.compare(createImage(60, 40, Color.BLUE), createImage(120, 80, Color.BLUE), ImageDiff.Mode.PIXEL);
+    assertEquals(1.0, result.getSimilarity(), 1e-9);
+    assertEquals(60, result.getHeatmap().getWidth());
+    assertEquals(40, result.getHeatmap().getHeight());
+  }
+
+  public void testStructuralSimilarity() {
+    int[] flat = new int[64];
+    int[] stripes = new int[64];
+    for (int i = 0; i < 64; i++) {
+      flat[i] = 0x808080;
+      stripes[i] = i % 2 == 0 ? 0x000000 : 0xFFFFFF;
+    }
+    assertEquals(1.0, ImageDiff.getStructuralSimilarity(stripes, stripes, 8, 0, 0, 8, 8), 1e-9);
+    // Same mean luminance, but no structure in common.
+    assertTrue(ImageDiff.getStructuralSimilarity(flat, stripes, 8, 0, 0, 8, 8) < 0.1);
+    assertEquals(1.0, ImageDiff.getPixelDifference(0x000000, 0x00FF00), 1e-9);
+  }
+
+  private static BufferedImage createImage(int width, int height, Color color) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(color);
+    g.fillRect(0, 0, width, height);
+    g.dispose();
+    return image;
+  }
+}
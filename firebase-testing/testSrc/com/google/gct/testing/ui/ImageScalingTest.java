@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class ImageScalingTest extends TestCase {
+
+  public void testFitInto() {
+    assertEquals(new Dimension(299, 533), ImageScaling.fitInto(1080, 1920, 533, 533));
+    assertEquals(new Dimension(533, 299), ImageScaling.fitInto(1920, 1080, 533, 533));
+    assertEquals(new Dimension(200, 100), ImageScaling.fitInto(200, 100, 533, 533)); // Never enlarged.
+  }
+
+  public void testSubsampling() {
+    assertEquals(1, ImageScaling.getSubsampling(1080, 533));
+    assertEquals(2, ImageScaling.getSubsampling(2160, 533));
+    assertEquals(1, ImageScaling.getSubsampling(100, 533));
+  }
+
+  public void testScale() {
+    BufferedImage image = new BufferedImage(2160, 3840, BufferedImage.TYPE_INT_RGB);
+    BufferedImage scaledImage = ImageScaling.scale(image, 300, 533);
+    assertEquals(300, scaledImage.getWidth());
+    assertEquals(533, scaledImage.getHeight());
+    BufferedImage enlargedImage = ImageScaling.scale(new BufferedImage(10, 20, BufferedImage.TYPE_INT_ARGB), 30, 60);
+    assertEquals(30, enlargedImage.getWidth());
+    assertEquals(60, enlargedImage.getHeight());
+  }
+
+  public void testDecodeForSize() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(2400, 1200, BufferedImage.TYPE_INT_RGB), "png", out);
+    BufferedImage decodedImage = ImageScaling.decodeForSize(out.toByteArray(), 300, 300);
+    // Subsampled by 2, which leaves the shorter side at twice the target size.
+    assertEquals(1200, decodedImage.getWidth());
+    assertEquals(600, decodedImage.getHeight());
+    assertNull(ImageScaling.decodeForSize(new byte[]{1, 2, 3}, 300, 300));
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gct.testing.ui;
+
+import junit.framework.TestCase;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PerceptualHashTest extends TestCase {
+
+  public void testSimilarImagesHaveCloseHashes() {
+    long hash = PerceptualHash.getDifferenceHash(createScreen(1080, 1920, 400));
+    long scaledHash = PerceptualHash.getDifferenceHash(createScreen(720, 1280, 400 * 720 / 1080));
+    long differentHash = PerceptualHash.getDifferenceHash(createScreen(1080, 1920, 1600));
+    assertTrue(PerceptualHash.getDistance(hash, scaledHash) <= 2);
+    assertTrue(PerceptualHash.getDistance(hash, differentHash) > 4);
+  }
+
+  public void testCluster() {
+    Map<String, Long> hashes = new LinkedHashMap<String, Long>();
+    hashes.put("nexus5", 0xFF00FF00FF00FF00L);
+    hashes.put("outlier", 0x0123456789ABCDEFL);
+    hashes.put("nexus6", 0xFF00FF00FF00FF01L); // 1 bit away from nexus5.
+    hashes.put("nexus7", 0xFF00FF00FF00FF07L); // 3 bits away from nexus5.
+    List<List<String>> clusters = PerceptualHash.cluster(hashes, 2);
+    assertEquals(3, clusters.size());
+    assertEquals(Arrays.asList("nexus5", "nexus6"), clusters.get(0));
+    assertEquals(Arrays.asList("outlier"), clusters.get(1));
+    assertEquals(Arrays.asList("nexus7"), clusters.get(2));
+  }
+
+  /**
+   * A white screen with a dark bar at the given height.
+   */
+  private static BufferedImage createScreen(int width, int height, int barY) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, width, height);
+    g.setColor(Color.DARK_GRAY);
+    g.fillRect(width / 4, barY, width / 2, height / 8);
+    g.setColor(Color.LIGHT_GRAY);
+    g.fillOval(width / 8, height / 2, width / 3, width / 3);
+    g.dispose();
+    return image;
+  }
+}